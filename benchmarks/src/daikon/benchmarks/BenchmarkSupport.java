@@ -0,0 +1,369 @@
+package daikon.benchmarks;
+
+import daikon.Daikon;
+import daikon.FileIO;
+import daikon.PptMap;
+import daikon.PptTopLevel;
+import daikon.ValueTuple;
+import daikon.config.Configuration;
+import daikon.derive.Derivation;
+import daikon.inv.Invariant;
+import daikon.inv.binary.BinaryInvariant;
+import daikon.inv.ternary.TernaryInvariant;
+import daikon.inv.unary.UnaryInvariant;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import org.plumelib.util.Intern;
+
+/**
+ * Inputs and setup shared by the benchmarks. Every input is either a trace file that is checked in
+ * under {@code tests/daikon-tests}, a trace file that {@code make traces} generates from the
+ * sources under {@code tests/sources}, or a synthetic trace that is generated from a fixed seed, so
+ * that results are comparable across commits.
+ */
+final class BenchmarkSupport {
+
+  /** Do not instantiate. */
+  private BenchmarkSupport() {
+    throw new Error("do not instantiate");
+  }
+
+  /** The seed of the random values in synthetic traces. */
+  static final long SEED = 20261018L;
+
+  /** The name of the program point of synthetic samples. */
+  static final String POINT_NAME = "bench.Synthetic.point:::POINT";
+
+  /**
+   * Returns the root of the Daikon distribution: the value of the {@code daikon.dir} system
+   * property, which the Makefile sets, or else of the DAIKONDIR environment variable.
+   */
+  static File daikonDir() {
+    String dir = System.getProperty("daikon.dir", System.getenv("DAIKONDIR"));
+    if (dir == null) {
+      throw new Error("Set DAIKONDIR or -Ddaikon.dir to the root of the Daikon distribution");
+    }
+    return new File(dir);
+  }
+
+  /**
+   * Returns the declaration and trace files of a named input.
+   *
+   * @param name "synthetic", the name of a directory under {@code tests/daikon-tests} that
+   *     contains a stored trace (such as "tcas"), or the name of a trace generated by {@code make
+   *     traces} (such as "StackAr")
+   * @param dir a directory in which a synthetic trace may be written
+   * @return the declaration files (possibly none), then the trace file
+   */
+  static List<File> traceFiles(String name, File dir) {
+    List<File> result = new ArrayList<>();
+    if (name.equals("synthetic")) {
+      File dtrace = new File(dir, "synthetic.dtrace.gz");
+      writeSyntheticTrace(dtrace, 8, 20000);
+      result.add(dtrace);
+      return result;
+    }
+    File generated = new File(daikonDir(), "benchmarks/traces/" + name + ".dtrace.gz");
+    if (generated.exists()) {
+      result.add(generated);
+      return result;
+    }
+    File stored = new File(daikonDir(), "tests/daikon-tests/" + name);
+    File decls = new File(stored, name + ".decls");
+    File dtrace = new File(stored, name + ".dtrace.gz");
+    if (!dtrace.exists()) {
+      throw new Error("No trace " + dtrace + " or " + generated + "; try \"make traces\"");
+    }
+    if (decls.exists()) {
+      result.add(decls);
+    }
+    result.add(dtrace);
+    return result;
+  }
+
+  /**
+   * Returns a new temporary directory that is deleted when the JVM exits.
+   *
+   * @return a new temporary directory
+   */
+  static File tempDir() {
+    try {
+      File dir = Files.createTempDirectory("daikon-bench").toFile();
+      dir.deleteOnExit();
+      return dir;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Resets Daikon's global state and applies the options that every benchmark uses, then sets up
+   * the prototype invariants and suppressions as Daikon does before reading trace files.
+   *
+   * @param options configuration options of the form {@code name=value}
+   */
+  static void resetDaikon(String... options) {
+    Daikon.cleanup();
+    FileIO.resetNewDeclFormat();
+    FileIO.samples_processed = 0;
+    Daikon.dkconfig_quiet = true;
+    Daikon.dkconfig_progress_delay = -1;
+    FileIO.dkconfig_unmatched_procedure_entries_quiet = true;
+    for (String option : options) {
+      Configuration.getInstance().apply(option);
+    }
+    Daikon.setup_proto_invs();
+    Daikon.setup_NISuppression();
+  }
+
+  /**
+   * Removes the prototype invariants of every arity but one, so that samples exercise only the
+   * slices of that arity. Must be called after {@link #resetDaikon}.
+   *
+   * @param arity 1, 2, or 3
+   */
+  static void keepOnlyArity(int arity) {
+    Daikon.proto_invs.removeIf(inv -> arityOf(inv) != arity);
+    Daikon.setup_NISuppression();
+  }
+
+  /**
+   * Returns the arity of an invariant.
+   *
+   * @param inv an invariant
+   * @return the number of variables that inv relates
+   */
+  private static int arityOf(Invariant inv) {
+    if (inv instanceof UnaryInvariant) {
+      return 1;
+    } else if (inv instanceof BinaryInvariant) {
+      return 2;
+    } else if (inv instanceof TernaryInvariant) {
+      return 3;
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * Reads declarations, as Daikon does before it reads trace files.
+   *
+   * @param files declaration and trace files; only the declaration files are read
+   * @return the program points
+   */
+  static PptMap readDecls(List<File> files) {
+    List<File> decls = new ArrayList<>();
+    for (File file : files) {
+      if (file.getName().endsWith(".decls")) {
+        decls.add(file);
+      }
+    }
+    try {
+      PptMap all_ppts = FileIO.read_declaration_files(decls);
+      Daikon.all_ppts = all_ppts;
+      return all_ppts;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the names of the trace files among the given files.
+   *
+   * @param files declaration and trace files
+   * @return the names of the trace files
+   */
+  static List<String> dtraceNames(List<File> files) {
+    List<String> result = new ArrayList<>();
+    for (File file : files) {
+      if (!file.getName().endsWith(".decls")) {
+        result.add(file.getPath());
+      }
+    }
+    return result;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Synthetic inputs
+  ///
+
+  /**
+   * Returns the value of a variable in a synthetic sample. The variables follow a few patterns that
+   * keep some invariants true (constants, linear relationships, equality, ordering) and falsify
+   * others at different rates.
+   *
+   * @param var the index of the variable
+   * @param sample the index of the sample
+   * @param random the source of the random values
+   * @return the value of the variable
+   */
+  static long syntheticValue(int var, int sample, Random random) {
+    int group = var / 6;
+    switch (var % 6) {
+      case 0:
+        return sample % 100 + group;
+      case 1:
+        return 2 * (sample % 100) + 1;
+      case 2:
+        return sample % 100 + group;
+      case 3:
+        return random.nextInt(10);
+      case 4:
+        return sample;
+      default:
+        return (sample % 7 == 0) ? random.nextInt(1000) - 500 : group;
+    }
+  }
+
+  /**
+   * Writes a synthetic trace in the version 2 format. It declares a method whose parameters and
+   * result are int variables, and contains calls to it.
+   *
+   * @param file the file to write
+   * @param numVars the number of parameters
+   * @param numCalls the number of calls
+   */
+  static void writeSyntheticTrace(File file, int numVars, int numCalls) {
+    try (PrintWriter out =
+        new PrintWriter(
+            new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), "UTF-8"))) {
+      out.println("decl-version 2.0");
+      out.println("var-comparability none");
+      out.println();
+      String method = "bench.Synthetic.m(" + String.join(",", Collections.nCopies(numVars, "int"));
+      for (String point : new String[] {"ENTER", "EXIT1"}) {
+        out.println("ppt " + method + "):::" + point);
+        out.println("  ppt-type " + (point.equals("ENTER") ? "enter" : "subexit"));
+        for (int i = 0; i < numVars; i++) {
+          declareInt(out, "p" + i, true);
+        }
+        if (point.startsWith("EXIT")) {
+          declareInt(out, "return", false);
+        }
+        out.println();
+      }
+
+      Random random = new Random(SEED);
+      for (int call = 0; call < numCalls; call++) {
+        long[] vals = new long[numVars];
+        for (int i = 0; i < numVars; i++) {
+          vals[i] = syntheticValue(i, call, random);
+        }
+        for (String point : new String[] {"ENTER", "EXIT1"}) {
+          out.println(method + "):::" + point);
+          out.println("this_invocation_nonce");
+          out.println(call);
+          for (int i = 0; i < numVars; i++) {
+            out.println("p" + i);
+            out.println(vals[i]);
+            out.println(1);
+          }
+          if (point.startsWith("EXIT")) {
+            out.println("return");
+            out.println(vals[0] + vals[numVars - 1]);
+            out.println(1);
+          }
+          out.println();
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Writes the declaration of an int variable.
+   *
+   * @param out where to write the declaration
+   * @param name the name of the variable
+   * @param isParam true if the variable is a parameter
+   */
+  private static void declareInt(PrintWriter out, String name, boolean isParam) {
+    out.println("  variable " + name);
+    out.println("    var-kind " + (name.equals("return") ? "return" : "variable"));
+    out.println("    rep-type int");
+    out.println("    dec-type int");
+    if (isParam) {
+      out.println("    flags is_param");
+    }
+  }
+
+  /**
+   * Creates a program point of type POINT that has the given number of int variables, and
+   * initializes it as Daikon would when reading its declaration. Derived variables are disabled, so
+   * samples for it contain just the values of those variables.
+   *
+   * @param numVars the number of variables
+   * @param dir a directory in which the declaration may be written
+   * @return the program point
+   */
+  static PptTopLevel syntheticPoint(int numVars, File dir) {
+    Derivation.dkconfig_disable_derived_variables = true;
+    File decls = new File(dir, "point" + numVars + ".decls");
+    try (PrintWriter out = new PrintWriter(decls, "UTF-8")) {
+      out.println("decl-version 2.0");
+      out.println("var-comparability none");
+      out.println();
+      out.println("ppt " + POINT_NAME);
+      out.println("  ppt-type point");
+      for (int i = 0; i < numVars; i++) {
+        declareInt(out, "x" + i, false);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    List<File> files = new ArrayList<>();
+    files.add(decls);
+    PptTopLevel ppt = readDecls(files).get(POINT_NAME);
+    if (ppt == null) {
+      throw new Error("no program point " + POINT_NAME + " in " + decls);
+    }
+    return ppt;
+  }
+
+  /**
+   * Returns synthetic samples for a program point created by {@link #syntheticPoint}.
+   *
+   * @param numVars the number of variables
+   * @param numSamples the number of samples
+   * @return the samples, with interned values
+   */
+  static ValueTuple[] syntheticSamples(int numVars, int numSamples) {
+    Random random = new Random(SEED);
+    ValueTuple[] result = new ValueTuple[numSamples];
+    for (int s = 0; s < numSamples; s++) {
+      long[] vals = new long[numVars];
+      for (int i = 0; i < numVars; i++) {
+        vals[i] = syntheticValue(i, s, random);
+      }
+      result[s] = sample(vals);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a sample in which every variable is present.
+   *
+   * @param vals the values of the variables
+   * @return a sample with interned values
+   */
+  static ValueTuple sample(long[] vals) {
+    Object[] objs = new Object[vals.length];
+    int[] mods = new int[vals.length];
+    for (int i = 0; i < vals.length; i++) {
+      objs[i] = Intern.internedLong(vals[i]);
+      mods[i] = ValueTuple.MODIFIED;
+    }
+    return new ValueTuple(objs, mods);
+  }
+}
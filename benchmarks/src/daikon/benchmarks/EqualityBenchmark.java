@@ -0,0 +1,99 @@
+package daikon.benchmarks;
+
+import daikon.PptSliceEquality;
+import daikon.PptTopLevel;
+import daikon.ValueTuple;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the splitting of equality sets ({@link PptSliceEquality#add}), which copies the
+ * invariants of a set's leader to the leaders of the new sets. Before each operation, a fresh
+ * program point sees samples in which all variables are equal, so they form a single equality set
+ * whose leader has many invariants. Each operation then applies samples that split one variable at
+ * a time off that set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+@Fork(1)
+public class EqualityBenchmark {
+
+  /** The number of variables of the program point. */
+  @Param({"8", "16"})
+  public int numVars;
+
+  /** The number of samples in which all variables are equal. */
+  @Param({"100"})
+  public int numEqualSamples;
+
+  /** A directory for declaration files. */
+  private File dir;
+
+  /** Samples in which all variables are equal. */
+  private ValueTuple[] equalSamples;
+
+  /** Samples that each split one variable off the equality set. */
+  private ValueTuple[] splittingSamples;
+
+  /** The program point to which the samples are applied. */
+  private PptTopLevel ppt;
+
+  /** Sets up the prototype invariants and creates the samples. */
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    dir = BenchmarkSupport.tempDir();
+    BenchmarkSupport.resetDaikon();
+    equalSamples = new ValueTuple[numEqualSamples];
+    for (int s = 0; s < numEqualSamples; s++) {
+      long[] vals = new long[numVars];
+      Arrays.fill(vals, s % 10);
+      equalSamples[s] = BenchmarkSupport.sample(vals);
+    }
+    splittingSamples = new ValueTuple[numVars - 1];
+    for (int k = 1; k < numVars; k++) {
+      long[] vals = new long[numVars];
+      for (int i = 0; i < numVars; i++) {
+        vals[i] = (i < numVars - k) ? 5 : 5 + i;
+      }
+      splittingSamples[k - 1] = BenchmarkSupport.sample(vals);
+    }
+  }
+
+  /** Creates a fresh program point whose variables are all in one equality set. */
+  @Setup(Level.Invocation)
+  public void setupInvocation() {
+    ppt = BenchmarkSupport.syntheticPoint(numVars, dir);
+    for (ValueTuple vt : equalSamples) {
+      ppt.add_bottom_up(vt, 1);
+    }
+  }
+
+  /**
+   * Applies the samples that split the equality set.
+   *
+   * @return the program point, so that the work is not optimized away
+   */
+  @Benchmark
+  public PptTopLevel splitEqualitySets() {
+    for (ValueTuple vt : splittingSamples) {
+      ppt.add_bottom_up(vt, 1);
+    }
+    return ppt;
+  }
+}
@@ -0,0 +1,82 @@
+package daikon.benchmarks;
+
+import daikon.PptTopLevel;
+import daikon.ValueTuple;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link PptTopLevel#add_bottom_up}, which applies a sample to the invariants of a program
+ * point, for slices of each arity. Each operation applies a batch of synthetic samples to a fresh
+ * program point, so it includes the instantiation of slices on the first sample and the
+ * falsification of most invariants over the first few samples.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class InferenceBenchmark {
+
+  /** The arity of the invariants that are checked; invariants of other arities are disabled. */
+  @Param({"1", "2", "3"})
+  public int arity;
+
+  /** The number of variables of the program point. */
+  @Param({"6", "12"})
+  public int numVars;
+
+  /** The number of samples applied by each operation. */
+  @Param({"1000"})
+  public int numSamples;
+
+  /** A directory for declaration files. */
+  private File dir;
+
+  /** The samples. */
+  private ValueTuple[] samples;
+
+  /** The program point to which the samples are applied. */
+  private PptTopLevel ppt;
+
+  /** Sets up the prototype invariants and creates the samples. */
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    dir = BenchmarkSupport.tempDir();
+    BenchmarkSupport.resetDaikon();
+    BenchmarkSupport.keepOnlyArity(arity);
+    samples = BenchmarkSupport.syntheticSamples(numVars, numSamples);
+  }
+
+  /** Creates a fresh program point. */
+  @Setup(Level.Invocation)
+  public void setupInvocation() {
+    ppt = BenchmarkSupport.syntheticPoint(numVars, dir);
+  }
+
+  /**
+   * Applies the samples to the program point.
+   *
+   * @return the program point, so that the work is not optimized away
+   */
+  @Benchmark
+  public PptTopLevel addSamples() {
+    for (ValueTuple vt : samples) {
+      ppt.add_bottom_up(vt, 1);
+    }
+    return ppt;
+  }
+}
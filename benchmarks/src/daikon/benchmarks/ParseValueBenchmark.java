@@ -0,0 +1,110 @@
+package daikon.benchmarks;
+
+import daikon.ProglangType;
+import java.io.LineNumberReader;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link ProglangType#parse_value}, which converts each value in a textual trace file, for
+ * each representation type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseValueBenchmark {
+
+  /** The number of values parsed by each operation. */
+  static final int NUM_VALUES = 1024;
+
+  /** The representation type of the values. */
+  @Param({"int", "double", "java.lang.String", "int[]", "double[]", "java.lang.String[]"})
+  public String repType;
+
+  /** The parsed representation type. */
+  private ProglangType type;
+
+  /** The values, as they appear in a trace file. */
+  private String[] values;
+
+  /** The reader passed to parse_value, which uses it only in error messages. */
+  private LineNumberReader reader;
+
+  /** Creates the values to parse. */
+  @Setup
+  public void setup() {
+    type = ProglangType.rep_parse(repType);
+    reader = new LineNumberReader(new StringReader(""));
+    Random random = new Random(BenchmarkSupport.SEED);
+    values = new String[NUM_VALUES];
+    for (int i = 0; i < NUM_VALUES; i++) {
+      if (type.isArray()) {
+        StringBuilder sb = new StringBuilder("[");
+        int length = random.nextInt(8);
+        for (int j = 0; j < length; j++) {
+          sb.append(j == 0 ? "" : " ").append(scalar(random));
+        }
+        values[i] = sb.append("]").toString();
+      } else {
+        values[i] = scalar(random);
+      }
+    }
+  }
+
+  /**
+   * Returns a random scalar value of the element type, as it appears in a trace file.
+   *
+   * @param random the source of the random values
+   * @return a scalar value
+   */
+  private String scalar(Random random) {
+    if (type.baseIsIntegral()) {
+      return Integer.toString(random.nextInt(2000) - 1000);
+    } else if (type.baseIsFloat()) {
+      return Double.toString(random.nextGaussian() * 100);
+    } else {
+      return "\"s" + random.nextInt(100) + "\"";
+    }
+  }
+
+  /**
+   * Parses and interns every value, as a single-threaded trace reader does.
+   *
+   * @param bh consumes the parsed values
+   */
+  @Benchmark
+  public void parseValue(Blackhole bh) {
+    for (String value : values) {
+      bh.consume(type.parse_value(value, reader, "benchmark"));
+    }
+  }
+
+  /**
+   * Parses every value without interning it, as the parse threads of a memory-mapped trace reader
+   * do.
+   *
+   * @param bh consumes the parsed values
+   */
+  @Benchmark
+  public void parseValueUninterned(Blackhole bh) {
+    for (String value : values) {
+      bh.consume(type.parse_value_uninterned(value, reader, "benchmark"));
+    }
+  }
+}
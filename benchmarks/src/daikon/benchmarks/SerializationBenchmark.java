@@ -0,0 +1,120 @@
+package daikon.benchmarks;
+
+import daikon.BinaryInv;
+import daikon.Daikon;
+import daikon.FileIO;
+import daikon.PptMap;
+import daikon.PptTopLevel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing and reading {@code .inv} files, in the indexed {@link BinaryInv} format and as a
+ * single serialized object. The invariants are those that Daikon infers from a stored trace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SerializationBenchmark {
+
+  /** The trace from which the invariants are inferred. */
+  @Param({"tcas", "print_tokens"})
+  public String trace;
+
+  /** True for the indexed format, false for a single serialized object. */
+  @Param({"true", "false"})
+  public boolean binaryInv;
+
+  /** The program points that are written. */
+  private PptMap all_ppts;
+
+  /** The file that is written and read. */
+  private File invFile;
+
+  /** The name of a program point that is read on its own. */
+  private String pptName;
+
+  /**
+   * Runs Daikon on the trace and writes the resulting invariants.
+   *
+   * @throws IOException if the invariants cannot be written
+   */
+  @Setup(Level.Trial)
+  public void setupTrial() throws IOException {
+    File dir = BenchmarkSupport.tempDir();
+    invFile = new File(dir, trace + ".inv.gz");
+    invFile.deleteOnExit();
+    List<String> args = new ArrayList<>();
+    args.add("--no_text_output");
+    args.add("--config_option");
+    args.add("daikon.Daikon.quiet=true");
+    args.add("-o");
+    args.add(invFile.getPath());
+    for (File file : BenchmarkSupport.traceFiles(trace, dir)) {
+      args.add(file.getPath());
+    }
+    Daikon.mainHelper(args.toArray(new String[0]));
+    all_ppts = FileIO.read_serialized_pptmap(invFile, false);
+    List<String> names = new ArrayList<>(all_ppts.nameStringSet());
+    pptName = names.get(names.size() / 2);
+    FileIO.dkconfig_binary_inv = binaryInv;
+    FileIO.write_serialized_pptmap(all_ppts, invFile);
+  }
+
+  /**
+   * Writes the invariants.
+   *
+   * @throws IOException if the file cannot be written
+   */
+  @Benchmark
+  public void write() throws IOException {
+    FileIO.write_serialized_pptmap(all_ppts, invFile);
+  }
+
+  /**
+   * Reads all of the invariants.
+   *
+   * @return the program points
+   * @throws IOException if the file cannot be read
+   */
+  @Benchmark
+  public PptMap readAll() throws IOException {
+    return FileIO.read_serialized_pptmap(invFile, false);
+  }
+
+  /**
+   * Reads the invariants of one program point, as {@code PrintInvariants --ppt-select-pattern}
+   * does. Only the indexed format can avoid reading the whole file.
+   *
+   * @return the program point
+   * @throws IOException if the file cannot be read
+   */
+  @Benchmark
+  public PptTopLevel readOne() throws IOException {
+    if (binaryInv) {
+      try (BinaryInv.Reader reader = new BinaryInv.Reader(invFile)) {
+        return reader.get(pptName);
+      }
+    } else {
+      return FileIO.read_serialized_pptmap(invFile, false).get(pptName);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package daikon.benchmarks;
+
+import daikon.PptTopLevel;
+import daikon.ValueTuple;
+import daikon.suppress.NIS;
+import daikon.suppress.NIS.SuppressionProcessor;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the processing of non-instantiating suppressions ({@link NIS#process_falsified_invs}
+ * and the creation of the invariants that falsified suppressors no longer suppress), for each
+ * suppression processor. Each operation applies a batch of synthetic samples to a fresh program
+ * point with invariants of every arity; "NONE" disables suppressions, for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SuppressionBenchmark {
+
+  /** The suppression processor, or "NONE" to disable suppressions. */
+  @Param({"HYBRID", "ANTECEDENT", "FALSIFIED", "NONE"})
+  public String processor;
+
+  /** The number of variables of the program point. */
+  @Param({"8"})
+  public int numVars;
+
+  /** The number of samples applied by each operation. */
+  @Param({"1000"})
+  public int numSamples;
+
+  /** A directory for declaration files. */
+  private File dir;
+
+  /** The samples. */
+  private ValueTuple[] samples;
+
+  /** The program point to which the samples are applied. */
+  private PptTopLevel ppt;
+
+  /** Selects the suppression processor, as Daikon does, and creates the samples. */
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    dir = BenchmarkSupport.tempDir();
+    NIS.dkconfig_enabled = !processor.equals("NONE");
+    if (NIS.dkconfig_enabled) {
+      NIS.dkconfig_suppression_processor = SuppressionProcessor.valueOf(processor);
+    }
+    NIS.hybrid_method = (NIS.dkconfig_suppression_processor == SuppressionProcessor.HYBRID);
+    NIS.antecedent_method =
+        (NIS.dkconfig_suppression_processor != SuppressionProcessor.FALSIFIED);
+    BenchmarkSupport.resetDaikon();
+    samples = BenchmarkSupport.syntheticSamples(numVars, numSamples);
+  }
+
+  /** Creates a fresh program point. */
+  @Setup(Level.Invocation)
+  public void setupInvocation() {
+    ppt = BenchmarkSupport.syntheticPoint(numVars, dir);
+  }
+
+  /**
+   * Applies the samples to the program point.
+   *
+   * @return the program point, so that the work is not optimized away
+   */
+  @Benchmark
+  public PptTopLevel addSamples() {
+    for (ValueTuple vt : samples) {
+      ppt.add_bottom_up(vt, 1);
+    }
+    return ppt;
+  }
+}
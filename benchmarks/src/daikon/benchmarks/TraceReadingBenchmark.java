@@ -0,0 +1,83 @@
+package daikon.benchmarks;
+
+import daikon.FileIO;
+import daikon.PptMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link FileIO#read_data_trace_files}: reading whole trace files, either just parsing
+ * their samples or also applying them to the invariants of the program points.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TraceReadingBenchmark {
+
+  /** The input: a synthetic trace, a stored trace, or a trace generated by {@code make traces}. */
+  @Param({"synthetic", "tcas", "print_tokens", "StackAr", "QueueAr"})
+  public String trace;
+
+  /** If true, samples are only parsed; if false, they are also applied to the invariants. */
+  @Param({"true", "false"})
+  public boolean samplesOnly;
+
+  /** The number of threads that parse a memory-mapped trace; 0 to parse on the reading thread. */
+  @Param({"0"})
+  public int parseThreads;
+
+  /** The number of threads that apply samples to the invariants; 0 to apply them as read. */
+  @Param({"0"})
+  public int inferenceThreads;
+
+  /** The declaration and trace files. */
+  private List<File> files;
+
+  /** The program points, as declared but without samples. */
+  private PptMap all_ppts;
+
+  /** Finds or creates the input files. */
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    files = BenchmarkSupport.traceFiles(trace, BenchmarkSupport.tempDir());
+  }
+
+  /** Creates fresh program points before each read. */
+  @Setup(Level.Invocation)
+  public void setupInvocation() {
+    BenchmarkSupport.resetDaikon(
+        "daikon.FileIO.read_samples_only=" + samplesOnly,
+        "daikon.FileIO.parse_threads=" + parseThreads,
+        "daikon.FileIO.inference_threads=" + inferenceThreads);
+    all_ppts = BenchmarkSupport.readDecls(files);
+  }
+
+  /**
+   * Reads the trace files.
+   *
+   * @return the program points, so that the work is not optimized away
+   * @throws IOException if a trace file cannot be read
+   */
+  @Benchmark
+  public PptMap readTrace() throws IOException {
+    FileIO.read_data_trace_files(BenchmarkSupport.dtraceNames(files), all_ppts);
+    return all_ppts;
+  }
+}
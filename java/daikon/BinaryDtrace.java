@@ -0,0 +1,1356 @@
+package daikon;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.LineNumberReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.nullness.qual.RequiresNonNull;
+import org.plumelib.util.Intern;
+
+/**
+ * A compact binary encoding of data trace files. A binary trace contains the same records as a
+ * textual {@code .dtrace} file, but each sample is stored as a program point id, an invocation
+ * nonce, packed modbits, and tagged values, so that reading it requires neither matching variable
+ * names nor (for most values) parsing text. Declarations, comments, and other records that are not
+ * samples are stored as chunks of text in the ordinary format.
+ *
+ * <p>{@link FileIO} recognizes a binary trace by its first bytes, not by its name, so binary
+ * traces may be named and compressed like textual ones. {@link DtraceToBinary} converts a textual
+ * trace to a binary one, and Chicory writes binary traces when given {@code --dtrace-binary}.
+ *
+ * <p>The file starts with the 8 bytes of {@link #MAGIC} followed by a version byte. Each following
+ * record starts with a tag byte:
+ *
+ * <dl>
+ *   <dt>{@link #TEXT}
+ *   <dd>a string that contains complete textual records
+ *   <dt>{@link #STRING}
+ *   <dd>a string that is added to the string table; its index is the number of STRING records that
+ *       precede it
+ *   <dt>{@link #PPT}
+ *   <dd>a layout id, the program point name as written in a sample, the number of variables, and
+ *       the name of each variable in the order in which their values appear in samples
+ *   <dt>{@link #SAMPLE}
+ *   <dd>a layout id, the nonce (0 if there is none, otherwise 1 plus its zigzag encoding), the
+ *       modbits of the variables (2 bits each, 4 per byte, low bits first), and the value of each
+ *       variable
+ * </dl>
+ *
+ * Integers are stored as unsigned LEB128 varints, signed integers after zigzag encoding, and
+ * strings as a varint byte length followed by UTF-8. Each value starts with a tag byte: {@link
+ * #NONSENSICAL}, {@link #LONG} (a signed varint), {@link #DOUBLE} (the 8 bytes of the IEEE bits),
+ * {@link #LONG_ARRAY} (a varint length followed by signed varints), {@link #TABLE} (a varint index
+ * into the string table), or {@link #INLINE} (a string). A value is stored as a number only if its
+ * text is exactly what Java would print for that number, so every value has a unique encoding and
+ * two values are encoded identically if and only if their text is the same.
+ */
+public final class BinaryDtrace {
+
+  /** Do not instantiate. */
+  private BinaryDtrace() {
+    throw new Error("do not instantiate");
+  }
+
+  /** The first bytes of a binary trace file. */
+  static final byte[] MAGIC = "DKBTRACE".getBytes(UTF_8);
+
+  /** The version of the format, written after {@link #MAGIC}. */
+  static final int VERSION = 1;
+
+  /** Record tag: text in the ordinary trace file format. */
+  static final int TEXT = 1;
+
+  /** Record tag: a string table entry. */
+  static final int STRING = 2;
+
+  /** Record tag: the variables of a program point. */
+  static final int PPT = 3;
+
+  /** Record tag: a sample. */
+  static final int SAMPLE = 4;
+
+  /** Value tag: the text {@code nonsensical}. */
+  static final int NONSENSICAL = 0;
+
+  /** Value tag: an integer. */
+  static final int LONG = 1;
+
+  /** Value tag: a double. */
+  static final int DOUBLE = 2;
+
+  /** Value tag: an array of integers. */
+  static final int LONG_ARRAY = 3;
+
+  /** Value tag: a string in the string table. */
+  static final int TABLE = 4;
+
+  /** Value tag: a string that is not in the string table. */
+  static final int INLINE = 5;
+
+  /** Maximum number of strings in the string table. */
+  static final int MAX_TABLE_SIZE = 1 << 16;
+
+  /** Strings longer than this are always stored inline rather than in the string table. */
+  static final int MAX_TABLE_STRING_LENGTH = 256;
+
+  /**
+   * Returns true if the given file is a binary trace file. Files whose name ends in {@code .gz}
+   * are uncompressed first.
+   *
+   * @param filename the file to check
+   * @return true if filename starts with {@link #MAGIC}
+   * @throws IOException if the file cannot be read
+   */
+  public static boolean isBinaryFile(String filename) throws IOException {
+    try (InputStream in = openInput(filename)) {
+      byte[] header = new byte[MAGIC.length];
+      int len = 0;
+      while (len < header.length) {
+        int n = in.read(header, len, header.length - len);
+        if (n == -1) {
+          return false;
+        }
+        len += n;
+      }
+      return Arrays.equals(header, MAGIC);
+    } catch (EOFException e) {
+      // A truncated compressed file; it is not binary, and the text reader will report it.
+      return false;
+    }
+  }
+
+  /**
+   * Opens a file for reading, uncompressing it if its name ends in {@code .gz}.
+   *
+   * @param filename the file to open
+   * @return a buffered stream of the contents of the file
+   * @throws IOException if the file cannot be opened
+   */
+  static InputStream openInput(String filename) throws IOException {
+    InputStream in = Files.newInputStream(Paths.get(filename));
+    if (filename.endsWith(".gz")) {
+      in = new GZIPInputStream(in);
+    }
+    return new BufferedInputStream(in, 65536);
+  }
+
+  /**
+   * Returns the zigzag encoding of v, which maps integers of small magnitude to small non-negative
+   * integers.
+   */
+  static long zigzag(long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  /** Inverse of {@link #zigzag}. */
+  static long unzigzag(long v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Writing
+  ///
+
+  /**
+   * Writes a binary trace file. Text (such as declarations) is written to {@link #text_stream},
+   * and each sample is written by calling {@link #start_sample}, then {@link #add_variable} for
+   * each variable, then {@link #end_sample}. A Writer is not thread-safe.
+   */
+  public static final class Writer implements Closeable {
+
+    /** Where to write the trace. */
+    private final OutputStream out;
+
+    /** Bytes that have not yet been written to {@link #out}. */
+    private byte[] buf = new byte[65536];
+
+    /** Number of bytes used in {@link #buf}. */
+    private int buf_len = 0;
+
+    /** Text that has not yet been written as a {@link #TEXT} record. */
+    private final ByteArrayOutputStream pending_text = new ByteArrayOutputStream();
+
+    /** Map from string to its index in the string table. */
+    private final Map<String, Integer> table = new HashMap<>();
+
+    /** The variables of each layout that has been written. */
+    private final Map<String, Layout> layouts = new HashMap<>();
+
+    /** The number of layouts that have been written. */
+    private int num_layouts = 0;
+
+    /** The program point of the current sample, or null if not within a sample. */
+    private @Nullable String sample_ppt = null;
+
+    /** The nonce of the current sample. */
+    private @Nullable Integer sample_nonce = null;
+
+    /** Number of variables in the current sample. */
+    private int num_vars = 0;
+
+    /** Names of the variables of the current sample. */
+    private String[] var_names = new String[64];
+
+    /** Modbits of the variables of the current sample. */
+    private int[] var_mods = new int[64];
+
+    /** Value tags of the variables of the current sample. */
+    private int[] var_tags = new int[64];
+
+    /** For each variable of the current sample, its LONG or DOUBLE bits, or its table index. */
+    private long[] var_bits = new long[64];
+
+    /** For each variable of the current sample, its long[] or inline String, if any. */
+    private @Nullable Object[] var_objs = new Object[64];
+
+    /** True once {@link #close} has been called. */
+    private boolean closed = false;
+
+    /** The variable names of a program point, as written in a {@link #PPT} record. */
+    private static final class Layout {
+      /** The id of the layout. */
+      final int id;
+
+      /** The names of the variables. */
+      final String[] names;
+
+      /**
+       * Creates a new Layout.
+       *
+       * @param id the id of the layout
+       * @param names the names of the variables
+       */
+      Layout(int id, String[] names) {
+        this.id = id;
+        this.names = names;
+      }
+    }
+
+    /**
+     * Creates a Writer and writes the file header.
+     *
+     * @param out where to write the trace; it is closed by {@link #close}
+     * @throws IOException if the header cannot be written
+     */
+    public Writer(OutputStream out) throws IOException {
+      this.out = out;
+      write_bytes(MAGIC, 0, MAGIC.length);
+      write_byte(VERSION);
+    }
+
+    /**
+     * Returns a stream to which textual records (declarations, comments, etc.) can be written.
+     * Closing the stream closes this Writer.
+     *
+     * @return a stream that adds text to the trace
+     */
+    public OutputStream text_stream() {
+      return new OutputStream() {
+        @Override
+        public void write(int b) {
+          pending_text.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          pending_text.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          Writer.this.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          Writer.this.close();
+        }
+      };
+    }
+
+    /**
+     * Adds text in the ordinary trace file format.
+     *
+     * @param text one or more complete records
+     */
+    public void add_text(String text) {
+      byte[] bytes = text.getBytes(UTF_8);
+      pending_text.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Starts a sample.
+     *
+     * @param ppt_name the name of the program point, as it would appear in a textual trace
+     * @param nonce the invocation nonce, or null if the sample has none
+     */
+    public void start_sample(String ppt_name, @Nullable Integer nonce) {
+      if (sample_ppt != null) {
+        throw new IllegalStateException("sample for " + sample_ppt + " was not ended");
+      }
+      sample_ppt = ppt_name;
+      sample_nonce = nonce;
+      num_vars = 0;
+    }
+
+    /**
+     * Adds a variable to the current sample. The text is examined to find its encoding; a caller
+     * that has a number or an array of integers should pass it to another overload instead.
+     *
+     * @param name the name of the variable, as it would appear in a textual trace
+     * @param value the value of the variable, as it would appear in a textual trace
+     * @param mod the modbit of the variable: 0, 1, or 2
+     * @throws IOException if a string table entry cannot be written
+     */
+    public void add_variable(String name, String value, int mod) throws IOException {
+      classify(value, add_name(name, mod));
+    }
+
+    /**
+     * Adds an integer variable to the current sample. Equivalent to passing the text of value, but
+     * does not format it.
+     *
+     * @param name the name of the variable, as it would appear in a textual trace
+     * @param value the value of the variable
+     * @param mod the modbit of the variable: 0, 1, or 2
+     */
+    public void add_variable(String name, long value, int mod) {
+      int i = add_name(name, mod);
+      var_tags[i] = LONG;
+      var_bits[i] = value;
+    }
+
+    /**
+     * Adds a double variable to the current sample. Equivalent to passing the text of value, but
+     * does not format it.
+     *
+     * @param name the name of the variable, as it would appear in a textual trace
+     * @param value the value of the variable
+     * @param mod the modbit of the variable: 0, 1, or 2
+     */
+    public void add_variable(String name, double value, int mod) {
+      int i = add_name(name, mod);
+      var_tags[i] = DOUBLE;
+      // Every NaN is printed as "NaN", which is read as the canonical NaN.
+      var_bits[i] = Double.doubleToLongBits(value);
+    }
+
+    /**
+     * Adds a float variable to the current sample. Daikon reads a float as the double that its text
+     * denotes, so the text is still computed, but it is not parsed unless it has a double's form.
+     *
+     * @param name the name of the variable, as it would appear in a textual trace
+     * @param value the value of the variable
+     * @param mod the modbit of the variable: 0, 1, or 2
+     * @throws IOException if a string table entry cannot be written
+     */
+    public void add_variable(String name, float value, int mod) throws IOException {
+      int i = add_name(name, mod);
+      String text = Float.toString(value);
+      Double d = canonical_double(text);
+      if (d != null) {
+        var_tags[i] = DOUBLE;
+        var_bits[i] = Double.doubleToRawLongBits(d);
+      } else {
+        add_string(text, i);
+      }
+    }
+
+    /**
+     * Adds a boolean variable to the current sample. Equivalent to passing the text of value.
+     *
+     * @param name the name of the variable, as it would appear in a textual trace
+     * @param value the value of the variable
+     * @param mod the modbit of the variable: 0, 1, or 2
+     * @throws IOException if a string table entry cannot be written
+     */
+    public void add_variable(String name, boolean value, int mod) throws IOException {
+      add_string(value ? "true" : "false", add_name(name, mod));
+    }
+
+    /**
+     * Adds an array-of-integers variable to the current sample. Equivalent to passing the text of
+     * value, but does not format it.
+     *
+     * @param name the name of the variable, as it would appear in a textual trace
+     * @param value the elements of the array; not copied, so it must not be changed later
+     * @param mod the modbit of the variable: 0, 1, or 2
+     */
+    public void add_variable(String name, long[] value, int mod) {
+      int i = add_name(name, mod);
+      var_tags[i] = LONG_ARRAY;
+      var_objs[i] = value;
+    }
+
+    /**
+     * Adds a variable, whose value is not yet set, to the current sample.
+     *
+     * @param name the name of the variable
+     * @param mod the modbit of the variable: 0, 1, or 2
+     * @return the index of the variable in the current sample
+     */
+    private int add_name(String name, int mod) {
+      if (sample_ppt == null) {
+        throw new IllegalStateException("variable " + name + " is not within a sample");
+      }
+      if (mod < 0 || mod > 2) {
+        throw new IllegalArgumentException("Bad modbit " + mod + " for variable " + name);
+      }
+      if (num_vars == var_names.length) {
+        int size = num_vars * 2;
+        var_names = Arrays.copyOf(var_names, size);
+        var_mods = Arrays.copyOf(var_mods, size);
+        var_tags = Arrays.copyOf(var_tags, size);
+        var_bits = Arrays.copyOf(var_bits, size);
+        var_objs = Arrays.copyOf(var_objs, size);
+      }
+      var_names[num_vars] = name;
+      var_mods[num_vars] = mod;
+      var_objs[num_vars] = null;
+      return num_vars++;
+    }
+
+    /**
+     * Writes the current sample.
+     *
+     * @throws IOException if the sample cannot be written
+     */
+    public void end_sample() throws IOException {
+      String ppt_name = sample_ppt;
+      if (ppt_name == null) {
+        throw new IllegalStateException("no sample was started");
+      }
+      sample_ppt = null;
+
+      Layout layout = layouts.get(ppt_name);
+      if (layout == null || !same_names(layout.names)) {
+        layout = new Layout(num_layouts++, Arrays.copyOf(var_names, num_vars));
+        layouts.put(ppt_name, layout);
+        flush_text();
+        write_byte(PPT);
+        write_varint(layout.id);
+        write_string(ppt_name);
+        write_varint(num_vars);
+        for (int i = 0; i < num_vars; i++) {
+          write_string(var_names[i]);
+        }
+      }
+
+      flush_text();
+      write_byte(SAMPLE);
+      write_varint(layout.id);
+      write_varint(sample_nonce == null ? 0 : zigzag(sample_nonce) + 1);
+      for (int i = 0; i < num_vars; i += 4) {
+        int b = 0;
+        for (int j = 0; j < 4 && i + j < num_vars; j++) {
+          b |= var_mods[i + j] << (2 * j);
+        }
+        write_byte(b);
+      }
+      for (int i = 0; i < num_vars; i++) {
+        int tag = var_tags[i];
+        write_byte(tag);
+        switch (tag) {
+          case NONSENSICAL:
+            break;
+          case LONG:
+            write_varint(zigzag(var_bits[i]));
+            break;
+          case DOUBLE:
+            ensure(8);
+            long bits = var_bits[i];
+            for (int shift = 56; shift >= 0; shift -= 8) {
+              buf[buf_len++] = (byte) (bits >>> shift);
+            }
+            break;
+          case LONG_ARRAY:
+            long[] elts = (long[]) var_objs[i];
+            assert elts != null : "@AssumeAssertion(nullness): dependent: tag is LONG_ARRAY";
+            write_varint(elts.length);
+            for (long elt : elts) {
+              write_varint(zigzag(elt));
+            }
+            break;
+          case TABLE:
+            write_varint(var_bits[i]);
+            break;
+          case INLINE:
+            String s = (String) var_objs[i];
+            assert s != null : "@AssumeAssertion(nullness): dependent: tag is INLINE";
+            write_string(s);
+            break;
+          default:
+            throw new Error("Bad value tag " + tag);
+        }
+      }
+    }
+
+    /**
+     * Returns true if the variables of the current sample have the given names.
+     *
+     * @param names the variable names of a layout
+     * @return true if names are the names of the variables of the current sample
+     */
+    private boolean same_names(String[] names) {
+      if (names.length != num_vars) {
+        return false;
+      }
+      for (int i = 0; i < num_vars; i++) {
+        @SuppressWarnings("interning:not.interned") // fast path for the common case
+        boolean same = (names[i] == var_names[i]) || names[i].equals(var_names[i]);
+        if (!same) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Determines how to encode a value and stores the encoding in var_tags, var_bits, and
+     * var_objs. Writes a string table entry if necessary.
+     *
+     * @param value the text of the value
+     * @param i the index of the variable in the current sample
+     */
+    private void classify(String value, int i) throws IOException {
+      if (value.equals("nonsensical")) {
+        var_tags[i] = NONSENSICAL;
+        return;
+      }
+      Long l = canonical_long(value, 0, value.length());
+      if (l != null) {
+        var_tags[i] = LONG;
+        var_bits[i] = l;
+        return;
+      }
+      long[] elts = canonical_long_array(value);
+      if (elts != null) {
+        var_tags[i] = LONG_ARRAY;
+        var_objs[i] = elts;
+        return;
+      }
+      Double d = canonical_double(value);
+      if (d != null) {
+        var_tags[i] = DOUBLE;
+        var_bits[i] = Double.doubleToRawLongBits(d);
+        return;
+      }
+      add_string(value, i);
+    }
+
+    /**
+     * Stores the encoding of a value that is not a number in var_tags, var_bits, and var_objs.
+     * Writes a string table entry if necessary.
+     *
+     * @param value the text of the value
+     * @param i the index of the variable in the current sample
+     */
+    private void add_string(String value, int i) throws IOException {
+      if (value.length() <= MAX_TABLE_STRING_LENGTH) {
+        Integer index = table.get(value);
+        if (index == null && table.size() < MAX_TABLE_SIZE) {
+          index = table.size();
+          table.put(value, index);
+          flush_text();
+          write_byte(STRING);
+          write_string(value);
+        }
+        if (index != null) {
+          var_tags[i] = TABLE;
+          var_bits[i] = index;
+          return;
+        }
+      }
+      var_tags[i] = INLINE;
+      var_objs[i] = value;
+    }
+
+    /**
+     * Writes any pending text and flushes the underlying stream.
+     *
+     * @throws IOException if the text cannot be written
+     */
+    public void flush() throws IOException {
+      flush_text();
+      out.write(buf, 0, buf_len);
+      buf_len = 0;
+      out.flush();
+    }
+
+    /**
+     * Writes any pending text and closes the underlying stream. Does nothing if the Writer has
+     * already been closed.
+     *
+     * @throws IOException if the text cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      flush();
+      out.close();
+    }
+
+    /** Writes any pending text as a {@link #TEXT} record. */
+    private void flush_text() throws IOException {
+      if (pending_text.size() == 0) {
+        return;
+      }
+      byte[] bytes = pending_text.toByteArray();
+      pending_text.reset();
+      write_byte(TEXT);
+      write_varint(bytes.length);
+      write_bytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Makes room for n more bytes in {@link #buf}.
+     *
+     * @param n the number of bytes that will be added
+     */
+    private void ensure(int n) throws IOException {
+      if (buf_len + n > buf.length) {
+        out.write(buf, 0, buf_len);
+        buf_len = 0;
+      }
+    }
+
+    /** Writes one byte. */
+    private void write_byte(int b) throws IOException {
+      ensure(1);
+      buf[buf_len++] = (byte) b;
+    }
+
+    /** Writes part of an array of bytes. */
+    private void write_bytes(byte[] b, int off, int len) throws IOException {
+      if (len > buf.length) {
+        out.write(buf, 0, buf_len);
+        buf_len = 0;
+        out.write(b, off, len);
+        return;
+      }
+      ensure(len);
+      System.arraycopy(b, off, buf, buf_len, len);
+      buf_len += len;
+    }
+
+    /** Writes a non-negative (when viewed as unsigned) varint. */
+    private void write_varint(long v) throws IOException {
+      ensure(10);
+      while ((v & ~0x7FL) != 0) {
+        buf[buf_len++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      buf[buf_len++] = (byte) v;
+    }
+
+    /** Writes a string as its UTF-8 length followed by its UTF-8 bytes. */
+    private void write_string(String s) throws IOException {
+      byte[] bytes = s.getBytes(UTF_8);
+      write_varint(bytes.length);
+      write_bytes(bytes, 0, bytes.length);
+    }
+  }
+
+  /**
+   * If s[start,end) is exactly the text that {@link Long#toString(long)} produces for some long,
+   * returns that long. Otherwise returns null.
+   */
+  static @Nullable Long canonical_long(String s, int start, int end) {
+    int len = end - start;
+    if (len == 0 || len > 20) {
+      return null;
+    }
+    int i = start;
+    if (s.charAt(i) == '-') {
+      i++;
+      if (i == end) {
+        return null;
+      }
+    }
+    if (s.charAt(i) == '0' && (len > 1)) {
+      // leading zero, or "-0"
+      return null;
+    }
+    for (int j = i; j < end; j++) {
+      char c = s.charAt(j);
+      if (c < '0' || c > '9') {
+        return null;
+      }
+    }
+    try {
+      return Long.parseLong(s.substring(start, end));
+    } catch (NumberFormatException e) {
+      // out of range
+      return null;
+    }
+  }
+
+  /**
+   * If s is a bracketed list of canonical longs separated by single spaces, such as {@code [1 -2
+   * 3]} or {@code []}, returns those longs. Otherwise returns null.
+   */
+  static long @Nullable [] canonical_long_array(String s) {
+    int len = s.length();
+    if (len < 2 || s.charAt(0) != '[' || s.charAt(len - 1) != ']') {
+      return null;
+    }
+    if (len == 2) {
+      return new long[0];
+    }
+    List<Long> elts = new ArrayList<>();
+    int start = 1;
+    while (true) {
+      int end = s.indexOf(' ', start);
+      boolean last = (end == -1);
+      if (last) {
+        end = len - 1;
+      }
+      Long elt = canonical_long(s, start, end);
+      if (elt == null) {
+        return null;
+      }
+      elts.add(elt);
+      if (last) {
+        break;
+      }
+      start = end + 1;
+    }
+    long[] result = new long[elts.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = elts.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * If s is exactly the text that {@link Double#toString(double)} produces for some double, returns
+   * that double. Otherwise returns null.
+   */
+  static @Nullable Double canonical_double(String s) {
+    if (s.isEmpty()) {
+      return null;
+    }
+    char c = s.charAt(0);
+    if (!((c >= '0' && c <= '9') || c == '-' || c == 'N' || c == 'I')) {
+      return null;
+    }
+    double d;
+    try {
+      d = Double.parseDouble(s);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return Double.toString(d).equals(s) ? d : null;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Reading
+  ///
+
+  /**
+   * For each program point, a key for the previous value of each of its variables, used to compute
+   * modbits just as {@link FileIO} does for textual traces. Keys are equal if and only if the text
+   * of the values is equal.
+   */
+  static final Map<PptTopLevel, ValueKeys> ppt_to_value_keys = new HashMap<>();
+
+  /** Keys for the previous values of the variables of a program point. */
+  static final class ValueKeys {
+    /** The value tag, or -1 if there is no previous value. */
+    final byte[] tags;
+
+    /** The LONG or DOUBLE bits or the table index. */
+    final long[] bits;
+
+    /** The long[] or inline String. */
+    final @Nullable Object[] objs;
+
+    /**
+     * Creates keys for a program point with no previous values.
+     *
+     * @param size the number of traced variables
+     */
+    ValueKeys(int size) {
+      tags = new byte[size];
+      Arrays.fill(tags, (byte) -1);
+      bits = new long[size];
+      objs = new Object[size];
+    }
+
+    /**
+     * Returns true if the given value is the same as the previous value of variable i.
+     *
+     * @param i the index of the variable
+     * @param tag the tag of the value
+     * @param bit the LONG or DOUBLE bits or the table index
+     * @param obj the long[] or inline String
+     * @return true if the value has not changed
+     */
+    boolean same(int i, int tag, long bit, @Nullable Object obj) {
+      if (tags[i] != tag) {
+        return false;
+      }
+      switch (tag) {
+        case NONSENSICAL:
+          return true;
+        case LONG:
+        case DOUBLE:
+        case TABLE:
+          return bits[i] == bit;
+        case LONG_ARRAY:
+          return Arrays.equals((long[]) objs[i], (long[]) obj);
+        case INLINE:
+          return obj != null && obj.equals(objs[i]);
+        default:
+          return false;
+      }
+    }
+
+    /**
+     * Records a value as the previous value of variable i.
+     *
+     * @param i the index of the variable
+     * @param tag the tag of the value
+     * @param bit the LONG or DOUBLE bits or the table index
+     * @param obj the long[] or inline String
+     */
+    void set(int i, int tag, long bit, @Nullable Object obj) {
+      tags[i] = (byte) tag;
+      bits[i] = bit;
+      objs[i] = obj;
+    }
+  }
+
+  /** Marks a string table entry that has not been parsed for a given representation type. */
+  private static final Object UNPARSED = new Object();
+
+  /**
+   * Reads a binary trace file. Used by {@link FileIO}, which calls {@link #read_record} whenever
+   * the text of the previous {@link #TEXT} record has been consumed.
+   */
+  static final class Reader implements Closeable {
+
+    /** The name of the file, for messages. */
+    final String filename;
+
+    /** The contents of the file, after the header. */
+    private final InputStream in;
+
+    /** The string table. */
+    private final List<String> table = new ArrayList<>();
+
+    /** The layouts, indexed by id. */
+    private final List<Layout> layouts = new ArrayList<>();
+
+    /**
+     * For each representation type, the parsed value of each string table entry (or {@link
+     * #UNPARSED}).
+     */
+    private final Map<ProglangType, @Nullable Object[]> parsed_table = new IdentityHashMap<>();
+
+    /** Number of records read so far. Used in messages instead of a line number. */
+    long record_number = 0;
+
+    /** Modbits of the current sample; reused for each sample. */
+    private byte[] mod_bytes = new byte[16];
+
+    /** The variables of a program point, and how they correspond to its VarInfos. */
+    private static final class Layout {
+      /** The program point name, as written in samples. */
+      final String ppt_name;
+
+      /** The names of the variables. */
+      final String[] names;
+
+      /** True once {@link #ppt} and {@link #vis} have been set. */
+      boolean resolved = false;
+
+      /** The program point, or null if it is excluded by --ppt-select-pattern etc. */
+      @Nullable PptTopLevel ppt = null;
+
+      /** For each variable, its VarInfo, or null if it is excluded by --var-omit-pattern. */
+      @Nullable VarInfo[] vis;
+
+      /**
+       * Creates a new Layout.
+       *
+       * @param ppt_name the program point name
+       * @param names the variable names
+       */
+      Layout(String ppt_name, String[] names) {
+        this.ppt_name = ppt_name;
+        this.names = names;
+        this.vis = new VarInfo[names.length];
+      }
+    }
+
+    /**
+     * Opens a binary trace file and reads its header.
+     *
+     * @param filename the file to read
+     * @throws IOException if the file cannot be read
+     */
+    Reader(String filename) throws IOException {
+      this.filename = filename;
+      in = openInput(filename);
+      byte[] header = new byte[MAGIC.length];
+      read_fully(header, header.length);
+      if (!Arrays.equals(header, MAGIC)) {
+        throw new Daikon.UserError(filename + " is not a binary trace file");
+      }
+      int version = in.read();
+      if (version != VERSION) {
+        throw new Daikon.UserError(
+            "Binary trace file " + filename + " has version " + version + ", expected " + VERSION);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+
+    /**
+     * Reads records until a {@link #TEXT} record or a sample of an included program point is
+     * found. For a TEXT record, sets {@code state.reader} to read its text. For a sample, sets the
+     * fields of state as {@link FileIO#read_data_trace_record} does.
+     *
+     * @param state the parse state of the file
+     * @return false at the end of the file, otherwise true
+     * @throws IOException if the file cannot be read
+     */
+    @RequiresNonNull("FileIO.data_trace_state")
+    boolean read_record(FileIO.ParseState state) throws IOException {
+      while (true) {
+        int tag = in.read();
+        if (tag == -1) {
+          return false;
+        }
+        record_number++;
+        switch (tag) {
+          case TEXT:
+            state.reader = new LineNumberReader(new StringReader(read_string()));
+            state.rtype = FileIO.RecordType.NULL;
+            return true;
+          case STRING:
+            table.add(read_string());
+            break;
+          case PPT:
+            int id = (int) read_varint();
+            if (id != layouts.size()) {
+              throw new Daikon.UserError("Bad layout id " + id, state);
+            }
+            String ppt_name = read_string();
+            String[] names = new String[(int) read_varint()];
+            for (int i = 0; i < names.length; i++) {
+              names[i] = read_string();
+            }
+            layouts.add(new Layout(ppt_name, names));
+            break;
+          case SAMPLE:
+            if (read_sample(state)) {
+              return true;
+            }
+            break;
+          default:
+            throw new Daikon.UserError("Bad record tag " + tag, state);
+        }
+      }
+    }
+
+    /**
+     * Reads a sample. Returns false if the sample's program point is excluded.
+     *
+     * @param state the parse state of the file
+     * @return true if the sample was stored in state
+     */
+    @RequiresNonNull("FileIO.data_trace_state")
+    private boolean read_sample(FileIO.ParseState state) throws IOException {
+      int id = (int) read_varint();
+      if (id < 0 || id >= layouts.size()) {
+        throw new Daikon.UserError("Sample has undefined layout id " + id, state);
+      }
+      Layout layout = layouts.get(id);
+      if (!layout.resolved) {
+        resolve(layout, state);
+      }
+      long nonce_code = read_varint();
+      Integer nonce = (nonce_code == 0) ? null : (int) unzigzag(nonce_code - 1);
+
+      int num_vars = layout.names.length;
+      int num_mod_bytes = (num_vars + 3) / 4;
+      if (mod_bytes.length < num_mod_bytes) {
+        mod_bytes = new byte[num_mod_bytes];
+      }
+      read_fully(mod_bytes, num_mod_bytes);
+
+      PptTopLevel ppt = layout.ppt;
+      @Nullable Object[] vals = null;
+      long[] scalars = null;
+      int[] mods = null;
+      ValueKeys keys = null;
+      if (ppt != null) {
+        int vals_array_size = ppt.var_infos.length - ppt.num_static_constant_vars;
+        vals = new @Nullable Object[vals_array_size];
+        scalars = new long[vals_array_size];
+        mods = new int[vals_array_size];
+        keys = ppt_to_value_keys.get(ppt);
+        if (keys == null) {
+          keys = new ValueKeys(ppt.num_tracevars);
+          ppt_to_value_keys.put(ppt, keys);
+        }
+      }
+
+      // Parsing interns the values; see FileIO.process_sample.
+      synchronized (Intern.class) {
+        for (int i = 0; i < num_vars; i++) {
+          int tag = in.read();
+          long bit = 0;
+          Object obj = null;
+          switch (tag) {
+            case NONSENSICAL:
+              break;
+            case LONG:
+              bit = unzigzag(read_varint());
+              break;
+            case DOUBLE:
+              for (int j = 0; j < 8; j++) {
+                bit = (bit << 8) | read_byte();
+              }
+              break;
+            case LONG_ARRAY:
+              long[] elts = new long[(int) read_varint()];
+              for (int j = 0; j < elts.length; j++) {
+                elts[j] = unzigzag(read_varint());
+              }
+              obj = elts;
+              break;
+            case TABLE:
+              bit = read_varint();
+              if (bit >= table.size()) {
+                throw new Daikon.UserError("Undefined string table index " + bit, state);
+              }
+              break;
+            case INLINE:
+              obj = read_string();
+              break;
+            case -1:
+              throw new EOFException();
+            default:
+              throw new Daikon.UserError("Bad value tag " + tag, state);
+          }
+
+          VarInfo vi = layout.vis[i];
+          if (vi == null) {
+            continue;
+          }
+          assert ppt != null && vals != null && scalars != null && mods != null && keys != null
+              : "@AssumeAssertion(nullness): dependent: vi is non-null only if ppt is";
+          int val_index = vi.value_index;
+          int mod = (mod_bytes[i / 4] >> (2 * (i % 4))) & 3;
+          if (mod == 3) {
+            throw new Daikon.UserError("Bad modbit `3'", state);
+          }
+
+          if (mod != ValueTuple.MISSING_NONSENSICAL) {
+            // Set the modbit now, depending on whether the value of the variable
+            // has been changed or not.
+            if (keys.same(val_index, tag, bit, obj)) {
+              if (!FileIO.dkconfig_add_changed) {
+                mod = ValueTuple.UNMODIFIED;
+              }
+            } else {
+              mod = ValueTuple.MODIFIED;
+            }
+          }
+          mods[val_index] = mod;
+          keys.set(val_index, tag, bit, obj);
+
+          if (ValueTuple.modIsMissingNonsensical(mod)) {
+            if (tag != NONSENSICAL) {
+              String value_rep = text(tag, bit, obj);
+              if (!(value_rep.equals("uninit") || value_rep.equals("missing"))) {
+                throw new Daikon.UserError(
+                    "Modbit indicates nonsensical value for variable "
+                        + vi.name()
+                        + " with value \""
+                        + value_rep
+                        + "\";"
+                        + Global.lineSep
+                        + "  text of value should be \"nonsensical\"",
+                    state);
+              }
+            }
+            vi.canBeMissing = true;
+            vals[val_index] = null;
+          } else {
+            try {
+              vals[val_index] = parse_value(vi.rep_type, tag, bit, obj, scalars, val_index, state);
+            } catch (Daikon.UserError e) {
+              throw e;
+            } catch (Throwable e) {
+              throw new Daikon.UserError(
+                  e,
+                  "Error while parsing value "
+                      + text(tag, bit, obj)
+                      + " for variable "
+                      + vi.name()
+                      + " of type "
+                      + vi.rep_type
+                      + ": "
+                      + e.getLocalizedMessage(),
+                  state.reader,
+                  filename);
+            }
+            if (vals[val_index] == null) {
+              // As for textual traces, a null value (such as an array with a
+              // nonsensical element) is treated as nonsensical.
+              mods[val_index] = ValueTuple.MISSING_NONSENSICAL;
+              vi.canBeMissing = true;
+            }
+          }
+        }
+      }
+
+      if (ppt == null) {
+        return false;
+      }
+      assert vals != null && mods != null
+          : "@AssumeAssertion(nullness): dependent: set if ppt is non-null";
+      state.ppt = ppt;
+      state.nonce = nonce;
+      state.vt = ValueTuple.makeUninterned(vals, scalars, mods);
+      state.rtype = FileIO.RecordType.SAMPLE;
+      return true;
+    }
+
+    /**
+     * Finds the program point of a layout and the VarInfo of each of its variables, checking that
+     * they match the declaration. This is done once per layout rather than once per sample.
+     *
+     * @param layout the layout to resolve
+     * @param state the parse state of the file
+     */
+    @RequiresNonNull("FileIO.data_trace_state")
+    private void resolve(Layout layout, FileIO.ParseState state) {
+      layout.resolved = true;
+
+      // If we have gotten to here and new_decl_format is not set, presume
+      // it is the old format
+      if (FileIO.new_decl_format == null) {
+        FileIO.new_decl_format = Boolean.FALSE;
+      }
+      String ppt_name = layout.ppt_name;
+      if (FileIO.new_decl_format) {
+        ppt_name = FileIO.unescape_decl(ppt_name);
+      }
+      ppt_name = FileIO.user_mod_ppt_name(ppt_name);
+      if (!FileIO.ppt_included(ppt_name)) {
+        return;
+      }
+      if (state.is_decl_file) {
+        throw new Daikon.UserError(
+            String.format(
+                "Declaration files should not contain samples, but file %s does: %s",
+                state.filename, ppt_name));
+      }
+      if (state.all_ppts.size() == 0) {
+        throw new Daikon.UserError(
+            "No declarations were provided before the first sample.  Perhaps you did not supply the proper .decls file to Daikon.  (Or, there could be a bug in the front end that created the .dtrace file "
+                + state.filename
+                + ".)");
+      }
+      PptTopLevel ppt = state.all_ppts.get(ppt_name);
+      if (ppt == null) {
+        throw new Daikon.UserError(
+            "No declaration was provided for program point " + ppt_name, state);
+      }
+
+      VarInfo[] vis = ppt.var_infos;
+      int vi_index = 0;
+      int num_found = 0;
+      for (int i = 0; i < layout.names.length; i++) {
+        String name = layout.names[i];
+        if (!FileIO.var_included(name)) {
+          continue;
+        }
+        while (vi_index < vis.length && vis[vi_index].is_static_constant) {
+          vi_index++;
+        }
+        if (num_found == ppt.num_tracevars) {
+          throw new Daikon.UserError(
+              "Mismatch between declaration and trace.  Unexpected variable "
+                  + name
+                  + " for program point "
+                  + ppt.name(),
+              state);
+        }
+        VarInfo vi = vis[vi_index];
+        if (!FileIO.unescape_decl(name.trim()).equals(vi.str_name())) {
+          throw new Daikon.UserError(
+              "Mismatch between declaration and trace.  Expected variable "
+                  + vi.name()
+                  + ", got "
+                  + name
+                  + " for program point "
+                  + ppt.name(),
+              state);
+        }
+        layout.vis[i] = vi;
+        vi_index++;
+        num_found++;
+      }
+      if (num_found != ppt.num_tracevars) {
+        throw new Daikon.UserError(
+            "Mismatch between declaration and trace.  Expected "
+                + ppt.num_tracevars
+                + " variables, got "
+                + num_found
+                + " for program point "
+                + ppt.name(),
+            state);
+      }
+      layout.ppt = ppt;
+    }
+
+    /**
+     * Returns the value that {@link ProglangType#parse_value} would return for the text of the
+     * given encoded value. Numbers whose type matches the representation type are converted
+     * directly; other values are parsed from their text. As in a textual trace, an integer or a
+     * double is stored in scalars[val_index] and the {@link ValueTuple.Scalar} that stands for it
+     * is returned.
+     */
+    private @Nullable Object parse_value(
+        ProglangType rep_type,
+        int tag,
+        long bit,
+        @Nullable Object obj,
+        long[] scalars,
+        int val_index,
+        FileIO.ParseState state) {
+      if (tag == LONG && rep_type == ProglangType.INT) {
+        scalars[val_index] = bit;
+        return ValueTuple.Scalar.LONG;
+      } else if (tag == DOUBLE && rep_type == ProglangType.DOUBLE) {
+        scalars[val_index] = ValueTuple.doubleBits(Double.longBitsToDouble(bit));
+        return ValueTuple.Scalar.DOUBLE;
+      } else if (tag == LONG_ARRAY && rep_type == ProglangType.INT_ARRAY) {
+        assert obj != null : "@AssumeAssertion(nullness): dependent: tag is LONG_ARRAY";
+        return Intern.intern((long[]) obj);
+      } else if (tag == TABLE) {
+        @Nullable Object[] parsed = parsed_table.get(rep_type);
+        if (parsed == null || parsed.length < table.size()) {
+          int old_length = (parsed == null) ? 0 : parsed.length;
+          parsed =
+              (parsed == null)
+                  ? new Object[Math.max(table.size(), 64)]
+                  : Arrays.copyOf(parsed, Math.max(table.size(), parsed.length * 2));
+          Arrays.fill(parsed, old_length, parsed.length, UNPARSED);
+          parsed_table.put(rep_type, parsed);
+        }
+        int index = (int) bit;
+        Object value = parsed[index];
+        if (value == UNPARSED) {
+          value = rep_type.parse_value(table.get(index), state.reader, filename);
+          parsed[index] = value;
+        }
+        return value;
+      } else {
+        return rep_type.parse_value(
+            text(tag, bit, obj), state.reader, filename, true, scalars, val_index);
+      }
+    }
+
+    /** Returns the text of an encoded value, as it would appear in a textual trace. */
+    private String text(int tag, long bit, @Nullable Object obj) {
+      switch (tag) {
+        case NONSENSICAL:
+          return "nonsensical";
+        case LONG:
+          return Long.toString(bit);
+        case DOUBLE:
+          return Double.toString(Double.longBitsToDouble(bit));
+        case LONG_ARRAY:
+          long[] elts = (long[]) obj;
+          assert elts != null : "@AssumeAssertion(nullness): dependent: tag is LONG_ARRAY";
+          StringBuilder sb = new StringBuilder("[");
+          for (int i = 0; i < elts.length; i++) {
+            if (i > 0) {
+              sb.append(' ');
+            }
+            sb.append(elts[i]);
+          }
+          return sb.append(']').toString();
+        case TABLE:
+          return table.get((int) bit);
+        case INLINE:
+          assert obj != null : "@AssumeAssertion(nullness): dependent: tag is INLINE";
+          return (String) obj;
+        default:
+          throw new Error("Bad value tag " + tag);
+      }
+    }
+
+    /** Reads one byte, throwing EOFException at the end of the file. */
+    private int read_byte() throws IOException {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      return b;
+    }
+
+    /** Reads exactly len bytes into b. */
+    private void read_fully(byte[] b, int len) throws IOException {
+      int off = 0;
+      while (off < len) {
+        int n = in.read(b, off, len - off);
+        if (n == -1) {
+          throw new EOFException();
+        }
+        off += n;
+      }
+    }
+
+    /** Reads an unsigned varint. */
+    private long read_varint() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = read_byte();
+        result |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("Malformed varint in " + filename);
+    }
+
+    /** Reads a string written by {@link Writer#write_string}. */
+    private String read_string() throws IOException {
+      int len = (int) read_varint();
+      byte[] bytes = new byte[len];
+      read_fully(bytes, len);
+      return new String(bytes, UTF_8);
+    }
+  }
+}
@@ -0,0 +1,733 @@
+package daikon;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import daikon.config.Configuration;
+import daikon.split.PptSplitter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * An indexed format for {@code .inv} files, in which groups of program points can be read on their
+ * own. Reading a program point from it does not require reading the rest of the file, so a tool
+ * that needs only a few program points can load just those; see {@link Reader#get}.
+ *
+ * <p>The program points of a {@link PptMap} are split into sections. Two program points are in the
+ * same section if one refers to the other, for instance through a {@link PptRelation} or a {@link
+ * PptSplitter}; in practice a section holds the program points of one class. Each section is a
+ * Java-serialized list of its program points, compressed with deflate, so that the program points
+ * of different sections share no objects. A conditional program point is written with its parent.
+ *
+ * <p>The file starts with the 8 bytes of {@link #MAGIC} followed by a version byte. The sections
+ * follow: first a header, which contains the {@link Configuration} and {@link
+ * FileIO#new_decl_format}, then the program points. After the sections comes the index, and the
+ * file ends with the offset of the index as an 8-byte integer. The index is written with {@link
+ * DataOutputStream}: the offset and length of the header; the number of sections and the offset
+ * and length of each; and the number of program points and, in the order of the {@link PptMap},
+ * the name and section number of each.
+ *
+ * <p>The file is not compressed as a whole, even if its name ends in {@code .gz}, so that its
+ * sections can be read directly. A file that has been compressed (for instance by gzip) can still
+ * be read, but all of it is uncompressed into memory first.
+ */
+public final class BinaryInv {
+
+  /** Do not instantiate. */
+  private BinaryInv() {
+    throw new Error("do not instantiate");
+  }
+
+  /** The first bytes of an indexed {@code .inv} file. */
+  static final byte[] MAGIC = "DKINVIDX".getBytes(UTF_8);
+
+  /** The version of the format, written after {@link #MAGIC}. */
+  static final int VERSION = 1;
+
+  /** The first two bytes of a gzip-compressed file. */
+  private static final byte[] GZIP_MAGIC = {(byte) 0x1f, (byte) 0x8b};
+
+  /**
+   * Returns true if the given file is in this format, possibly compressed as a whole.
+   *
+   * @param file the file to check
+   * @return true if file starts with {@link #MAGIC}
+   * @throws IOException if the file cannot be read
+   */
+  public static boolean isBinaryFile(File file) throws IOException {
+    byte[] header = new byte[MAGIC.length];
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      if (!read_fully(in, header)) {
+        return false;
+      }
+    }
+    if (Arrays.equals(header, MAGIC)) {
+      return true;
+    }
+    if (!(header[0] == GZIP_MAGIC[0] && header[1] == GZIP_MAGIC[1])) {
+      return false;
+    }
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+      return read_fully(in, header) && Arrays.equals(header, MAGIC);
+    } catch (IOException e) {
+      // Not a valid gzip file; whoever reads it will report the problem.
+      return false;
+    }
+  }
+
+  /**
+   * Fills buf from the stream.
+   *
+   * @param in the stream
+   * @param buf the array to fill
+   * @return false if the stream ended first
+   * @throws IOException if the stream cannot be read
+   */
+  private static boolean read_fully(InputStream in, byte[] buf) throws IOException {
+    int len = 0;
+    while (len < buf.length) {
+      int n = in.read(buf, len, buf.length - len);
+      if (n == -1) {
+        return false;
+      }
+      len += n;
+    }
+    return true;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Writing
+  ///
+
+  /**
+   * Writes a PptMap to a file in this format.
+   *
+   * @param map the program points to write
+   * @param config the configuration to store with them
+   * @param file the file to write
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(PptMap map, Configuration config, File file) throws IOException {
+    List<PptTopLevel> ppts = new ArrayList<>(map.all_ppts());
+    Sections sections = new Sections(ppts);
+
+    try (CountingOutputStream out =
+        new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+      out.write(MAGIC);
+      out.write(VERSION);
+
+      ByteArrayOutputStream header_bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos =
+          new ObjectOutputStream(new DeflaterOutputStream(header_bytes))) {
+        oos.writeObject(config);
+        oos.writeObject(FileIO.new_decl_format);
+      }
+      long header_offset = out.count;
+      header_bytes.writeTo(out);
+
+      // Offset and length of each section that is written.
+      List<long[]> section_extents = new ArrayList<>();
+      // The section in which each program point was last written.
+      Map<PptTopLevel, Integer> ppt_section = new IdentityHashMap<>();
+      for (PptTopLevel first : ppts) {
+        if (ppt_section.containsKey(first)) {
+          continue;
+        }
+        byte[] bytes = sections.serialize(first);
+        int section = section_extents.size();
+        section_extents.add(new long[] {out.count, bytes.length});
+        out.write(bytes);
+        for (PptTopLevel ppt : sections.members(first)) {
+          ppt_section.put(ppt, section);
+        }
+      }
+
+      long index_offset = out.count;
+      DataOutputStream index = new DataOutputStream(out);
+      index.writeLong(header_offset);
+      index.writeInt(header_bytes.size());
+      index.writeInt(section_extents.size());
+      for (long[] extent : section_extents) {
+        index.writeLong(extent[0]);
+        index.writeInt((int) extent[1]);
+      }
+      index.writeInt(ppts.size());
+      for (PptTopLevel ppt : ppts) {
+        byte[] name = ppt.name().getBytes(UTF_8);
+        index.writeInt(name.length);
+        index.write(name);
+        Integer section = ppt_section.get(ppt);
+        assert section != null : "@AssumeAssertion(nullness): every ppt is written";
+        index.writeInt(section);
+      }
+      index.writeLong(index_offset);
+      index.flush();
+    }
+  }
+
+  /** An output stream that counts the bytes written to it. */
+  private static final class CountingOutputStream extends DataOutputStream {
+
+    /** The number of bytes written so far. */
+    long count = 0;
+
+    /**
+     * Creates a CountingOutputStream.
+     *
+     * @param out the underlying stream
+     */
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+  /**
+   * Groups program points into sections. The groups start out as the program points connected by
+   * relations and splitters; if serializing a group reaches a program point of another group, the
+   * two are merged and the group is serialized again.
+   */
+  private static final class Sections {
+
+    /** Map from each program point to the representative of its group (union-find). */
+    private final Map<PptTopLevel, PptTopLevel> rep = new IdentityHashMap<>();
+
+    /** Map from the representative of each group to its members, in PptMap order. */
+    private final Map<PptTopLevel, List<PptTopLevel>> groups = new IdentityHashMap<>();
+
+    /**
+     * Computes the groups of the given program points.
+     *
+     * @param ppts the top-level program points, in PptMap order
+     */
+    Sections(List<PptTopLevel> ppts) {
+      for (PptTopLevel ppt : ppts) {
+        rep.put(ppt, ppt);
+      }
+      for (PptTopLevel ppt : ppts) {
+        connect(ppt, ppt);
+      }
+      for (PptTopLevel ppt : ppts) {
+        PptTopLevel r = find(ppt);
+        List<PptTopLevel> members = groups.get(r);
+        if (members == null) {
+          members = new ArrayList<>();
+          groups.put(r, members);
+        }
+        members.add(ppt);
+      }
+    }
+
+    /**
+     * Unions top with every top-level program point that ppt, which is top or one of its
+     * conditional program points, is related to.
+     *
+     * @param top a top-level program point
+     * @param ppt top or one of its conditional program points
+     */
+    private void connect(PptTopLevel top, PptTopLevel ppt) {
+      for (PptRelation rel : ppt.parents) {
+        union(top, rel.parent);
+      }
+      for (PptRelation rel : ppt.children) {
+        union(top, rel.child);
+      }
+      if (ppt.has_splitters()) {
+        for (PptSplitter ppt_split : ppt.splitters) {
+          for (PptTopLevel split_ppt : ppt_split.ppts) {
+            if (split_ppt instanceof PptConditional) {
+              connect(top, split_ppt);
+            } else {
+              union(top, split_ppt);
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the top-level program point that a program point belongs to.
+     *
+     * @param ppt a program point
+     * @return ppt, or the top-level parent of a conditional program point
+     */
+    static PptTopLevel owner(PptTopLevel ppt) {
+      while (ppt instanceof PptConditional) {
+        ppt = ((PptConditional) ppt).parent;
+      }
+      return ppt;
+    }
+
+    /**
+     * Returns the representative of the group of a program point.
+     *
+     * @param ppt a program point
+     * @return the representative of its group
+     */
+    private PptTopLevel find(PptTopLevel ppt) {
+      PptTopLevel r = rep.get(owner(ppt));
+      if (r == null) {
+        // A program point that is not in the map is written with the one that refers to it.
+        return ppt;
+      }
+      while (r != rep.get(r)) {
+        PptTopLevel next = rep.get(r);
+        assert next != null : "@AssumeAssertion(nullness): every representative is in rep";
+        r = next;
+      }
+      return r;
+    }
+
+    /**
+     * Merges the groups of two program points.
+     *
+     * @param a a program point
+     * @param b a program point
+     */
+    private void union(PptTopLevel a, PptTopLevel b) {
+      PptTopLevel ra = find(a);
+      PptTopLevel rb = find(b);
+      if (ra != rb && rep.containsKey(ra) && rep.containsKey(rb)) {
+        rep.put(rb, ra);
+      }
+    }
+
+    /**
+     * Returns the members of the group of a program point.
+     *
+     * @param ppt a program point
+     * @return the members of its group, in PptMap order
+     */
+    List<PptTopLevel> members(PptTopLevel ppt) {
+      List<PptTopLevel> members = groups.get(find(ppt));
+      assert members != null : "@AssumeAssertion(nullness): every group has members";
+      return members;
+    }
+
+    /**
+     * Serializes the group of a program point, merging it with other groups if necessary.
+     *
+     * @param ppt a program point
+     * @return the compressed serialized form of the list of the members of the group
+     * @throws IOException if serialization fails
+     */
+    byte[] serialize(PptTopLevel ppt) throws IOException {
+      while (true) {
+        List<PptTopLevel> members = members(ppt);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SectionOutputStream oos = new SectionOutputStream(new DeflaterOutputStream(bytes))) {
+          oos.writeObject(new ArrayList<>(members));
+        } catch (ForeignPptException e) {
+          merge(ppt, e.ppt);
+          continue;
+        }
+        return bytes.toByteArray();
+      }
+    }
+
+    /**
+     * Merges the group of other into the group of ppt.
+     *
+     * @param ppt a program point
+     * @param other a program point in another group
+     */
+    private void merge(PptTopLevel ppt, PptTopLevel other) {
+      PptTopLevel r = find(ppt);
+      PptTopLevel other_r = find(other);
+      List<PptTopLevel> members = groups.remove(r);
+      List<PptTopLevel> other_members = groups.remove(other_r);
+      assert members != null && other_members != null
+          : "@AssumeAssertion(nullness): every group has members";
+      rep.put(other_r, r);
+      List<PptTopLevel> merged = new ArrayList<>(members);
+      merged.addAll(other_members);
+      groups.put(r, merged);
+    }
+
+    /** Serializes a group; fails if it reaches a program point of another group. */
+    private final class SectionOutputStream extends ObjectOutputStream {
+
+      /** The representative of the group being written. */
+      private @Nullable PptTopLevel group = null;
+
+      /**
+       * Creates a SectionOutputStream.
+       *
+       * @param out the underlying stream
+       * @throws IOException if the stream header cannot be written
+       */
+      SectionOutputStream(OutputStream out) throws IOException {
+        super(out);
+        enableReplaceObject(true);
+      }
+
+      @Override
+      protected Object replaceObject(Object obj) throws IOException {
+        if (obj instanceof PptTopLevel) {
+          PptTopLevel ppt = (PptTopLevel) obj;
+          PptTopLevel r = find(ppt);
+          if (group == null) {
+            group = r;
+          } else if (r != group && rep.containsKey(owner(ppt))) {
+            throw new ForeignPptException(ppt);
+          }
+        }
+        return obj;
+      }
+    }
+  }
+
+  /** Thrown when a section refers to a program point of another section. */
+  private static final class ForeignPptException extends IOException {
+    static final long serialVersionUID = 20261018L;
+
+    /** The program point of the other section. */
+    final transient PptTopLevel ppt;
+
+    /**
+     * Creates a ForeignPptException.
+     *
+     * @param ppt the program point of the other section
+     */
+    ForeignPptException(PptTopLevel ppt) {
+      super(ppt.name());
+      this.ppt = ppt;
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Reading
+  ///
+
+  /**
+   * Reads a file in this format. Program points are read when they are first requested, together
+   * with the other program points of their section.
+   */
+  public static final class Reader implements Closeable {
+
+    /** The file, unless it is compressed as a whole. */
+    private final @Nullable FileChannel channel;
+
+    /** The uncompressed contents of the file, if it is compressed as a whole. */
+    private final byte @Nullable [] contents;
+
+    /** The name of the file, for error messages. */
+    private final File file;
+
+    /** The configuration stored in the file. */
+    private final Configuration config;
+
+    /** The value of {@link FileIO#new_decl_format} stored in the file. */
+    private final @Nullable Boolean new_decl_format;
+
+    /** The offset of each section. */
+    private final long[] section_offsets;
+
+    /** The length of each section. */
+    private final int[] section_lengths;
+
+    /** Map from the name of each program point, in PptMap order, to its section. */
+    private final Map<String, Integer> ppt_sections = new LinkedHashMap<>();
+
+    /** The program points that have been read, by name. */
+    private final Map<String, PptTopLevel> loaded = new HashMap<>();
+
+    /**
+     * Opens a file and reads its index and header.
+     *
+     * @param file the file to read
+     * @throws IOException if the file cannot be read or is not in this format
+     */
+    public Reader(File file) throws IOException {
+      this.file = file;
+      byte[] magic = new byte[MAGIC.length + 1];
+      try (InputStream in = Files.newInputStream(file.toPath())) {
+        read_fully(in, magic);
+      }
+      if (magic[0] == GZIP_MAGIC[0] && magic[1] == GZIP_MAGIC[1]) {
+        channel = null;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          byte[] buf = new byte[65536];
+          for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+            bytes.write(buf, 0, n);
+          }
+          contents = bytes.toByteArray();
+        }
+      } else {
+        contents = null;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      }
+
+      try {
+        byte[] start = read(0, MAGIC.length + 1);
+        if (!Arrays.equals(Arrays.copyOf(start, MAGIC.length), MAGIC)) {
+          throw new IOException(file + " is not an indexed .inv file");
+        }
+        if (start[MAGIC.length] != VERSION) {
+          throw new IOException(
+              file + " has version " + start[MAGIC.length] + " of the .inv format, not " + VERSION);
+        }
+        long size = size();
+        long index_offset = ByteBuffer.wrap(read(size - 8, 8)).getLong();
+        DataInputStream index =
+            new DataInputStream(
+                new ByteArrayInputStream(read(index_offset, (int) (size - 8 - index_offset))));
+        long header_offset = index.readLong();
+        int header_length = index.readInt();
+        int num_sections = index.readInt();
+        section_offsets = new long[num_sections];
+        section_lengths = new int[num_sections];
+        for (int i = 0; i < num_sections; i++) {
+          section_offsets[i] = index.readLong();
+          section_lengths[i] = index.readInt();
+        }
+        int num_ppts = index.readInt();
+        for (int i = 0; i < num_ppts; i++) {
+          byte[] name = new byte[index.readInt()];
+          index.readFully(name);
+          ppt_sections.put(new String(name, UTF_8).intern(), index.readInt());
+        }
+
+        try (ObjectInputStream header = section_stream(header_offset, header_length)) {
+          config = (Configuration) header.readObject();
+          new_decl_format = (Boolean) header.readObject();
+        }
+      } catch (InvalidClassException e) {
+        close();
+        throw e;
+      } catch (ClassNotFoundException | ClassCastException e) {
+        close();
+        throw new IOException("Error while reading header of " + file, e);
+      } catch (IOException | RuntimeException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /**
+     * Returns the configuration stored in the file.
+     *
+     * @return the configuration that was in effect when the file was written
+     */
+    public Configuration config() {
+      return config;
+    }
+
+    /**
+     * Returns the value of {@link FileIO#new_decl_format} stored in the file.
+     *
+     * @return whether the program points were read from the version 2 declaration format
+     */
+    public @Nullable Boolean new_decl_format() {
+      return new_decl_format;
+    }
+
+    /**
+     * Returns the names of the top-level program points in the file, in the order of the PptMap
+     * that was written.
+     *
+     * @return the names of the program points
+     */
+    public List<String> ppt_names() {
+      return new ArrayList<>(ppt_sections.keySet());
+    }
+
+    /**
+     * Returns the program point with the given name, reading its section if necessary.
+     *
+     * @param name the name of a top-level program point
+     * @return the program point, or null if there is none with that name
+     * @throws IOException if the file cannot be read
+     */
+    public @Nullable PptTopLevel get(String name) throws IOException {
+      PptTopLevel ppt = loaded.get(name);
+      if (ppt != null) {
+        return ppt;
+      }
+      Integer section = ppt_sections.get(name);
+      if (section == null) {
+        return null;
+      }
+      read_section(section);
+      return loaded.get(name);
+    }
+
+    /**
+     * Returns true if the section of the program point with the given name has been read.
+     *
+     * @param name the name of a top-level program point
+     * @return true if the program point has been read
+     */
+    public boolean is_loaded(String name) {
+      return loaded.containsKey(name);
+    }
+
+    /**
+     * Reads all of the program points.
+     *
+     * @return a PptMap that contains all of the program points, in their original order
+     * @throws IOException if the file cannot be read
+     */
+    public PptMap read_all() throws IOException {
+      PptMap map = new PptMap();
+      for (String name : ppt_sections.keySet()) {
+        PptTopLevel ppt = get(name);
+        assert ppt != null : "@AssumeAssertion(nullness): every ppt in the index is in a section";
+        map.add(ppt);
+      }
+      return map;
+    }
+
+    /**
+     * Reads the program points whose names match a regular expression. The other program points in
+     * their sections are read too, so that every program point that a matching one refers to is in
+     * the result; the sections of the other program points are not read at all.
+     *
+     * @param ppt_regexp the regular expression that the names of the program points must match
+     * @return a PptMap that contains the matching program points (and possibly others), in their
+     *     original order
+     * @throws IOException if the file cannot be read
+     */
+    public PptMap read_matching(Pattern ppt_regexp) throws IOException {
+      Set<Integer> sections = new HashSet<>();
+      for (Map.Entry<String, Integer> entry : ppt_sections.entrySet()) {
+        if (ppt_regexp.matcher(entry.getKey()).find()) {
+          sections.add(entry.getValue());
+        }
+      }
+      PptMap map = new PptMap();
+      for (Map.Entry<String, Integer> entry : ppt_sections.entrySet()) {
+        if (sections.contains(entry.getValue())) {
+          PptTopLevel ppt = get(entry.getKey());
+          assert ppt != null : "@AssumeAssertion(nullness): every ppt in the index is in a section";
+          map.add(ppt);
+        }
+      }
+      return map;
+    }
+
+    /**
+     * Reads a section and records its program points.
+     *
+     * @param section the number of the section
+     * @throws IOException if the file cannot be read
+     */
+    private void read_section(int section) throws IOException {
+      List<?> ppts;
+      try (ObjectInputStream in =
+          section_stream(section_offsets[section], section_lengths[section])) {
+        ppts = (List<?>) in.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Error while reading " + file, e);
+      }
+      for (Object o : ppts) {
+        PptTopLevel ppt = (PptTopLevel) o;
+        // A program point is stored in more than one section only if a section was merged after
+        // it was written; the index refers to the last one.
+        Integer ppt_section = ppt_sections.get(ppt.name());
+        if (ppt_section != null && ppt_section == section) {
+          loaded.put(ppt.name(), ppt);
+        }
+      }
+    }
+
+    /**
+     * Returns a stream that deserializes a section.
+     *
+     * @param offset the offset of the section
+     * @param length the length of the section
+     * @return a stream that reads the objects in the section
+     * @throws IOException if the file cannot be read
+     */
+    private ObjectInputStream section_stream(long offset, int length) throws IOException {
+      return new ObjectInputStream(
+          new InflaterInputStream(new ByteArrayInputStream(read(offset, length))));
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return the size of the (uncompressed) file
+     * @throws IOException if the file cannot be read
+     */
+    private long size() throws IOException {
+      if (contents != null) {
+        return contents.length;
+      }
+      assert channel != null : "@AssumeAssertion(nullness): contents or channel is set";
+      return channel.size();
+    }
+
+    /**
+     * Reads bytes from the file.
+     *
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     * @return the bytes
+     * @throws IOException if the file cannot be read or is too short
+     */
+    private byte[] read(long offset, int length) throws IOException {
+      if (offset < 0 || length < 0 || offset + length > size()) {
+        throw new IOException(file + " is truncated or corrupt");
+      }
+      if (contents != null) {
+        return Arrays.copyOfRange(contents, (int) offset, (int) offset + length);
+      }
+      assert channel != null : "@AssumeAssertion(nullness): contents or channel is set";
+      ByteBuffer buf = ByteBuffer.allocate(length);
+      while (buf.hasRemaining()) {
+        if (channel.read(buf, offset + buf.position()) == -1) {
+          throw new IOException(file + " is truncated");
+        }
+      }
+      return buf.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (channel != null) {
+        channel.close();
+      }
+    }
+  }
+}
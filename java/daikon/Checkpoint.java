@@ -0,0 +1,256 @@
+package daikon;
+
+import daikon.FileIO.Invocation;
+import daikon.FileIO.ParseState;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.plumelib.util.UtilPlume;
+
+/**
+ * Saves the state of Daikon while it reads trace files, so that a later run can resume from it
+ * instead of processing the same samples again. Daikon writes a checkpoint when given {@code
+ * --checkpoint}: after every {@link #dkconfig_interval} samples, and once all of the trace files
+ * have been read. Daikon given {@code --resume} starts from the state in a checkpoint.
+ *
+ * <p>A checkpoint is taken between two samples, before the program points are post-processed. It
+ * contains the program points and the state of their invariants, the procedure entries whose exits
+ * have not been seen yet, and the number of samples that were read from each trace file. When
+ * Daikon resumes, the samples at the start of a trace file that were already read are skipped. So
+ * after a crash, the same trace files can be given again; a trace file that has grown since is read
+ * from where the earlier run stopped; and any other trace file is read in full.
+ *
+ * <p>The run that resumes must use the same configuration options as the run that wrote the
+ * checkpoint, and the same {@code .spinfo} files.
+ */
+public final class Checkpoint {
+
+  /** Do not instantiate. */
+  private Checkpoint() {
+    throw new Error("do not instantiate");
+  }
+
+  /** Debug tracer. */
+  public static final Logger debug = Logger.getLogger("daikon.Checkpoint");
+
+  /**
+   * Integer. If positive, and Daikon was given {@code --checkpoint}, a checkpoint is written after
+   * every this many samples. If 0, a checkpoint is written only once all of the trace files have
+   * been read.
+   */
+  public static int dkconfig_interval = 0;
+
+  /** The file to which checkpoints are written, or null if none are written. */
+  static @Nullable File file = null;
+
+  /**
+   * Map from the name of each trace file to the number of samples that have been read from it,
+   * including any that were skipped because an earlier run processed them. Maintained only if
+   * {@link #enabled} is true.
+   */
+  private static Map<String, Long> samples_read = new LinkedHashMap<>();
+
+  /** The number of samples processed since the last checkpoint was written. */
+  private static long samples_since_checkpoint = 0;
+
+  /** True if checkpoints are written, or if this run resumed from a checkpoint. */
+  static boolean enabled = false;
+
+  /** The state of Daikon that is saved in a checkpoint. */
+  static final class State implements Serializable {
+    // We are Serializable, so we specify a version to allow changes to
+    // method signatures without breaking serialization.  If you add or
+    // remove fields, you should change this number to the current date.
+    static final long serialVersionUID = 20261018L;
+
+    /** The program points. */
+    PptMap all_ppts;
+
+    /** The value of {@link FileIO#new_decl_format}. */
+    @Nullable Boolean new_decl_format;
+
+    /** The procedure entries that have nonces and have not been matched with an exit. */
+    InvocationTable call_hashmap;
+
+    /** The procedure entries that have no nonce and have not been matched with an exit. */
+    ArrayDeque<Invocation> call_stack;
+
+    /** The value of {@link FileIO#ppt_to_value_reps}. */
+    HashMap<PptTopLevel, String[]> ppt_to_value_reps;
+
+    /** The value of {@link FileIO#samples_processed}. */
+    int samples_processed;
+
+    /** The value of {@link FileIO#omitted_declarations}. */
+    int omitted_declarations;
+
+    /** The number of samples read from each trace file. */
+    LinkedHashMap<String, Long> samples_read;
+
+    /**
+     * Creates a record of the current state.
+     *
+     * @param all_ppts the program points
+     */
+    State(PptMap all_ppts) {
+      this.all_ppts = all_ppts;
+      new_decl_format = FileIO.new_decl_format;
+      call_hashmap = FileIO.call_hashmap;
+      call_stack = new ArrayDeque<>(FileIO.call_stack);
+      ppt_to_value_reps = FileIO.ppt_to_value_reps;
+      samples_processed = FileIO.samples_processed;
+      omitted_declarations = FileIO.omitted_declarations;
+      samples_read = new LinkedHashMap<>(Checkpoint.samples_read);
+    }
+  }
+
+  /**
+   * Writes a checkpoint to the given file whenever Daikon has processed {@link #dkconfig_interval}
+   * samples and when all trace files have been read.
+   *
+   * @param checkpoint_file the file to which checkpoints are written
+   */
+  static void write_to(File checkpoint_file) {
+    file = checkpoint_file;
+    enabled = true;
+  }
+
+  /**
+   * Restores the state saved in a checkpoint, then reads the given declaration files. Declarations
+   * of program points that are in the checkpoint must match them.
+   *
+   * @param checkpoint_file a checkpoint written by an earlier run of Daikon
+   * @param decl_files declaration files to read
+   * @return the program points, including those read from decl_files
+   */
+  static PptMap resume(File checkpoint_file, Collection<File> decl_files) {
+    Object obj;
+    try {
+      obj = UtilPlume.readObject(checkpoint_file);
+    } catch (InvalidClassException e) {
+      throw new Daikon.UserError(
+          "Checkpoint "
+              + checkpoint_file
+              + " was written by a different version of Daikon and cannot be read");
+    } catch (IOException | ClassNotFoundException e) {
+      throw new Daikon.UserError(e, "Error while reading checkpoint " + checkpoint_file);
+    }
+    if (!(obj instanceof State)) {
+      throw new Daikon.UserError(checkpoint_file + " is not a checkpoint");
+    }
+    State state = (State) obj;
+    FileIO.new_decl_format = state.new_decl_format;
+    FileIO.call_hashmap = state.call_hashmap;
+    FileIO.call_stack = state.call_stack;
+    FileIO.ppt_to_value_reps = state.ppt_to_value_reps;
+    FileIO.samples_processed = state.samples_processed;
+    FileIO.omitted_declarations = state.omitted_declarations;
+    samples_read = state.samples_read;
+    enabled = true;
+    if (!Daikon.dkconfig_quiet) {
+      System.out.printf(
+          "Resuming from checkpoint %s (%d samples already processed)%n",
+          checkpoint_file, state.samples_processed);
+    }
+
+    PptMap all_ppts = state.all_ppts;
+    for (PptTopLevel ppt : all_ppts.pptIterable()) {
+      Daikon.restore_splitters(ppt);
+    }
+    try {
+      for (File decl_file : decl_files) {
+        FileIO.read_declaration_file(decl_file, all_ppts);
+      }
+    } catch (IOException e) {
+      throw new Daikon.UserError(e, "Error parsing decl file");
+    }
+    return all_ppts;
+  }
+
+  /**
+   * Returns the number of samples at the start of the given trace file that were already processed
+   * by the run that wrote the checkpoint that this run resumed from.
+   *
+   * @param filename the name of a trace file
+   * @return the number of samples to skip
+   */
+  static long samples_to_skip(String filename) {
+    Long count = samples_read.get(filename);
+    return (count == null) ? 0 : count.longValue();
+  }
+
+  /**
+   * Called after each sample that is read from a trace file is processed. Records the position in
+   * the trace file, and writes a checkpoint if one is due.
+   *
+   * @param state the state of the trace file
+   */
+  static void sample_read(ParseState state) {
+    if (!state.is_stream) {
+      samples_read.put(state.filename, state.samples_read);
+    }
+    if (file != null && dkconfig_interval > 0) {
+      samples_since_checkpoint++;
+      if (samples_since_checkpoint >= dkconfig_interval) {
+        write(state.all_ppts);
+      }
+    }
+  }
+
+  /**
+   * Writes a checkpoint, if Daikon was given {@code --checkpoint}. Waits until the samples that
+   * have been read are applied to the program points. The file is replaced only once the new
+   * checkpoint is complete.
+   *
+   * @param all_ppts the program points
+   */
+  static void write(PptMap all_ppts) {
+    File checkpoint_file = file;
+    if (checkpoint_file == null) {
+      return;
+    }
+    samples_since_checkpoint = 0;
+    if (FileIO.coalescer != null) {
+      FileIO.coalescer.flush();
+    }
+    if (FileIO.inference_workers != null) {
+      FileIO.inference_workers.await_applied();
+    }
+    File dir = checkpoint_file.getAbsoluteFile().getParentFile();
+    try {
+      // The temporary file has the same suffix, so it is compressed the same way.
+      File tmp = File.createTempFile("checkpoint", checkpoint_file.getName(), dir);
+      try {
+        UtilPlume.writeObject(new State(all_ppts), tmp);
+        Files.move(
+            tmp.toPath(),
+            checkpoint_file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp.toPath());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error while writing checkpoint " + checkpoint_file, e);
+    }
+    debug.fine("wrote checkpoint after " + FileIO.samples_processed + " samples");
+  }
+
+  /** Resets the state of this class, so that Daikon can be run more than once. */
+  static void cleanup() {
+    file = null;
+    samples_read = new LinkedHashMap<>();
+    samples_since_checkpoint = 0;
+    enabled = false;
+  }
+}
@@ -35,6 +35,32 @@ public class Chicory {
   @Option("File in which to put dtrace output")
   public static @MonotonicNonNull File dtrace_file = null;
 
+  /**
+   * If true, samples are written in the compact binary format of {@link daikon.BinaryDtrace}, which
+   * Daikon reads in place of a textual dtrace file. Has no effect with {@code --daikon-online}.
+   */
+  @Option("Write the dtrace file in binary format")
+  public static boolean dtrace_binary = false;
+
+  /**
+   * Maximum number of batches of samples waiting for the thread that writes the dtrace file. If 0,
+   * there is no such thread, and each thread of the target program writes its own samples. If
+   * negative, the size depends on the number of processors: 0 on a single processor, and {@link
+   * daikon.chicory.DTraceQueue#DEFAULT_CAPACITY} otherwise.
+   */
+  @Option("Number of batches of samples that may wait to be written")
+  public static int dtrace_queue_size = -1;
+
+  /**
+   * If true, a thread that finds the dtrace queue full discards its batch of samples rather than
+   * waiting for the writer thread, so tracing slows the target program less. The number of
+   * discarded samples is reported at the end of the dtrace file. Because an entry may be
+   * discarded while its exit is kept, run Daikon on the result with {@code --config_option
+   * daikon.FileIO.ignore_missing_enter=true}.
+   */
+  @Option("Discard samples, rather than wait, when the dtrace queue is full")
+  public static boolean dtrace_drop_when_full = false;
+
   /** Also see Daikon's {@code --var-omit-pattern} command-line argument. */
   @Option("Omit variables that match this regular expression.")
   public static @Nullable Pattern omit_var = null;
@@ -99,6 +125,15 @@ public class Chicory {
   @Option("Path to the Chicory agent jar file")
   public static @MonotonicNonNull File premain = null;
 
+  /**
+   * Directory in which to save instrumented classes, so that later runs with the same options load
+   * them without instrumenting them again. Several runs may share the directory, even at the same
+   * time. If null, classes are instrumented each time they are loaded. See {@link
+   * daikon.chicory.InstrumentedClassCache}.
+   */
+  @Option("Directory in which to cache instrumented classes")
+  public static @Nullable File class_cache = null;
+
   /**
    * The name of the file to read for a list of pure methods. Should be 1 method per line. Each
    * method should be in the same format as format output by the purity analysis.
@@ -128,11 +163,32 @@ public class Chicory {
    * When this option is chosen, Chicory will record each program point until that program point has
    * been executed sample-cnt times. Chicory will then begin sampling. Sampling starts at 10% and
    * decreases by a factor of 10 each time another sample-cnt samples have been recorded. If
-   * sample-cnt is 0, then all calls will be recorded.
+   * sample-cnt is 0, then all calls will be recorded. With {@code --sample-time-budget} or {@code
+   * --sample-char-budget}, the first sample-cnt calls of each method are recorded, and the later
+   * ones are sampled to the budget instead.
    */
   @Option("Number of calls after which sampling will begin")
   public static int sample_start = 0;
 
+  /**
+   * If positive, Chicory samples calls so that formatting the trace takes at most this percentage
+   * of the elapsed time, summed over all threads. Instead of the fixed schedule of {@code
+   * --sample-start}, each method is sampled with a probability that is adjusted as the program
+   * runs, from the measured cost of recording the method. The first sample-cnt calls of each
+   * method, and each call with a shape (classes and kinds of arguments) that the method has not
+   * seen before, are always recorded.
+   */
+  @Option("Percentage of the elapsed time that tracing may take")
+  public static double sample_time_budget = 0;
+
+  /**
+   * If positive, Chicory samples calls, as for {@code --sample-time-budget}, so that at most this
+   * many characters of samples are written per second. The size of a sample is its size in a
+   * textual dtrace file, so a binary dtrace file grows more slowly.
+   */
+  @Option("Characters of samples per second that tracing may write")
+  public static long sample_char_budget = 0;
+
   /** Daikon port number. Daikon writes this to stdout when it is started in online mode. */
   private static int daikon_port = -1;
 
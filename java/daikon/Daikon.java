@@ -89,6 +89,7 @@ import daikon.inv.binary.twoString.StringGreaterThan;
 import daikon.inv.binary.twoString.StringLessEqual;
 import daikon.inv.binary.twoString.StringLessThan;
 import daikon.inv.binary.twoString.StringNonEqual;
+import daikon.inv.filter.InvariantFilters;
 import daikon.inv.ternary.threeScalar.FunctionBinary;
 import daikon.inv.ternary.threeScalar.FunctionBinaryFloat;
 import daikon.inv.ternary.threeScalar.LinearTernary;
@@ -151,6 +152,9 @@ import daikon.inv.unary.string.PrintableString;
 import daikon.inv.unary.stringsequence.CommonStringSequence;
 import daikon.inv.unary.stringsequence.EltOneOfString;
 import daikon.inv.unary.stringsequence.OneOfStringSequence;
+import daikon.simplify.LemmaStack;
+import daikon.simplify.ProofCache;
+import daikon.simplify.SimplifyError;
 import daikon.split.ContextSplitterFactory;
 import daikon.split.PptSplitter;
 import daikon.split.SpinfoFile;
@@ -172,6 +176,7 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -181,6 +186,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -302,6 +308,31 @@ public final class Daikon {
    */
   public static boolean dkconfig_undo_opts = false;
 
+  /**
+   * Integer. If positive, the invariants of the program point hierarchy are merged on this many
+   * threads after the trace files are read. Program points whose merges do not touch the same
+   * program points are merged concurrently, and the others in the usual order, so the resulting
+   * invariants are the same as with the default of 0, which merges them on a single thread.
+   */
+  public static int dkconfig_merge_threads = 0;
+
+  /**
+   * Integer. If positive, implications are added to the program points on this many threads.
+   * Program points whose implications do not depend on each other are processed concurrently, so
+   * the resulting invariants are the same as with the default of 0, which processes them on a
+   * single thread.
+   */
+  public static int dkconfig_implication_threads = 0;
+
+  /**
+   * Integer. If positive, {@code --suppress_redundant} runs this many Simplify processes and
+   * checks that many program points at a time, each with its own Simplify process. Each program
+   * point is checked independently of the others, so the redundant invariants are the same as
+   * with the default of 0, which checks one program point at a time with a single Simplify
+   * process. See also {@code daikon.simplify.ProofCache.file}.
+   */
+  public static int dkconfig_simplify_threads = 0;
+
   /**
    * Boolean. Indicates to Daikon classes and methods that the methods calls should be compatible to
    * DaikonSimple because Daikon and DaikonSimple share methods. Default value is 'false'.
@@ -374,6 +405,9 @@ public final class Daikon {
   // file.
   public static @Nullable File inv_file;
 
+  /** The checkpoint from which to resume, or null to start from the declaration files. */
+  public static @Nullable File resume_file;
+
   // Whether we want the memory monitor activated
   private static boolean use_mem_monitor = false;
 
@@ -431,6 +465,8 @@ public final class Daikon {
   // Configuration options
   public static final String server_SWITCH =
       "server"; // YOAV: server mode for Daikon: reads dtrace files as they appear
+  public static final String checkpoint_SWITCH = "checkpoint";
+  public static final String resume_SWITCH = "resume";
   public static final String config_SWITCH = "config";
   public static final String config_option_SWITCH = "config_option";
   // Debugging
@@ -710,7 +746,10 @@ public final class Daikon {
     Set<String> dtrace_files = files.dtrace;
     Set<File> spinfo_files = files.spinfo;
     Set<File> map_files = files.map;
-    if (server_dir == null && (decls_files.size() == 0) && (dtrace_files.size() == 0)) {
+    if (server_dir == null
+        && resume_file == null
+        && (decls_files.size() == 0)
+        && (dtrace_files.size() == 0)) {
       System.out.println("No .decls or .dtrace files specified");
       throw new Daikon.UserError("No .decls or .dtrace files specified");
     }
@@ -761,7 +800,11 @@ public final class Daikon {
 
     // Load declarations and splitters
     load_spinfo_files(spinfo_files);
-    all_ppts = load_decls_files(decls_files);
+    if (resume_file == null) {
+      all_ppts = load_decls_files(decls_files);
+    } else {
+      all_ppts = Checkpoint.resume(resume_file, decls_files);
+    }
     load_map_files(map_files);
 
     all_ppts.trimToSize();
@@ -924,6 +967,7 @@ public final class Daikon {
     // Reset statics.  Unfortunately, these must match the settings where
     // these are declared and I don't know how to do that automatically.
     inv_file = null;
+    resume_file = null;
     no_text_output = false;
     show_progress = false;
     output_format = OutputFormat.DAIKON;
@@ -939,6 +983,7 @@ public final class Daikon {
     var_omit_regexp = null;
     server_dir = null;
     use_mem_monitor = false;
+    Checkpoint.cleanup();
 
     proto_invs.clear();
   }
@@ -1003,6 +1048,8 @@ public final class Daikon {
           new LongOpt(var_omit_regexp_SWITCH, LongOpt.REQUIRED_ARGUMENT, null, 0),
           // Configuration options
           new LongOpt(server_SWITCH, LongOpt.REQUIRED_ARGUMENT, null, 0),
+          new LongOpt(checkpoint_SWITCH, LongOpt.REQUIRED_ARGUMENT, null, 0),
+          new LongOpt(resume_SWITCH, LongOpt.REQUIRED_ARGUMENT, null, 0),
           new LongOpt(config_SWITCH, LongOpt.REQUIRED_ARGUMENT, null, 0),
           new LongOpt(config_option_SWITCH, LongOpt.REQUIRED_ARGUMENT, null, 0),
           // Debugging
@@ -1280,6 +1327,19 @@ public final class Daikon {
                   "Could not open config file in server directory " + server_dir);
             }
             break;
+          } else if (checkpoint_SWITCH.equals(option_name)) {
+            File checkpoint_file = new File(getOptarg(g));
+            if (!UtilPlume.canCreateAndWrite(checkpoint_file)) {
+              throw new Daikon.UserError("Cannot write to checkpoint file " + checkpoint_file);
+            }
+            Checkpoint.write_to(checkpoint_file);
+            break;
+          } else if (resume_SWITCH.equals(option_name)) {
+            resume_file = new File(getOptarg(g));
+            if (!resume_file.canRead()) {
+              throw new Daikon.UserError("Cannot read checkpoint file " + resume_file);
+            }
+            break;
 
             // Configuration options
 
@@ -1756,6 +1816,11 @@ public final class Daikon {
    */
   public static void createUpperPpts(PptMap all_ppts) {
 
+    if (dkconfig_merge_threads > 0) {
+      HierarchyMerger.merge(all_ppts, dkconfig_merge_threads);
+      return;
+    }
+
     // Process each ppt that doesn't have a parent
     // (mergeInvs is called on a root, and recursively processes children)
     for (PptTopLevel ppt : all_ppts.pptIterable()) {
@@ -2115,6 +2180,43 @@ public final class Daikon {
     Global.debugSplit.fine("<<exit>>  setup_splitters");
   }
 
+  /**
+   * Restores the splitters of a program point that was read from a checkpoint. Splitters are not
+   * serialized, so each conditional program point is given a new instance of the splitter that
+   * created it.
+   */
+  @SuppressWarnings("nullness:contracts.precondition.not.satisfied")
+  static void restore_splitters(PptTopLevel ppt) {
+    if (!ppt.has_splitters()) {
+      return;
+    }
+
+    SplitterFactory.load_splitters(ppt, spinfoFiles);
+
+    Splitter[] pconds;
+    if (SplitterList.dkconfig_all_splitters) {
+      pconds = SplitterList.get_all();
+    } else {
+      pconds = SplitterList.get(ppt.name());
+    }
+    for (PptSplitter ppt_split : ppt.splitters) {
+      for (PptTopLevel cond_ppt : ppt_split.ppts) {
+        if (!(cond_ppt instanceof PptConditional)) {
+          continue;
+        }
+        Splitter splitter =
+            (pconds == null) ? null : ((PptConditional) cond_ppt).restore_splitter(pconds);
+        if (splitter == null) {
+          throw new Daikon.UserError(
+              "No splitter for "
+                  + cond_ppt.name()
+                  + "; give Daikon the same .spinfo files as the run that wrote the checkpoint");
+        }
+        ppt_split.splitter = splitter;
+      }
+    }
+  }
+
   ///////////////////////////////////////////////////////////////////////////
   // Infer invariants over the trace data
 
@@ -2417,9 +2519,21 @@ public final class Daikon {
     fileio_progress.clear();
     if (!PptSplitter.dkconfig_disable_splitting) {
       debugProgress.fine("Adding Implications ... ");
-      for (PptTopLevel ppt : all_ppts.pptIterable()) {
-        // debugProgress.fine ("  Adding implications for " + ppt.name);
-        ppt.addImplications();
+      if (dkconfig_implication_threads > 0) {
+        List<PptTopLevel> ppts = new ArrayList<>();
+        for (PptTopLevel ppt : all_ppts.pptIterable()) {
+          ppts.add(ppt);
+        }
+        PptLevels.run(
+            ppts,
+            Daikon::implication_touched,
+            PptTopLevel::addImplications,
+            dkconfig_implication_threads);
+      } else {
+        for (PptTopLevel ppt : all_ppts.pptIterable()) {
+          // debugProgress.fine ("  Adding implications for " + ppt.name);
+          ppt.addImplications();
+        }
       }
       duration = System.nanoTime() - startTime;
       debugProgress.fine(
@@ -2427,6 +2541,26 @@ public final class Daikon {
     }
   }
 
+  /**
+   * Returns the program points that {@link PptTopLevel#addImplications} reads or modifies: ppt (and
+   * its conditional program points) and, for a combined exit point, its numbered exit points.
+   *
+   * @param ppt a program point
+   * @return the program points that adding implications to ppt reads or modifies
+   */
+  private static List<PptTopLevel> implication_touched(PptTopLevel ppt) {
+    List<PptTopLevel> result = new ArrayList<>();
+    result.add(ppt);
+    if (ppt.ppt_name.isCombinedExitPoint()) {
+      for (PptRelation rel : ppt.children) {
+        if (rel.getRelationType() == PptRelation.PptRelationType.EXIT_EXITNN) {
+          result.add(rel.child);
+        }
+      }
+    }
+    return result;
+  }
+
   private static class Count {
     public int val;
 
@@ -2477,13 +2611,18 @@ public final class Daikon {
     System.out.print("Invoking Simplify to identify redundant invariants");
     System.out.flush();
     long startTime = System.nanoTime();
-    for (PptTopLevel ppt : all_ppts.ppt_all_iterable()) {
-      ppt.mark_implied_via_simplify(all_ppts);
-      System.out.print(".");
-      System.out.flush();
+    if (dkconfig_simplify_threads > 0) {
+      suppressWithSimplifyPool(all_ppts, dkconfig_simplify_threads);
+    } else {
+      for (PptTopLevel ppt : all_ppts.ppt_all_iterable()) {
+        ppt.mark_implied_via_simplify(all_ppts);
+        System.out.print(".");
+        System.out.flush();
+      }
     }
     long duration = System.nanoTime() - startTime;
     System.out.println(TimeUnit.NANOSECONDS.toSeconds(duration));
+    debugProgress.fine(ProofCache.hits() + " Simplify queries answered from the cache");
 
     // Make sure the Simplify process and helper threads are finished
     if (PptTopLevel.getProverStack() != null) {
@@ -2491,6 +2630,53 @@ public final class Daikon {
     }
   }
 
+  /**
+   * Checks the program points for redundant invariants on num_threads threads. Each thread takes
+   * a Simplify process from a pool, or starts one if none is idle, and returns it to the pool when
+   * it has checked a program point. As in the sequential case, a process that fails is discarded
+   * and a new one is started for the next program point.
+   *
+   * @param all_ppts the program points to check
+   * @param num_threads the number of threads
+   */
+  private static void suppressWithSimplifyPool(PptMap all_ppts, int num_threads) {
+    List<PptTopLevel> ppts = new ArrayList<>();
+    for (PptTopLevel ppt : all_ppts.ppt_all_iterable()) {
+      ppts.add(ppt);
+    }
+    // Initialize lazily-created shared state before the threads start.
+    InvariantFilters.defaultFilters();
+
+    ConcurrentLinkedDeque<LemmaStack> idle = new ConcurrentLinkedDeque<>();
+    try {
+      // Each program point is checked on its own, so all of them are independent.
+      PptLevels.run(
+          ppts,
+          Collections::singletonList,
+          ppt -> {
+            LemmaStack prover = idle.poll();
+            try {
+              if (prover == null) {
+                prover = new LemmaStack();
+              }
+              ppt.mark_implied_via_simplify(prover);
+              idle.push(prover);
+            } catch (SimplifyError e) {
+              // Do not reuse the prover.
+            }
+            synchronized (System.out) {
+              System.out.print(".");
+              System.out.flush();
+            }
+          },
+          num_threads);
+    } finally {
+      for (LemmaStack prover : idle) {
+        prover.closeSession();
+      }
+    }
+  }
+
   /** Initialize NIS suppression. */
   public static void setup_NISuppression() {
     NIS.init_ni_suppression();
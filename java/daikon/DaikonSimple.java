@@ -438,8 +438,10 @@ public class DaikonSimple {
 
       ValueTuple receiver_vt = new ValueTuple(values, mods);
 
-      FileIO.compute_orig_variables(receiver, receiver_vt.vals, receiver_vt.mods, nonce);
-      FileIO.compute_derived_variables(receiver, receiver_vt.vals, receiver_vt.mods);
+      FileIO.compute_orig_variables(
+          receiver, receiver_vt.vals, receiver_vt.scalars, receiver_vt.mods, nonce);
+      FileIO.compute_derived_variables(
+          receiver, receiver_vt.vals, receiver_vt.scalars, receiver_vt.mods);
 
       return receiver_vt;
     }
@@ -454,11 +456,11 @@ public class DaikonSimple {
       this.all_ppts = all_ppts;
 
       // Add samples to orig and derived variables
-      FileIO.compute_orig_variables(ppt, vt.vals, vt.mods, nonce);
-      FileIO.compute_derived_variables(ppt, vt.vals, vt.mods);
+      FileIO.compute_orig_variables(ppt, vt.vals, vt.scalars, vt.mods, nonce);
+      FileIO.compute_derived_variables(ppt, vt.vals, vt.scalars, vt.mods);
 
       // Intern the sample
-      vt = new ValueTuple(vt.vals, vt.mods);
+      vt = new ValueTuple(vt.vals, vt.scalars, vt.mods);
 
       // DaikonSimple must make the object program point manually because
       // the new Chicory produced dtrace files do not contain object ppts
@@ -654,7 +656,7 @@ public class DaikonSimple {
         for (int j = 0; j < vt.vals.length; j++) {
           if (!vt.isMissing(j)) {
             ValueSet vs = ppt.value_sets[j];
-            vs.add(vt.vals[j]);
+            vs.add(vt.getValue(j));
           }
         }
         ppt.mbtracker.add(vt, 1);
@@ -0,0 +1,144 @@
+package daikon;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.plumelib.util.UtilPlume;
+
+/**
+ * Converts a textual data trace file to the binary format described in {@link BinaryDtrace}. Takes
+ * two arguments: the input {@code .dtrace} or {@code .dtrace.gz} file and the output file, which is
+ * compressed if its name ends in {@code .gz}. Daikon reads the result in place of the original.
+ */
+public final class DtraceToBinary {
+
+  /** Do not instantiate. */
+  private DtraceToBinary() {
+    throw new Error("do not instantiate");
+  }
+
+  /**
+   * Entry point for DtraceToBinary, which converts a textual trace file to a binary one.
+   *
+   * @param args the name of the textual trace file and the name of the binary file to create
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      throw new RuntimeException(
+          "Usage: java daikon.DtraceToBinary <input.dtrace[.gz]> <output.dtrace[.gz]>");
+    }
+    String out_filename = args[1];
+    OutputStream os = Files.newOutputStream(Paths.get(out_filename));
+    if (out_filename.endsWith(".gz")) {
+      os = new GZIPOutputStream(os);
+    }
+    try (BufferedReader reader = UtilPlume.lineNumberFileReader(args[0]);
+        BinaryDtrace.Writer writer = new BinaryDtrace.Writer(new BufferedOutputStream(os))) {
+      convert(reader, writer);
+    }
+  }
+
+  /**
+   * Copies each record of a textual trace to a binary one. Samples are encoded; all other records
+   * are copied as text.
+   *
+   * @param reader the textual trace
+   * @param writer the binary trace
+   * @throws IOException if the trace cannot be read or written
+   */
+  public static void convert(BufferedReader reader, BinaryDtrace.Writer writer)
+      throws IOException {
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      if (line.isEmpty()) {
+        writer.add_text(line + Global.lineSep);
+      } else if (FileIO.isComment(line)) {
+        writer.add_text(line + Global.lineSep);
+      } else if (is_sample_header(line)) {
+        read_sample(line, reader, writer);
+      } else {
+        // Declarations and other records extend to the next blank line.
+        StringBuilder record = new StringBuilder();
+        while (line != null && !line.isEmpty()) {
+          record.append(line).append(Global.lineSep);
+          line = reader.readLine();
+        }
+        record.append(Global.lineSep);
+        writer.add_text(record.toString());
+      }
+    }
+  }
+
+  /**
+   * Returns true if the given line, which starts a record, starts a sample.
+   *
+   * @param line the first line of a record
+   * @return true if the record is a sample
+   */
+  static boolean is_sample_header(String line) {
+    return !(line.startsWith("ppt ")
+        || line.equals(FileIO.declaration_header)
+        || line.startsWith("decl-version")
+        || line.startsWith("input-language")
+        || line.equals("VarComparability")
+        || line.startsWith("var-comparability")
+        || line.equals("ListImplementors"));
+  }
+
+  /**
+   * Reads the rest of a sample and writes it.
+   *
+   * @param ppt_name the first line of the sample
+   * @param reader the textual trace, positioned after the first line of the sample
+   * @param writer the binary trace
+   */
+  private static void read_sample(
+      String ppt_name, BufferedReader reader, BinaryDtrace.Writer writer) throws IOException {
+    String line = reader.readLine();
+    Integer nonce = null;
+    if (FileIO.NONCE_HEADER.equals(line)) {
+      String nonce_number = reader.readLine();
+      if (nonce_number == null) {
+        throw new Daikon.UserError("File ended while trying to read nonce");
+      }
+      nonce = Integer.valueOf(nonce_number);
+      line = reader.readLine();
+    }
+    writer.start_sample(ppt_name, nonce);
+    while (line != null && !line.isEmpty()) {
+      String name = line;
+      String value = read_line(reader, "value", name, ppt_name);
+      String mod = read_line(reader, "modbit", name, ppt_name);
+      if (!(mod.equals("0") || mod.equals("1") || mod.equals("2"))) {
+        throw new Daikon.UserError(
+            "Bad modbit `" + mod + "' for variable " + name + " of program point " + ppt_name);
+      }
+      writer.add_variable(name, value, mod.charAt(0) - '0');
+      line = reader.readLine();
+    }
+    writer.end_sample();
+  }
+
+  /**
+   * Reads a line that must be present.
+   *
+   * @param reader the textual trace
+   * @param what what the line contains, for the error message
+   * @param name the variable whose value is being read
+   * @param ppt_name the program point of the sample
+   * @return the line
+   */
+  private static String read_line(
+      BufferedReader reader, String what, String name, String ppt_name) throws IOException {
+    @Nullable String line = reader.readLine();
+    if (line == null) {
+      throw new Daikon.UserError(
+          "Unexpected end of file; expected " + what + " of " + name + " for " + ppt_name);
+    }
+    return line;
+  }
+}
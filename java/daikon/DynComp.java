@@ -83,6 +83,15 @@ public class DynComp {
   @Option("variable nesting depth")
   public static int nesting_depth = 2;
 
+  /**
+   * Directory in which to save instrumented classes, so that later runs with the same options load
+   * them without instrumenting them again. Several runs may share the directory, even at the same
+   * time. Classes of the JDK, and classes whose instrumentation depends on other classes, are not
+   * saved. See {@link daikon.chicory.InstrumentedClassCache}.
+   */
+  @Option("Directory in which to cache instrumented classes")
+  public static @Nullable File class_cache = null;
+
   /** Do not use the instrumented JDK. No longer an option, now derived from rt_file option. */
   public static boolean no_jdk = false;
 
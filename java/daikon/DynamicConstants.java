@@ -13,6 +13,8 @@ import daikon.inv.unary.sequence.OneOfSequence;
 import daikon.inv.unary.string.OneOfString;
 import daikon.inv.unary.stringsequence.OneOfStringSequence;
 import daikon.suppress.NIS;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -181,6 +183,18 @@ public class DynamicConstants implements Serializable {
       this.vi = vi;
     }
 
+    /**
+     * Interns the value, which is compared by identity to the values of later samples.
+     *
+     * @param in the stream from which to read the object
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      if (val != null) {
+        val = SyncIntern.internDeserialized(val);
+      }
+    }
+
     /**
      * Returns whether the specified variable is currently a constant OR was a constant at the
      * beginning of constants processing.
@@ -309,7 +323,7 @@ public class DynamicConstants implements Serializable {
                 + "/"
                 + count);
       }
-      if (missing(con.vi, vt) || (con.val != con.vi.getValue(vt))) {
+      if (missing(con.vi, vt) || !con.vi.hasValue(vt, con.val)) {
         i.remove();
         con.constant = false;
         con.previously_constant = true;
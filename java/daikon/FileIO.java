@@ -11,6 +11,7 @@ import static daikon.tools.nullness.NullnessUtil.castNonNullDeep;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import daikon.config.Configuration;
+import daikon.derive.Derivation;
 import daikon.derive.ValueAndModified;
 import daikon.diff.InvMap;
 import daikon.inv.Invariant;
@@ -26,6 +27,7 @@ import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -46,20 +48,20 @@ import java.util.Scanner;
 import java.util.StringJoiner;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import org.checkerframework.checker.interning.qual.Interned;
 import org.checkerframework.checker.interning.qual.UsesObjectEquals;
 import org.checkerframework.checker.lock.qual.GuardSatisfied;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNullIf;
-import org.checkerframework.checker.nullness.qual.KeyFor;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.checkerframework.dataflow.qual.Pure;
 import org.checkerframework.dataflow.qual.SideEffectFree;
-import org.plumelib.util.CollectionsPlume;
+import org.plumelib.util.Intern;
 import org.plumelib.util.UtilPlume;
 
 public final class FileIO {
@@ -144,6 +146,21 @@ public final class FileIO {
   /** Boolean. If true, prints the unmatched procedure entries verbosely. */
   public static boolean dkconfig_verbose_unmatched_procedure_entries = false;
 
+  /**
+   * Integer. If positive, at most this many procedure entries with nonces are kept in memory while
+   * waiting for their exits. When there would be more, the oldest entry is discarded (or spilled,
+   * if {@link #dkconfig_spill_unmatched_entries} is true), and an exit whose entry was discarded is
+   * ignored. The numbers of discarded entries and ignored exits are reported with the unmatched
+   * procedure entries. If 0, entries are never discarded.
+   */
+  public static int dkconfig_max_unmatched_entries = 0;
+
+  /**
+   * Boolean. When true, the procedure entries that {@link #dkconfig_max_unmatched_entries} would
+   * discard are instead written to a temporary file, and read back when their exits appear.
+   */
+  public static boolean dkconfig_spill_unmatched_entries = false;
+
   /**
    * Boolean. When true, suppress exceptions related to file reading. This permits Daikon to
    * continue even if there is a malformed trace file. Use this with care: in general, it is better
@@ -151,6 +168,47 @@ public final class FileIO {
    */
   public static boolean dkconfig_continue_after_file_exception = false;
 
+  /**
+   * Integer. If positive, samples are applied to program points by this many worker threads while
+   * the trace files are read, instead of by the thread that reads them. Each program point is
+   * processed by a single worker, so the resulting invariants are the same as with the default of
+   * 0, which processes every sample as soon as it is read. Some debugging statistics are only
+   * approximate when this is positive.
+   */
+  public static int dkconfig_inference_threads = 0;
+
+  /**
+   * Boolean. When true, the derived variables of a sample are computed only when the sample is
+   * applied to its program point, and only those whose values may still be used there: by an
+   * invariant, an equality set with other members, or the dynamic constants optimization. The
+   * others are treated as missing from the sample. This saves the time to compute derivations whose
+   * invariants have all been falsified. It is used only with the dataflow hierarchy, and not at
+   * program points with splitters. The resulting invariants are the same, but the recorded number
+   * of samples and values of an unused derived variable may be smaller.
+   */
+  public static boolean dkconfig_lazy_derived_variables = false;
+
+  /**
+   * Integer. If positive, an uncompressed textual trace file is memory-mapped and its samples are
+   * parsed by this many threads, while the thread that reads the file still processes the records
+   * in file order. If 0, trace files are read by a single thread.
+   */
+  public static int dkconfig_parse_threads = 0;
+
+  /**
+   * Integer. When {@link #dkconfig_parse_threads} is positive, the approximate size, in bytes, of
+   * the parts of a trace file that are given to one parsing thread at a time.
+   */
+  public static int dkconfig_parse_chunk_size = 1 << 20;
+
+  /**
+   * Boolean. If true, consecutive identical samples at a program point are applied to its
+   * invariants once, with a count, instead of once each. This gives the same invariants and is
+   * faster for traces that repeat samples, such as traces of loops, but it relies on every
+   * invariant accounting for the count that it is given.
+   */
+  public static boolean dkconfig_coalesce_samples = false;
+
   /**
    * Long integer. If non-zero, this value will be used as the number of lines in (each) dtrace file
    * input for the purposes of the progress display, and the counting of the lines in the file will
@@ -158,6 +216,14 @@ public final class FileIO {
    */
   public static long dkconfig_dtrace_line_count = 0;
 
+  /**
+   * Boolean. If true, .inv files are written in the indexed format of {@link BinaryInv}, from which
+   * a tool can read just the program points that it needs. Such a file is not gzip-compressed, even
+   * if its name ends in {@code .gz}, and older versions of Daikon cannot read it. If false, .inv
+   * files are written as a single serialized object.
+   */
+  public static boolean dkconfig_binary_inv = false;
+
   /** True if declaration records are in the new format -- that is, decl-version 2.0. */
   // Set by read_decl_version; by read_data_trace_record if the file is non-empty;
   // by read_serialized_pptmap; and by InvMap.readObject.
@@ -192,7 +258,7 @@ public final class FileIO {
   // For debugging purposes: printing out a modified trace file with
   // changed modbits.
   private static boolean to_write_nonce = false;
-  private static final String NONCE_HEADER = "this_invocation_nonce";
+  static final String NONCE_HEADER = "this_invocation_nonce";
   private static String nonce_value = "no nonce (yet)";
 
   // (This implementation as a public static variable is a bit unclean.)
@@ -683,7 +749,9 @@ public final class FileIO {
     }
 
     if (static_constant_value_string != null) {
-      static_constant_value = rep_type.parse_value(static_constant_value_string, file, filename);
+      synchronized (Intern.class) {
+        static_constant_value = rep_type.parse_value(static_constant_value_string, file, filename);
+      }
       // Why can't the value be null?
       assert static_constant_value != null;
     }
@@ -836,20 +904,94 @@ public final class FileIO {
   /// invocation tracking for dtrace files entry/exit grouping
   ///
 
-  static final class Invocation implements Comparable<Invocation> {
-    PptTopLevel ppt; // used in printing and in suppressing duplicates
+  public static final class Invocation implements Comparable<Invocation>, Serializable {
+    // We are Serializable, so we specify a version to allow changes to
+    // method signatures without breaking serialization.  If you add or
+    // remove fields, you should change this number to the current date.
+    static final long serialVersionUID = 20261019L;
+
+    public PptTopLevel ppt; // used in printing and in suppressing duplicates
     // Rather than a valuetuple, place its elements here.
-    @Nullable Object[] vals;
+    public @Nullable Object[] vals;
+    long @Nullable [] scalars;
     int[] mods;
 
     static Object canonical_hashcode = new Object();
 
-    Invocation(PptTopLevel ppt, @Nullable Object[] vals, int[] mods) {
+    public Invocation(PptTopLevel ppt, @Nullable Object[] vals, int[] mods) {
+      this(ppt, vals, null, mods);
+    }
+
+    /**
+     * Creates an Invocation whose values may be stored in scalars, as in a {@link ValueTuple}.
+     *
+     * @param ppt the program point of the entry
+     * @param vals the values
+     * @param scalars the values that stand for each {@link ValueTuple.Scalar} in vals, or null
+     * @param mods the modbits
+     */
+    public Invocation(
+        PptTopLevel ppt, @Nullable Object[] vals, long @Nullable [] scalars, int[] mods) {
       this.ppt = ppt;
       this.vals = vals;
+      this.scalars = scalars;
       this.mods = mods;
     }
 
+    /**
+     * Returns the value at index i, boxing and interning it if it is stored in scalars.
+     *
+     * @param i an index into vals
+     * @return the value at index i
+     */
+    @Nullable @Interned Object getValue(int i) {
+      Object val = vals[i];
+      if (val instanceof ValueTuple.Scalar) {
+        assert scalars != null : "@AssumeAssertion(nullness): dependent: vals contains a Scalar";
+        return (val == ValueTuple.Scalar.LONG)
+            ? SyncIntern.internedLong(scalars[i])
+            : SyncIntern.internedDouble(Double.longBitsToDouble(scalars[i]));
+      }
+      @SuppressWarnings("interning") // the values of an Invocation are interned
+      @Interned Object result = val;
+      return result;
+    }
+
+    /**
+     * Returns the values, with the values that are stored in scalars boxed. They are not interned.
+     *
+     * @return the values
+     */
+    private @Nullable Object[] values(@GuardSatisfied Invocation this) {
+      if (scalars == null) {
+        return vals;
+      }
+      @Nullable Object[] result = vals.clone();
+      for (int i = 0; i < result.length; i++) {
+        if (result[i] == ValueTuple.Scalar.LONG) {
+          result[i] = scalars[i];
+        } else if (result[i] == ValueTuple.Scalar.DOUBLE) {
+          result[i] = Double.longBitsToDouble(scalars[i]);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Interns the values, which are compared by identity once they are added to the exit's
+     * sample. Invocations are serialized only in checkpoints.
+     *
+     * @param in the stream from which to read the object
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      for (int i = 0; i < vals.length; i++) {
+        if (vals[i] != null && !(vals[i] instanceof ValueTuple.Scalar)) {
+          vals[i] = SyncIntern.internDeserialized(vals[i]);
+        }
+      }
+    }
+
     // Print the Invocation on two lines, indented by two spaces
     // The receiver Invocation may be canonicalized or not.
     String format(@GuardSatisfied Invocation this) {
@@ -872,12 +1014,13 @@ public final class FileIO {
       // [adonovan] is this sound? Let me know if not (sorry).
       // assert ppt.var_infos.length == vals.length;
 
-      for (int j = 0; j < vals.length; j++) {
+      @Nullable Object[] values = values();
+      for (int j = 0; j < values.length; j++) {
         if (j != 0) pw.print(", ");
 
         pw.print(ppt.var_infos[j].name() + "=");
 
-        Object val = vals[j];
+        Object val = values[j];
         if (canonical_hashcode.equals(
             val)) // succeeds only for canonicalized Invocations.  Can be an == test, but there is
           // little point.  val can be null, so it cannot be the receiver.
@@ -905,20 +1048,27 @@ public final class FileIO {
         }
       }
       @SuppressWarnings("interning:cast.unsafe.constructor.invocation")
-      @Interned Invocation result = new @Interned Invocation(ppt, new_vals, mods);
+      @Interned Invocation result = new @Interned Invocation(ppt, new_vals, scalars, mods);
       return result;
     }
 
-    // Return true if the invocations print the same
+    /**
+     * Returns true if the invocations are at the same program point and have equal values and
+     * modbits. Compares the values rather than their formatted forms, which are expensive to
+     * compute. In canonicalized invocations, every hashcode is {@link #canonical_hashcode}, so
+     * hashcodes do not distinguish them.
+     */
     @EnsuresNonNullIf(result = true, expression = "#1")
     @Pure
     @Override
     public boolean equals(@GuardSatisfied Invocation this, @GuardSatisfied @Nullable Object other) {
-      if (other instanceof FileIO.Invocation) {
-        return this.format().equals(((FileIO.Invocation) other).format());
-      } else {
+      if (!(other instanceof FileIO.Invocation)) {
         return false;
       }
+      Invocation that = (FileIO.Invocation) other;
+      return ppt == that.ppt
+          && Arrays.equals(mods, that.mods)
+          && Arrays.deepEquals(values(), that.values());
     }
 
     @Pure
@@ -930,7 +1080,8 @@ public final class FileIO {
     @Pure
     @Override
     public int hashCode(@GuardSatisfied Invocation this) {
-      return this.format().hashCode();
+      return (System.identityHashCode(ppt) * 31 + Arrays.hashCode(mods)) * 31
+          + Arrays.deepHashCode(values());
     }
   }
 
@@ -939,10 +1090,26 @@ public final class FileIO {
 
   // Map key is a (global, not per-procedure) nonce.
   // The nonce indicates which returns are associated with which entries.
-  static HashMap<Integer, Invocation> call_hashmap = new HashMap<>();
+  static InvocationTable call_hashmap = new InvocationTable();
   // call_stack is for procedures without nonces.
   static Deque<Invocation> call_stack = new ArrayDeque<Invocation>();
 
+  /**
+   * The worker threads to which {@link #process_sample} passes samples, or null if samples are
+   * processed by the reading thread. Non-null only while {@link
+   * #read_data_trace_files(Collection,PptMap,Processor,boolean)} runs with {@link
+   * #dkconfig_inference_threads} positive.
+   */
+  static @Nullable InferenceWorkers inference_workers = null;
+
+  /**
+   * Combines identical samples before {@link #process_sample} applies them, or null if every sample
+   * is applied as it is read. Non-null only while {@link
+   * #read_data_trace_files(Collection,PptMap,Processor,boolean)} runs with {@link
+   * #dkconfig_coalesce_samples} true.
+   */
+  static @Nullable SampleCoalescer coalescer = null;
+
   /**
    * Reads data from {@code .dtrace} files. For each record in the files, calls the appropriate
    * callback in the processor.
@@ -969,6 +1136,68 @@ public final class FileIO {
       Collection<String> files, PptMap all_ppts, Processor processor, boolean ppts_may_be_new)
       throws IOException {
 
+    if (dkconfig_inference_threads > 0 && !dkconfig_read_samples_only) {
+      inference_workers = new InferenceWorkers(dkconfig_inference_threads);
+    }
+    if (dkconfig_coalesce_samples && !dkconfig_read_samples_only) {
+      coalescer = new SampleCoalescer();
+    }
+    try {
+      read_data_trace_files_internal(files, all_ppts, processor, ppts_may_be_new);
+      if (inference_workers != null) {
+        inference_workers.finish();
+      }
+    } finally {
+      coalescer = null;
+      if (inference_workers != null) {
+        inference_workers.abandon();
+        inference_workers = null;
+      }
+    }
+    Checkpoint.write(all_ppts);
+
+    process_unmatched_procedure_entries();
+
+    print_converged_ppts(all_ppts);
+
+    warn_if_hierarchy_mismatch(all_ppts);
+  }
+
+  /**
+   * Prints the program points at which samples were skipped because their invariants had stopped
+   * changing.
+   *
+   * @param all_ppts the program points
+   * @see PptTopLevel#dkconfig_converged_samples
+   */
+  static void print_converged_ppts(PptMap all_ppts) {
+    if (PptTopLevel.dkconfig_converged_samples <= 0) {
+      return;
+    }
+    boolean printed_header = false;
+    for (PptTopLevel ppt : all_ppts.ppt_all_iterable()) {
+      long skipped = ppt.converged_skipped_samples();
+      if (skipped == 0) {
+        continue;
+      }
+      if (!printed_header) {
+        System.out.println();
+        System.out.println("Samples skipped at converged program points:");
+        printed_header = true;
+      }
+      System.out.printf(
+          "  %s : %d of %d samples%n", ppt.name(), skipped, skipped + ppt.num_samples());
+    }
+  }
+
+  /**
+   * Helper method for {@link #read_data_trace_files(Collection,PptMap,Processor,boolean)}. Reads
+   * each of the files, then (in server mode) any files that appear in the server directory.
+   */
+  private static void read_data_trace_files_internal(
+      Collection<String> files, PptMap all_ppts, Processor processor, boolean ppts_may_be_new)
+      throws IOException {
+
     for (String filename : files) {
       // System.out.printf("processing filename %s%n", filename);
       try {
@@ -987,6 +1216,9 @@ public final class FileIO {
           throw e;
         }
       }
+      if (coalescer != null) {
+        coalescer.flush();
+      }
     }
     if (Daikon.server_dir != null) {
       // Yoav: server mode
@@ -1014,6 +1246,9 @@ public final class FileIO {
               processor,
               false,
               ppts_may_be_new);
+          if (coalescer != null) {
+            coalescer.flush();
+          }
         }
         if (hasEnd) {
           break;
@@ -1025,10 +1260,6 @@ public final class FileIO {
         }
       }
     }
-
-    process_unmatched_procedure_entries();
-
-    warn_if_hierarchy_mismatch(all_ppts);
   }
 
   // Determine if dataflow hierarchy should have been used, and print
@@ -1230,12 +1461,32 @@ public final class FileIO {
     /** All of the ppts seen so far. */
     public PptMap all_ppts;
 
-    /** Input stream. */
+    /**
+     * Input stream. For a binary trace file, this reads the text of the current {@link
+     * BinaryDtrace#TEXT} record.
+     */
     public LineNumberReader reader;
 
+    /** Reads the records of a binary trace file, or null if the file is textual. */
+    BinaryDtrace.@Nullable Reader binary_reader = null;
+
     /** Total number of lines in the input file. */
     public long total_lines;
 
+    /** True if the input is standard input or a socket, rather than a file. */
+    boolean is_stream;
+
+    /**
+     * The number of samples read from the input so far. Maintained only if checkpoints are used.
+     */
+    long samples_read = 0;
+
+    /**
+     * The number of samples at the start of the input that were processed by the run of Daikon that
+     * wrote the checkpoint this run resumed from. They are read, but not processed again.
+     */
+    long samples_to_skip = 0;
+
     /** Comparability format, either VarComparability.IMPLICIT or VarComparability.NONE. */
     public int varcomp_format;
 
@@ -1259,6 +1510,9 @@ public final class FileIO {
     /** The current set of values. Used when status=SAMPLE. */
     public @Nullable ValueTuple vt;
 
+    /** The first line of the current sample, as it appears in the file. Used when status=SAMPLE. */
+    @Nullable String sample_header;
+
     /** Miscellaneous text in the parsed item. */
     public @Nullable Object payload; // used when status=COMMENT
 
@@ -1280,13 +1534,19 @@ public final class FileIO {
       is_decl_file = decl_file_p;
       this.ppts_may_be_new = ppts_may_be_new;
       all_ppts = ppts;
+      is_stream = raw_filename.equals("-") || raw_filename.equals("+");
 
       boolean is_url = raw_filename.startsWith("file:") || raw_filename.startsWith("jar:");
+      boolean is_binary =
+          !raw_filename.equals("-")
+              && !raw_filename.equals("+")
+              && !is_url
+              && BinaryDtrace.isBinaryFile(raw_filename);
 
       // Do we need to count the lines in the file?
       total_lines = 0;
       boolean count_lines = dkconfig_count_lines;
-      if (is_decl_file) {
+      if (is_decl_file || is_binary) {
         count_lines = false;
       } else if (dkconfig_dtrace_line_count != 0) {
         total_lines = dkconfig_dtrace_line_count;
@@ -1329,6 +1589,9 @@ public final class FileIO {
         } else {
           reader = new LineNumberReader(new InputStreamReader(stream, UTF_8));
         }
+      } else if (is_binary) {
+        binary_reader = new BinaryDtrace.Reader(raw_filename);
+        reader = new LineNumberReader(new StringReader(""));
       } else {
         reader = UtilPlume.lineNumberFileReader(raw_filename);
       }
@@ -1336,10 +1599,19 @@ public final class FileIO {
       varcomp_format = VarComparability.IMPLICIT;
       rtype = RecordType.NULL;
       ppt = null;
+      if (!is_stream) {
+        samples_to_skip = Checkpoint.samples_to_skip(filename);
+      }
     }
 
-    /** Returns the current line number in the input file, or -1 if not available. */
+    /**
+     * Returns the current line number in the input file, or -1 if not available. For a binary
+     * trace file, returns the number of records read so far.
+     */
     public int get_linenum() {
+      if (binary_reader != null) {
+        return (int) binary_reader.record_number;
+      }
       return reader.getLineNumber();
     }
 
@@ -1355,6 +1627,8 @@ public final class FileIO {
       String line;
       if (reader == null) {
         line = "?";
+      } else if (binary_reader != null) {
+        return "Reading " + filename + " (record " + binary_reader.record_number + ") ...";
       } else {
         long lineNum = reader.getLineNumber();
         line = String.valueOf(lineNum);
@@ -1368,6 +1642,9 @@ public final class FileIO {
     }
 
     public String line_file_message() {
+      if (binary_reader != null) {
+        return String.format(" at record %d in file %s", binary_reader.record_number, filename);
+      }
       return String.format(" at line %d in file %s", reader.getLineNumber(), filename);
     }
   }
@@ -1434,41 +1711,20 @@ public final class FileIO {
           new PrintWriter(Files.newBufferedWriter(new File(filename + ".debug").toPath(), UTF_8));
     }
 
-    while (true) {
-      read_data_trace_record(data_trace_state);
-
-      if (data_trace_state.rtype == RecordType.SAMPLE) {
-        assert data_trace_state.ppt != null
-            : "@AssumeAssertion(nullness): dependent: RecordType.SAMPLE";
-        assert data_trace_state.vt != null
-            : "@AssumeAssertion(nullness): dependent: RecordType.SAMPLE";
-        // Nonce may be null
-        samples_processed++;
-        // Add orig and derived variables; pass to inference (add_and_flow)
-        try {
-          processor.process_sample(
-              data_trace_state.all_ppts,
-              data_trace_state.ppt,
-              data_trace_state.vt,
-              data_trace_state.nonce);
-        } catch (Error e) {
-          // e.printStackTrace();
-          if (!dkconfig_continue_after_file_exception) {
-            throw new Daikon.UserError(e, data_trace_state);
-          } else {
-            System.out.println();
-            System.out.println(
-                "WARNING: Error while processing trace file; subsequent records ignored.");
-            System.out.print("Ignored backtrace:");
-            e.printStackTrace(System.out);
-            System.out.println();
-          }
+    if (MappedDtraceReader.can_read(filename, data_trace_state)) {
+      MappedDtraceReader.read(filename, data_trace_state, processor);
+    } else {
+      while (true) {
+        read_data_trace_record(data_trace_state);
+
+        if (data_trace_state.rtype == RecordType.SAMPLE) {
+          process_sample_record(data_trace_state, processor);
+        } else if ((data_trace_state.rtype == RecordType.EOF)
+            || (data_trace_state.rtype == RecordType.TRUNCATED)) {
+          break;
+        } else {
+          // don't need to do anything explicit for other records found
         }
-      } else if ((data_trace_state.rtype == RecordType.EOF)
-          || (data_trace_state.rtype == RecordType.TRUNCATED)) {
-        break;
-      } else {
-        // don't need to do anything explicit for other records found
       }
     }
 
@@ -1478,11 +1734,54 @@ public final class FileIO {
       Global.dtraceWriter.close();
     }
 
+    if (data_trace_state.binary_reader != null) {
+      data_trace_state.binary_reader.close();
+    }
+
     Daikon.progress = "Finished reading " + data_trace_state.filename;
 
     clear_data_trace_state();
   }
 
+  /**
+   * Passes the sample that was most recently read into state to the processor.
+   *
+   * @param state the parse state, whose record type is SAMPLE
+   * @param processor the processor
+   */
+  @RequiresNonNull("FileIO.data_trace_state")
+  static void process_sample_record(ParseState state, Processor processor) {
+    assert state.ppt != null : "@AssumeAssertion(nullness): dependent: RecordType.SAMPLE";
+    assert state.vt != null : "@AssumeAssertion(nullness): dependent: RecordType.SAMPLE";
+    // Nonce may be null
+    if (Checkpoint.enabled) {
+      state.samples_read++;
+      if (state.samples_read <= state.samples_to_skip) {
+        return;
+      }
+    }
+    samples_processed++;
+    // Add orig and derived variables; pass to inference (add_and_flow)
+    try {
+      processor.process_sample(state.all_ppts, state.ppt, state.vt, state.nonce);
+    } catch (Error e) {
+      // e.printStackTrace();
+      if (!dkconfig_continue_after_file_exception) {
+        throw new Daikon.UserError(e, state);
+      } else {
+        System.out.println();
+        System.out.println(
+            "WARNING: Error while processing trace file; subsequent records ignored.");
+        System.out.print("Ignored backtrace:");
+        e.printStackTrace(System.out);
+        System.out.println();
+      }
+    }
+    if (Checkpoint.enabled) {
+      Checkpoint.sample_read(state);
+    }
+  }
+
   /**
    * Like read_data_trace_record, but sets global FileIO.data_trace_state for the duration of the
    * call then clears it before returning. Intended for most external callers.
@@ -1509,6 +1808,36 @@ public final class FileIO {
     boolean stateOK = (state == FileIO.data_trace_state);
     assert stateOK;
 
+    BinaryDtrace.Reader binary_reader = state.binary_reader;
+    if (binary_reader == null) {
+      read_text_record(state);
+      return;
+    }
+
+    // A binary trace interleaves samples with chunks of text that contain the
+    // other records.  Finish the current chunk before reading the next record.
+    while (true) {
+      read_text_record(state);
+      if (state.rtype != RecordType.EOF) {
+        return;
+      }
+      if (!binary_reader.read_record(state)) {
+        state.rtype = RecordType.EOF;
+        return;
+      }
+      if (state.rtype == RecordType.SAMPLE) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Read a single record from the text of a dtrace file, as described at {@link
+   * #read_data_trace_record}.
+   */
+  @RequiresNonNull("FileIO.data_trace_state")
+  private static void read_text_record(ParseState state) throws IOException {
+
     LineNumberReader reader = state.reader;
 
     for (String line = reader.readLine(); line != null; line = reader.readLine()) {
@@ -1683,12 +2012,13 @@ public final class FileIO {
       }
 
       @Nullable Object[] vals = new @Nullable Object[vals_array_size];
+      long[] scalars = new long[vals_array_size];
       int[] mods = new int[vals_array_size];
 
       // Read a single record from the trace file;
-      // fills up vals and mods arrays by side effect.
+      // fills up vals, scalars, and mods arrays by side effect.
       try {
-        read_vals_and_mods_from_trace_file(reader, state.filename, ppt, vals, mods);
+        read_vals_and_mods_from_trace_file(reader, state.filename, ppt, vals, scalars, mods);
       } catch (IOException e) {
         String nextLine = reader.readLine();
         if ((e instanceof EOFException) || (nextLine == null)) {
@@ -1717,7 +2047,8 @@ public final class FileIO {
 
       state.ppt = ppt;
       state.nonce = nonce;
-      state.vt = ValueTuple.makeUninterned(vals, mods);
+      state.vt = ValueTuple.makeUninterned(vals, scalars, mods);
+      state.sample_header = line;
       state.rtype = RecordType.SAMPLE;
       return;
     }
@@ -1739,7 +2070,7 @@ public final class FileIO {
     // Add orig variables.  This must be above the check below because
     // it saves away the orig values from enter points for later use
     // by exit points.
-    boolean ignore = compute_orig_variables(ppt, vt.vals, vt.mods, nonce);
+    boolean ignore = compute_orig_variables(ppt, vt.vals, vt.scalars, vt.mods, nonce);
     if (ignore) {
       return;
     }
@@ -1774,11 +2105,33 @@ public final class FileIO {
       }
     }
 
-    // Add derived variables
-    compute_derived_variables(ppt, vt.vals, vt.mods);
+    if (coalescer != null) {
+      coalescer.before_derivation(ppt, vt);
+    }
+
+    // Interning is not thread-safe, and inference workers may intern values too.
+    synchronized (Intern.class) {
+      // The inference workers must not see a derivation go out of bounds before they apply this
+      // sample.
+      if (inference_workers != null) {
+        Derivation.defer_missing_array_bounds(inference_workers.out_of_bounds(ppt));
+      }
+      try {
+        // Add derived variables
+        if (defers_derived_variables(ppt)) {
+          clear_derived_variables(ppt, vt.vals, vt.mods);
+        } else {
+          compute_derived_variables(ppt, vt.vals, vt.scalars, vt.mods);
+        }
+      } finally {
+        if (inference_workers != null) {
+          Derivation.defer_missing_array_bounds(null);
+        }
+      }
 
-    // Causes interning
-    vt = new ValueTuple(vt.vals, vt.mods);
+      // Causes interning
+      vt = new ValueTuple(vt.vals, vt.scalars, vt.mods);
+    }
 
     if (debugRead.isLoggable(Level.FINE)) {
       debugRead.fine("Adding ValueTuple to " + ppt.name());
@@ -1790,11 +2143,11 @@ public final class FileIO {
       return;
     }
 
-    @SuppressWarnings({
-      "UnusedVariable",
-      "nullness:flowexpr.parse.error"
-    }) // https://tinyurl.com/cfissue/862
-    Object dummy = ppt.add_bottom_up(vt, 1);
+    if (coalescer != null) {
+      coalescer.add(ppt, vt);
+    } else {
+      apply_sample(ppt, vt, 1);
+    }
 
     if (debugVars.isLoggable(Level.FINE)) {
       debugVars.fine(ppt.name() + " vars: " + Debug.int_vars(ppt, vt));
@@ -1807,12 +2160,29 @@ public final class FileIO {
     }
   }
 
+  /**
+   * Applies a sample to a program point, or passes it to the inference workers if there are any.
+   *
+   * @param ppt the program point
+   * @param vt the sample values, including derived variables; interned
+   * @param count the number of samples that vt represents
+   */
+  static void apply_sample(PptTopLevel ppt, ValueTuple vt, int count) {
+    if (inference_workers != null) {
+      inference_workers.add(ppt, vt, count);
+    } else {
+      @SuppressWarnings({
+        "UnusedVariable",
+        "nullness:flowexpr.parse.error"
+      }) // https://tinyurl.com/cfissue/862
+      Object dummy = ppt.add_bottom_up(compute_needed_derived_variables(ppt, vt), count);
+    }
+  }
+
   /** Returns true if this procedure has an unmatched entry. */
   static boolean has_unmatched_procedure_entry(PptTopLevel ppt) {
-    for (Invocation invok : call_hashmap.values()) {
-      if (invok.ppt == ppt) {
-        return true;
-      }
+    if (call_hashmap.has_entry_for(ppt)) {
+      return true;
     }
     for (Invocation invok : call_stack) {
       if (invok.ppt == ppt) {
@@ -1831,7 +2201,7 @@ public final class FileIO {
 
     int unmatched_count = call_stack.size() + call_hashmap.size();
 
-    if (!call_stack.isEmpty() || !call_hashmap.isEmpty()) {
+    if (!call_stack.isEmpty() || !call_hashmap.isEmpty() || call_hashmap.discarded > 0) {
       System.out.println();
       System.out.print(
           "No return from procedure observed " + UtilPlume.nplural(unmatched_count, "time") + ".");
@@ -1841,12 +2211,7 @@ public final class FileIO {
       System.out.println();
       if (!call_hashmap.isEmpty()) {
         // Put the invocations in sorted order for printing.
-        ArrayList<Invocation> invocations = new ArrayList<>();
-        for (@KeyFor("call_hashmap") Integer i : CollectionsPlume.sortedKeySet(call_hashmap)) {
-          Invocation invok = call_hashmap.get(i);
-          assert invok != null;
-          invocations.add(invok);
-        }
+        List<Invocation> invocations = call_hashmap.sorted_invocations();
         System.out.println("Unterminated calls:");
         if (dkconfig_verbose_unmatched_procedure_entries) {
           print_invocations_verbose(invocations);
@@ -1866,6 +2231,12 @@ public final class FileIO {
           print_invocations_grouped(call_stack);
         }
       }
+      if (call_hashmap.discarded > 0) {
+        System.out.printf(
+            "%d older entries were discarded to keep at most %d in memory;"
+                + " %d exits from them were ignored.%n",
+            call_hashmap.discarded, dkconfig_max_unmatched_entries, call_hashmap.discarded_exits);
+      }
       System.out.print("End of report for procedures not returned from.");
       if (Daikon.use_dataflow_hierarchy) {
         System.out.print("  Unmatched entries are ignored!");
@@ -1883,24 +2254,28 @@ public final class FileIO {
 
   /** Print the invocations in the collection, in order, and coalescing duplicates. */
   static void print_invocations_grouped(Collection<Invocation> invocations) {
-    Map<@Interned String, Integer> counter = new LinkedHashMap<>();
-
-    for (Invocation invok_noncanonical : invocations) {
-      @Interned Invocation invok = invok_noncanonical.canonicalize();
-      String invokString = invok.format(false).intern();
-      if (counter.containsKey(invokString)) {
-        Integer oldCount = counter.get(invokString);
-        Integer newCount = oldCount.intValue() + 1;
-        counter.put(invokString, newCount);
-      } else {
-        counter.put(invokString, 1);
+    // Invocations are grouped by procedure, which is what format(false)
+    // prints.  The names are interned, so there is no need to canonicalize
+    // or format each invocation.
+    Map<@Interned String, int[]> counter = new LinkedHashMap<>();
+
+    for (Invocation invok : invocations) {
+      @Interned String name = invok.ppt.ppt_name.getNameWithoutPoint();
+      int[] count = counter.get(name);
+      if (count == null) {
+        count = new int[1];
+        counter.put(name, count);
       }
+      count[0]++;
     }
 
     // Print the invocations in sorted order.
-    for (Map.Entry<@Interned String, Integer> invokEntry : counter.entrySet()) {
+    for (Map.Entry<@Interned String, int[]> invokEntry : counter.entrySet()) {
       System.out.println(
-          invokEntry.getKey() + " : " + UtilPlume.nplural(invokEntry.getValue(), "invocation"));
+          "  "
+              + invokEntry.getKey()
+              + " : "
+              + UtilPlume.nplural(invokEntry.getValue()[0], "invocation"));
     }
   }
 
@@ -1913,6 +2288,7 @@ public final class FileIO {
       String filename,
       PptTopLevel ppt,
       @Nullable Object[] vals,
+      long[] scalars,
       int[] mods)
       throws IOException {
     VarInfo[] vis = ppt.var_infos;
@@ -2120,7 +2496,15 @@ public final class FileIO {
         // "(modIsMissing=" + ValueTuple.modIsMissing(mod) + ")");
 
         try {
-          vals[val_index] = vi.rep_type.parse_value(value_rep, reader, filename);
+          Object val =
+              vi.rep_type.parse_value(value_rep, reader, filename, false, scalars, val_index);
+          if (val != null && !(val instanceof ValueTuple.Scalar)) {
+            // Interning is not thread-safe; see process_sample.
+            synchronized (Intern.class) {
+              val = Intern.intern(val);
+            }
+          }
+          vals[val_index] = val;
           if (vals[val_index] == null) {
             if (debug_missing && !vi.canBeMissing) {
               System.out.printf(
@@ -2195,6 +2579,7 @@ public final class FileIO {
       PptTopLevel ppt,
       // HashMap cumulative_modbits,
       @Nullable Object[] vals,
+      long @Nullable [] scalars,
       int[] mods,
       @Nullable Integer nonce) {
     assert data_trace_state != null;
@@ -2203,7 +2588,7 @@ public final class FileIO {
     @Interned String fn_name = ppt.ppt_name.getNameWithoutPoint();
     String ppt_name = ppt.name();
     if (ppt_name.endsWith(enter_tag)) {
-      Invocation invok = new Invocation(ppt, vals, mods);
+      Invocation invok = new Invocation(ppt, vals, scalars, mods);
       if (nonce == null) {
         call_stack.push(invok);
       } else {
@@ -2241,8 +2626,9 @@ public final class FileIO {
           }
         } else {
           // nonce != null
-          if (!call_hashmap.containsKey(nonce)) {
-            if (dkconfig_ignore_missing_enter) {
+          @Nullable Invocation entry = call_hashmap.remove(nonce);
+          if (entry == null) {
+            if (dkconfig_ignore_missing_enter || call_hashmap.missing_entry_discarded(nonce)) {
               // System.out.printf("Didn't find call with nonce %d to match %s" +
               //                   " ending at %s line %d%n", nonce, ppt.name(),
               //                   data_trace_state.filename,
@@ -2260,8 +2646,7 @@ public final class FileIO {
                       data_trace_state.reader.getLineNumber()));
             }
           }
-          invoc = call_hashmap.get(nonce);
-          call_hashmap.remove(nonce);
+          invoc = entry;
         }
       }
 
@@ -2280,7 +2665,18 @@ public final class FileIO {
         while (invoc.ppt.var_infos[vi_index].is_static_constant) vi_index++;
 
         // Copy the vals and mod bits from entry to exit
-        vals[ppt.num_tracevars + val_index] = invoc.vals[val_index];
+        Object val = invoc.vals[val_index];
+        if (val instanceof ValueTuple.Scalar) {
+          if (scalars == null) {
+            // The exit has no scalars of its own.
+            val = invoc.getValue(val_index);
+          } else {
+            assert invoc.scalars != null
+                : "@AssumeAssertion(nullness): dependent: vals contains a Scalar";
+            scalars[ppt.num_tracevars + val_index] = invoc.scalars[val_index];
+          }
+        }
+        vals[ppt.num_tracevars + val_index] = val;
         int mod = invoc.mods[val_index];
         mods[ppt.num_tracevars + val_index] = mod;
 
@@ -2305,10 +2701,10 @@ public final class FileIO {
 
   /** Computes values of derived variables. */
   public static void compute_derived_variables(
-      PptTopLevel ppt, @Nullable Object[] vals, int[] mods) {
+      PptTopLevel ppt, @Nullable Object[] vals, long @Nullable [] scalars, int[] mods) {
     // This ValueTuple is temporary:  we're temporarily suppressing interning,
     // which we will do after we have all the values available.
-    ValueTuple partial_vt = ValueTuple.makeUninterned(vals, mods);
+    ValueTuple partial_vt = ValueTuple.makeUninterned(vals, scalars, mods);
     int filled_slots = ppt.num_orig_vars + ppt.num_tracevars + ppt.num_static_constant_vars;
     for (int i = 0; i < filled_slots; i++) {
       assert !ppt.var_infos[i].isDerived();
@@ -2324,6 +2720,73 @@ public final class FileIO {
     }
   }
 
+  /**
+   * Returns true if the derived variables of the samples of the given program point are computed
+   * when the samples are applied, by {@link #compute_needed_derived_variables}.
+   *
+   * @param ppt a program point
+   * @return true if the derived variables of ppt's samples are computed lazily
+   * @see #dkconfig_lazy_derived_variables
+   */
+  static boolean defers_derived_variables(PptTopLevel ppt) {
+    return dkconfig_lazy_derived_variables
+        && Daikon.use_dataflow_hierarchy
+        && !ppt.has_splitters();
+  }
+
+  /**
+   * Marks the derived variables of a sample as missing, until {@link
+   * #compute_needed_derived_variables} computes them.
+   *
+   * @param ppt the program point of the sample
+   * @param vals the values of the sample; modified by side effect
+   * @param mods the modbits of the sample; modified by side effect
+   */
+  static void clear_derived_variables(PptTopLevel ppt, @Nullable Object[] vals, int[] mods) {
+    int filled_slots = ppt.num_orig_vars + ppt.num_tracevars + ppt.num_static_constant_vars;
+    int num_const = ppt.num_static_constant_vars;
+    for (int i = filled_slots; i < ppt.var_infos.length; i++) {
+      vals[i - num_const] = null;
+      mods[i - num_const] = ValueTuple.MISSING_FLOW;
+    }
+  }
+
+  /**
+   * Computes the derived variables of a sample whose derivation was deferred, if ppt still needs
+   * their values. Called just before the sample is applied to ppt.
+   *
+   * @param ppt the program point of the sample
+   * @param vt the sample; its derived variables are missing if their derivation was deferred. It is
+   *     not modified: its arrays are interned, and may be shared with other samples.
+   * @return a copy of the sample, with the needed derived variables computed
+   * @see PptTopLevel#needed_vars
+   */
+  static ValueTuple compute_needed_derived_variables(PptTopLevel ppt, ValueTuple vt) {
+    if (!defers_derived_variables(ppt)) {
+      return vt;
+    }
+    boolean[] needed = ppt.needed_vars();
+    @Nullable Object[] vals = Arrays.copyOf(vt.vals, vt.vals.length);
+    int[] mods = Arrays.copyOf(vt.mods, vt.mods.length);
+    ValueTuple partial_vt = ValueTuple.makeUninterned(vals, vt.scalars, mods);
+    int filled_slots = ppt.num_orig_vars + ppt.num_tracevars + ppt.num_static_constant_vars;
+    int num_const = ppt.num_static_constant_vars;
+    // Derivations intern their values, and so may other threads.
+    synchronized (Intern.class) {
+      for (int i = filled_slots; i < ppt.var_infos.length; i++) {
+        if (!needed[i]) {
+          continue;
+        }
+        VarInfo vi = ppt.var_infos[i];
+        assert vi.derived != null : "@AssumeAssertion(nullness): application invariant";
+        ValueAndModified vm = vi.derived.computeValueAndModified(partial_vt);
+        vals[i - num_const] = vm.value;
+        mods[i - num_const] = vm.modified;
+      }
+    }
+    return new ValueTuple(vals, vt.scalars, mods);
+  }
+
   ///////////////////////////////////////////////////////////////////////////
   /// Serialized PptMap files
   ///
@@ -2352,6 +2815,10 @@ public final class FileIO {
   }
 
   public static void write_serialized_pptmap(PptMap map, File file) throws IOException {
+    if (dkconfig_binary_inv) {
+      BinaryInv.write(map, Configuration.getInstance(), file);
+      return;
+    }
     SerialFormat record = new SerialFormat(map, Configuration.getInstance());
     UtilPlume.writeObject(record, file);
   }
@@ -2363,6 +2830,32 @@ public final class FileIO {
   @EnsuresNonNull("FileIO.new_decl_format")
   public static PptMap read_serialized_pptmap(File file, boolean use_saved_config)
       throws IOException {
+    return read_serialized_pptmap(file, use_saved_config, null);
+  }
+
+  /**
+   * Like {@link #read_serialized_pptmap(File, boolean)}, but if ppt_regexp is non-null and the
+   * file is in the {@link BinaryInv} format, reads only the program points whose names match
+   * ppt_regexp, plus those stored with them. The result may contain program points that do not
+   * match, so callers must still filter them.
+   */
+  @EnsuresNonNull("FileIO.new_decl_format")
+  public static PptMap read_serialized_pptmap(
+      File file, boolean use_saved_config, @Nullable Pattern ppt_regexp) throws IOException {
+
+    if (BinaryInv.isBinaryFile(file)) {
+      try (BinaryInv.Reader reader = new BinaryInv.Reader(file)) {
+        if (use_saved_config) {
+          Configuration.getInstance().overlap(reader.config());
+        }
+        Boolean saved_decl_format = reader.new_decl_format();
+        FileIO.new_decl_format = (saved_decl_format != null) && saved_decl_format;
+        return (ppt_regexp == null) ? reader.read_all() : reader.read_matching(ppt_regexp);
+      } catch (InvalidClassException e) {
+        throw new IOException(
+            "It is likely that the .inv file format has changed, because a Daikon data structure has been modified, so your old .inv file is no longer readable by Daikon.  Please regenerate your .inv file.");
+      }
+    }
 
     try {
       Object obj = UtilPlume.readObject(file);
@@ -2482,7 +2975,7 @@ public final class FileIO {
    * Converts the declaration record version of a name into its correct version. In the declaration
    * record, blanks are encoded as \_ and backslashes as \\.
    */
-  private static String unescape_decl(String orig) {
+  static String unescape_decl(String orig) {
     StringBuilder sb = new StringBuilder(orig.length());
     // The previous escape character was seen just before this position.
     int post_esc = 0;
@@ -2839,7 +3332,9 @@ public final class FileIO {
       @Interned String constant_str = need(scanner, "constant value");
       need_eol(scanner);
       try {
-        static_constant_value = rep_type.parse_value(constant_str, null, "parse_constant");
+        synchronized (Intern.class) {
+          static_constant_value = rep_type.parse_value(constant_str, null, "parse_constant");
+        }
       } catch (Error e) {
         decl_error(state, e);
       }
@@ -0,0 +1,83 @@
+package daikon;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges the invariants of the program point hierarchy on several threads. Used by {@link
+ * Daikon#createUpperPpts} when {@link Daikon#dkconfig_merge_threads} is positive.
+ *
+ * <p>{@link PptTopLevel#mergeInvs} reads and modifies the program point being merged, its
+ * children, and its grandchildren (and their conditional program points), and nothing else that
+ * another merge modifies. The merger finds the order in which the sequential, recursive {@code
+ * mergeInvs} calls would merge the program points, and {@link PptLevels} runs the merges that do
+ * not depend on each other concurrently. The resulting invariants are the same as when the merges
+ * are done by a single thread.
+ */
+final class HierarchyMerger {
+
+  /** Do not instantiate. */
+  private HierarchyMerger() {
+    throw new Error("do not instantiate");
+  }
+
+  /**
+   * Merges the invariants of every program point that has children, as {@link
+   * Daikon#createUpperPpts} does.
+   *
+   * @param all_ppts the program points
+   * @param num_threads the number of threads on which to merge
+   */
+  static void merge(PptMap all_ppts, int num_threads) {
+
+    // The program points in the order in which mergeInvs would merge them.
+    List<PptTopLevel> order = new ArrayList<>();
+    Set<PptTopLevel> visited = new LinkedHashSet<>();
+    for (PptTopLevel ppt : all_ppts.pptIterable()) {
+      if (ppt.parents.size() == 0) {
+        add_merge_order(ppt, visited, order);
+      }
+    }
+
+    PptLevels.run(order, HierarchyMerger::touched, PptTopLevel::mergeInvs, num_threads);
+  }
+
+  /**
+   * Adds to order the program points that {@code ppt.mergeInvs()} would merge, in the order in
+   * which it would merge them.
+   *
+   * @param ppt the program point to merge
+   * @param visited the program points whose merge has already been started; updated
+   * @param order the merge order; updated
+   */
+  private static void add_merge_order(
+      PptTopLevel ppt, Set<PptTopLevel> visited, List<PptTopLevel> order) {
+    if (ppt.children.size() == 0 || ppt.invariants_merged || !visited.add(ppt)) {
+      return;
+    }
+    for (PptRelation rel : ppt.children) {
+      add_merge_order(rel.child, visited, order);
+    }
+    order.add(ppt);
+  }
+
+  /**
+   * Returns the program points that merging ppt may read or modify.
+   *
+   * @param ppt a program point with children
+   * @return ppt, its children, and its grandchildren
+   */
+  private static Set<PptTopLevel> touched(PptTopLevel ppt) {
+    Set<PptTopLevel> result = new LinkedHashSet<>();
+    result.add(ppt);
+    for (PptRelation rel : ppt.children) {
+      result.add(rel.child);
+      for (PptRelation grandchild_rel : rel.child.children) {
+        result.add(grandchild_rel.child);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,366 @@
+package daikon;
+
+import daikon.derive.Derivation;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Applies samples to program points on a fixed set of worker threads, so that the trace file reader
+ * only parses records. Used when {@link FileIO#dkconfig_inference_threads} is positive.
+ *
+ * <p>Each program point is assigned to a single worker the first time it is seen, and the worker
+ * applies its samples in the order in which they were read. Program points are independent of each
+ * other while samples are processed, so the resulting invariants are the same as when the samples
+ * are processed sequentially. The one exception is a numbered exit point when the dataflow
+ * hierarchy is not used: its samples are also applied to the combined exit point, so all of the
+ * exit points of a procedure are assigned to the same worker.
+ *
+ * <p>The reader computes the derived variables of a sample before the sample is queued. A
+ * derivation that goes out of bounds (see {@link Derivation#missingOutOfBounds}) affects how later
+ * samples are applied, so the reader does not set the flag itself: it passes the derivation with
+ * the next sample of its program point, and the worker sets the flag before applying that sample.
+ *
+ * <p>Only one thread (the reader) may call {@link #add}, {@link #await_applied}, and {@link
+ * #finish}.
+ */
+final class InferenceWorkers {
+
+  /** Debug tracer. */
+  public static final Logger debug = Logger.getLogger("daikon.InferenceWorkers");
+
+  /** Number of samples that can be queued for each worker before the reader blocks. */
+  static final int QUEUE_SIZE = 1024;
+
+  /** A sample waiting to be applied to a program point. */
+  private static final class Sample {
+    /** The program point. */
+    final PptTopLevel ppt;
+
+    /** The sample values, including derived variables. */
+    final ValueTuple vt;
+
+    /** The number of samples that vt represents. */
+    final int count;
+
+    /** The combined exit point to which the sample is also applied, if any. */
+    final @Nullable PptTopLevel parent;
+
+    /** The derivations of ppt that went out of bounds since its previous sample, if any. */
+    final Derivation @Nullable [] out_of_bounds;
+
+    /**
+     * If non-null, this is not a sample: the worker counts down the latch when it reaches this
+     * element of its queue.
+     */
+    final @Nullable CountDownLatch barrier;
+
+    /**
+     * Creates a new Sample.
+     *
+     * @param ppt the program point
+     * @param vt the sample values
+     * @param count the number of samples that vt represents
+     * @param parent the combined exit point, if any
+     * @param out_of_bounds the derivations that went out of bounds since the previous sample
+     */
+    Sample(
+        PptTopLevel ppt,
+        ValueTuple vt,
+        int count,
+        @Nullable PptTopLevel parent,
+        Derivation @Nullable [] out_of_bounds) {
+      this.ppt = ppt;
+      this.vt = vt;
+      this.count = count;
+      this.parent = parent;
+      this.out_of_bounds = out_of_bounds;
+      this.barrier = null;
+    }
+
+    /**
+     * Creates a barrier.
+     *
+     * @param barrier the latch to count down
+     */
+    @SuppressWarnings("nullness") // the other fields of a barrier are never dereferenced
+    Sample(CountDownLatch barrier) {
+      this.ppt = null;
+      this.vt = null;
+      this.count = 0;
+      this.parent = null;
+      this.out_of_bounds = null;
+      this.barrier = barrier;
+    }
+  }
+
+  /** Marks the end of the samples for a worker. */
+  @SuppressWarnings("nullness") // never dereferenced
+  private static final Sample END = new Sample(null, null, 0, null, null);
+
+  /** A thread that applies the samples in its queue. */
+  private final class Worker extends Thread {
+
+    /** The samples to be processed by this worker. */
+    final BlockingQueue<Sample> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    /**
+     * Creates a new worker.
+     *
+     * @param id used to name the thread
+     */
+    Worker(int id) {
+      super("daikon-inference-" + id);
+      setDaemon(true);
+    }
+
+    @Override
+    // NIS is initialized before any samples are read
+    @SuppressWarnings("nullness:contracts.precondition.not.satisfied")
+    public void run() {
+      while (true) {
+        Sample sample;
+        try {
+          sample = queue.take();
+        } catch (InterruptedException e) {
+          failed(e);
+          return;
+        }
+        if (sample == END) {
+          return;
+        }
+        if (sample.barrier != null) {
+          sample.barrier.countDown();
+          continue;
+        }
+        if (abandoned) {
+          continue;
+        }
+        try {
+          if (sample.out_of_bounds != null) {
+            for (Derivation d : sample.out_of_bounds) {
+              d.missing_array_bounds = true;
+            }
+          }
+          @SuppressWarnings("UnusedVariable")
+          Object dummy =
+              sample.ppt.add_bottom_up(
+                  FileIO.compute_needed_derived_variables(sample.ppt, sample.vt),
+                  sample.count,
+                  sample.parent);
+        } catch (Throwable e) {
+          failed(e);
+        }
+      }
+    }
+  }
+
+  /** The worker threads. */
+  private final Worker[] workers;
+
+  /**
+   * Map from the name of a program point (or, for a numbered exit point whose samples also go to
+   * the combined exit point, the name of the combined exit point) to the worker it is assigned to.
+   */
+  private final Map<String, Worker> owners = new HashMap<>();
+
+  /**
+   * Map from a program point to the derivations that went out of bounds while the reader computed
+   * the derived variables of its samples that have not been queued yet. Only used by the reader.
+   */
+  private final Map<PptTopLevel, List<Derivation>> out_of_bounds = new HashMap<>();
+
+  /** The worker to which the next new program point is assigned. */
+  private int next_worker = 0;
+
+  /** The first exception thrown by a worker that has not yet been reported to the reader. */
+  private final AtomicReference<@Nullable Throwable> failure = new AtomicReference<>();
+
+  /** If true, the workers discard the remaining samples. */
+  private volatile boolean abandoned = false;
+
+  /** True once the workers have been stopped. */
+  private boolean stopped = false;
+
+  /**
+   * Creates and starts the worker threads.
+   *
+   * @param num_threads the number of worker threads
+   */
+  InferenceWorkers(int num_threads) {
+    assert num_threads > 0;
+    workers = new Worker[num_threads];
+    for (int i = 0; i < num_threads; i++) {
+      workers[i] = new Worker(i);
+      workers[i].start();
+    }
+    debug.fine("started " + num_threads + " inference workers");
+  }
+
+  /**
+   * Queues a sample to be applied to ppt by the worker that ppt is assigned to. Blocks if that
+   * worker's queue is full. If a worker has failed since the last call, rethrows its exception.
+   *
+   * @param ppt the program point
+   * @param vt the sample values, including derived variables
+   * @param count the number of samples that vt represents
+   */
+  void add(PptTopLevel ppt, ValueTuple vt, int count) {
+    report_failure();
+
+    PptTopLevel parent = ppt.combined_exit_parent();
+    String owner_name = ppt.name();
+    if (!Daikon.use_dataflow_hierarchy && ppt.ppt_name.isNumberedExitPoint()) {
+      owner_name = ppt.ppt_name.makeExit().name();
+    }
+    Worker worker = owners.get(owner_name);
+    if (worker == null) {
+      worker = workers[next_worker];
+      next_worker = (next_worker + 1) % workers.length;
+      owners.put(owner_name, worker);
+    }
+    List<Derivation> ppt_out_of_bounds = out_of_bounds.get(ppt);
+    Derivation[] sample_out_of_bounds = null;
+    if (ppt_out_of_bounds != null && !ppt_out_of_bounds.isEmpty()) {
+      sample_out_of_bounds = ppt_out_of_bounds.toArray(new Derivation[0]);
+      ppt_out_of_bounds.clear();
+    }
+    put(worker, new Sample(ppt, vt, count, parent, sample_out_of_bounds));
+  }
+
+  /**
+   * Returns the list to which the reader adds the derivations of ppt that go out of bounds while it
+   * computes the derived variables of a sample. See {@link Derivation#defer_missing_array_bounds}.
+   *
+   * @param ppt the program point whose sample is being read
+   * @return the list of derivations of ppt that went out of bounds and are not yet passed to a
+   *     worker
+   */
+  List<Derivation> out_of_bounds(PptTopLevel ppt) {
+    List<Derivation> result = out_of_bounds.get(ppt);
+    if (result == null) {
+      result = new ArrayList<>();
+      out_of_bounds.put(ppt, result);
+    }
+    return result;
+  }
+
+  /**
+   * Sets the flags of the derivations that went out of bounds in samples that were not queued. Only
+   * called while the workers are idle.
+   */
+  private void set_out_of_bounds() {
+    for (List<Derivation> derivations : out_of_bounds.values()) {
+      for (Derivation d : derivations) {
+        d.missing_array_bounds = true;
+      }
+      derivations.clear();
+    }
+  }
+
+  /**
+   * Waits for the workers to apply all of the samples queued so far. Rethrows the exception of any
+   * worker that failed.
+   */
+  void await_applied() {
+    if (stopped) {
+      return;
+    }
+    CountDownLatch latch = new CountDownLatch(workers.length);
+    Sample barrier = new Sample(latch);
+    for (Worker worker : workers) {
+      put(worker, barrier);
+    }
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new Error("interrupted while waiting for inference workers", e);
+    }
+    set_out_of_bounds();
+    report_failure();
+  }
+
+  /**
+   * Waits for the workers to apply all of the queued samples, then stops them. Rethrows the
+   * exception of any worker that failed.
+   */
+  void finish() {
+    stop();
+    set_out_of_bounds();
+    report_failure();
+  }
+
+  /**
+   * Stops the workers, discarding any samples that have not been applied yet. Exceptions thrown by
+   * the workers are ignored. Does nothing if the workers have already been stopped.
+   */
+  void abandon() {
+    abandoned = true;
+    stop();
+  }
+
+  /** Sends the end marker to each worker and waits for them to terminate. */
+  private void stop() {
+    if (stopped) {
+      return;
+    }
+    stopped = true;
+    for (Worker worker : workers) {
+      put(worker, END);
+    }
+    for (Worker worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        throw new Error("interrupted while waiting for inference workers", e);
+      }
+    }
+    debug.fine("stopped inference workers");
+  }
+
+  /**
+   * Adds a sample to the queue of a worker, waiting for space if necessary.
+   *
+   * @param worker the worker
+   * @param sample the sample
+   */
+  private static void put(Worker worker, Sample sample) {
+    try {
+      worker.queue.put(sample);
+    } catch (InterruptedException e) {
+      throw new Error("interrupted while queueing sample", e);
+    }
+  }
+
+  /**
+   * Records an exception thrown by a worker. Only the first exception is kept until it is
+   * reported.
+   *
+   * @param e the exception
+   */
+  private void failed(Throwable e) {
+    failure.compareAndSet(null, e);
+  }
+
+  /** If a worker has failed, clears the failure and rethrows its exception on this thread. */
+  private void report_failure() {
+    Throwable e = failure.getAndSet(null);
+    if (e == null) {
+      return;
+    }
+    if (e instanceof Error) {
+      throw (Error) e;
+    } else if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    } else {
+      throw new Error(e);
+    }
+  }
+}
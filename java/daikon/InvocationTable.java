@@ -0,0 +1,705 @@
+package daikon;
+
+import daikon.FileIO.Invocation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * The procedure entries that have nonces and have not yet been matched with an exit, indexed by
+ * nonce. Used by {@link FileIO} in place of a {@code HashMap<Integer, Invocation>}.
+ *
+ * <p>The nonces are stored unboxed, in an open-addressing hash table. If {@link
+ * FileIO#dkconfig_max_unmatched_entries} is positive, at most that many entries are kept in
+ * memory: when there would be more, the oldest is discarded, or, if {@link
+ * FileIO#dkconfig_spill_unmatched_entries} is true, its values are written to a temporary file
+ * from which they are read back if its exit appears. A spilled entry keeps only its nonce, its
+ * program point, and its offset in the file in memory.
+ *
+ * <p>The nonces of discarded entries are remembered, so that their exits can be ignored while an
+ * exit without an entry is still reported as an error. At most {@link #MAX_DISCARDED_NONCES} of
+ * them are remembered exactly; beyond that, only the range of the forgotten ones is.
+ */
+public final class InvocationTable implements Serializable {
+  // We are Serializable, so we specify a version to allow changes to
+  // method signatures without breaking serialization.  If you add or
+  // remove fields, you should change this number to the current date.
+  static final long serialVersionUID = 20261018L;
+
+  /** The number of nonces of discarded entries that are remembered exactly. */
+  public static final int MAX_DISCARDED_NONCES = 1 << 20;
+
+  /** The state of an empty slot. */
+  private static final byte EMPTY = 0;
+
+  /** The state of a slot whose entry is in memory. */
+  private static final byte LIVE = 1;
+
+  /** The state of a slot whose entry has been written to the spill file. */
+  private static final byte SPILLED = 2;
+
+  /** The state of each slot: EMPTY, LIVE, or SPILLED. */
+  private byte[] states;
+
+  /** The nonce of each non-empty slot. */
+  private int[] keys;
+
+  /** The program point of the entry in each non-empty slot. */
+  private @Nullable PptTopLevel[] ppts;
+
+  /** The entry in each LIVE slot; null in the other slots. */
+  private @Nullable Invocation[] invocations;
+
+  /**
+   * For a LIVE slot, the sequence number of the entry, which orders entries by age. For a SPILLED
+   * slot, the offset of its values in the spill file.
+   */
+  private long[] seqs;
+
+  /** The number of non-empty slots. */
+  private int size = 0;
+
+  /** The number of LIVE slots. */
+  private int live = 0;
+
+  /** The sequence number of the next entry. */
+  private long next_seq = 0;
+
+  /**
+   * The nonces and sequence numbers of the LIVE entries, oldest first, in fifo_keys and fifo_seqs
+   * from fifo_start (inclusive) to fifo_end (exclusive). An element whose entry has been removed
+   * or spilled is skipped when it is reached.
+   */
+  private int[] fifo_keys = new int[16];
+
+  /** The sequence numbers that correspond to fifo_keys. */
+  private long[] fifo_seqs = new long[16];
+
+  /** The index of the oldest element of the fifo. */
+  private int fifo_start = 0;
+
+  /** The index just past the newest element of the fifo. */
+  private int fifo_end = 0;
+
+  /** The number of entries that were discarded, without being spilled, to bound the table. */
+  public long discarded = 0;
+
+  /** The number of entries that were written to the spill file. */
+  public long spilled = 0;
+
+  /** The number of exits that were ignored because their entries had been discarded. */
+  public long discarded_exits = 0;
+
+  /** The nonces of discarded entries, since the last time the set was full. */
+  private NonceSet discarded_nonces = new NonceSet();
+
+  /**
+   * The smallest nonce of a discarded entry that is no longer in {@link #discarded_nonces}, or
+   * Integer.MAX_VALUE if there is none.
+   */
+  private int forgotten_min = Integer.MAX_VALUE;
+
+  /**
+   * The largest nonce of a discarded entry that is no longer in {@link #discarded_nonces}, or
+   * Integer.MIN_VALUE if there is none.
+   */
+  private int forgotten_max = Integer.MIN_VALUE;
+
+  /** The file to which entries are spilled, or null if none have been spilled. */
+  private transient @Nullable RandomAccessFile spill_file = null;
+
+  /** Creates an empty table. */
+  public InvocationTable() {
+    allocate(16);
+  }
+
+  /**
+   * Allocates empty slots.
+   *
+   * @param capacity the number of slots; a power of 2
+   */
+  private void allocate(int capacity) {
+    states = new byte[capacity];
+    keys = new int[capacity];
+    ppts = new @Nullable PptTopLevel[capacity];
+    invocations = new @Nullable Invocation[capacity];
+    seqs = new long[capacity];
+  }
+
+  /**
+   * Returns the number of entries, including spilled ones.
+   *
+   * @return the number of entries
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns true if there are no entries.
+   *
+   * @return true if there are no entries
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the home slot of a nonce in a table with the given number of slots: the slot at which
+   * its probe sequence starts. Uses the high bits of the product, which are the best mixed, as many
+   * as the table needs.
+   *
+   * @param nonce a nonce
+   * @param capacity the number of slots; a power of 2
+   * @return the index of the home slot of nonce
+   */
+  static int home(int nonce, int capacity) {
+    // For a capacity of 2^k, the shift is 32 - k.  Capacities are at least 16.
+    return (nonce * 0x9E3779B9) >>> (Integer.numberOfLeadingZeros(capacity) + 1);
+  }
+
+  /**
+   * Returns the index of the slot for the given nonce: the slot that contains it, or the empty slot
+   * at which it would be added.
+   *
+   * @param nonce a nonce
+   * @return the index of the slot for nonce
+   */
+  private int slot(int nonce) {
+    int mask = keys.length - 1;
+    int i = home(nonce, keys.length);
+    while (states[i] != EMPTY && keys[i] != nonce) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /**
+   * Returns true if there is an entry with the given nonce.
+   *
+   * @param nonce a nonce
+   * @return true if there is an entry with the nonce
+   */
+  public boolean containsKey(int nonce) {
+    return states[slot(nonce)] != EMPTY;
+  }
+
+  /**
+   * Adds an entry, replacing any entry with the same nonce. Discards or spills the oldest entry if
+   * the table would otherwise hold more than {@link FileIO#dkconfig_max_unmatched_entries} entries
+   * in memory.
+   *
+   * @param nonce the nonce of the entry
+   * @param invocation the entry
+   */
+  public void put(int nonce, Invocation invocation) {
+    int i = slot(nonce);
+    if (states[i] == EMPTY) {
+      size++;
+      if (2 * size > keys.length) {
+        rehash(2 * keys.length);
+        i = slot(nonce);
+      }
+    } else if (states[i] == LIVE) {
+      live--;
+    }
+    states[i] = LIVE;
+    keys[i] = nonce;
+    ppts[i] = invocation.ppt;
+    invocations[i] = invocation;
+    seqs[i] = next_seq;
+    live++;
+    fifo_add(nonce, next_seq);
+    next_seq++;
+
+    int max = FileIO.dkconfig_max_unmatched_entries;
+    if (max > 0) {
+      while (live > max) {
+        evict_oldest();
+      }
+    }
+  }
+
+  /**
+   * Removes and returns the entry with the given nonce, reading it back from the spill file if it
+   * was spilled.
+   *
+   * @param nonce a nonce
+   * @return the entry with the nonce, or null if there is none
+   */
+  public @Nullable Invocation remove(int nonce) {
+    int i = slot(nonce);
+    if (states[i] == EMPTY) {
+      return null;
+    }
+    Invocation result;
+    if (states[i] == LIVE) {
+      result = invocations[i];
+      live--;
+    } else {
+      @SuppressWarnings("nullness") // non-empty slots have a ppt
+      PptTopLevel ppt = ppts[i];
+      result = read_spilled(ppt, seqs[i]);
+    }
+    delete_slot(i);
+    size--;
+    return result;
+  }
+
+  /**
+   * Empties slot i, and moves later entries of its probe sequence back so that they can still be
+   * found.
+   *
+   * @param i the index of a non-empty slot
+   */
+  private void delete_slot(int i) {
+    int mask = keys.length - 1;
+    int hole = i;
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (states[j] == EMPTY) {
+        break;
+      }
+      int home = home(keys[j], keys.length);
+      // Move the entry at j into the hole unless its home is cyclically in (hole, j].
+      boolean stays = (hole <= j) ? (hole < home && home <= j) : (hole < home || home <= j);
+      if (!stays) {
+        states[hole] = states[j];
+        keys[hole] = keys[j];
+        ppts[hole] = ppts[j];
+        invocations[hole] = invocations[j];
+        seqs[hole] = seqs[j];
+        hole = j;
+      }
+    }
+    states[hole] = EMPTY;
+    ppts[hole] = null;
+    invocations[hole] = null;
+  }
+
+  /**
+   * Moves the entries into a table with the given number of slots.
+   *
+   * @param capacity the new number of slots; a power of 2
+   */
+  private void rehash(int capacity) {
+    byte[] old_states = states;
+    int[] old_keys = keys;
+    @Nullable PptTopLevel[] old_ppts = ppts;
+    @Nullable Invocation[] old_invocations = invocations;
+    long[] old_seqs = seqs;
+    allocate(capacity);
+    for (int j = 0; j < old_states.length; j++) {
+      if (old_states[j] != EMPTY) {
+        int i = slot(old_keys[j]);
+        states[i] = old_states[j];
+        keys[i] = old_keys[j];
+        ppts[i] = old_ppts[j];
+        invocations[i] = old_invocations[j];
+        seqs[i] = old_seqs[j];
+      }
+    }
+  }
+
+  /**
+   * Adds a LIVE entry to the end of the fifo.
+   *
+   * @param nonce the nonce of the entry
+   * @param seq the sequence number of the entry
+   */
+  private void fifo_add(int nonce, long seq) {
+    if (fifo_end == fifo_keys.length) {
+      // Drop the elements of entries that are no longer LIVE, then grow if still needed.
+      int n = 0;
+      for (int k = fifo_start; k < fifo_end; k++) {
+        if (is_live(fifo_keys[k], fifo_seqs[k])) {
+          fifo_keys[n] = fifo_keys[k];
+          fifo_seqs[n] = fifo_seqs[k];
+          n++;
+        }
+      }
+      fifo_start = 0;
+      fifo_end = n;
+      if (2 * n > fifo_keys.length) {
+        fifo_keys = Arrays.copyOf(fifo_keys, 2 * fifo_keys.length);
+        fifo_seqs = Arrays.copyOf(fifo_seqs, 2 * fifo_seqs.length);
+      }
+    }
+    fifo_keys[fifo_end] = nonce;
+    fifo_seqs[fifo_end] = seq;
+    fifo_end++;
+  }
+
+  /**
+   * Returns true if the entry with the given nonce and sequence number is in memory.
+   *
+   * @param nonce a nonce
+   * @param seq a sequence number
+   * @return true if the entry is LIVE
+   */
+  private boolean is_live(int nonce, long seq) {
+    int i = slot(nonce);
+    return states[i] == LIVE && seqs[i] == seq;
+  }
+
+  /** Discards or spills the oldest LIVE entry. */
+  private void evict_oldest() {
+    while (true) {
+      assert fifo_start < fifo_end;
+      int nonce = fifo_keys[fifo_start];
+      long seq = fifo_seqs[fifo_start];
+      fifo_start++;
+      int i = slot(nonce);
+      if (states[i] != LIVE || seqs[i] != seq) {
+        continue;
+      }
+      live--;
+      if (FileIO.dkconfig_spill_unmatched_entries) {
+        @SuppressWarnings("nullness") // LIVE slots have an invocation
+        Invocation invocation = invocations[i];
+        seqs[i] = write_spilled(invocation);
+        states[i] = SPILLED;
+        invocations[i] = null;
+        spilled++;
+      } else {
+        remember_discarded(nonce);
+        delete_slot(i);
+        size--;
+        discarded++;
+      }
+      return;
+    }
+  }
+
+  /**
+   * Remembers that the entry with the given nonce was discarded.
+   *
+   * @param nonce the nonce of a discarded entry
+   */
+  private void remember_discarded(int nonce) {
+    if (discarded_nonces.size() >= MAX_DISCARDED_NONCES) {
+      // Keep only the range of the nonces in the full set.
+      forgotten_min = Math.min(forgotten_min, discarded_nonces.min());
+      forgotten_max = Math.max(forgotten_max, discarded_nonces.max());
+      discarded_nonces = new NonceSet();
+    }
+    discarded_nonces.add(nonce);
+  }
+
+  /**
+   * Called when an exit has no entry. Returns true if its entry was discarded, in which case the
+   * exit is counted and should be ignored. If more than {@link #MAX_DISCARDED_NONCES} entries have
+   * been discarded, this may also return true for an exit whose nonce is in the range of the
+   * discarded entries that are no longer remembered exactly.
+   *
+   * @param nonce the nonce of the exit
+   * @return true if the entry with the nonce was discarded
+   */
+  public boolean missing_entry_discarded(int nonce) {
+    if (!discarded_nonces.contains(nonce) && (nonce < forgotten_min || nonce > forgotten_max)) {
+      return false;
+    }
+    discarded_exits++;
+    return true;
+  }
+
+  /**
+   * Returns true if there is an entry for the given program point.
+   *
+   * @param ppt a program point
+   * @return true if there is an entry for ppt
+   */
+  boolean has_entry_for(PptTopLevel ppt) {
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] != EMPTY && ppts[i] == ppt) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the entries, in order of their nonces. Spilled entries are read back from the spill
+   * file.
+   *
+   * @return the entries, in order of their nonces
+   */
+  public List<Invocation> sorted_invocations() {
+    int[] indices = new int[size];
+    int n = 0;
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] != EMPTY) {
+        indices[n++] = i;
+      }
+    }
+    long[] sorted = new long[n];
+    for (int k = 0; k < n; k++) {
+      sorted[k] = ((long) keys[indices[k]] << 32) | indices[k];
+    }
+    Arrays.sort(sorted);
+    List<Invocation> result = new ArrayList<>(n);
+    for (long key_and_index : sorted) {
+      int i = (int) key_and_index;
+      @SuppressWarnings("nullness") // non-empty slots have a ppt
+      PptTopLevel ppt = ppts[i];
+      Invocation invocation = (states[i] == LIVE) ? invocations[i] : read_spilled(ppt, seqs[i]);
+      assert invocation != null;
+      result.add(invocation);
+    }
+    return result;
+  }
+
+  /** A set of nonces, in an open-addressing hash table. Nonces are never removed. */
+  private static final class NonceSet implements Serializable {
+    static final long serialVersionUID = 20261018L;
+
+    /** The nonces; only those in used slots are meaningful. */
+    private int[] nonces = new int[16];
+
+    /** Whether each slot is used. */
+    private boolean[] used = new boolean[16];
+
+    /** The number of nonces. */
+    private int size = 0;
+
+    /**
+     * Returns the number of nonces.
+     *
+     * @return the number of nonces
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Returns the index of the slot for the given nonce: the slot that contains it, or the empty
+     * slot at which it would be added.
+     *
+     * @param nonce a nonce
+     * @return the index of the slot for nonce
+     */
+    private int slot(int nonce) {
+      int mask = nonces.length - 1;
+      int i = home(nonce, nonces.length);
+      while (used[i] && nonces[i] != nonce) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    /**
+     * Returns true if the set contains the nonce.
+     *
+     * @param nonce a nonce
+     * @return true if the set contains nonce
+     */
+    boolean contains(int nonce) {
+      return used[slot(nonce)];
+    }
+
+    /**
+     * Adds a nonce to the set.
+     *
+     * @param nonce a nonce
+     */
+    void add(int nonce) {
+      int i = slot(nonce);
+      if (used[i]) {
+        return;
+      }
+      nonces[i] = nonce;
+      used[i] = true;
+      size++;
+      if (2 * size > nonces.length) {
+        int[] old_nonces = nonces;
+        boolean[] old_used = used;
+        nonces = new int[2 * old_nonces.length];
+        used = new boolean[2 * old_used.length];
+        for (int j = 0; j < old_nonces.length; j++) {
+          if (old_used[j]) {
+            int k = slot(old_nonces[j]);
+            nonces[k] = old_nonces[j];
+            used[k] = true;
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the smallest nonce in the set, or Integer.MAX_VALUE if it is empty.
+     *
+     * @return the smallest nonce
+     */
+    int min() {
+      int result = Integer.MAX_VALUE;
+      for (int i = 0; i < nonces.length; i++) {
+        if (used[i]) {
+          result = Math.min(result, nonces[i]);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Returns the largest nonce in the set, or Integer.MIN_VALUE if it is empty.
+     *
+     * @return the largest nonce
+     */
+    int max() {
+      int result = Integer.MIN_VALUE;
+      for (int i = 0; i < nonces.length; i++) {
+        if (used[i]) {
+          result = Math.max(result, nonces[i]);
+        }
+      }
+      return result;
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Spill file
+  ///
+
+  /**
+   * Returns the spill file, creating it if necessary.
+   *
+   * @return the spill file
+   */
+  private RandomAccessFile spill_file() throws IOException {
+    RandomAccessFile result = spill_file;
+    if (result == null) {
+      File file = File.createTempFile("daikon-entries", ".spill");
+      file.deleteOnExit();
+      result = new RandomAccessFile(file, "rw");
+      spill_file = result;
+    }
+    return result;
+  }
+
+  /**
+   * Appends a record to the spill file.
+   *
+   * @param record the bytes of the record
+   * @return the offset of the record in the spill file
+   */
+  private long append_record(byte[] record) {
+    try {
+      RandomAccessFile file = spill_file();
+      long offset = file.length();
+      file.seek(offset);
+      file.writeInt(record.length);
+      file.write(record);
+      return offset;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error while writing unmatched entries to a file", e);
+    }
+  }
+
+  /**
+   * Reads a record from the spill file.
+   *
+   * @param offset the offset of the record
+   * @return the bytes of the record
+   */
+  private byte[] read_record(long offset) {
+    try {
+      @SuppressWarnings("nullness") // a record was written, so the file exists
+      RandomAccessFile file = spill_file;
+      file.seek(offset);
+      byte[] record = new byte[file.readInt()];
+      file.readFully(record);
+      return record;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error while reading unmatched entries from a file", e);
+    }
+  }
+
+  /**
+   * Writes the values of an entry to the spill file.
+   *
+   * @param invocation the entry
+   * @return the offset of the entry in the spill file
+   */
+  private long write_spilled(Invocation invocation) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(invocation.vals);
+      out.writeObject(invocation.scalars);
+      out.writeObject(invocation.mods);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error while writing unmatched entries to a file", e);
+    }
+    return append_record(bytes.toByteArray());
+  }
+
+  /**
+   * Reads the values of an entry back from the spill file.
+   *
+   * @param ppt the program point of the entry
+   * @param offset the offset of the entry in the spill file
+   * @return the entry, with interned values
+   */
+  private Invocation read_spilled(PptTopLevel ppt, long offset) {
+    byte[] record = read_record(offset);
+    @Nullable Object[] vals;
+    long @Nullable [] scalars;
+    int[] mods;
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record))) {
+      vals = (@Nullable Object[]) in.readObject();
+      scalars = (long @Nullable []) in.readObject();
+      mods = (int[]) in.readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      throw new Error("Error while reading unmatched entries from a file", e);
+    }
+    for (int i = 0; i < vals.length; i++) {
+      if (vals[i] != null && !(vals[i] instanceof ValueTuple.Scalar)) {
+        vals[i] = SyncIntern.internDeserialized(vals[i]);
+      }
+    }
+    return new Invocation(ppt, vals, scalars, mods);
+  }
+
+  /**
+   * Writes the table. The records of spilled entries are copied into the stream, as raw bytes, so
+   * that they are not held in memory.
+   *
+   * @param out the stream to which to write the table
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] == SPILLED) {
+        byte[] record = read_record(seqs[i]);
+        out.writeInt(record.length);
+        out.write(record);
+      }
+    }
+  }
+
+  /**
+   * Reads the table, and writes the records of its spilled entries to a new spill file.
+   *
+   * @param in the stream from which to read the table
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] == SPILLED) {
+        byte[] record = new byte[in.readInt()];
+        in.readFully(record);
+        seqs[i] = append_record(record);
+      }
+    }
+  }
+}
@@ -0,0 +1,751 @@
+package daikon;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.nullness.qual.RequiresNonNull;
+import org.plumelib.util.Intern;
+
+/**
+ * Reads an uncompressed textual trace file by memory-mapping it and parsing its samples on several
+ * threads. Used by {@link FileIO#read_data_trace_file} when {@link FileIO#dkconfig_parse_threads}
+ * is positive.
+ *
+ * <p>The file is divided into chunks of about {@link FileIO#dkconfig_parse_chunk_size} bytes, each
+ * of which ends with a blank line, so no record spans two chunks. Worker threads parse the samples
+ * of the chunks. The thread that reads the file takes the chunks in file order; it computes the
+ * modbits, which depend on the previous sample at the same program point, and passes each record
+ * to the processor. Thus the processor sees the records in file order, as with the sequential
+ * reader, and procedure entries and exits are matched in the same way.
+ *
+ * <p>A worker only parses samples of program points that already had a sample read by the reading
+ * thread. Everything else -- declarations, comments, the first sample of each program point, and
+ * any sample that the worker cannot parse -- is left as text, which the reading thread reads with
+ * {@link FileIO#read_data_trace_record}. So errors are reported just as by the sequential reader.
+ */
+final class MappedDtraceReader {
+
+  /** Size of the part of the file that is mapped while looking for the ends of chunks. */
+  private static final int WINDOW_SIZE = 1 << 26;
+
+  /** The file. */
+  private final FileChannel channel;
+
+  /** The size of the file. */
+  private final long size;
+
+  /** Approximate size of a chunk, in bytes. */
+  private final int chunk_size;
+
+  /** The parse state of the file. */
+  private final FileIO.ParseState state;
+
+  /** The processor to which records are passed. */
+  private final FileIO.Processor processor;
+
+  /**
+   * The program points whose samples the workers may parse, indexed by the first line of their
+   * samples. Filled in by the reading thread.
+   */
+  private final Map<String, PptTopLevel> sample_ppts = new ConcurrentHashMap<>();
+
+  /** The part of the file that is mapped while looking for the end of a chunk. */
+  private @Nullable MappedByteBuffer window = null;
+
+  /** The offset of {@link #window} in the file. */
+  private long window_start = 0;
+
+  /** The offset of the next chunk in the file. */
+  private long next_start = 0;
+
+  /**
+   * Passed to ProglangType.parse_value by the workers, which do not know the line number
+   * in the file. Value parsing asks for the line number only to print a warning; in that case the
+   * worker gives up on the sample, and the reading thread parses it and prints the warning.
+   */
+  private static final LineNumberReader no_line_number =
+      new LineNumberReader(new StringReader("")) {
+        @Override
+        public int getLineNumber() {
+          throw new UnsupportedOperationException("line number of a sample parsed by a worker");
+        }
+      };
+
+  /** The records of a chunk, as parsed by a worker. */
+  private static final class Chunk {
+    /** The records of the chunk: {@link Sample}s and {@link Text}s, in file order. */
+    final List<Object> items = new ArrayList<>();
+
+    /** The number of lines in the chunk. */
+    int num_lines;
+  }
+
+  /** Records that the reading thread reads itself. */
+  private static final class Text {
+    /** The text of the records. */
+    final String text;
+
+    /** The number of lines in the chunk before the text. */
+    final int lines_before;
+
+    /**
+     * Creates a new Text.
+     *
+     * @param text the text of the records
+     * @param lines_before the number of lines in the chunk before the text
+     */
+    Text(String text, int lines_before) {
+      this.text = text;
+      this.lines_before = lines_before;
+    }
+  }
+
+  /** A sample parsed by a worker. */
+  private static final class Sample {
+    /** The program point. */
+    final PptTopLevel ppt;
+
+    /** The nonce, if any. */
+    final @Nullable Integer nonce;
+
+    /** The variables in the trace file, indexed by value_index. */
+    final VarInfo[] vis;
+
+    /** The values, which are not interned. */
+    final @Nullable Object[] vals;
+
+    /** The values that stand for each {@link ValueTuple.Scalar} in vals. */
+    final long[] scalars;
+
+    /** The text of the values. */
+    final String[] value_reps;
+
+    /** The modbits, as they appear in the trace file. */
+    final int[] mods;
+
+    /** The line number, in the chunk, of the blank line after the sample. */
+    final int end_line;
+
+    /**
+     * Creates a new Sample.
+     *
+     * @param ppt the program point
+     * @param nonce the nonce, if any
+     * @param vis the variables in the trace file
+     * @param vals the values
+     * @param scalars the values that stand for each Scalar in vals
+     * @param value_reps the text of the values
+     * @param mods the modbits in the trace file
+     * @param end_line the line number, in the chunk, of the blank line after the sample
+     */
+    Sample(
+        PptTopLevel ppt,
+        @Nullable Integer nonce,
+        VarInfo[] vis,
+        @Nullable Object[] vals,
+        long[] scalars,
+        String[] value_reps,
+        int[] mods,
+        int end_line) {
+      this.ppt = ppt;
+      this.nonce = nonce;
+      this.vis = vis;
+      this.vals = vals;
+      this.scalars = scalars;
+      this.value_reps = value_reps;
+      this.mods = mods;
+      this.end_line = end_line;
+    }
+  }
+
+  /**
+   * Creates a reader.
+   *
+   * @param channel the trace file
+   * @param state the parse state of the file
+   * @param processor the processor to which records are passed
+   */
+  private MappedDtraceReader(
+      FileChannel channel, FileIO.ParseState state, FileIO.Processor processor)
+      throws IOException {
+    this.channel = channel;
+    this.size = channel.size();
+    this.chunk_size = Math.max(1, FileIO.dkconfig_parse_chunk_size);
+    this.state = state;
+    this.processor = processor;
+  }
+
+  /**
+   * Returns true if the given trace file should be read by this class: that is, if {@link
+   * FileIO#dkconfig_parse_threads} is positive, the file is an uncompressed textual trace file, and
+   * no debugging output that depends on reading the file sequentially is enabled.
+   *
+   * @param raw_filename the name of the trace file
+   * @param state the parse state of the file
+   * @return true if the file should be read by this class
+   */
+  static boolean can_read(String raw_filename, FileIO.ParseState state) {
+    return FileIO.dkconfig_parse_threads > 0
+        && !state.is_decl_file
+        && state.binary_reader == null
+        && !raw_filename.endsWith(".gz")
+        && new File(raw_filename).isFile()
+        && FileIO.dkconfig_max_line_number == 0
+        && !FileIO.debug_missing
+        && !Global.debugPrintDtrace
+        && !Debug.logOn();
+  }
+
+  /**
+   * Reads the records of a trace file, passing each of them to the processor in file order.
+   *
+   * @param raw_filename the name of the trace file
+   * @param state the parse state of the file, which is FileIO.data_trace_state
+   * @param processor the processor to which records are passed
+   */
+  @RequiresNonNull("FileIO.data_trace_state")
+  static void read(String raw_filename, FileIO.ParseState state, FileIO.Processor processor)
+      throws IOException {
+    state.reader.close();
+    try (FileChannel channel = FileChannel.open(Paths.get(raw_filename), StandardOpenOption.READ)) {
+      new MappedDtraceReader(channel, state, processor).read();
+    }
+  }
+
+  /** Reads the records of the file, passing each of them to the processor in file order. */
+  @RequiresNonNull("FileIO.data_trace_state")
+  private void read() throws IOException {
+    int num_threads = FileIO.dkconfig_parse_threads;
+    ExecutorService workers =
+        Executors.newFixedThreadPool(
+            num_threads,
+            r -> {
+              Thread t = new Thread(r, "daikon-parse");
+              t.setDaemon(true);
+              return t;
+            });
+    // Tracks the line number for samples parsed by workers.
+    LineNumberReader position = new LineNumberReader(new StringReader(""));
+    Deque<Future<Chunk>> pending = new ArrayDeque<>();
+    // The number of lines before the current chunk.
+    long lines_before = 0;
+    try {
+      while (true) {
+        while (pending.size() < 2 * num_threads && next_start < size) {
+          pending.add(submit_chunk(workers));
+        }
+        Future<Chunk> future = pending.poll();
+        if (future == null) {
+          break;
+        }
+        Chunk chunk = get(future);
+        for (Object item : chunk.items) {
+          if (item instanceof Sample) {
+            state.reader = position;
+            process_sample((Sample) item, lines_before, position);
+          } else {
+            process_text((Text) item, lines_before);
+          }
+        }
+        lines_before += chunk.num_lines;
+      }
+      state.rtype = FileIO.RecordType.EOF;
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Finds the next chunk of the file and has a worker parse it.
+   *
+   * @param workers the worker threads
+   * @return the result of parsing the chunk
+   */
+  private Future<Chunk> submit_chunk(ExecutorService workers) throws IOException {
+    long start = next_start;
+    long end = find_chunk_end(start);
+    MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    next_start = end;
+    return workers.submit(() -> parse_chunk(bytes));
+  }
+
+  /**
+   * Returns the end of the chunk that starts at the given offset: the offset just after the first
+   * blank line that ends at least {@link #chunk_size} bytes after start, or the end of the file.
+   *
+   * @param start the offset of the chunk
+   * @return the offset just after the chunk
+   */
+  private long find_chunk_end(long start) throws IOException {
+    // Look for a line terminator that is followed by another one.  The search starts one byte
+    // early, so that a blank line that starts at start + chunk_size is found.
+    long pos = start + chunk_size - 1;
+    while (pos < size) {
+      byte b = byte_at(pos++);
+      if (b != '\n' && b != '\r') {
+        continue;
+      }
+      if (b == '\r' && pos < size && byte_at(pos) == '\n') {
+        pos++;
+      }
+      if (pos < size) {
+        b = byte_at(pos);
+        if (b == '\n' || b == '\r') {
+          pos++;
+          if (b == '\r' && pos < size && byte_at(pos) == '\n') {
+            pos++;
+          }
+          return pos;
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the byte at the given offset of the file, mapping the part of the file that contains
+   * it if necessary.
+   *
+   * @param pos an offset in the file
+   * @return the byte at pos
+   */
+  private byte byte_at(long pos) throws IOException {
+    MappedByteBuffer w = window;
+    if (w == null || pos < window_start || pos >= window_start + w.limit()) {
+      window_start = pos;
+      w = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, size - pos));
+      window = w;
+    }
+    return w.get((int) (pos - window_start));
+  }
+
+  /**
+   * Returns the result of a worker, rethrowing any exception that the worker threw.
+   *
+   * @param chunk the result of a worker
+   * @return the parsed chunk
+   */
+  private static Chunk get(Future<Chunk> chunk) {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      throw new Error("interrupted while waiting for a trace file to be parsed", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new Error(cause);
+      }
+    }
+  }
+
+  /**
+   * Parses a chunk of the file. Run by a worker thread.
+   *
+   * @param bytes the chunk
+   * @return the parsed chunk
+   */
+  private Chunk parse_chunk(MappedByteBuffer bytes) {
+    byte[] contents = new byte[bytes.remaining()];
+    bytes.get(contents);
+    Lines lines = new Lines(new String(contents, UTF_8));
+    Chunk chunk = new Chunk();
+    chunk.num_lines = lines.size;
+    List<Object> items = chunk.items;
+    // The lines [text_start, text_end) are records that are not parsed here.
+    int text_start = -1;
+    int text_end = -1;
+    int i = 0;
+    while (i < lines.size) {
+      if (lines.is_empty(i)) {
+        i++;
+        continue;
+      }
+      int end = i + 1;
+      while (end < lines.size && !lines.is_empty(end)) {
+        end++;
+      }
+      Sample sample = parse_sample(lines, i, end);
+      if (sample == null) {
+        if (text_start < 0) {
+          text_start = i;
+        }
+        text_end = end;
+      } else {
+        if (text_start >= 0) {
+          items.add(lines.text(text_start, text_end));
+          text_start = -1;
+        }
+        items.add(sample);
+      }
+      i = end;
+    }
+    if (text_start >= 0) {
+      items.add(lines.text(text_start, text_end));
+    }
+    return chunk;
+  }
+
+  /**
+   * The lines of a chunk. A line is only copied out of the chunk if it is needed as a String, so
+   * that parsing a sample creates few objects besides its values.
+   */
+  private static final class Lines {
+    /** The text of the chunk. */
+    final String text;
+
+    /** The number of lines. */
+    int size = 0;
+
+    /** The index in text of the start of each line. */
+    int[] starts = new int[1024];
+
+    /** The index in text of the end of each line, excluding its line terminator. */
+    int[] ends = new int[1024];
+
+    /**
+     * Splits text into lines, as BufferedReader.readLine does.
+     *
+     * @param text the text of a chunk
+     */
+    Lines(String text) {
+      this.text = text;
+      int start = 0;
+      int len = text.length();
+      if (text.indexOf('\r') < 0) {
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', start)) {
+          add(start, i);
+          start = i + 1;
+        }
+      } else {
+        for (int i = 0; i < len; i++) {
+          char c = text.charAt(i);
+          if (c == '\n' || c == '\r') {
+            add(start, i);
+            if (c == '\r' && i + 1 < len && text.charAt(i + 1) == '\n') {
+              i++;
+            }
+            start = i + 1;
+          }
+        }
+      }
+      if (start < len) {
+        add(start, len);
+      }
+    }
+
+    /**
+     * Adds a line.
+     *
+     * @param start the index in text of the start of the line
+     * @param end the index in text of the end of the line
+     */
+    private void add(int start, int end) {
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        ends = Arrays.copyOf(ends, size * 2);
+      }
+      starts[size] = start;
+      ends[size] = end;
+      size++;
+    }
+
+    /**
+     * Returns the given line.
+     *
+     * @param i the index of a line
+     * @return line i
+     */
+    String get(int i) {
+      return text.substring(starts[i], ends[i]);
+    }
+
+    /**
+     * Returns true if the given line is empty.
+     *
+     * @param i the index of a line
+     * @return true if line i is empty
+     */
+    boolean is_empty(int i) {
+      return starts[i] == ends[i];
+    }
+
+    /**
+     * Returns true if the given line is s.
+     *
+     * @param i the index of a line
+     * @param s a string
+     * @return true if line i equals s
+     */
+    boolean equals(int i, String s) {
+      return ends[i] - starts[i] == s.length() && text.startsWith(s, starts[i]);
+    }
+
+    /**
+     * Returns the modbit on the given line, or -1 if the line is not a valid modbit.
+     *
+     * @param i the index of a line
+     * @return the modbit on line i, or -1
+     */
+    int modbit(int i) {
+      if (ends[i] - starts[i] != 1) {
+        return -1;
+      }
+      char c = text.charAt(starts[i]);
+      return (c >= '0' && c <= '2') ? c - '0' : -1;
+    }
+
+    /**
+     * Returns true if the variable named on the given line is included, as {@link
+     * FileIO#var_included} would.
+     *
+     * @param i the index of a line
+     * @return true if the variable named on line i is included
+     */
+    boolean var_included(int i) {
+      if (Daikon.var_omit_regexp == null && Daikon.var_regexp == null) {
+        return true;
+      }
+      return FileIO.var_included(get(i));
+    }
+
+    /**
+     * Returns true if the variable name on the given line, once unescaped as FileIO does, is the
+     * given name.
+     *
+     * @param i the index of a line
+     * @param name the name of a variable
+     * @return true if the line contains the name
+     */
+    boolean is_name(int i, String name) {
+      if (equals(i, name)
+          && name.indexOf('\\') < 0
+          && !name.isEmpty()
+          && name.charAt(0) > ' '
+          && name.charAt(name.length() - 1) > ' ') {
+        return true;
+      }
+      return FileIO.unescape_decl(get(i).trim()).equals(name);
+    }
+
+    /**
+     * Returns the given lines, and the blank line that follows them if any, as a Text.
+     *
+     * @param start the index of the first line
+     * @param end the index after the last line
+     * @return a Text containing the lines [start, end]
+     */
+    Text text(int start, int end) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = start; i < end; i++) {
+        sb.append(text, starts[i], ends[i]).append('\n');
+      }
+      if (end < size) {
+        sb.append('\n');
+      }
+      return new Text(sb.toString(), start);
+    }
+  }
+
+  /**
+   * Parses a sample, as {@link FileIO#read_data_trace_record} would. Returns null if the record is
+   * not a sample of a program point in {@link #sample_ppts}, or if it cannot be parsed; the reading
+   * thread reads such records itself.
+   *
+   * @param lines the lines of a chunk
+   * @param from the index of the first line of the record
+   * @param to the index of the blank line after the record, or the number of lines
+   * @return the sample, or null
+   */
+  private @Nullable Sample parse_sample(Lines lines, int from, int to) {
+    PptTopLevel ppt = sample_ppts.get(lines.get(from));
+    if (ppt == null) {
+      return null;
+    }
+    int i = from + 1;
+    Integer nonce = null;
+    if (i < to && lines.equals(i, FileIO.NONCE_HEADER)) {
+      if (i + 1 >= to) {
+        return null;
+      }
+      try {
+        nonce = Integer.valueOf(lines.get(i + 1));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      i += 2;
+    }
+
+    VarInfo[] ppt_vis = ppt.var_infos;
+    int num_tracevars = ppt.num_tracevars;
+    VarInfo[] vis = new VarInfo[num_tracevars];
+    @Nullable Object[] vals = new @Nullable Object[num_tracevars];
+    long[] scalars = new long[num_tracevars];
+    String[] value_reps = new String[num_tracevars];
+    int[] mods = new int[num_tracevars];
+    for (int vi_index = 0, val_index = 0; val_index < num_tracevars; vi_index++) {
+      if (vi_index >= ppt_vis.length) {
+        return null;
+      }
+      VarInfo vi = ppt_vis[vi_index];
+      if (vi.is_static_constant) {
+        continue;
+      }
+      // Skip variables that are not included, checking their modbits.
+      while (i < to && !lines.var_included(i)) {
+        if (i + 2 >= to || lines.modbit(i + 2) < 0) {
+          return null;
+        }
+        i += 3;
+      }
+      if (i + 2 >= to || !lines.is_name(i, vi.str_name())) {
+        return null;
+      }
+      int mod = lines.modbit(i + 2);
+      if (mod < 0) {
+        return null;
+      }
+      String value_rep = lines.get(i + 1);
+      if (ValueTuple.modIsMissingNonsensical(mod)) {
+        if (!(value_rep.equals("nonsensical")
+            || value_rep.equals("uninit")
+            || value_rep.equals("missing"))) {
+          return null;
+        }
+      } else {
+        try {
+          vals[val_index] =
+              vi.rep_type.parse_value(
+                  value_rep, no_line_number, state.filename, false, scalars, val_index);
+        } catch (Throwable e) {
+          return null;
+        }
+      }
+      vis[val_index] = vi;
+      value_reps[val_index] = value_rep;
+      mods[val_index] = mod;
+      i += 3;
+      val_index++;
+    }
+    // Variables that are not included may follow.
+    while (i < to && !lines.var_included(i)) {
+      i += 3;
+    }
+    if (i != to) {
+      return null;
+    }
+    return new Sample(ppt, nonce, vis, vals, scalars, value_reps, mods, to + 1);
+  }
+
+  /**
+   * Completes a sample parsed by a worker, as {@link FileIO#read_data_trace_record} would, and
+   * passes it to the processor.
+   *
+   * @param sample a sample parsed by a worker
+   * @param lines_before the number of lines in the file before the sample's chunk
+   * @param position the reader whose line number is reported for the sample
+   */
+  @RequiresNonNull("FileIO.data_trace_state")
+  private void process_sample(Sample sample, long lines_before, LineNumberReader position) {
+    PptTopLevel ppt = sample.ppt;
+    int num_tracevars = sample.vals.length;
+    // Leave space for orig and derived variables.
+    int vals_array_size = ppt.var_infos.length - ppt.num_static_constant_vars;
+    @Nullable Object[] vals = new @Nullable Object[vals_array_size];
+    long[] scalars = new long[vals_array_size];
+    int[] mods = new int[vals_array_size];
+
+    /*NNC:@Nullable*/ String[] oldvalue_reps = FileIO.ppt_to_value_reps.get(ppt);
+    if (oldvalue_reps == null) {
+      oldvalue_reps = new /*NNC:@Nullable*/ String[num_tracevars];
+    }
+
+    synchronized (Intern.class) {
+      for (int i = 0; i < num_tracevars; i++) {
+        Object val = sample.vals[i];
+        vals[i] = (val == null || val instanceof ValueTuple.Scalar) ? val : Intern.intern(val);
+      }
+    }
+    System.arraycopy(sample.scalars, 0, scalars, 0, num_tracevars);
+
+    for (int i = 0; i < num_tracevars; i++) {
+      String value_rep = sample.value_reps[i];
+      int mod = sample.mods[i];
+      if (mod != ValueTuple.MISSING_NONSENSICAL) {
+        // Set the modbit now, depending on whether the value of the variable
+        // has been changed or not.
+        if (value_rep.equals(oldvalue_reps[i])) {
+          if (!FileIO.dkconfig_add_changed) {
+            mod = ValueTuple.UNMODIFIED;
+          }
+        } else {
+          mod = ValueTuple.MODIFIED;
+        }
+      }
+      oldvalue_reps[i] = value_rep;
+      if (ValueTuple.modIsMissingNonsensical(mod)) {
+        sample.vis[i].canBeMissing = true;
+      } else if (vals[i] == null) {
+        // As in FileIO, a value like [1 nonsensical 2] is treated as nonsensical.
+        mod = ValueTuple.MISSING_NONSENSICAL;
+        sample.vis[i].canBeMissing = true;
+      }
+      mods[i] = mod;
+    }
+    FileIO.ppt_to_value_reps.put(ppt, oldvalue_reps);
+
+    position.setLineNumber((int) (lines_before + sample.end_line));
+    state.ppt = ppt;
+    state.nonce = sample.nonce;
+    state.vt = ValueTuple.makeUninterned(vals, scalars, mods);
+    state.rtype = FileIO.RecordType.SAMPLE;
+    FileIO.process_sample_record(state, processor);
+  }
+
+  /**
+   * Reads records that the workers did not parse, and passes each of them to the processor.
+   * Records the program point of each sample, so that the workers can parse later samples.
+   *
+   * @param text the records
+   * @param lines_before the number of lines in the file before the text's chunk
+   */
+  @RequiresNonNull("FileIO.data_trace_state")
+  private void process_text(Text text, long lines_before) throws IOException {
+    state.reader = new LineNumberReader(new StringReader(text.text));
+    state.reader.setLineNumber((int) (lines_before + text.lines_before));
+    while (true) {
+      FileIO.read_data_trace_record(state);
+      if (state.rtype == FileIO.RecordType.SAMPLE) {
+        assert state.ppt != null : "@AssumeAssertion(nullness): dependent: RecordType.SAMPLE";
+        if (state.sample_header != null) {
+          sample_ppts.putIfAbsent(state.sample_header, state.ppt);
+        }
+        FileIO.process_sample_record(state, processor);
+      } else if (state.rtype == FileIO.RecordType.EOF) {
+        return;
+      }
+    }
+  }
+}
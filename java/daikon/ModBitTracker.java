@@ -10,39 +10,41 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 // "ModBitTracker" is a poor name for this class, since it tracks
 // whether a value is missing, not whether it is modified.
 /**
- * ModBitTracker maintains a BitSet for each variable at a program point. The BitSet indicates, for
- * each sample seen in order, whether that variable was present or not.
+ * ModBitTracker maintains a sequence of bits for each variable at a program point. The sequence
+ * indicates, for each sample seen in order, whether that variable was present or not.
+ *
+ * <p>Most variables are present in almost every sample, so the bits are stored as the lengths of
+ * their runs of identical bits. Bits that change too often for that to save space are stored in a
+ * BitSet instead.
  */
 public class ModBitTracker implements Serializable, Cloneable {
   // We are Serializable, so we specify a version to allow changes to
   // method signatures without breaking serialization.  If you add or
   // remove fields, you should change this number to the current date.
-  static final long serialVersionUID = 20031014L;
+  static final long serialVersionUID = 20261018L;
 
   // Should make this a configuration option.
   private static boolean debug = false;
 
-  /** The maximum number of BitSets; the size of modbits_arrays. */
+  /** The maximum number of ModBits; the size of modbits_arrays. */
   private int num_vars;
-  /** The size of each BitSet in modbits_arrays. */
+  /** The size of each ModBits in modbits_arrays. */
   private int num_samples;
 
-  /** The BitSets themselves. */
-  // In the future, I could imagine trying to optimize this with (say)
-  // run-length encoding; but it's probably not worth it.
+  /** The ModBits themselves. */
   // All elements of modbits_arrays at or past num_sets are null.
-  private @Nullable BitSet[] modbits_arrays;
+  private @Nullable ModBits[] modbits_arrays;
 
   /**
-   * Conceptually, there is a BitSet per variable. In actuality, when two different variables have
-   * the same modbits, they can share a single BitSet; we say the variables are in an equivalence
-   * set. "index" indicates, for each variable, which BitSet it should use; it is the identifier of
+   * Conceptually, there is a ModBits per variable. In actuality, when two different variables have
+   * the same modbits, they can share a single ModBits; we say the variables are in an equivalence
+   * set. "index" indicates, for each variable, which ModBits it should use; it is the identifier of
    * the variable's equivalence set.
    */
   private int[] index;
 
   /**
-   * The number of BitSets (equivalence sets) in use. All elements of modbits_arrays before this
+   * The number of ModBits (equivalence sets) in use. All elements of modbits_arrays before this
    * index are non-null, and all elements at or past this index are null.
    */
   private int num_sets;
@@ -61,9 +63,9 @@ public class ModBitTracker implements Serializable, Cloneable {
   public ModBitTracker(int num_vars) {
     assert num_vars >= 0;
     this.num_vars = num_vars;
-    modbits_arrays = new @Nullable BitSet[num_vars];
+    modbits_arrays = new @Nullable ModBits[num_vars];
     if (num_vars > 0) {
-      modbits_arrays[0] = new BitSet();
+      modbits_arrays[0] = new ModBits();
       num_sets = 1;
     } else {
       num_sets = 0;
@@ -89,6 +91,14 @@ public class ModBitTracker implements Serializable, Cloneable {
     return num_sets;
   }
 
+  /**
+   * Accessor for testing only. Returns true if the modbits of the given variable are stored as the
+   * lengths of their runs, rather than in a BitSet.
+   */
+  public boolean is_run_length_encoded(int varindex) {
+    return modbits(varindex).bits == null;
+  }
+
   /** Check the representation invariant. */
   public void checkRep(@UnknownInitialization(ModBitTracker.class) ModBitTracker this) {
     assert index.length == num_vars;
@@ -101,41 +111,86 @@ public class ModBitTracker implements Serializable, Cloneable {
     }
     for (int i = 0; i < num_vars; i++) {
       if (i < num_sets) {
-        assert modbits_arrays[i] != null;
-        // Can't make this assertion, as there is no method that tells
-        // the highest index that has been used in the BitSet.  (size()
-        // gives physical size.)
-        // assert modbits_arrays[i].size() == num_samples
-        //                   : "modbits_arrays.[" + i + "].size() == "
-        //                   + modbits_arrays[i].size()
-        //                   + ", num_samples == " + num_samples;
+        @SuppressWarnings("nullness") // checked just above
+        @NonNull ModBits mb = modbits_arrays[i];
+        assert mb.size == num_samples
+            : "modbits_arrays[" + i + "].size == " + mb.size + ", num_samples == " + num_samples;
       } else {
         assert modbits_arrays[i] == null;
       }
     }
   }
 
-  /**
-   * Returns a BitSet of modbit values for the given variable. The caller must not modify the
-   * returned value!
-   */
+  /** Returns the modbits of the equivalence set of the given variable. */
   @SuppressWarnings(
-      "nullness") // application invariant: index[varindex] is an index for a non-null BitSet in
+      "nullness") // application invariant: index[varindex] is an index for a non-null ModBits in
   // modbits_arrays
-  public BitSet get(int varindex) {
+  private ModBits modbits(int varindex) {
     return modbits_arrays[index[varindex]];
   }
 
+  /**
+   * Returns a new BitSet of modbit values for the given variable. This is expensive for a program
+   * point with many samples; prefer {@link #num_present} and {@link #get(int,int)}.
+   */
+  public BitSet get(int varindex) {
+    return modbits(varindex).toBitSet();
+  }
+
   /** Returns the modbit for the given variable and sample number. */
   public boolean get(int varindex, int sampleno) {
-    return get(varindex).get(sampleno);
+    return modbits(varindex).get(sampleno);
+  }
+
+  /** Returns the number of samples in which the given variable is present. */
+  public int num_present(int varindex) {
+    return modbits(varindex).cardinality();
+  }
+
+  /** Returns the number of samples in which both of the given variables are present. */
+  public int num_present(int varindex1, int varindex2) {
+    ModBits mb1 = modbits(varindex1);
+    ModBits mb2 = modbits(varindex2);
+    if (mb1 == mb2) {
+      return mb1.cardinality();
+    }
+    return ModBits.intersectionCardinality(mb1, mb2);
+  }
+
+  /** Returns the number of samples in which all three of the given variables are present. */
+  public int num_present(int varindex1, int varindex2, int varindex3) {
+    ModBits mb1 = modbits(varindex1);
+    ModBits mb2 = modbits(varindex2);
+    ModBits mb3 = modbits(varindex3);
+    if (mb1 == mb2 || mb1 == mb3) {
+      return num_present(varindex2, varindex3);
+    }
+    if (mb2 == mb3) {
+      return num_present(varindex1, varindex2);
+    }
+    return ModBits.intersectionCardinality(mb1, mb2, mb3);
+  }
+
+  /**
+   * Returns the number of consecutive samples, starting at the given one, in which the modbit of
+   * every variable is the same as in the given sample.
+   */
+  public int run_length(int sampleno) {
+    assert sampleno < num_samples;
+    int end = num_samples;
+    for (int i = 0; i < num_sets; i++) {
+      @SuppressWarnings("nullness") // application invariant: non-null up to index=num_sets
+      @NonNull ModBits mb = modbits_arrays[i];
+      end = Math.min(end, mb.runEnd(sampleno));
+    }
+    return end - sampleno;
   }
 
   /** Split the specified equivalence set into two pieces. Returns the index of the copy. */
   private int split(int split_index) {
     @SuppressWarnings("nullness") // application invariant: split_index is in range
-    @NonNull BitSet bs = (BitSet) modbits_arrays[split_index].clone();
-    modbits_arrays[num_sets] = bs;
+    @NonNull ModBits mb = modbits_arrays[split_index].clone();
+    modbits_arrays[num_sets] = mb;
     num_sets++;
     return num_sets - 1;
   }
@@ -181,11 +236,240 @@ public class ModBitTracker implements Serializable, Cloneable {
     }
     for (int i = 0; i < num_sets; i++) {
       @SuppressWarnings("nullness") // application invariant: non-null up to index=num_sets
-      @NonNull BitSet bs = modbits_arrays[i];
-      bs.set(num_samples, num_samples + count, this_bits[i]);
+      @NonNull ModBits mb = modbits_arrays[i];
+      mb.append(this_bits[i], count);
     }
     num_samples += count;
 
     if (debug) checkRep();
   }
+
+  /**
+   * The modbits of one equivalence set. They are stored as the ends of the runs of identical bits,
+   * unless the runs are so short that a BitSet is smaller.
+   *
+   * <p>Whether runs are short is only decided once there are {@link #MIN_BITSET_SIZE} bits, so that
+   * a few changes among the first samples do not make a BitSet necessary. A BitSet is checked again
+   * each time its size doubles, and is converted back to runs if the runs have become long enough,
+   * on average, as they do when a variable is present in every sample after some point.
+   */
+  @SuppressWarnings("nullness") // application invariant: exactly one of run_ends and bits is null
+  private static final class ModBits implements Serializable, Cloneable {
+    // We are Serializable, so we specify a version to allow changes to
+    // method signatures without breaking serialization.  If you add or
+    // remove fields, you should change this number to the current date.
+    static final long serialVersionUID = 20261018L;
+
+    /**
+     * A run-length encoding is used only while its runs are, on average, at least this long.
+     * Shorter runs take more space than a BitSet, which uses one bit per sample.
+     */
+    private static final int MIN_AVERAGE_RUN = 32;
+
+    /** The runs are not replaced by a BitSet while there are fewer bits than this. */
+    private static final int MIN_BITSET_SIZE = 1024;
+
+    /** The number of bits. */
+    int size = 0;
+
+    /**
+     * The value of the first run; the runs alternate between true and false. Unused if bits is
+     * non-null.
+     */
+    private boolean first_bit;
+
+    /**
+     * For the run-length encoding, run_ends[i] is the index just past the end of run i. The first
+     * num_runs elements are used. Null if bits is non-null.
+     */
+    private int @Nullable [] run_ends = new int[2];
+
+    /** The number of runs in run_ends. */
+    private int num_runs = 0;
+
+    /** The bits, if they are not run-length encoded; otherwise null. */
+    private @Nullable BitSet bits = null;
+
+    /** If bits is non-null, the size at which to check whether runs would be smaller again. */
+    private int next_check = 0;
+
+    /** Returns the value of the given run. */
+    private boolean runBit(int run) {
+      return first_bit ^ ((run & 1) != 0);
+    }
+
+    /** Returns the index of the run that contains the given bit. */
+    private int runOf(int[] ends, int bitno) {
+      int run = Arrays.binarySearch(ends, 0, num_runs, bitno);
+      // If bitno is the end of a run, it is in the next run.
+      return (run >= 0) ? run + 1 : -run - 1;
+    }
+
+    /** Appends count copies of the given bit. */
+    void append(boolean bit, int count) {
+      if (count == 0) {
+        return;
+      }
+      int new_size = size + count;
+      BitSet bs = bits;
+      int[] ends = run_ends;
+      if (bs != null) {
+        bs.set(size, new_size, bit);
+        if (new_size >= next_check) {
+          size = new_size;
+          toRuns(bs);
+          return;
+        }
+      } else if (num_runs > 0 && runBit(num_runs - 1) == bit) {
+        ends[num_runs - 1] = new_size;
+      } else if (new_size >= MIN_BITSET_SIZE && (long) num_runs * MIN_AVERAGE_RUN > new_size) {
+        bs = toBitSet();
+        bs.set(size, new_size, bit);
+        bits = bs;
+        run_ends = null;
+        num_runs = 0;
+        next_check = (new_size > Integer.MAX_VALUE / 2) ? Integer.MAX_VALUE : 2 * new_size;
+      } else {
+        if (num_runs == 0) {
+          first_bit = bit;
+        }
+        if (num_runs == ends.length) {
+          ends = Arrays.copyOf(ends, 2 * num_runs);
+          run_ends = ends;
+        }
+        ends[num_runs++] = new_size;
+      }
+      size = new_size;
+    }
+
+    /**
+     * Replaces the BitSet by runs if they take at most half as much space; otherwise, schedules the
+     * next check for when the size has doubled.
+     *
+     * @param bs the bits, which are {@link #bits}
+     */
+    private void toRuns(BitSet bs) {
+      // Half the number of runs that would make the run-length encoding as large as the BitSet.
+      long max_runs = size / (2L * MIN_AVERAGE_RUN);
+      int[] ends = new int[(int) Math.max(2, Math.min(max_runs, 1024))];
+      int runs = 0;
+      boolean bit = bs.get(0);
+      int bitno = 0;
+      while (bitno < size) {
+        if (runs >= max_runs) {
+          next_check = (size > Integer.MAX_VALUE / 2) ? Integer.MAX_VALUE : 2 * size;
+          return;
+        }
+        int end = bit ? bs.nextClearBit(bitno) : bs.nextSetBit(bitno);
+        if (end == -1 || end > size) {
+          end = size;
+        }
+        if (runs == ends.length) {
+          ends = Arrays.copyOf(ends, 2 * runs);
+        }
+        ends[runs++] = end;
+        bitno = end;
+        bit = !bit;
+      }
+      first_bit = bs.get(0);
+      run_ends = ends;
+      num_runs = runs;
+      bits = null;
+    }
+
+    /** Returns the bit with the given index. */
+    boolean get(int bitno) {
+      if (bitno >= size) {
+        return false;
+      }
+      BitSet bs = bits;
+      if (bs != null) {
+        return bs.get(bitno);
+      }
+      return runBit(runOf(run_ends, bitno));
+    }
+
+    /** Returns the index just past the run of identical bits that contains the given bit. */
+    int runEnd(int bitno) {
+      BitSet bs = bits;
+      if (bs != null) {
+        int end = bs.get(bitno) ? bs.nextClearBit(bitno) : bs.nextSetBit(bitno);
+        return (end == -1 || end > size) ? size : end;
+      }
+      return run_ends[runOf(run_ends, bitno)];
+    }
+
+    /** Returns the number of true bits. */
+    int cardinality() {
+      BitSet bs = bits;
+      if (bs != null) {
+        return bs.cardinality();
+      }
+      int result = 0;
+      for (int run = first_bit ? 0 : 1; run < num_runs; run += 2) {
+        result += run_ends[run] - ((run == 0) ? 0 : run_ends[run - 1]);
+      }
+      return result;
+    }
+
+    /** Returns the number of indices at which every one of the given ModBits has a true bit. */
+    static int intersectionCardinality(ModBits... mbs) {
+      boolean all_bitsets = true;
+      for (ModBits mb : mbs) {
+        all_bitsets &= (mb.bits != null);
+      }
+      if (all_bitsets) {
+        BitSet result = (BitSet) mbs[0].bits.clone();
+        for (int i = 1; i < mbs.length; i++) {
+          result.and(mbs[i].bits);
+        }
+        return result.cardinality();
+      }
+      // Walk the runs of all of them at once.  All have the same size.
+      int size = mbs[0].size;
+      int result = 0;
+      int bitno = 0;
+      while (bitno < size) {
+        int end = size;
+        boolean all_true = true;
+        for (ModBits mb : mbs) {
+          end = Math.min(end, mb.runEnd(bitno));
+          all_true &= mb.get(bitno);
+        }
+        if (all_true) {
+          result += end - bitno;
+        }
+        bitno = end;
+      }
+      return result;
+    }
+
+    /** Returns the bits as a new BitSet. */
+    BitSet toBitSet() {
+      BitSet bs = bits;
+      if (bs != null) {
+        return (BitSet) bs.clone();
+      }
+      BitSet result = new BitSet(size);
+      for (int run = first_bit ? 0 : 1; run < num_runs; run += 2) {
+        result.set((run == 0) ? 0 : run_ends[run - 1], run_ends[run]);
+      }
+      return result;
+    }
+
+    @Override
+    public ModBits clone() {
+      try {
+        ModBits result = (ModBits) super.clone();
+        if (bits != null) {
+          result.bits = (BitSet) bits.clone();
+        } else {
+          result.run_ends = run_ends.clone();
+        }
+        return result;
+      } catch (CloneNotSupportedException e) {
+        throw new Error("This can't happen: ", e);
+      }
+    }
+  }
 }
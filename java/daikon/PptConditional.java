@@ -51,6 +51,23 @@ public final class PptConditional extends PptTopLevel {
     }
   }
 
+  /**
+   * Sets the splitter, which is not serialized, of a conditional program point that was read from a
+   * checkpoint.
+   *
+   * @param splitters the splitters for the parent program point
+   * @return the one of splitters that created this program point, or null if none did
+   */
+  public @Nullable Splitter restore_splitter(Splitter[] splitters) {
+    for (Splitter s : splitters) {
+      if (name.equals(ctor_name_helper(parent, s, splitter_inverse))) {
+        splitter = s.instantiateSplitter(this);
+        return s;
+      }
+    }
+    return null;
+  }
+
   private static VarInfo[] ctor_vis_helper(PptTopLevel parent) {
     return (VarInfo.arrayclone_simple(parent.var_infos));
   }
@@ -0,0 +1,122 @@
+package daikon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Runs an operation on a sequence of program points on several threads, with the same result as
+ * running it on each program point in turn.
+ *
+ * <p>The operation on a program point may read and modify only the program points that {@link
+ * Touched#touched} returns for it (including their slices and conditional program points). Each
+ * operation must follow every earlier operation in the sequence that touches one of the same
+ * program points; the others are independent of it. The operations are grouped into levels, so
+ * that each operation follows the operations it depends on, and the operations of each level are
+ * run concurrently. Every pair of dependent operations runs in the sequential order.
+ */
+final class PptLevels {
+
+  /** Debug tracer. */
+  public static final Logger debug = Logger.getLogger("daikon.PptLevels");
+
+  /** Do not instantiate. */
+  private PptLevels() {
+    throw new Error("do not instantiate");
+  }
+
+  /** The program points that an operation on a program point reads or modifies. */
+  interface Touched {
+    /**
+     * Returns the program points that the operation on ppt reads or modifies.
+     *
+     * @param ppt a program point
+     * @return the program points that the operation on ppt reads or modifies, including ppt
+     */
+    Collection<PptTopLevel> touched(PptTopLevel ppt);
+  }
+
+  /** An operation on a program point. */
+  interface Operation {
+    /**
+     * Performs the operation on ppt.
+     *
+     * @param ppt a program point
+     */
+    void run(PptTopLevel ppt);
+  }
+
+  /**
+   * Runs operation on each element of order, on num_threads threads, with the same result as
+   * running it on each element in turn.
+   *
+   * @param order the program points, in the order in which the operation would be run sequentially
+   * @param touched the program points that the operation on each program point touches
+   * @param operation the operation
+   * @param num_threads the number of threads
+   */
+  static void run(
+      List<PptTopLevel> order, Touched touched, Operation operation, int num_threads) {
+
+    // The level of each operation is one more than the highest level of an
+    // earlier operation that touches one of the same program points.
+    Map<PptTopLevel, Integer> last_level = new IdentityHashMap<>();
+    List<List<PptTopLevel>> levels = new ArrayList<>();
+    for (PptTopLevel ppt : order) {
+      Collection<PptTopLevel> ppt_touched = touched.touched(ppt);
+      int level = 0;
+      for (PptTopLevel t : ppt_touched) {
+        Integer prev = last_level.get(t);
+        if (prev != null) {
+          level = Math.max(level, prev + 1);
+        }
+      }
+      for (PptTopLevel t : ppt_touched) {
+        last_level.put(t, level);
+      }
+      if (level == levels.size()) {
+        levels.add(new ArrayList<PptTopLevel>());
+      }
+      levels.get(level).add(ppt);
+    }
+    debug.fine(order.size() + " program points in " + levels.size() + " levels");
+
+    ForkJoinPool pool = new ForkJoinPool(num_threads);
+    try {
+      for (List<PptTopLevel> level : levels) {
+        List<Callable<Void>> tasks = new ArrayList<>(level.size());
+        for (PptTopLevel ppt : level) {
+          tasks.add(
+              () -> {
+                operation.run(ppt);
+                return null;
+              });
+        }
+        for (Future<Void> result : pool.invokeAll(tasks)) {
+          try {
+            result.get();
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+              throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+              throw (Error) cause;
+            }
+            throw new Error("error while processing program points", cause);
+          } catch (InterruptedException e) {
+            throw new Error("interrupted while processing program points", e);
+          }
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -77,9 +77,9 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -158,11 +158,22 @@ public class PptTopLevel extends Ppt {
   public static boolean dkconfig_remove_merged_invs = false;
 
   /**
-   * Boolean. Needed by the NIS.falsified method when keeping stats to figure out how many falsified
-   * invariants are antecedents. Only the first pass of processing with the sample is counted toward
-   * the stats.
+   * Integer. If positive, a program point at which this many consecutive samples have weakened or
+   * falsified no invariant, and added or removed no slice, is considered converged: only one of
+   * every {@link #dkconfig_converged_sample_interval} later samples is applied to it, and the
+   * others are skipped. It applies every sample again as soon as one changes its invariants.
+   * Skipped samples are not counted, and an invariant that only skipped samples would falsify is
+   * reported, so this trades accuracy for speed on long, repetitive traces. The program points at
+   * which samples were skipped are listed after the trace files are read. If 0, every sample is
+   * applied.
    */
-  public static boolean first_pass_with_sample = true;
+  public static int dkconfig_converged_samples = 0;
+
+  /**
+   * Integer. At a converged program point (see {@link #dkconfig_converged_samples}), one of every
+   * this many samples is applied.
+   */
+  public static int dkconfig_converged_sample_interval = 100;
 
   /** Ppt attributes (specified in decl records) */
   public enum PptFlags {
@@ -255,6 +266,18 @@ public class PptTopLevel extends Ppt {
 
   private int values_num_samples;
 
+  /**
+   * The number of consecutive samples, up to {@link #dkconfig_converged_samples}, that have not
+   * changed this ppt's invariants.
+   */
+  private transient int quiet_samples = 0;
+
+  /** When this ppt is converged, the number of samples until the next one that is applied. */
+  private transient int converged_countdown = 0;
+
+  /** The number of samples that were skipped because this ppt was converged. */
+  private transient long converged_skipped = 0;
+
   /** Keep track of which variables are valid (not missing) on each sample. */
   ModBitTracker mbtracker;
 
@@ -270,6 +293,23 @@ public class PptTopLevel extends Ppt {
    */
   private Map<List<Integer>, PptSlice> views;
 
+  /**
+   * The first slice_array_size elements are the values of {@link #views}, in the same order. Null
+   * if it must be recomputed from views, which happens when a slice is added or removed other than
+   * by {@link #add_bottom_up}. It lets add_bottom_up visit every slice several times per sample
+   * without iterating over, or copying, the map.
+   */
+  private transient PptSlice @Nullable [] slice_array = null;
+
+  /** The number of elements of slice_array that are in use; the rest are garbage. */
+  private transient int slice_array_size = 0;
+
+  /**
+   * For each variable, whether its value may be used by this ppt; see {@link #needed_vars}. Null
+   * if it must be recomputed, which happens whenever a slice is added or removed.
+   */
+  private transient boolean @Nullable [] needed_vars = null;
+
   /** List of all of the splitters for this ppt. */
   // Not List because List doesn't support the trimToSize() method.
   public @MonotonicNonNull ArrayList<PptSplitter> splitters = null;
@@ -551,9 +591,7 @@ public class PptTopLevel extends Ppt {
     if (vi1.is_static_constant) {
       return mbtracker.num_samples();
     }
-    BitSet b1 = mbtracker.get(vi1.value_index);
-    int num_slice_samples = b1.cardinality();
-    return num_slice_samples;
+    return mbtracker.num_present(vi1.value_index);
   }
 
   /** Return the number of samples where vi1 and vi2 are both present (not missing). */
@@ -564,10 +602,7 @@ public class PptTopLevel extends Ppt {
     if (vi2.is_static_constant) {
       return num_samples(vi1);
     }
-    BitSet b1 = mbtracker.get(vi1.value_index);
-    BitSet b2 = mbtracker.get(vi2.value_index);
-    int num_slice_samples = UtilPlume.intersectionCardinality(b1, b2);
-    return num_slice_samples;
+    return mbtracker.num_present(vi1.value_index, vi2.value_index);
   }
 
   /** Return the number of samples where vi1, vi2, and vi3 are all present (not missing). */
@@ -581,11 +616,7 @@ public class PptTopLevel extends Ppt {
     if (vi3.is_static_constant) {
       return num_samples(vi1, vi2);
     }
-    BitSet b1 = mbtracker.get(vi1.value_index);
-    BitSet b2 = mbtracker.get(vi2.value_index);
-    BitSet b3 = mbtracker.get(vi3.value_index);
-    int num_slice_samples = UtilPlume.intersectionCardinality(b1, b2, b3);
-    return num_slice_samples;
+    return mbtracker.num_present(vi1.value_index, vi2.value_index, vi3.value_index);
   }
 
   /** The number of distinct values that have been seen. */
@@ -618,7 +649,118 @@ public class PptTopLevel extends Ppt {
 
   // Get the actual views from the HashMap
   Collection<PptSlice> viewsAsCollection() {
-    return views.values();
+    return new ViewsCollection();
+  }
+
+  /**
+   * The values of {@link #views}. Removing a slice through it discards {@link #slice_array}, which
+   * would otherwise be out of date.
+   */
+  private final class ViewsCollection extends AbstractCollection<PptSlice> {
+    @Override
+    public int size() {
+      return views.size();
+    }
+
+    @Override
+    public Iterator<PptSlice> iterator() {
+      Iterator<PptSlice> itor = views.values().iterator();
+      return new Iterator<PptSlice>() {
+        @Override
+        public boolean hasNext() {
+          return itor.hasNext();
+        }
+
+        @Override
+        public PptSlice next() {
+          return itor.next();
+        }
+
+        @Override
+        public void remove() {
+          itor.remove();
+          slice_array = null;
+          needed_vars = null;
+        }
+      };
+    }
+  }
+
+  /**
+   * Returns an array whose first {@link #slice_array_size} elements are the slices of this ppt.
+   * The caller must not modify it.
+   */
+  private PptSlice[] slice_array() {
+    PptSlice[] result = slice_array;
+    if (result == null) {
+      result = views.values().toArray(new PptSlice[views.size()]);
+      slice_array = result;
+      slice_array_size = result.length;
+    }
+    return result;
+  }
+
+  /**
+   * Returns, for each variable, whether its value in the next sample may be used by this ppt: by
+   * a slice, by an equality set that has other members, or by the dynamic constants optimization,
+   * or to compute another such variable. Every variable is needed until the first sample has been
+   * processed. The caller must not modify the result.
+   *
+   * <p>A variable that is not needed stays that way unless a slice over it is added. Invariants
+   * over it are instantiated only when a suppression over it is falsified, and such a suppression
+   * can hold only if an invariant over it, or the dynamic constants optimization, still holds.
+   *
+   * @return for each variable, whether its value is needed
+   * @see FileIO#dkconfig_lazy_derived_variables
+   */
+  boolean[] needed_vars() {
+    boolean[] result = needed_vars;
+    if (result != null) {
+      return result;
+    }
+    result = new boolean[var_infos.length];
+    if (values_num_samples == 0
+        || (Daikon.use_equality_optimization && equality_view == null)
+        || (DynamicConstants.dkconfig_use_dynamic_constant_optimization && constants == null)) {
+      Arrays.fill(result, true);
+      return result;
+    }
+
+    PptSlice[] slices = slice_array();
+    for (int i = 0; i < slice_array_size; i++) {
+      for (VarInfo vi : slices[i].var_infos) {
+        result[vi.varinfo_index] = true;
+      }
+    }
+    if (equality_view != null) {
+      for (Invariant inv : equality_view.invs) {
+        Equality eq = (Equality) inv;
+        if (eq.size() > 1) {
+          for (VarInfo vi : eq.getVars()) {
+            result[vi.varinfo_index] = true;
+          }
+        }
+      }
+    }
+    // Derived variables follow the variables they are derived from.
+    for (int i = var_infos.length - 1; i >= 0; i--) {
+      VarInfo vi = var_infos[i];
+      if (vi.derived == null) {
+        result[i] = true;
+        continue;
+      }
+      if ((constants != null && (constants.is_constant(vi) || constants.is_missing(vi)))
+          || vi.derived.mayBecomeMissingOutOfBounds()) {
+        result[i] = true;
+      }
+      if (result[i]) {
+        for (VarInfo base : vi.derived.getBases()) {
+          result[base.varinfo_index] = true;
+        }
+      }
+    }
+    needed_vars = result;
+    return result;
   }
 
   // Quick access to the number of views, since the views variable is private
@@ -1008,6 +1150,43 @@ public class PptTopLevel extends Ppt {
     "NIS.all_suppressions"
   })
   public @Nullable Set<Invariant> add_bottom_up(ValueTuple vt, int count) {
+    return add_bottom_up(vt, count, combined_exit_parent());
+  }
+
+  /**
+   * Returns the combined exit program point to which the samples of this program point are also
+   * applied, or null if there is none. There is one only if the dataflow hierarchy is not used and
+   * this is a numbered exit point.
+   */
+  @Nullable PptTopLevel combined_exit_parent() {
+    if (Daikon.use_dataflow_hierarchy
+        || (this instanceof PptConditional)
+        || !ppt_name.isNumberedExitPoint()) {
+      return null;
+    }
+    return Daikon.all_ppts.get(ppt_name.makeExit());
+  }
+
+  /**
+   * Like {@link #add_bottom_up(ValueTuple,int)}, but with the combined exit parent already looked
+   * up. This permits samples to be processed without accessing {@code Daikon.all_ppts}, which may
+   * be concurrently modified while the trace file is read.
+   *
+   * @param vt the set of values for this to see
+   * @param count the number of samples that vt represents
+   * @param parent the result of {@link #combined_exit_parent()}
+   * @return the set of all invariants weakened or falsified by this sample
+   */
+  @SuppressWarnings({
+    "flowexpr.parse.error",
+    "nullness:contracts.precondition.not.satisfied"
+  }) // private field
+  @RequiresNonNull({
+    "NIS.suppressor_map",
+    "NIS.suppressor_map_suppression_count",
+    "NIS.all_suppressions"
+  })
+  @Nullable Set<Invariant> add_bottom_up(ValueTuple vt, int count, @Nullable PptTopLevel parent) {
     // Doable, but commented out for efficiency
     // repCheck();
 
@@ -1048,18 +1227,18 @@ public class PptTopLevel extends Ppt {
 
     // If we are not using the hierarchy and this is a numbered exit, also
     // apply these values to the combined exit
-    if (!Daikon.use_dataflow_hierarchy) {
-      // System.out.println ("ppt_name = " + ppt_name);
-      if (!(this instanceof PptConditional) && ppt_name.isNumberedExitPoint()) {
-        PptTopLevel parent = Daikon.all_ppts.get(ppt_name.makeExit());
-        if (parent != null) {
-          // System.out.println ("parent is " + parent.name());
-          parent.get_missingOutOfBounds(this, vt);
-          parent.add_bottom_up(vt, count);
-        }
-      }
+    if (parent != null) {
+      // System.out.println ("parent is " + parent.name());
+      parent.get_missingOutOfBounds(this, vt);
+      parent.add_bottom_up(vt, count);
     }
 
+    // Skip most samples once the invariants have stopped changing
+    if (dkconfig_converged_samples > 0 && skip_converged_sample(count)) {
+      return null;
+    }
+    int old_num_views = views.size();
+
     if (debugNISStats.isLoggable(Level.FINE)) NIS.clear_stats();
 
     // Set of invariants weakened by this sample
@@ -1156,12 +1335,21 @@ public class PptTopLevel extends Ppt {
         if (val == null) { // temporary, for debugging
           System.out.printf("Null value at index %s in ValueTuple %s, ValueSet=%s%n", i, vt, vs);
         }
-        vs.add(val);
+        if (val == ValueTuple.Scalar.LONG) {
+          ((ValueSet.ValueSetScalar) vs).add(vt.getLongValue(i));
+        } else if (val == ValueTuple.Scalar.DOUBLE) {
+          ((ValueSet.ValueSetFloat) vs).add(vt.getDoubleValue(i));
+        } else {
+          vs.add(val);
+        }
       }
     }
 
     // Add the sample to each slice
-    for (PptSlice slice : views_iterable()) {
+    PptSlice[] slices = slice_array();
+    int num_slices = slice_array_size;
+    for (int i = 0; i < num_slices; i++) {
+      PptSlice slice = slices[i];
       if (slice.invs.size() == 0) {
         continue;
       }
@@ -1171,7 +1359,7 @@ public class PptTopLevel extends Ppt {
     // Create any newly unsuppressed invariants
     NIS.process_falsified_invs(this, vt);
 
-    // NIS.newly_falsified is a list of invariants that are falsified by
+    // NIS.has_newly_falsified() tells whether any invariants were falsified by
     // the current sample when using the falsified method of processing
     // suppressions.  The newly falsified invariants are added back to
     // the slices so that they can be processed.  Thus, the falsified method
@@ -1181,14 +1369,15 @@ public class PptTopLevel extends Ppt {
     // ordered.  This loop should be executed at least once, regardless of
     // the algorithm for processing suppressions, hence the do loop.  For,
     // the antecedents method, the loop is executed only once because
-    // the NIS.newly_falsified list will be empty.
+    // NIS.has_newly_falsified() will be false.
 
     do {
-      // Remove any falsified invariants.  Make a copy of the original slices
-      // since NISuppressions will add new slices/invariants as others are
-      // falsified.
-      PptSlice[] slices = views.values().toArray(new @Nullable PptSlice[views.values().size()]);
-      for (int i = 0; i < slices.length; i++) {
+      // Remove any falsified invariants.  Only the slices that exist now are
+      // visited, since NISuppressions will add new slices/invariants as others
+      // are falsified.  Adding a slice does not change this array.
+      slices = slice_array();
+      num_slices = slice_array_size;
+      for (int i = 0; i < num_slices; i++) {
         slices[i].remove_falsified();
       }
 
@@ -1196,20 +1385,33 @@ public class PptTopLevel extends Ppt {
       // suppressions. This must happen before we remove slices without
       // invariants below.
       NIS.apply_samples(vt, count);
-      first_pass_with_sample = false;
-    } while (NIS.newly_falsified.size() != 0);
-
-    first_pass_with_sample = true;
+    } while (NIS.has_newly_falsified());
 
     // Remove slices from the list if all of their invariants have died.
-    // (Removal requires use of old-style for loop and Iterator.)
-    for (Iterator<PptSlice> itor = views_iterator(); itor.hasNext(); ) {
-      PptSlice view = itor.next();
+    // The survivors are moved down in slice_array, so it stays up to date.
+    slices = slice_array();
+    num_slices = slice_array_size;
+    int num_live = 0;
+    for (int i = 0; i < num_slices; i++) {
+      PptSlice view = slices[i];
       if (view.invs.size() == 0) {
-        itor.remove();
+        views.remove(sliceIndex(view.var_infos));
+        needed_vars = null;
         if (Global.debugInfer.isLoggable(Level.FINE)) {
           Global.debugInfer.fine("add(ValueTulple,int): slice died: " + name() + view.varNames());
         }
+      } else {
+        slices[num_live++] = view;
+      }
+    }
+    slice_array_size = num_live;
+
+    if (dkconfig_converged_samples > 0) {
+      if (weakened_invs.isEmpty() && views.size() == old_num_views) {
+        quiet_samples = Math.min(quiet_samples + count, dkconfig_converged_samples);
+      } else {
+        quiet_samples = 0;
+        converged_countdown = 0;
       }
     }
 
@@ -1234,6 +1436,36 @@ public class PptTopLevel extends Ppt {
     return weakened_invs;
   }
 
+  /**
+   * Returns true if a sample should be skipped because this ppt is converged, and counts it.
+   *
+   * @param count the number of samples that the sample represents
+   * @return true if the sample should not be applied
+   * @see #dkconfig_converged_samples
+   */
+  private boolean skip_converged_sample(int count) {
+    if (quiet_samples < dkconfig_converged_samples) {
+      return false;
+    }
+    if (converged_countdown > 0) {
+      converged_countdown--;
+      converged_skipped += count;
+      return true;
+    }
+    converged_countdown = dkconfig_converged_sample_interval - 1;
+    return false;
+  }
+
+  /**
+   * Returns the number of samples that were skipped because this ppt was converged.
+   *
+   * @return the number of skipped samples
+   * @see #dkconfig_converged_samples
+   */
+  public long converged_skipped_samples() {
+    return converged_skipped;
+  }
+
   /**
    * Adds a sample to each invariant in the list. Returns the list of weakened invariants. This
    * should only be called when the sample has already been added to the slice containing each
@@ -1586,6 +1818,8 @@ public class PptTopLevel extends Ppt {
     // slice.repCheck();
 
     views.put(sliceIndex(slice.var_infos), slice);
+    slice_array = null;
+    needed_vars = null;
     if (Debug.logOn()) slice.log("Adding slice");
   }
 
@@ -1593,6 +1827,8 @@ public class PptTopLevel extends Ppt {
   public void removeSlice(PptSlice slice) {
     Object o = views.remove(sliceIndex(slice.var_infos));
     assert o != null;
+    slice_array = null;
+    needed_vars = null;
   }
 
   /** Remove a list of invariants. */
@@ -2874,18 +3110,32 @@ public class PptTopLevel extends Ppt {
   public void mark_implied_via_simplify(PptMap all_ppts) {
     try {
       if (proverStack == null) proverStack = new LemmaStack();
-      markImpliedViaSimplify_int(
-          new SimplifyInclusionTester() {
-            @Override
-            public boolean include(Invariant inv) {
-              return InvariantFilters.defaultFilters().shouldKeep(inv) == null;
-            }
-          });
+      mark_implied_via_simplify(proverStack);
     } catch (SimplifyError e) {
       proverStack = null;
     }
   }
 
+  /**
+   * Use the given prover to flag invariants that are logically implied by others. Considers only
+   * invariants that pass isWorthPrinting. The prover is not shared with any other program point
+   * while this runs, so different program points may be processed concurrently, each with its own
+   * prover.
+   *
+   * @param prover the prover to use
+   * @throws SimplifyError if the prover fails; it should not be used again
+   */
+  public void mark_implied_via_simplify(LemmaStack prover) throws SimplifyError {
+    markImpliedViaSimplify_int(
+        prover,
+        new SimplifyInclusionTester() {
+          @Override
+          public boolean include(Invariant inv) {
+            return InvariantFilters.defaultFilters().shouldKeep(inv) == null;
+          }
+        });
+  }
+
   /**
    * Returns true if there was a problem with Simplify formatting (such as the invariant not having
    * a Simplify representation).
@@ -2900,10 +3150,11 @@ public class PptTopLevel extends Ppt {
    * Use the Simplify theorem prover to flag invariants that are logically implied by others. Uses
    * the provided test interface to determine if an invariant is within the domain of inspection.
    *
+   * @param prover the prover to use
    * @param test the predicate about whether an invariant is relevant
    */
-  @RequiresNonNull("proverStack")
-  private void markImpliedViaSimplify_int(SimplifyInclusionTester test) throws SimplifyError {
+  private void markImpliedViaSimplify_int(LemmaStack prover, SimplifyInclusionTester test)
+      throws SimplifyError {
     SessionManager.debugln("Simplify checking " + ppt_name);
 
     // Create the list of invariants from this ppt which are
@@ -2996,28 +3247,28 @@ public class PptTopLevel extends Ppt {
         // We could also consider testing if the controlling invariant
         // was removed by Simplify, but what would the point be?  Also,
         // these "intermediate goals" might help out Simplify.
-        proverStack.pushLemma(new InvariantLemma(inv));
+        prover.pushLemma(new InvariantLemma(inv));
 
         // If this is the :::OBJECT ppt, also restate all of them in
         // orig terms, since the conditions also held upon entry.
         if (ppt.ppt_name.isObjectInstanceSynthetic()) {
-          proverStack.pushLemma(InvariantLemma.makeLemmaAddOrig(inv));
+          prover.pushLemma(InvariantLemma.makeLemmaAddOrig(inv));
         }
       }
     }
 
-    if (proverStack.checkForContradiction() == 'T') {
+    if (prover.checkForContradiction() == 'T') {
       if (LemmaStack.dkconfig_remove_contradictions) {
         System.err.println(
             "Warning: " + ppt_name + " background is contradictory, removing some parts");
-        proverStack.removeContradiction();
+        prover.removeContradiction();
       } else {
         System.err.println("Warning: " + ppt_name + " background is contradictory, giving up");
         return;
       }
     }
 
-    int backgroundMark = proverStack.markLevel();
+    int backgroundMark = prover.markLevel();
 
     /*NNC:@MonotonicNonNull*/ InvariantLemma[] lemmas = new InvariantLemma[invs.length];
     for (int i = 0; i < invs.length; i++) {
@@ -3050,16 +3301,16 @@ public class PptTopLevel extends Ppt {
     }
 
     for (int i = 0; i < invs.length; i++) {
-      proverStack.pushLemma(lemmas[i]);
+      prover.pushLemma(lemmas[i]);
     }
 
     // If the background is necessarily false, we are in big trouble
-    if (proverStack.checkForContradiction() == 'T') {
+    if (prover.checkForContradiction() == 'T') {
       // Uncomment to punt on contradictions
       if (!LemmaStack.dkconfig_remove_contradictions) {
         System.err.println("Warning: " + ppt_name + " invariants are contradictory, giving up");
         if (LemmaStack.dkconfig_print_contradictions) {
-          LemmaStack.printLemmas(System.err, proverStack.minimizeContradiction());
+          LemmaStack.printLemmas(System.err, prover.minimizeContradiction());
         }
       }
       System.err.println("Warning: " + ppt_name + " invariants are contradictory, axing some");
@@ -3067,10 +3318,10 @@ public class PptTopLevel extends Ppt {
       int worstWheel = 0;
       do {
         // But try to recover anyway
-        List<Lemma> problems = proverStack.minimizeContradiction();
+        List<Lemma> problems = prover.minimizeContradiction();
         if (LemmaStack.dkconfig_print_contradictions) {
           System.err.println("Minimal set:");
-          LemmaStack.printLemmas(System.err, proverStack.minimizeContradiction());
+          LemmaStack.printLemmas(System.err, prover.minimizeContradiction());
           System.err.println();
         }
         if (problems.size() == 0) {
@@ -3101,7 +3352,7 @@ public class PptTopLevel extends Ppt {
         int index = worst.size() - 1 - offsetFromEnd;
         Lemma bad = worst.get(index);
         demerits.remove(bad);
-        proverStack.popToMark(backgroundMark);
+        prover.popToMark(backgroundMark);
         boolean isInvariant = false;
         for (int i = 0; i < lemmas.length; i++) {
           @SuppressWarnings("interning") // list membership
@@ -3110,46 +3361,47 @@ public class PptTopLevel extends Ppt {
             present[i] = false;
             isInvariant = true;
           } else if (present[i]) {
-            proverStack.pushLemma(lemmas[i]);
+            prover.pushLemma(lemmas[i]);
           }
         }
-        if (!isInvariant) proverStack.removeLemma(bad);
+        if (!isInvariant) prover.removeLemma(bad);
         if (LemmaStack.dkconfig_print_contradictions) {
           System.err.println("Removing " + bad.summarize());
         } else if (Daikon.no_text_output && Daikon.show_progress) {
           System.err.print("x");
         }
-      } while (proverStack.checkForContradiction() == 'T');
+      } while (prover.checkForContradiction() == 'T');
     }
 
-    proverStack.popToMark(backgroundMark);
+    prover.popToMark(backgroundMark);
 
-    flagRedundantRecursive(lemmas, present, 0, lemmas.length - 1);
+    flagRedundantRecursive(prover, lemmas, present, 0, lemmas.length - 1);
 
-    proverStack.clear();
+    prover.clear();
   }
 
   /**
    * Go though an array of invariants, marking those that can be proved as consequences of others as
    * redundant.
    *
+   * @param prover the prover to use
    * @param start first index to check, inclusive
    * @param end last index to check, inclusive
    */
-  @RequiresNonNull("proverStack")
   private void flagRedundantRecursive(
-      InvariantLemma[] lemmas, boolean[] present, int start, int end) throws SimplifyError {
+      LemmaStack prover, InvariantLemma[] lemmas, boolean[] present, int start, int end)
+      throws SimplifyError {
     assert start <= end;
 
     if (start == end) {
       // Base case: check a single invariant
       int checking = start;
-      if (proverStack.checkLemma(lemmas[checking]) == 'T') {
+      if (prover.checkLemma(lemmas[checking]) == 'T') {
         //         System.err.println("-------------------------");
         //         System.err.println(lemmas[checking].summarize() +
         //                            " is redundant because of");
         //         LemmaStack.printLemmas(System.err,
-        //                                proverStack.minimizeProof(lemmas[checking]));
+        //                                prover.minimizeProof(lemmas[checking]));
         flagRedundant(lemmas[checking].invariant);
         present[checking] = false;
       }
@@ -3159,20 +3411,20 @@ public class PptTopLevel extends Ppt {
       // Recursive case: divide and conquer
       int first_half_end = (start + end) / 2;
       int second_half_start = first_half_end + 1;
-      int mark = proverStack.markLevel();
+      int mark = prover.markLevel();
       // First, assume the first half and check the second half
       for (int i = start; i <= first_half_end; i++) {
-        if (present[i]) proverStack.pushLemma(lemmas[i]);
+        if (present[i]) prover.pushLemma(lemmas[i]);
       }
-      flagRedundantRecursive(lemmas, present, second_half_start, end);
-      proverStack.popToMark(mark);
+      flagRedundantRecursive(prover, lemmas, present, second_half_start, end);
+      prover.popToMark(mark);
       // Now, assume what's left of the second half, and check the
       // first half.
       for (int i = second_half_start; i <= end; i++) {
-        if (present[i]) proverStack.pushLemma(lemmas[i]);
+        if (present[i]) prover.pushLemma(lemmas[i]);
       }
-      flagRedundantRecursive(lemmas, present, start, first_half_end);
-      proverStack.popToMark(mark);
+      flagRedundantRecursive(prover, lemmas, present, start, first_half_end);
+      prover.popToMark(mark);
     }
   }
 
@@ -3593,7 +3845,10 @@ public class PptTopLevel extends Ppt {
       int child_mbsize = child_mbtracker.num_samples();
       // System.out.println("mergeInvs child #" + children.indexOf(rel) + "=" + rel.child.name() + "
       // has size " + child_mbsize + " for " + name());
-      for (int sampno = 0; sampno < child_mbsize; sampno++) {
+      // Samples in which no modbit changes are added together.
+      int sampno = 0;
+      while (sampno < child_mbsize) {
+        int run_length = child_mbtracker.run_length(sampno);
         Arrays.fill(mods, ValueTuple.MISSING_FLOW);
         for (int j = 0; j < var_infos.length; j++) {
           VarInfo parent_vi = var_infos[j];
@@ -3604,7 +3859,8 @@ public class PptTopLevel extends Ppt {
             }
           }
         }
-        mbtracker.add(vt, 1);
+        mbtracker.add(vt, run_length);
+        sampno += run_length;
       }
     }
 
@@ -4067,6 +4323,8 @@ public class PptTopLevel extends Ppt {
       var_infos[i].equalitySet = null;
     }
     views = new HashMap<>();
+    slice_array = null;
+    needed_vars = null;
     // parents = new ArrayList();
     // children = new ArrayList();
     invariants_merged = false;
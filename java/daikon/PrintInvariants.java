@@ -440,12 +440,14 @@ public final class PrintInvariants {
       throw new Daikon.UserError("Wrong number of arguments (expected 1)");
     }
 
-    // Read in the invariants
+    // Read in the invariants.  If only some ppts are printed, read just those (and the ppts that
+    // are stored with them), unless every ppt is needed for counting or discarded invariants.
     String filename = args[fileIndex];
     PptMap ppts =
         FileIO.read_serialized_pptmap(
-            new File(filename), true // use saved config
-            );
+            new File(filename),
+            true, // use saved config
+            (dkconfig_true_inv_cnt || print_discarded_invariants) ? null : ppt_regexp);
     // Setup the list of prototype invariants and initialize NIS suppressions
     Daikon.setup_proto_invs();
     Daikon.setup_NISuppression();
@@ -278,11 +278,6 @@ public final @Interned class ProglangType implements Serializable {
   static final @Interned Long LongZero = Intern.internedLong(0);
   static final @Interned Long LongOne = Intern.internedLong(1);
   static final @Interned Double DoubleZero = Intern.internedDouble(0);
-  static final @Interned Double DoubleNaN = Intern.internedDouble(Double.NaN);
-  static final @Interned Double DoublePositiveInfinity =
-      Intern.internedDouble(Double.POSITIVE_INFINITY);
-  static final @Interned Double DoubleNegativeInfinity =
-      Intern.internedDouble(Double.NEGATIVE_INFINITY);
 
   /*
    *  Now that all other static initialisers are done, it is safe to
@@ -365,15 +360,66 @@ public final @Interned class ProglangType implements Serializable {
    * array is considered to be nonsensical (indicated by returning null). This is not really
    * correct, but it is a reasonable path to take for now. (jhp, Feb 12, 2005)
    */
+  @SuppressWarnings("interning") // parse(..., true) interns its result
   public final @Nullable @Interned Object parse_value(
       String value, LineNumberReader reader, String filename) {
+    return parse(value, reader, filename, true);
+  }
+
+  /**
+   * Like {@link #parse_value}, but does not box an integer or a double. Such a value is stored in
+   * scalars[index], as {@link ValueTuple#scalars} holds it, and the {@link ValueTuple.Scalar} that
+   * stands for it is returned.
+   *
+   * <p>If intern is false, any other result is not canonicalized, so this may be called by several
+   * threads at once. (Strings, including the elements of arrays, are still interned.) Such a result
+   * must be passed to {@link Intern#intern(Object)} before it is used as the value of a variable.
+   *
+   * @param value the text of the value
+   * @param reader the file being read, for error messages
+   * @param filename the name of the file being read, for error messages
+   * @param intern if true, canonicalize a result that is not a Scalar
+   * @param scalars where to store an integer or a double
+   * @param index where in scalars to store it
+   * @return the value, a Scalar, or null if the value is nonsensical
+   */
+  @SuppressWarnings("interning") // parse(..., true) interns its result
+  public final @Nullable Object parse_value(
+      String value,
+      LineNumberReader reader,
+      String filename,
+      boolean intern,
+      long[] scalars,
+      int index) {
+    if (dimensions == 0) {
+      if ((base == BASE_INT) || (base == BASE_BOOLEAN)) {
+        if (value.equals("nonsensical")) {
+          return null;
+        }
+        scalars[index] = parse_int_value(value);
+        return ValueTuple.Scalar.LONG;
+      } else if (base == BASE_DOUBLE) {
+        scalars[index] = ValueTuple.doubleBits(parse_double_value(value));
+        return ValueTuple.Scalar.DOUBLE;
+      }
+    }
+    return parse(value, reader, filename, intern);
+  }
+
+  /**
+   * Implements {@link #parse_value}.
+   *
+   * @param intern if true, canonicalize the result
+   */
+  private @Nullable Object parse(
+      String value, LineNumberReader reader, String filename, boolean intern) {
     // System.out.println(format() + ".parse(\"" + value + "\")");
 
     switch (dimensions) {
       case 0:
-        return parse_value_scalar(value, reader, filename);
+        return parse_value_scalar(value, reader, filename, intern);
       case 1:
-        return parse_value_array_1d(value, reader, filename);
+        return parse_value_array_1d(value, reader, filename, intern);
       case 2:
         return parse_value_array_2d(value, reader, filename);
       default:
@@ -381,8 +427,60 @@ public final @Interned class ProglangType implements Serializable {
     }
   }
 
-  public final @Nullable @Interned Object parse_value_scalar(
-      String value, LineNumberReader reader, String filename) {
+  /**
+   * Returns a Long with the given value.
+   *
+   * @param value the value
+   * @param intern if true, return the canonical Long
+   */
+  private static Long longValue(long value, boolean intern) {
+    return intern ? Intern.internedLong(value) : Long.valueOf(value);
+  }
+
+  /**
+   * Parses the text of a value whose representation type is int, which may also be a boolean or a
+   * hashcode. The text must not be "nonsensical".
+   *
+   * @param value the text of the value
+   * @return the value
+   */
+  private static long parse_int_value(String value) {
+    // File rep type might be int, boolean, or hashcode.
+    // If we had the declared type, we could do error-checking here.
+    // (Example:  no hashcode should be negative, nor any boolean > 1.)
+    if (value.equals("false") || value.equals("0") || value.equals("null")) {
+      return 0;
+    }
+    if (value.equals("true") || value.equals("1")) {
+      return 1;
+    }
+    return myParseLong(value);
+  }
+
+  /**
+   * Parses the text of a value whose representation type is double.
+   *
+   * @param value the text of the value
+   * @return the value
+   */
+  private static double parse_double_value(String value) {
+    // Must ignore case, because dfej outputs "NaN", while dfec
+    // outputs "nan".  dfec outputs "nan", because this string
+    // comes from the C++ library.
+    if (value.equalsIgnoreCase("NaN")) {
+      return Double.NaN;
+    }
+    if (value.equalsIgnoreCase("Infinity") || value.equals("inf")) {
+      return Double.POSITIVE_INFINITY;
+    }
+    if (value.equalsIgnoreCase("-Infinity") || value.equals("-inf")) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    return Double.parseDouble(value);
+  }
+
+  private @Nullable Object parse_value_scalar(
+      String value, LineNumberReader reader, String filename, boolean intern) {
     // System.out.println(format() + ".parse(\"" + value + "\")");
 
     assert dimensions == 0;
@@ -423,46 +521,30 @@ public final @Interned class ProglangType implements Serializable {
         c = UtilPlume.unescapeJava(value).charAt(0);
       } else if ((value.length() == 4) && (value.charAt(0) == '\\')) {
         Byte b = Byte.decode("0" + value.substring(1));
-        return Intern.internedLong(b.longValue());
+        return longValue(b.longValue(), intern);
       } else {
         throw new IllegalArgumentException("Bad character: " + value);
       }
-      return Intern.internedLong(Character.getNumericValue(c));
+      return longValue(Character.getNumericValue(c), intern);
     }
     // When parse_value is called from FileIO.read_ppt_decl, we have
     // not set file_rep_type. Hence, rep_type is still file_rep_type
     // and BASE_BOOLEAN is legal.
     else if ((base == BASE_INT) || (base == BASE_BOOLEAN)) {
-      // File rep type might be int, boolean, or hashcode.
-      // If we had the declared type, we could do error-checking here.
-      // (Example:  no hashcode should be negative, nor any boolean > 1.)
       if (value.equals("nonsensical")) {
         return null;
       }
-      if (value.equals("false") || value.equals("0")) {
+      long result = parse_int_value(value);
+      if (result == 0) {
         return LongZero;
       }
-      if (value.equals("true") || value.equals("1")) {
+      if (result == 1) {
         return LongOne;
       }
-      if (value.equals("null")) {
-        return LongZero;
-      }
-      return Intern.internedLong(myParseLong(value));
+      return longValue(result, intern);
     } else if (base == BASE_DOUBLE) {
-      // Must ignore case, because dfej outputs "NaN", while dfec
-      // outputs "nan".  dfec outputs "nan", because this string
-      // comes from the C++ library.
-      if (value.equalsIgnoreCase("NaN")) {
-        return DoubleNaN;
-      }
-      if (value.equalsIgnoreCase("Infinity") || value.equals("inf")) {
-        return DoublePositiveInfinity;
-      }
-      if (value.equalsIgnoreCase("-Infinity") || value.equals("-inf")) {
-        return DoubleNegativeInfinity;
-      }
-      return Intern.internedDouble(value);
+      double result = parse_double_value(value);
+      return intern ? Intern.internedDouble(result) : Double.valueOf(result);
     } else if ((base == BASE_HASHCODE)
         || (base == BASE_LONG)
         || (base == BASE_LONG_LONG)
@@ -473,8 +555,8 @@ public final @Interned class ProglangType implements Serializable {
     }
   }
 
-  public final @Nullable @Interned Object parse_value_array_1d(
-      String value, LineNumberReader reader, String filename) {
+  private @Nullable Object parse_value_array_1d(
+      String value, LineNumberReader reader, String filename, boolean intern) {
     // System.out.println(format() + ".parse(\"" + value + "\")");
 
     String value_orig = value; // we will side-effect the parameter
@@ -551,7 +633,7 @@ public final @Interned class ProglangType implements Serializable {
           result[i] = myParseLong(value_strings[i]);
         }
       }
-      return Intern.intern(result);
+      return intern ? Intern.intern(result) : result;
     } else if (base == BASE_DOUBLE) {
       double[] result = new double[len];
       for (int i = 0; i < len; i++) {
@@ -568,12 +650,12 @@ public final @Interned class ProglangType implements Serializable {
           result[i] = Double.parseDouble(value_strings[i]);
         }
       }
-      return Intern.intern(result);
+      return intern ? Intern.intern(result) : result;
     } else if (base == BASE_STRING) {
       // First, intern each String in the array ...
       @Interned String[] value_strings_elts_interned = Intern.internStrings(value_strings);
       // ... then, intern the entire array, and return it
-      return Intern.intern(value_strings_elts_interned);
+      return intern ? Intern.intern(value_strings_elts_interned) : value_strings_elts_interned;
     } else {
       throw new Error("Can't yet parse array of base type " + base);
     }
@@ -589,7 +671,7 @@ public final @Interned class ProglangType implements Serializable {
 
   }
 
-  public final @Nullable @Interned Object parse_value_array_2d(
+  private @Nullable Object parse_value_array_2d(
       String value, LineNumberReader reader, String filename) {
     // System.out.println(format() + ".parse(\"" + value + "\")");
 
@@ -0,0 +1,116 @@
+package daikon;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Combines consecutive identical samples at a program point into a single sample with a count, so
+ * that a run of identical samples is applied to the equality sets, dynamic constants, and slices
+ * of the program point once rather than once per sample. Used when {@link
+ * FileIO#dkconfig_coalesce_samples} is true.
+ *
+ * <p>The last sample of each program point is held back until a different sample arrives for that
+ * program point, or until {@link #flush} is called. The samples of each program point are applied
+ * in the order in which they were read; program points are independent of each other while samples
+ * are processed, so the resulting invariants are the same as when every sample is applied on its
+ * own. Samples whose program point also passes them to a combined exit point (when the dataflow
+ * hierarchy is not used) are not held back, so that the combined exit point sees them in order.
+ *
+ * <p>Computing the derived variables of a sample can change the variables of its program point
+ * (see {@link VarInfo#missingOutOfBounds}), and that must not affect a sample that was read
+ * earlier. So {@link #before_derivation} applies the held sample of a program point before the
+ * derived variables of a sample that differs from it are computed.
+ *
+ * <p>Only the thread that reads the trace files may use a SampleCoalescer.
+ */
+final class SampleCoalescer {
+
+  /** Debug tracer. */
+  public static final Logger debug = Logger.getLogger("daikon.SampleCoalescer");
+
+  /** A sample that has not yet been applied, and the number of times it was seen in a row. */
+  private static final class Run {
+    /** The sample values, including derived variables. */
+    ValueTuple vt;
+
+    /** The number of consecutive samples at the program point with these values. */
+    int count;
+
+    /**
+     * Creates a run of one sample.
+     *
+     * @param vt the sample values
+     */
+    Run(ValueTuple vt) {
+      this.vt = vt;
+      this.count = 1;
+    }
+  }
+
+  /** Map from each program point to its sample that has not yet been applied. */
+  private final Map<PptTopLevel, Run> pending = new IdentityHashMap<>();
+
+  /** The number of samples that were folded into an earlier identical sample. */
+  private long coalesced = 0;
+
+  /**
+   * Applies the held sample of a program point unless the next sample, whose derived variables
+   * have not been computed yet, has the same values for the other variables. Must be called before
+   * the derived variables of the next sample are computed.
+   *
+   * @param ppt the program point
+   * @param vt the next sample; only the values and modbits of non-derived variables are used
+   */
+  void before_derivation(PptTopLevel ppt, ValueTuple vt) {
+    Run run = pending.get(ppt);
+    if (run == null) {
+      return;
+    }
+    int num_vals = ppt.num_orig_vars + ppt.num_tracevars;
+    for (int i = 0; i < num_vals; i++) {
+      if (!run.vt.sameValue(i, vt, i) || run.vt.mods[i] != vt.mods[i]) {
+        FileIO.apply_sample(ppt, run.vt, run.count);
+        pending.remove(ppt);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Adds a sample. Applies the previous sample of the program point if it differs from this one.
+   *
+   * @param ppt the program point
+   * @param vt the sample values, including derived variables; interned
+   */
+  void add(PptTopLevel ppt, ValueTuple vt) {
+    if (ppt.combined_exit_parent() != null) {
+      FileIO.apply_sample(ppt, vt, 1);
+      return;
+    }
+    Run run = pending.get(ppt);
+    if (run == null) {
+      pending.put(ppt, new Run(vt));
+    } else if (run.count < Integer.MAX_VALUE && run.vt.equals(vt)) {
+      run.count++;
+      coalesced++;
+    } else {
+      FileIO.apply_sample(ppt, run.vt, run.count);
+      run.vt = vt;
+      run.count = 1;
+    }
+  }
+
+  /** Applies every sample that has been held back. */
+  void flush() {
+    for (Map.Entry<PptTopLevel, Run> entry : pending.entrySet()) {
+      Run run = entry.getValue();
+      FileIO.apply_sample(entry.getKey(), run.vt, run.count);
+    }
+    pending.clear();
+    if (debug.isLoggable(Level.FINE)) {
+      debug.fine(coalesced + " samples coalesced so far");
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package daikon;
+
+import org.checkerframework.checker.interning.qual.Interned;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.nullness.qual.PolyNull;
+import org.plumelib.util.Intern;
+
+/**
+ * Synchronized versions of the {@link Intern} methods that are called while samples are applied to
+ * invariants. {@link Intern} is not thread-safe (even {@link Intern#isInterned} modifies its
+ * tables), so when program points are processed by several threads (see {@link
+ * FileIO#dkconfig_inference_threads}), every use of {@link Intern} must hold the lock on {@code
+ * Intern.class}. Code that interns many values at once, such as the trace file reader, may instead
+ * synchronize on {@code Intern.class} directly.
+ */
+public final class SyncIntern {
+
+  /** Do not instantiate. */
+  private SyncIntern() {
+    throw new Error("do not instantiate");
+  }
+
+  /**
+   * Synchronized version of {@link Intern#intern(long[])}.
+   *
+   * @param a the array to intern
+   * @return a canonical representation for the array
+   */
+  public static long @Interned @PolyNull [] intern(long @PolyNull [] a) {
+    synchronized (Intern.class) {
+      return Intern.intern(a);
+    }
+  }
+
+  /**
+   * Synchronized version of {@link Intern#intern(double[])}.
+   *
+   * @param a the array to intern
+   * @return a canonical representation for the array
+   */
+  public static double @Interned @PolyNull [] intern(double @PolyNull [] a) {
+    synchronized (Intern.class) {
+      return Intern.intern(a);
+    }
+  }
+
+  /**
+   * Synchronized version of {@link Intern#intern(String[])}.
+   *
+   * @param a the array to intern; its elements must be interned
+   * @return a canonical representation for the array
+   */
+  public static @PolyNull @Interned String @Interned [] intern(@PolyNull @Interned String[] a) {
+    synchronized (Intern.class) {
+      return Intern.intern(a);
+    }
+  }
+
+  /**
+   * Synchronized version of {@link Intern#internedLong(long)}.
+   *
+   * @param i the value to intern
+   * @return a canonical Long with value i
+   */
+  public static @Interned Long internedLong(long i) {
+    synchronized (Intern.class) {
+      return Intern.internedLong(i);
+    }
+  }
+
+  /**
+   * Synchronized version of {@link Intern#internedDouble(double)}.
+   *
+   * @param d the value to intern
+   * @return a canonical Double with value d
+   */
+  public static @Interned Double internedDouble(double d) {
+    synchronized (Intern.class) {
+      return Intern.internedDouble(d);
+    }
+  }
+
+  /**
+   * Interns a variable value that was read from a serialized file. Deserialization does not intern
+   * the elements of a String[], which {@link Intern#intern(Object)} requires, so they are interned
+   * first.
+   *
+   * @param value the value to intern
+   * @return a canonical representation for the value
+   */
+  public static @Interned Object internDeserialized(Object value) {
+    synchronized (Intern.class) {
+      if (value instanceof String[]) {
+        return Intern.intern(Intern.internStrings((String[]) value));
+      }
+      return Intern.intern(value);
+    }
+  }
+
+  /**
+   * Synchronized version of {@link Intern#isInterned(Object)}.
+   *
+   * @param value the value to test
+   * @return true if value is interned
+   */
+  public static boolean isInterned(@Nullable Object value) {
+    synchronized (Intern.class) {
+      return Intern.isInterned(value);
+    }
+  }
+}
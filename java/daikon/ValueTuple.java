@@ -11,24 +11,41 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.dataflow.qual.Pure;
 import org.checkerframework.dataflow.qual.SideEffectFree;
 import org.plumelib.util.ArraysPlume;
-import org.plumelib.util.Intern;
 import org.plumelib.util.MathPlume;
 
 /**
  * This data structure holds a tuple of values for a particular program point. VarInfo objects can
  * use this to get the values of the variables they represent.
  *
- * <p>It has two fields: vals and mods. While the arrays and their elements are interned, the
- * ValueTuple objects themselves are not interned.
+ * <p>It has three fields: vals, scalars, and mods. The elements of vals are interned, but neither
+ * the arrays nor the ValueTuple objects themselves are interned. An integer or double that was read
+ * from a trace file is not boxed: its element of vals is a {@link Scalar}, and its value is in
+ * scalars. {@link #getValue(int)} boxes and interns such a value when a caller needs an Object.
  */
 public final class ValueTuple implements Cloneable {
 
   /** Debug tracer. */
   public static Logger debug = Logger.getLogger("daikon.ValueTuple");
 
-  // These arrays are interned, and so are their elements.
+  // The elements of this array are interned.
   // Each element is null only if it is missing (according to the mods array).
-  public @Nullable @Interned Object @Interned [] vals;
+  // An element that is a Scalar stands for the value in the same element of scalars.
+  public @Nullable @Interned Object[] vals;
+
+  /**
+   * For each element of vals that is a {@link Scalar}, its value: the integer itself, or the bits
+   * of the double as returned by {@link #doubleBits}. The other elements are unused. Null if no
+   * element of vals is a Scalar.
+   */
+  public long @Nullable [] scalars;
+
+  /** Stands, in {@link #vals}, for a value that is stored in {@link #scalars} instead. */
+  public enum Scalar {
+    /** An integer. */
+    LONG,
+    /** A double. */
+    DOUBLE
+  }
 
   // Could consider putting the mods array in the first slot of "vals", to
   // avoid the Object overhead of a pair of val and mods.
@@ -37,7 +54,7 @@ public final class ValueTuple implements Cloneable {
    * Modification bit per value, possibly packed into fewer ints than the vals field. Don't use a
    * single int because that won't scale to (say) more than 32 values.
    */
-  public int @Interned [] mods;
+  public int[] mods;
 
   // Right now there are only three meaningful values for a mod:
   /** Not modified. */
@@ -300,7 +317,7 @@ public final class ValueTuple implements Cloneable {
    */
   @Interned Object getValue(int val_index) {
     @SuppressWarnings("nullness") // context: precondition requires that the value isn't missing
-    @NonNull Object result = vals[val_index];
+    @NonNull Object result = getValueOrNull(val_index);
     assert result != null;
     return result;
   }
@@ -309,41 +326,206 @@ public final class ValueTuple implements Cloneable {
    * Get the value at the val_index, or null if it is missing. Use of this method is (doubly)
    * discouraged.
    *
+   * <p>If the value is stored in {@link #scalars}, it is boxed and interned, and the result
+   * replaces the Scalar in vals, so that it is boxed only once. Another thread that reads the
+   * element sees either the Scalar or the equal interned box, and treats them alike.
+   *
    * @see #getValue(int)
    */
   @Nullable @Interned Object getValueOrNull(int val_index) {
     Object result = vals[val_index];
+    if (result instanceof Scalar) {
+      assert scalars != null : "@AssumeAssertion(nullness): dependent: vals contains a Scalar";
+      long bits = scalars[val_index];
+      if (result == Scalar.LONG) {
+        result = SyncIntern.internedLong(bits);
+      } else {
+        result = SyncIntern.internedDouble(Double.longBitsToDouble(bits));
+      }
+      vals[val_index] = result;
+    }
     return result;
   }
 
+  /**
+   * Returns the integer at val_index, which must not be missing, without boxing it.
+   *
+   * @param val_index the index of an integer value
+   * @return the value at val_index
+   */
+  long getLongValue(int val_index) {
+    Object val = vals[val_index];
+    if (val == Scalar.LONG) {
+      assert scalars != null : "@AssumeAssertion(nullness): dependent: vals contains a Scalar";
+      return scalars[val_index];
+    }
+    assert val != null : "missing value at index " + val_index;
+    return ((Long) val).longValue();
+  }
+
+  /**
+   * Returns the double at val_index, which must not be missing, without boxing it.
+   *
+   * @param val_index the index of a double value
+   * @return the value at val_index
+   */
+  double getDoubleValue(int val_index) {
+    Object val = vals[val_index];
+    if (val == Scalar.DOUBLE) {
+      assert scalars != null : "@AssumeAssertion(nullness): dependent: vals contains a Scalar";
+      return Double.longBitsToDouble(scalars[val_index]);
+    }
+    assert val != null : "missing value at index " + val_index;
+    return ((Double) val).doubleValue();
+  }
+
+  /**
+   * Returns true if the value at val_index is an integer or a double, whether or not it is boxed.
+   *
+   * @param val_index an index into vals
+   * @return true if the value at val_index is numeric and not an array
+   */
+  boolean isScalar(int val_index) {
+    Object val = vals[val_index];
+    return (val instanceof Scalar) || (val instanceof Long) || (val instanceof Double);
+  }
+
+  /**
+   * Returns the kind of the numeric value at val_index, or null if it is not an integer or a
+   * double.
+   */
+  private @Nullable Scalar scalarKind(@GuardSatisfied ValueTuple this, int val_index) {
+    Object val = vals[val_index];
+    if (val instanceof Scalar) {
+      return (Scalar) val;
+    } else if (val instanceof Long) {
+      return Scalar.LONG;
+    } else if (val instanceof Double) {
+      return Scalar.DOUBLE;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the value at val_index, whose {@link #scalarKind} is non-null, as it would be stored
+   * in {@link #scalars}.
+   */
+  private long scalarBits(@GuardSatisfied ValueTuple this, int val_index) {
+    Object val = vals[val_index];
+    if (val instanceof Scalar) {
+      assert scalars != null : "@AssumeAssertion(nullness): dependent: vals contains a Scalar";
+      return scalars[val_index];
+    } else if (val instanceof Long) {
+      return ((Long) val).longValue();
+    } else {
+      return doubleBits(((Double) val).doubleValue());
+    }
+  }
+
+  /**
+   * Returns true if the values at the two indices are the same, as interned values would be
+   * compared with ==. Two missing values are the same.
+   *
+   * @param i an index into vals
+   * @param j an index into vals
+   * @return true if the values at i and j are the same
+   */
+  @Pure
+  boolean sameValue(int i, int j) {
+    return sameValue(i, this, j);
+  }
+
+  /**
+   * Returns true if the value at index i of this and the value at index j of other are the same,
+   * as interned values would be compared with ==. Two missing values are the same.
+   *
+   * @param i an index into vals
+   * @param other a ValueTuple
+   * @param j an index into other.vals
+   * @return true if the value at i and the value at j of other are the same
+   */
+  @Pure
+  boolean sameValue(
+      @GuardSatisfied ValueTuple this, int i, @GuardSatisfied ValueTuple other, int j) {
+    Object vi = vals[i];
+    Object vj = other.vals[j];
+    if (!(vi instanceof Scalar) && !(vj instanceof Scalar)) {
+      return vi == vj;
+    }
+    Scalar kind = scalarKind(i);
+    return (kind != null)
+        && (kind == other.scalarKind(j))
+        && (scalarBits(i) == other.scalarBits(j));
+  }
+
+  /**
+   * Returns true if the value at val_index is val, as interned values would be compared with ==.
+   *
+   * @param val_index an index into vals
+   * @param val an interned value, or null for a missing value
+   * @return true if the value at val_index is val
+   */
+  @Pure
+  boolean hasValue(int val_index, @Nullable @Interned Object val) {
+    Object mine = vals[val_index];
+    if (mine == Scalar.LONG) {
+      assert scalars != null : "@AssumeAssertion(nullness): dependent: vals contains a Scalar";
+      return (val instanceof Long) && ((Long) val).longValue() == scalars[val_index];
+    } else if (mine == Scalar.DOUBLE) {
+      assert scalars != null : "@AssumeAssertion(nullness): dependent: vals contains a Scalar";
+      return (val instanceof Double)
+          && doubleBits(((Double) val).doubleValue()) == scalars[val_index];
+    } else {
+      return mine == val;
+    }
+  }
+
+  /**
+   * Returns the bits that represent d in {@link #scalars}. Like interning, this treats every NaN
+   * alike and treats -0.0 as 0.0, so two doubles have the same bits if and only if their interned
+   * boxes are the same.
+   *
+   * @param d a double
+   * @return the bits of d, with NaN and zero canonicalized
+   */
+  public static long doubleBits(double d) {
+    return (d == 0) ? 0L : Double.doubleToLongBits(d);
+  }
+
   public void checkRep(@UnknownInitialization(ValueTuple.class) ValueTuple this) {
     assert vals.length == mods.length;
+    assert scalars == null || scalars.length == vals.length;
     for (int i = 0; i < vals.length; i++) {
       assert 0 <= mods[i] && mods[i] < MODBIT_VALUES
           : String.format("mods: %s i:%d mods[i]: %s%n", Arrays.toString(mods), i, mods[i]);
       assert (isMissing(i) ? vals[i] == null : true);
+      assert !(vals[i] instanceof Scalar) || scalars != null;
     }
   }
 
-  /** Default constructor that interns its argument. */
+  /**
+   * Default constructor. The elements of vals must be interned, and neither array may be modified
+   * afterward.
+   *
+   * @param vals the values; none may be a {@link Scalar}
+   * @param mods the modbits
+   */
   public ValueTuple(@Nullable @Interned Object[] vals, int[] mods) {
-    this.vals = Intern.intern(vals);
-    this.mods = Intern.intern(mods);
-    checkRep();
+    this(vals, null, mods);
   }
 
   /**
-   * Private constructor that doesn't perform interning.
+   * Creates a ValueTuple. The elements of vals must be interned, and none of the arrays may be
+   * modified afterward.
    *
    * @param vals the values
+   * @param scalars the values that stand for each {@link Scalar} in vals, or null if there is none
    * @param mods the modbits
-   * @param check if true, require vals and mods to be interned
    */
-  @SuppressWarnings("interning") // interning constructor
-  private ValueTuple(@Nullable Object[] vals, int[] mods, boolean check) {
-    assert !check || Intern.isInterned(vals);
-    assert !check || Intern.isInterned(mods);
+  public ValueTuple(@Nullable @Interned Object[] vals, long @Nullable [] scalars, int[] mods) {
     this.vals = vals;
+    this.scalars = scalars;
     this.mods = mods;
     checkRep();
   }
@@ -357,30 +539,43 @@ public final class ValueTuple implements Cloneable {
   }
 
   /**
-   * More convenient name for the constructor that doesn't intern. That is, the result is an
+   * Makes a partial ValueTuple whose vals may still be filled in. That is, the result is an
    * <b>uninterned</b> ValueTuple.
    *
    * <p>This is not private because it is used (only) by read_data_trace_file, which makes a partial
-   * ValueTuple, fills it in with derived variables, and only then interns it; the alternative would
-   * be for derived variables to take separate vals and mods arguments. No one else should use it!
+   * ValueTuple, fills it in with derived variables, and only then makes the final ValueTuple; the
+   * alternative would be for derived variables to take separate vals and mods arguments. No one
+   * else should use it!
    */
+  @SuppressWarnings("interning") // the values are interned before the ValueTuple is used
   public static ValueTuple makeUninterned(@Nullable Object[] vals, int[] mods) {
-    return new ValueTuple(vals, mods, false);
+    return new ValueTuple(vals, mods);
   }
 
-  /** Constructor that takes already-interned arguments. */
-  static ValueTuple makeFromInterned(@Nullable @Interned Object @Interned [] vals, int[] mods) {
-    return new ValueTuple(vals, mods, true);
+  /**
+   * Like {@link #makeUninterned(Object[], int[])}, for values that may be stored in scalars.
+   *
+   * @param vals the values
+   * @param scalars the values that stand for each {@link Scalar} in vals, or null if there is none
+   * @param mods the modbits
+   * @return a ValueTuple whose vals may still be filled in
+   */
+  @SuppressWarnings("interning") // the values are interned before the ValueTuple is used
+  public static ValueTuple makeUninterned(
+      @Nullable Object[] vals, long @Nullable [] scalars, int[] mods) {
+    return new ValueTuple(vals, scalars, mods);
   }
 
   // Like clone(), but avoids its problems of default access and returning
   // an Object.
   public ValueTuple shallowcopy() {
-    return ValueTuple.makeFromInterned(vals, mods);
+    return new ValueTuple(vals, scalars, mods);
   }
 
   // These definitions are intended to make different ValueTuples with the
-  // same contents compare identically.
+  // same contents compare identically.  The values are interned, so they
+  // can be compared with ==, except that a Scalar and the box of the same
+  // value are equal.
   @EnsuresNonNullIf(result = true, expression = "#1")
   @Pure
   @Override
@@ -389,13 +584,32 @@ public final class ValueTuple implements Cloneable {
       return false;
     }
     ValueTuple other = (ValueTuple) obj;
-    return (vals == other.vals) && (mods == other.mods);
+    if (vals.length != other.vals.length || !Arrays.equals(mods, other.mods)) {
+      return false;
+    }
+    for (int i = 0; i < vals.length; i++) {
+      if (!sameValue(i, other, i)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Pure
   @Override
   public int hashCode(@GuardSatisfied ValueTuple this) {
-    return Arrays.hashCode(vals) * 31 + Arrays.hashCode(mods);
+    int result = 1;
+    for (int i = 0; i < vals.length; i++) {
+      Object val = vals[i];
+      int val_hash;
+      if (scalarKind(i) != null) {
+        val_hash = Long.hashCode(scalarBits(i));
+      } else {
+        val_hash = (val == null) ? 0 : val.hashCode();
+      }
+      result = result * 31 + val_hash;
+    }
+    return result * 31 + Arrays.hashCode(mods);
   }
 
   @Pure
@@ -410,8 +624,9 @@ public final class ValueTuple implements Cloneable {
   /** Return a new ValueTuple containing this one's first len elements. */
   public ValueTuple trim(int len) {
     @Nullable @Interned Object[] new_vals = ArraysPlume.subarray(vals, 0, len);
+    long[] new_scalars = (scalars == null) ? null : Arrays.copyOf(scalars, len);
     int[] new_mods = ArraysPlume.subarray(mods, 0, len);
-    return new ValueTuple(new_vals, new_mods);
+    return new ValueTuple(new_vals, new_scalars, new_mods);
   }
 
   @SideEffectFree
@@ -435,6 +650,13 @@ public final class ValueTuple implements Cloneable {
         sb.append(vis[i].name() + "=");
       }
       Object val = vals[i];
+      if (val instanceof Scalar) {
+        assert scalars != null : "@AssumeAssertion(nullness): dependent: vals contains a Scalar";
+        val =
+            (val == Scalar.LONG)
+                ? (Object) scalars[i]
+                : (Object) Double.longBitsToDouble(scalars[i]);
+      }
       int mod = mods[i];
       switch (mod) {
         case UNMODIFIED:
@@ -502,11 +724,15 @@ public final class ValueTuple implements Cloneable {
   public ValueTuple slice(int[] indices) {
     int new_len = indices.length;
     @Nullable @Interned Object[] new_vals = new @Nullable @Interned Object[new_len];
+    long[] new_scalars = (scalars == null) ? null : new long[new_len];
     int[] new_mods = new int[new_len];
     for (int i = 0; i < new_len; i++) {
       new_vals[i] = vals[indices[i]];
+      if (new_scalars != null) {
+        new_scalars[i] = scalars[indices[i]];
+      }
       new_mods[i] = mods[indices[i]];
     }
-    return new ValueTuple(new_vals, new_mods);
+    return new ValueTuple(new_vals, new_scalars, new_mods);
   }
 }
@@ -1354,6 +1354,55 @@ public final @Interned class VarInfo implements Cloneable, Serializable {
     }
   }
 
+  /**
+   * Returns true if the value of this variable in vt is an integer or a double. Its value can then
+   * be read without boxing by {@link #getIntValue} or {@link #getDoubleValue}.
+   *
+   * @param vt the ValueTuple from which to extract the value
+   * @return true if the value of this variable in vt is a non-missing integer or double
+   */
+  public boolean isScalarValue(ValueTuple vt) {
+    if (is_static_constant) {
+      return (static_constant_value instanceof Long) || (static_constant_value instanceof Double);
+    } else {
+      return vt.isScalar(value_index);
+    }
+  }
+
+  /**
+   * Returns true if this variable and other have the same value in vt, as their interned values
+   * would be compared with ==, without boxing the values. Two missing values are the same.
+   *
+   * @param vt the ValueTuple from which to extract the values
+   * @param other another variable of the same program point
+   * @return true if the values of this and other in vt are the same
+   */
+  public boolean hasSameValue(ValueTuple vt, VarInfo other) {
+    if (is_static_constant) {
+      return other.hasValue(vt, static_constant_value);
+    } else if (other.is_static_constant) {
+      return hasValue(vt, other.static_constant_value);
+    } else {
+      return vt.sameValue(value_index, other.value_index);
+    }
+  }
+
+  /**
+   * Returns true if the value of this variable in vt is val, as interned values would be compared
+   * with ==, without boxing the value.
+   *
+   * @param vt the ValueTuple from which to extract the value
+   * @param val an interned value, or null for a missing value
+   * @return true if the value of this variable in vt is val
+   */
+  public boolean hasValue(ValueTuple vt, @Nullable @Interned Object val) {
+    if (is_static_constant) {
+      return static_constant_value == val;
+    } else {
+      return vt.hasValue(value_index, val);
+    }
+  }
+
   /**
    * Returns the parent relation with the specified parent_relation_id; returns null if the relation
    * is not specified.
@@ -1393,23 +1442,15 @@ public final @Interned class VarInfo implements Cloneable, Serializable {
 
   /** Return the value of this long variable (as an integer) */
   public int getIndexValue(ValueTuple vt) {
-    Object raw = getValue(vt);
-    if (raw == null) {
-      throw new Error(
-          "getIndexValue: getValue returned null "
-              + this.name()
-              + " index="
-              + this.varinfo_index
-              + " vt="
-              + vt);
-    }
-    return ((Long) raw).intValue();
+    return (int) getIntValue(vt);
   }
 
   /** Return the value of this long variable (as a long) */
   public long getIntValue(ValueTuple vt) {
-    Object raw = getValue(vt);
-    if (raw == null) {
+    if (is_static_constant) {
+      return ((Long) getValue(vt)).longValue();
+    }
+    if (vt.vals[value_index] == null) {
       throw new Error(
           "getIntValue: getValue returned null "
               + this.name()
@@ -1418,7 +1459,7 @@ public final @Interned class VarInfo implements Cloneable, Serializable {
               + " vt="
               + vt);
     }
-    return ((Long) raw).longValue();
+    return vt.getLongValue(value_index);
   }
 
   /** Return the value of an long[] variable. */
@@ -1438,8 +1479,10 @@ public final @Interned class VarInfo implements Cloneable, Serializable {
 
   /** Return the value of a double variable. */
   public double getDoubleValue(ValueTuple vt) {
-    Object raw = getValue(vt);
-    if (raw == null) {
+    if (is_static_constant) {
+      return ((Double) getValue(vt)).doubleValue();
+    }
+    if (vt.vals[value_index] == null) {
       throw new Error(
           "getDoubleValue: getValue returned null "
               + this.name()
@@ -1448,7 +1491,7 @@ public final @Interned class VarInfo implements Cloneable, Serializable {
               + " vt="
               + vt);
     }
-    return ((Double) raw).doubleValue();
+    return vt.getDoubleValue(value_index);
   }
 
   /** Return the value of a double[] variable. */
@@ -442,17 +442,20 @@ public abstract @Interned class VarInfoName implements Serializable, Comparable<
       new WeakHashMap<>();
   // This does not make any guarantee that the components of the
   // VarInfoName are themselves interned.  Should it?  (I suspect so...)
+  // Synchronized because names may be formatted on several threads.
   @InternMethod
   public VarInfoName intern() {
-    WeakReference<VarInfoName> ref = internTable.get(this);
-    if (ref != null) {
-      VarInfoName result = ref.get();
-      return result;
-    } else {
-      @SuppressWarnings("interning") // intern method
-      @Interned VarInfoName this_interned = this;
-      internTable.put(this_interned, new WeakReference<>(this_interned));
-      return this_interned;
+    synchronized (internTable) {
+      WeakReference<VarInfoName> ref = internTable.get(this);
+      if (ref != null) {
+        VarInfoName result = ref.get();
+        return result;
+      } else {
+        @SuppressWarnings("interning") // intern method
+        @Interned VarInfoName this_interned = this;
+        internTable.put(this_interned, new WeakReference<>(this_interned));
+        return this_interned;
+      }
     }
   }
 
@@ -0,0 +1,394 @@
+package daikon.chicory;
+
+import daikon.Chicory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * The traversal of a program point's tree of {@link DaikonVariableInfo}s, flattened into a list of
+ * steps. It is compiled once per tree, the first time a sample of the program point is captured,
+ * and then run for each sample in place of the recursive walk over the tree.
+ *
+ * <p>Each step computes the value of one variable from the value of an earlier step (its parent in
+ * the tree) and, if the variable is printed, adds it to the sample. A field is read through a
+ * {@link MethodHandle} rather than through reflection, and the value of a primitive field that has
+ * no children is written directly to the sample, without a {@link Runtime.PrimitiveWrapper}. Every
+ * other variable is computed and printed by its DaikonVariableInfo, as in the recursive walk.
+ *
+ * <p>The output is the same as that of the recursive walk in {@link DTraceWriter}.
+ */
+final class AccessorProgram {
+
+  /** The value of a variable whose parent has no value. */
+  private static final Object nonsenseValue = NonsensicalObject.getInstance();
+
+  /** The printed value and modbit of a primitive variable whose parent has no value. */
+  private static final String nonsensicalValueAndMod = "nonsensical" + DaikonWriter.lineSep + "2";
+
+  // The kinds of step.
+
+  /** The return value. */
+  private static final int RETURN = 0;
+  /** The receiver. */
+  private static final int THIS = 1;
+  /** A parameter. */
+  private static final int PARAMETER = 2;
+  /** A variable that has no value, such as the holder of the static fields. */
+  private static final int NO_VALUE = 3;
+  /** A variable computed by {@link DaikonVariableInfo#getMyValFromParentVal}. */
+  private static final int GENERIC = 4;
+  /** A reference-typed field, or a primitive field whose value is used by a later step. */
+  private static final int FIELD = 5;
+  /** A printed primitive field whose value is not used by a later step. */
+  private static final int PRIMITIVE_FIELD = 6;
+
+  /** The steps, in the order in which the recursive walk visits their variables. */
+  private final Step[] steps;
+
+  /** One variable of the tree. */
+  private static final class Step {
+    /** The kind of step: one of the constants above. */
+    final int kind;
+
+    /** The variable. */
+    final DaikonVariableInfo info;
+
+    /** The name of the variable. */
+    final String name;
+
+    /** The index of the step that computes the parent value, or -1 for a top-level variable. */
+    final int parent;
+
+    /** True if the variable is printed. */
+    final boolean print;
+
+    /** For a PARAMETER, the index of the argument. */
+    final int arg_num;
+
+    /** For a FIELD or PRIMITIVE_FIELD, the field. */
+    final @Nullable Field field;
+
+    /**
+     * For a FIELD or PRIMITIVE_FIELD, reads the field. Its type is {@code (Object)T} for an
+     * instance field or {@code ()T} for a static field, where T is the field's type if it is
+     * primitive and Object otherwise.
+     */
+    final @Nullable MethodHandle getter;
+
+    /** For a FIELD or PRIMITIVE_FIELD, the type of the field. */
+    final @Nullable Class<?> type;
+
+    /** For a FIELD or PRIMITIVE_FIELD, true if the field is static. */
+    final boolean is_static;
+
+    Step(
+        int kind,
+        DaikonVariableInfo info,
+        int parent,
+        boolean print,
+        int arg_num,
+        @Nullable Field field,
+        @Nullable MethodHandle getter) {
+      this.kind = kind;
+      this.info = info;
+      this.name = info.getName();
+      this.parent = parent;
+      this.print = print;
+      this.arg_num = arg_num;
+      this.field = field;
+      this.getter = getter;
+      this.type = (field == null) ? null : field.getType();
+      this.is_static = (info instanceof FieldInfo) && ((FieldInfo) info).isStatic();
+    }
+  }
+
+  /**
+   * Creates a program from its steps.
+   *
+   * @param steps the steps
+   */
+  private AccessorProgram(Step[] steps) {
+    this.steps = steps;
+  }
+
+  /**
+   * Compiles the traversal of a tree.
+   *
+   * @param root the root of a program point's tree
+   * @return the program that traverses the tree
+   */
+  static AccessorProgram compile(RootInfo root) {
+    List<Step> steps = new ArrayList<>();
+    for (DaikonVariableInfo child : root) {
+      compile(child, -1, steps);
+    }
+    return new AccessorProgram(steps.toArray(new Step[0]));
+  }
+
+  /**
+   * Adds the steps for info and its descendants.
+   *
+   * @param info a variable
+   * @param parent the index of the step for the parent of info, or -1 for a top-level variable
+   * @param steps where to add the steps
+   */
+  private static void compile(DaikonVariableInfo info, int parent, List<Step> steps) {
+    boolean print = info.dTraceShouldPrint() && !(info instanceof StaticObjInfo);
+    boolean has_children = info.dTraceShouldPrintChildren() && !info.children.isEmpty();
+    int index = steps.size();
+
+    Step step;
+    if (parent == -1 && info instanceof ReturnInfo) {
+      step = new Step(RETURN, info, parent, print, -1, null, null);
+    } else if (parent == -1 && info instanceof ThisObjInfo) {
+      step = new Step(THIS, info, parent, print, -1, null, null);
+    } else if (parent == -1 && info instanceof ParameterInfo) {
+      step =
+          new Step(PARAMETER, info, parent, print, ((ParameterInfo) info).getArgNum(), null, null);
+    } else if (info instanceof StaticObjInfo) {
+      step = new Step(NO_VALUE, info, parent, print, -1, null, null);
+    } else if (info instanceof FieldInfo && !info.isArray) {
+      FieldInfo finfo = (FieldInfo) info;
+      Field field = finfo.getField();
+      MethodHandle getter = getter(field, finfo.isStatic());
+      if (getter == null) {
+        step = new Step(GENERIC, info, parent, print, -1, null, null);
+      } else {
+        int kind = (print && !has_children && finfo.isPrimitive()) ? PRIMITIVE_FIELD : FIELD;
+        step = new Step(kind, info, parent, print, -1, field, getter);
+      }
+    } else if (parent == -1 && !(info instanceof FieldInfo)) {
+      throw new Error(
+          "Unknown DaikonVariableInfo subtype "
+              + info.getClass()
+              + " in traversePattern in AccessorProgram for info named "
+              + info.getName());
+    } else {
+      step = new Step(GENERIC, info, parent, print, -1, null, null);
+    }
+    steps.add(step);
+
+    if (info.dTraceShouldPrintChildren()) {
+      for (DaikonVariableInfo child : info) {
+        compile(child, index, steps);
+      }
+    }
+  }
+
+  /**
+   * Returns a method handle that reads field, or null if the field cannot be made accessible.
+   *
+   * @param field the field
+   * @param is_static true if the field is static
+   * @return a method handle that reads field, of the type described at {@link Step#getter}
+   */
+  @SuppressWarnings("deprecation") // in Java 9+, use canAccess instead of isAccessible
+  private static @Nullable MethodHandle getter(Field field, boolean is_static) {
+    try {
+      if (!field.isAccessible()) field.setAccessible(true);
+      MethodHandle getter = MethodHandles.lookup().unreflectGetter(field);
+      Class<?> type = field.getType().isPrimitive() ? field.getType() : Object.class;
+      if (is_static) {
+        return getter.asType(MethodType.methodType(type));
+      } else {
+        return getter.asType(MethodType.methodType(type, Object.class));
+      }
+    } catch (Exception e) {
+      // Such as an inaccessible field; the reflective path reports it when the field is read.
+      return null;
+    }
+  }
+
+  /**
+   * Adds the variables of a sample to buffer.
+   *
+   * @param buffer the sample being formatted
+   * @param args the arguments of the method
+   * @param thisObj the receiver, or null
+   * @param ret_val the return value, only used at exits
+   */
+  void run(DTraceQueue.Buffer buffer, Object[] args, @Nullable Object thisObj, Object ret_val) {
+    Object[] values = new Object[steps.length];
+    for (int i = 0; i < steps.length; i++) {
+      Step step = steps[i];
+      Object parent_val = (step.parent == -1) ? null : values[step.parent];
+      Object val;
+      switch (step.kind) {
+        case RETURN:
+          val = ret_val;
+          break;
+        case THIS:
+          val = thisObj;
+          break;
+        case PARAMETER:
+          val = args[step.arg_num];
+          break;
+        case NO_VALUE:
+          val = null;
+          break;
+        case PRIMITIVE_FIELD:
+          addPrimitive(buffer, step, parent_val);
+          continue;
+        case FIELD:
+          val = getField(step, parent_val);
+          break;
+        default:
+          val = step.info.getMyValFromParentVal(parent_val);
+          break;
+      }
+      values[i] = val;
+      if (step.print) {
+        buffer.add_variable(step.name, step.info, val);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the static field of step should not be read, because its class is not yet
+   * initialized.
+   *
+   * @param step a FIELD or PRIMITIVE_FIELD step for a static field
+   * @return true if the field should not be read
+   */
+  @SuppressWarnings("nullness") // field is non-null for a FIELD or PRIMITIVE_FIELD step
+  private static boolean uninitialized(Step step) {
+    // don't force initialization!
+    return Chicory.checkStaticInit
+        && !Runtime.isInitialized(step.field.getDeclaringClass().getName());
+  }
+
+  /**
+   * Returns the value of the field of step, wrapping it if it is primitive.
+   *
+   * @param step a FIELD step
+   * @param parent_val the object that contains the field
+   * @return the value of the field, or a NonsensicalObject if there is none
+   */
+  @SuppressWarnings("nullness") // getter and type are non-null for a FIELD step
+  private static Object getField(Step step, @Nullable Object parent_val) {
+    if (step.is_static) {
+      if (uninitialized(step)) {
+        return nonsenseValue;
+      }
+    } else if (parent_val == null || parent_val instanceof NonsensicalObject) {
+      return nonsenseValue;
+    }
+    MethodHandle getter = step.getter;
+    Class<?> type = step.type;
+    try {
+      if (type == int.class) {
+        return new Runtime.IntWrap(
+            step.is_static ? (int) getter.invokeExact() : (int) getter.invokeExact(parent_val));
+      } else if (type == long.class) {
+        return new Runtime.LongWrap(
+            step.is_static ? (long) getter.invokeExact() : (long) getter.invokeExact(parent_val));
+      } else if (type == boolean.class) {
+        return new Runtime.BooleanWrap(
+            step.is_static
+                ? (boolean) getter.invokeExact()
+                : (boolean) getter.invokeExact(parent_val));
+      } else if (type == float.class) {
+        return new Runtime.FloatWrap(
+            step.is_static ? (float) getter.invokeExact() : (float) getter.invokeExact(parent_val));
+      } else if (type == byte.class) {
+        return new Runtime.ByteWrap(
+            step.is_static ? (byte) getter.invokeExact() : (byte) getter.invokeExact(parent_val));
+      } else if (type == char.class) {
+        return new Runtime.CharWrap(
+            step.is_static ? (char) getter.invokeExact() : (char) getter.invokeExact(parent_val));
+      } else if (type == short.class) {
+        return new Runtime.ShortWrap(
+            step.is_static ? (short) getter.invokeExact() : (short) getter.invokeExact(parent_val));
+      } else if (type == double.class) {
+        return new Runtime.DoubleWrap(
+            step.is_static
+                ? (double) getter.invokeExact()
+                : (double) getter.invokeExact(parent_val));
+      } else {
+        return step.is_static
+            ? (Object) getter.invokeExact()
+            : (Object) getter.invokeExact(parent_val);
+      }
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new Error(e);
+    }
+  }
+
+  /**
+   * Adds the value of the primitive field of step to buffer, without wrapping it.
+   *
+   * @param buffer the sample being formatted
+   * @param step a PRIMITIVE_FIELD step
+   * @param parent_val the object that contains the field
+   */
+  @SuppressWarnings("nullness") // getter and type are non-null for a PRIMITIVE_FIELD step
+  private static void addPrimitive(
+      DTraceQueue.Buffer buffer, Step step, @Nullable Object parent_val) {
+    if (step.is_static) {
+      if (uninitialized(step)) {
+        buffer.add_variable(step.name, nonsensicalValueAndMod);
+        return;
+      }
+    } else if (parent_val == null || parent_val instanceof NonsensicalObject) {
+      buffer.add_variable(step.name, nonsensicalValueAndMod);
+      return;
+    }
+    MethodHandle getter = step.getter;
+    Class<?> type = step.type;
+    try {
+      if (type == int.class) {
+        buffer.add_variable(
+            step.name,
+            step.is_static ? (int) getter.invokeExact() : (int) getter.invokeExact(parent_val));
+      } else if (type == long.class) {
+        buffer.add_variable(
+            step.name,
+            step.is_static ? (long) getter.invokeExact() : (long) getter.invokeExact(parent_val));
+      } else if (type == boolean.class) {
+        buffer.add_variable(
+            step.name,
+            step.is_static
+                ? (boolean) getter.invokeExact()
+                : (boolean) getter.invokeExact(parent_val));
+      } else if (type == float.class) {
+        buffer.add_variable(
+            step.name,
+            step.is_static ? (float) getter.invokeExact() : (float) getter.invokeExact(parent_val));
+      } else if (type == byte.class) {
+        buffer.add_variable(
+            step.name,
+            step.is_static ? (byte) getter.invokeExact() : (byte) getter.invokeExact(parent_val));
+      } else if (type == char.class) {
+        // Characters are printed as numbers.
+        buffer.add_variable(
+            step.name,
+            (int)
+                (step.is_static
+                    ? (char) getter.invokeExact()
+                    : (char) getter.invokeExact(parent_val)));
+      } else if (type == short.class) {
+        buffer.add_variable(
+            step.name,
+            step.is_static ? (short) getter.invokeExact() : (short) getter.invokeExact(parent_val));
+      } else {
+        assert type == double.class : type;
+        buffer.add_variable(
+            step.name,
+            step.is_static
+                ? (double) getter.invokeExact()
+                : (double) getter.invokeExact(parent_val));
+      }
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new Error(e);
+    }
+  }
+}
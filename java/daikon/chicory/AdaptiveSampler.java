@@ -0,0 +1,475 @@
+package daikon.chicory;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Decides which calls Chicory records, so that tracing stays within a budget: a percentage of the
+ * elapsed time spent formatting records, a number of characters of samples per second, or both.
+ *
+ * <p>Each method records a call with a probability that is recomputed periodically, by a
+ * background thread, from the number of calls of the method and the measured cost of recording one.
+ * The budget of the next period is shared among the methods: those whose recorded calls would cost
+ * less than an equal share are always recorded, and the others get equal shares of what is left. So
+ * a method that is rarely called is still recorded every time, while one that is called often, or
+ * is expensive to record, is sampled.
+ *
+ * <p>Some calls are recorded regardless of the probability: the first calls of each method (as many
+ * as {@code --sample-start} says), and each call whose receiver and arguments have a shape that the
+ * method has not been called with before. Their cost is taken out of the budget first.
+ *
+ * <p>Deciding whether to record a call takes no lock, so that threads that call the same method do
+ * not contend: the counters of each method are {@link LongAdder}s, and the shape of a call is
+ * computed only until the method has been called with {@link #MAX_SHAPES} shapes.
+ */
+public final class AdaptiveSampler {
+
+  /** How often the probabilities are recomputed, in milliseconds. */
+  static final int INTERVAL_MILLIS = 100;
+
+  /**
+   * The number of shapes that are remembered for each method. Once a method has been called with
+   * this many different shapes, new shapes are sampled like other calls.
+   */
+  public static final int MAX_SHAPES = 64;
+
+  /** The percentage of the elapsed time that may be spent formatting records, or 0 if no limit. */
+  private final double time_budget;
+
+  /** The number of characters of samples that may be written per second, or 0 if no limit. */
+  private final long char_budget;
+
+  /** The number of calls of each method that are always recorded. */
+  private final int always_record;
+
+  /** The statistics of all methods that have been called. */
+  private final List<MethodStats> all_stats = new ArrayList<>();
+
+  /**
+   * The time budget that earlier periods did not use, in nanoseconds; negative if they used more
+   * than their budget, which is then taken from later periods. Only used by the sampler thread.
+   */
+  private double time_balance = 0;
+
+  /** The character budget that earlier periods did not use; see {@link #time_balance}. */
+  private double char_balance = 0;
+
+  /** The sampling state of one method. Stored in {@link MethodInfo#sample_stats}. */
+  static final class MethodStats {
+
+    /** The probability that a call that is not always recorded is recorded. */
+    volatile double probability = 1.0;
+
+    /** The shapes of the calls so far, at most {@link #MAX_SHAPES} of them. */
+    private final ShapeSet shapes = new ShapeSet();
+
+    /** The number of calls since the last adjustment. */
+    private final LongAdder calls = new LongAdder();
+
+    /** The number of calls since the last adjustment that were always recorded. */
+    private final LongAdder forced = new LongAdder();
+
+    /** The number of recorded calls whose cost is counted in {@link #nanos} and {@link #chars}. */
+    private final LongAdder captures = new LongAdder();
+
+    /** Time spent formatting the recorded calls, in nanoseconds. */
+    private final LongAdder nanos = new LongAdder();
+
+    /** Number of characters in the samples of the recorded calls. */
+    private final LongAdder chars = new LongAdder();
+
+    /** Time spent formatting records since the last adjustment, in nanoseconds. */
+    private final LongAdder period_nanos = new LongAdder();
+
+    /** Number of characters in the samples since the last adjustment. */
+    private final LongAdder period_chars = new LongAdder();
+
+    /**
+     * The time to record one call (entry and exit), smoothed; negative until measured. Only used
+     * by the sampler thread.
+     */
+    private double nanos_per_capture = -1;
+
+    /** The number of characters in one recorded call, smoothed; negative until measured. */
+    private double chars_per_capture = -1;
+  }
+
+  /**
+   * A set of at most {@link #MAX_SHAPES} shapes, in an open-addressing table of twice that size.
+   * Looking up a shape takes no lock; adding one does. A slot of the table is written only once,
+   * from {@link #EMPTY} to a shape.
+   */
+  private static final class ShapeSet {
+
+    /** The value of an unused slot. A shape with this value is stored as {@code EMPTY + 1}. */
+    private static final long EMPTY = 0;
+
+    /** The slots of the table. */
+    private final AtomicLongArray table = new AtomicLongArray(2 * MAX_SHAPES);
+
+    /** The number of shapes in the table; only changed while holding the lock on this. */
+    private int size = 0;
+
+    /** True once the set holds {@link #MAX_SHAPES} shapes; then nothing is added to it. */
+    volatile boolean full = false;
+
+    /**
+     * Adds a shape to the set, unless it is already in it or the set is full.
+     *
+     * @param shape a shape
+     * @return true if the shape was added
+     */
+    boolean add(long shape) {
+      if (shape == EMPTY) {
+        shape = EMPTY + 1;
+      }
+      if (contains(shape)) {
+        return false;
+      }
+      synchronized (this) {
+        if (full || contains(shape)) {
+          return false;
+        }
+        int mask = table.length() - 1;
+        int i = slot(shape);
+        while (table.get(i) != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        table.set(i, shape);
+        size++;
+        if (size == MAX_SHAPES) {
+          full = true;
+        }
+        return true;
+      }
+    }
+
+    /**
+     * Returns true if the set contains a shape.
+     *
+     * @param shape a shape other than {@link #EMPTY}
+     * @return true if the set contains shape
+     */
+    private boolean contains(long shape) {
+      int mask = table.length() - 1;
+      for (int i = slot(shape); ; i = (i + 1) & mask) {
+        long stored = table.get(i);
+        if (stored == shape) {
+          return true;
+        }
+        if (stored == EMPTY) {
+          return false;
+        }
+      }
+    }
+
+    /**
+     * Returns the slot at which the search for a shape starts.
+     *
+     * @param shape a shape
+     * @return the index of the first slot to probe
+     */
+    private int slot(long shape) {
+      long h = shape * 0x9E3779B97F4A7C15L;
+      return (int) (h >>> 32) & (table.length() - 1);
+    }
+  }
+
+  /**
+   * Creates a sampler. Its probabilities stay at 1 until {@link #start} is called, or {@link
+   * #adjust} is called by other means.
+   *
+   * @param time_budget the percentage of the elapsed time that may be spent formatting records, or
+   *     0 if there is no such limit
+   * @param char_budget the number of characters of samples that may be written per second, or 0 if
+   *     there is no such limit
+   * @param always_record the number of calls of each method that are always recorded
+   */
+  public AdaptiveSampler(double time_budget, long char_budget, int always_record) {
+    this.time_budget = time_budget;
+    this.char_budget = char_budget;
+    this.always_record = always_record;
+  }
+
+  /** Starts the thread that adjusts the probabilities every {@link #INTERVAL_MILLIS}. */
+  public void start() {
+    Thread adjuster = new Thread(this::adjust_periodically, "Chicory sampler");
+    adjuster.setDaemon(true);
+    adjuster.start();
+  }
+
+  /**
+   * Returns the sampling state of the given method, creating it if necessary.
+   *
+   * @param mi a method
+   * @return the sampling state of mi
+   */
+  private MethodStats stats(MethodInfo mi) {
+    MethodStats stats = mi.sample_stats;
+    if (stats == null) {
+      synchronized (mi) {
+        stats = mi.sample_stats;
+        if (stats == null) {
+          stats = new MethodStats();
+          synchronized (all_stats) {
+            all_stats.add(stats);
+          }
+          mi.sample_stats = stats;
+        }
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Decides whether to record a call.
+   *
+   * @param mi the method that was called
+   * @param call_cnt the number of calls of the method so far, including this one
+   * @param obj the receiver, or null if the method is static
+   * @param args the arguments
+   * @return true if the call should be recorded
+   */
+  public boolean capture(MethodInfo mi, int call_cnt, @Nullable Object obj, Object[] args) {
+    MethodStats stats = stats(mi);
+    stats.calls.increment();
+    if (call_cnt <= always_record || (!stats.shapes.full && stats.shapes.add(shape(obj, args)))) {
+      stats.forced.increment();
+      stats.captures.increment();
+      return true;
+    }
+    double probability = stats.probability;
+    if (probability < 1.0 && ThreadLocalRandom.current().nextDouble() >= probability) {
+      return false;
+    }
+    stats.captures.increment();
+    return true;
+  }
+
+  /**
+   * Adds the cost of formatting a record of the given method.
+   *
+   * @param mi the method
+   * @param nanos the time taken to format the record, in nanoseconds
+   * @param chars the number of characters in the record
+   */
+  public void add_cost(MethodInfo mi, long nanos, long chars) {
+    MethodStats stats = stats(mi);
+    stats.nanos.add(nanos);
+    stats.chars.add(chars);
+    stats.period_nanos.add(nanos);
+    stats.period_chars.add(chars);
+  }
+
+  /**
+   * Returns the probability with which a call of the given method that is not always recorded is
+   * recorded.
+   *
+   * @param mi a method
+   * @return the current probability for mi
+   */
+  public double probability(MethodInfo mi) {
+    return stats(mi).probability;
+  }
+
+  /**
+   * Returns the shape of a call: for the receiver and each argument, whether it is null, its class,
+   * and, for primitives, strings, and arrays, a coarse classification of its value (its sign, or
+   * whether it is zero or empty). Target methods are not called, since they could have side
+   * effects.
+   *
+   * @param obj the receiver, or null if the method is static
+   * @param args the arguments; primitives are wrapped in {@link Runtime.PrimitiveWrapper}s
+   * @return a hash of the shape of the call
+   */
+  public static long shape(@Nullable Object obj, Object[] args) {
+    long shape = shape_of(obj);
+    for (Object arg : args) {
+      shape = shape * 31 + shape_of(arg);
+    }
+    return shape;
+  }
+
+  /**
+   * Returns the shape of one value; see {@link #shape}.
+   *
+   * @param value a value
+   * @return a hash of the shape of value
+   */
+  private static long shape_of(@Nullable Object value) {
+    if (value == null) {
+      return 0;
+    }
+    int kind;
+    if (value instanceof Runtime.IntWrap) {
+      kind = Integer.signum(((Runtime.IntWrap) value).val) + 2;
+    } else if (value instanceof Runtime.LongWrap) {
+      kind = Long.signum(((Runtime.LongWrap) value).val) + 2;
+    } else if (value instanceof Runtime.ShortWrap) {
+      kind = Integer.signum(((Runtime.ShortWrap) value).val) + 2;
+    } else if (value instanceof Runtime.ByteWrap) {
+      kind = Integer.signum(((Runtime.ByteWrap) value).val) + 2;
+    } else if (value instanceof Runtime.DoubleWrap) {
+      kind = sign(((Runtime.DoubleWrap) value).val);
+    } else if (value instanceof Runtime.FloatWrap) {
+      kind = sign(((Runtime.FloatWrap) value).val);
+    } else if (value instanceof Runtime.BooleanWrap) {
+      kind = ((Runtime.BooleanWrap) value).val ? 1 : 2;
+    } else if (value instanceof Runtime.CharWrap) {
+      kind = (((Runtime.CharWrap) value).val == 0) ? 1 : 2;
+    } else if (value instanceof String) {
+      kind = ((String) value).isEmpty() ? 1 : 2;
+    } else if (value.getClass().isArray()) {
+      kind = (Array.getLength(value) == 0) ? 1 : 2;
+    } else {
+      kind = 0;
+    }
+    return System.identityHashCode(value.getClass()) * 8L + kind + 1;
+  }
+
+  /**
+   * Classifies a floating-point value by its sign; see {@link #shape_of}.
+   *
+   * @param d a value
+   * @return 1, 2, or 3 if d is negative, zero, or positive; 4 if it is NaN
+   */
+  private static int sign(double d) {
+    return Double.isNaN(d) ? 4 : (int) Math.signum(d) + 2;
+  }
+
+  /** Recomputes the probabilities every {@link #INTERVAL_MILLIS}. Run by the sampler thread. */
+  private void adjust_periodically() {
+    long last = System.nanoTime();
+    while (true) {
+      try {
+        Thread.sleep(INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long now = System.nanoTime();
+      adjust(now - last);
+      last = now;
+    }
+  }
+
+  /**
+   * Recomputes the probability of each method from its calls and costs since the last adjustment,
+   * assuming that the next period will have the same calls. Called by the sampler thread; calls
+   * that happen while it runs may be counted in either period.
+   *
+   * @param elapsed the time since the last adjustment, in nanoseconds
+   */
+  public void adjust(long elapsed) {
+    List<MethodStats> stats_list;
+    synchronized (all_stats) {
+      stats_list = new ArrayList<>(all_stats);
+    }
+
+    // The methods that were called, and have been recorded before, and what recording all their
+    // calls that are not always recorded would cost.
+    List<MethodStats> active = new ArrayList<>();
+    double[] time_demand = new double[stats_list.size()];
+    double[] char_demand = new double[stats_list.size()];
+    double forced_nanos = 0;
+    double forced_chars = 0;
+    long spent_nanos = 0;
+    long spent_chars = 0;
+    for (MethodStats stats : stats_list) {
+      spent_nanos += stats.period_nanos.sumThenReset();
+      spent_chars += stats.period_chars.sumThenReset();
+      long captures = stats.captures.sumThenReset();
+      if (captures > 0) {
+        stats.nanos_per_capture =
+            smooth(stats.nanos_per_capture, (double) stats.nanos.sumThenReset() / captures);
+        stats.chars_per_capture =
+            smooth(stats.chars_per_capture, (double) stats.chars.sumThenReset() / captures);
+      }
+      // Otherwise, keep the costs of exits whose entries were recorded in an earlier period, to
+      // be counted with the next recorded calls.
+      long calls = stats.calls.sumThenReset();
+      long forced = Math.min(stats.forced.sumThenReset(), calls);
+      if (calls > 0 && stats.nanos_per_capture >= 0) {
+        forced_nanos += forced * stats.nanos_per_capture;
+        forced_chars += forced * stats.chars_per_capture;
+        long sampled = calls - forced;
+        time_demand[active.size()] = sampled * stats.nanos_per_capture;
+        char_demand[active.size()] = sampled * stats.chars_per_capture;
+        active.add(stats);
+      }
+    }
+
+    // The budget of the next period is that of the last one, corrected by what earlier periods
+    // left unused or overspent. Unused budget is only carried into the next period.
+    int n = active.size();
+    double time_share = Double.POSITIVE_INFINITY;
+    if (time_budget > 0) {
+      double budget = time_budget / 100 * elapsed;
+      time_balance = Math.min(budget, time_balance + budget - spent_nanos);
+      time_share =
+          fair_share(
+              Arrays.copyOf(time_demand, n), Math.max(0, budget + time_balance - forced_nanos));
+    }
+    double char_share = Double.POSITIVE_INFINITY;
+    if (char_budget > 0) {
+      double budget = char_budget * (elapsed / 1e9);
+      char_balance = Math.min(budget, char_balance + budget - spent_chars);
+      char_share =
+          fair_share(
+              Arrays.copyOf(char_demand, n), Math.max(0, budget + char_balance - forced_chars));
+    }
+    for (int i = 0; i < n; i++) {
+      double time_probability = probability(time_demand[i], time_share);
+      double char_probability = probability(char_demand[i], char_share);
+      active.get(i).probability = Math.min(time_probability, char_probability);
+    }
+  }
+
+  /**
+   * Returns the weighted average of an old and a new measurement.
+   *
+   * @param old the smoothed value so far, or a negative number if there is none
+   * @param measured the new measurement
+   * @return the new smoothed value
+   */
+  private static double smooth(double old, double measured) {
+    return (old < 0) ? measured : (old + measured) / 2;
+  }
+
+  /**
+   * Returns the share of a budget that each demand gets: the amount such that, if each demand is
+   * limited to it, the total is the budget. Returns infinity if all demands fit in the budget.
+   *
+   * @param demands the demands; sorted by this method
+   * @param budget the budget to share
+   * @return the share of each demand
+   */
+  public static double fair_share(double[] demands, double budget) {
+    Arrays.sort(demands);
+    double remaining = budget;
+    for (int i = 0; i < demands.length; i++) {
+      int left = demands.length - i;
+      if (demands[i] * left > remaining) {
+        return remaining / left;
+      }
+      remaining -= demands[i];
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Returns the probability with which a method records a call, given its share of the budget.
+   *
+   * @param demand what recording all calls of the method would cost
+   * @param share the share of the budget for the method
+   * @return the fraction of the calls that fit in the share
+   */
+  private static double probability(double demand, double share) {
+    return (demand <= share) ? 1.0 : share / demand;
+  }
+}
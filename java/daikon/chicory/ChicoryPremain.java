@@ -97,6 +97,13 @@ public class ChicoryPremain {
     Runtime.ppt_omit_pattern = Chicory.ppt_omit_pattern;
     Runtime.ppt_select_pattern = Chicory.ppt_select_pattern;
     Runtime.sample_start = Chicory.sample_start;
+    if (Chicory.sample_time_budget > 0 || Chicory.sample_char_budget > 0) {
+      AdaptiveSampler sampler =
+          new AdaptiveSampler(
+              Chicory.sample_time_budget, Chicory.sample_char_budget, Chicory.sample_start);
+      sampler.start();
+      Runtime.sampler = sampler;
+    }
     DaikonVariableInfo.std_visibility = Chicory.std_visibility;
     DaikonVariableInfo.debug_vars.enabled = Chicory.debug_decl_print;
     if (Chicory.comparability_file != null) {
@@ -158,8 +165,15 @@ public class ChicoryPremain {
     // The include/exclude filter are implemented in the transform,
     // so they don't need to be handled here.
     // (It looks like these can be called even if Runtime.dtrace is null...)
-    Runtime.decl_writer = new DeclWriter(Runtime.dtrace);
-    Runtime.dtrace_writer = new DTraceWriter(Runtime.dtrace);
+    // Declarations and samples both go through the queue, which keeps them in order.
+    int queue_size =
+        (Chicory.dtrace_queue_size < 0)
+            ? DTraceQueue.default_capacity()
+            : Chicory.dtrace_queue_size;
+    Runtime.dtrace_queue =
+        new DTraceQueue(
+            Runtime.dtrace, Runtime.binary_dtrace, queue_size, Chicory.dtrace_drop_when_full);
+    Runtime.decl_writer = new DeclWriter(Runtime.dtrace_queue.text);
   }
 
   /**
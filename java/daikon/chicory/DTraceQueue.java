@@ -0,0 +1,774 @@
+package daikon.chicory;
+
+import daikon.BinaryDtrace;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Carries records from the threads of the target program to a single background thread that writes
+ * them to the dtrace file. Each sample is formatted by the thread that produced it, while the
+ * values are current, without holding any global lock, and is collected in that thread's {@link
+ * Buffer}; full buffers are handed to the writer thread as one batch, and the writer thread does
+ * the (possibly compressed) output. In a textual dtrace file, a batch is a single string, written
+ * with one call.
+ *
+ * <p>If the queue has no capacity, there is no writer thread, and each thread writes its own full
+ * buffers instead. That is the default on a machine with a single processor, where a writer thread
+ * would only add context switches.
+ *
+ * <p>Records from one thread are written in the order in which they were produced, so a method
+ * entry always precedes the matching exit, and declarations always precede the samples that use
+ * them.
+ */
+public final class DTraceQueue {
+
+  /** Number of samples a thread collects before handing them to the writer thread. */
+  static final int BATCH_SIZE = 64;
+
+  /** Default maximum number of batches waiting to be written. */
+  public static final int DEFAULT_CAPACITY = 64;
+
+  /** Tells the writer thread to stop. */
+  private static final Batch END = new Batch(null, null, 0, true);
+
+  /** Batches waiting to be written, or null if there is no writer thread. */
+  private final @Nullable BlockingQueue<Batch> queue;
+
+  /** If true, batches of samples are dropped, rather than waiting, when the queue is full. */
+  private final boolean drop_when_full;
+
+  /** Number of samples dropped because the queue was full. */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /** The buffers of all threads, so that they can be flushed when the trace ends. */
+  private final List<Buffer> buffers = new ArrayList<>();
+
+  /** The dtrace file. Declarations and comments are written to it. */
+  private final PrintStream dtrace;
+
+  /** Binary dtrace output, if the dtrace file is binary; otherwise null. */
+  private final BinaryDtrace.@Nullable Writer binary_dtrace;
+
+  /** The thread that writes batches to the dtrace file, or null if producers write them. */
+  private final @Nullable Thread writer;
+
+  /** Set by {@link #close}; records added afterward are discarded. */
+  private volatile boolean closed = false;
+
+  /** Holds text printed to {@link #text} until it is enqueued by {@link #flush_text}. */
+  private final ByteArrayOutputStream text_bytes = new ByteArrayOutputStream();
+
+  /**
+   * Stream for declarations and other text. What is printed here is enqueued as a single record
+   * by {@link #flush_text}. Only used while holding the Runtime.class lock.
+   */
+  final PrintStream text = new PrintStream(text_bytes);
+
+  /**
+   * Creates a queue and, if capacity is positive, starts its writer thread.
+   *
+   * @param dtrace the dtrace file
+   * @param binary_dtrace binary dtrace output, or null if the dtrace file is textual
+   * @param capacity maximum number of batches waiting to be written; if 0, there is no writer
+   *     thread
+   * @param drop_when_full if true, drop batches of samples, rather than waiting, when the queue is
+   *     full
+   */
+  public DTraceQueue(
+      PrintStream dtrace,
+      BinaryDtrace.@Nullable Writer binary_dtrace,
+      int capacity,
+      boolean drop_when_full) {
+    this.dtrace = dtrace;
+    this.binary_dtrace = binary_dtrace;
+    this.drop_when_full = drop_when_full;
+    if (capacity > 0) {
+      queue = new ArrayBlockingQueue<>(capacity);
+      writer = new Thread(this::write_batches, "Chicory dtrace writer");
+      writer.setDaemon(true);
+      writer.start();
+    } else {
+      queue = null;
+      writer = null;
+    }
+  }
+
+  /**
+   * Returns the capacity to use when none is specified: {@link #DEFAULT_CAPACITY} if there is more
+   * than one processor, otherwise 0.
+   *
+   * @return the default capacity of a queue
+   */
+  public static int default_capacity() {
+    return (java.lang.Runtime.getRuntime().availableProcessors() > 1) ? DEFAULT_CAPACITY : 0;
+  }
+
+  /** Writes batches until {@link #END} is reached. Run by the writer thread. */
+  @SuppressWarnings("nullness") // queue is non-null when there is a writer thread
+  private void write_batches() {
+    try {
+      while (true) {
+        Batch batch = queue.take();
+        if (batch == END) {
+          break;
+        }
+        write(batch);
+      }
+    } catch (InterruptedException | IOException e) {
+      System.err.printf("Chicory: stopped writing the dtrace file: %s%n", e);
+      closed = true;
+      queue.clear();
+    }
+  }
+
+  /**
+   * Writes a batch to the dtrace file.
+   *
+   * @param batch the batch to write
+   * @throws IOException if the binary dtrace file cannot be written
+   */
+  @SuppressWarnings("lock") // dtrace is guarded by itself
+  private void write(Batch batch) throws IOException {
+    synchronized (dtrace) {
+      if (batch.text != null) {
+        dtrace.print(batch.text);
+      } else if (batch.records != null) {
+        for (Record record : batch.records) {
+          record.write(dtrace, binary_dtrace);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates a buffer for the calling thread.
+   *
+   * @return a new buffer whose records go to this queue
+   */
+  Buffer new_buffer() {
+    Buffer buffer = new Buffer();
+    synchronized (buffers) {
+      buffers.add(buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * Adds a batch to the queue, or writes it if there is no writer thread. If the queue is full,
+   * waits, or drops the batch if {@link #drop_when_full} is set and the batch contains only
+   * samples. Does nothing if the queue has been closed.
+   *
+   * @param batch the batch to write
+   */
+  private void put(Batch batch) {
+    if (queue == null) {
+      if (!closed) {
+        try {
+          write(batch);
+        } catch (IOException e) {
+          System.err.printf("Chicory: stopped writing the dtrace file: %s%n", e);
+          closed = true;
+        }
+      }
+      return;
+    }
+    if (queue.offer(batch)) {
+      return;
+    }
+    if (drop_when_full && !batch.has_text) {
+      dropped.addAndGet(batch.num_samples);
+      return;
+    }
+    boolean interrupted = false;
+    while (!closed) {
+      try {
+        if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        // Interrupts belong to the target program; wait anyway, and restore the status below.
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Adds everything printed to {@link #text} since the last call to the given buffer, as one
+   * record, and hands the buffer to the writer thread.
+   *
+   * @param buffer the calling thread's buffer
+   */
+  void flush_text(Buffer buffer) {
+    text.flush();
+    if (text_bytes.size() > 0) {
+      buffer.add_text(text_bytes.toString());
+      text_bytes.reset();
+    }
+    buffer.flush();
+  }
+
+  /**
+   * Returns the number of samples that were dropped because the queue was full.
+   *
+   * @return the number of dropped samples
+   */
+  public long dropped_samples() {
+    return dropped.get();
+  }
+
+  /**
+   * Writes all pending records, including those in the buffers of all threads, and stops the
+   * writer thread. After this returns, the caller may write to the dtrace file directly. Records
+   * added later are discarded.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    List<Buffer> all_buffers;
+    synchronized (buffers) {
+      all_buffers = new ArrayList<>(buffers);
+    }
+    for (Buffer buffer : all_buffers) {
+      buffer.flush();
+    }
+    closed = true;
+    if (queue == null || writer == null) {
+      return;
+    }
+    boolean interrupted = false;
+    try {
+      while (writer.isAlive() && !queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+        // The writer is draining the queue.
+      }
+    } catch (InterruptedException e) {
+      interrupted = true;
+    }
+    while (writer.isAlive()) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The records of one thread that have not yet been handed to the writer thread, and the sample
+   * that the thread is formatting. The storage is reused from sample to sample.
+   *
+   * <p>Only the owning thread formats samples. The methods that change the batch are synchronized
+   * because {@link DTraceQueue#close} may flush any buffer.
+   */
+  final class Buffer {
+
+    /** The text of the sample being formatted, if the dtrace file is textual. */
+    private final StringBuilder sample_text = new StringBuilder();
+
+    /** The sample being formatted, if the dtrace file is binary. */
+    private @Nullable Record sample = null;
+
+    /** The text of the completed records, if the dtrace file is textual. */
+    private final StringBuilder batch_text = new StringBuilder();
+
+    /** The completed records, if the dtrace file is binary. */
+    private List<Record> batch_records = new ArrayList<>(BATCH_SIZE);
+
+    /** Number of samples in the batch. */
+    private int num_samples = 0;
+
+    /** True if the batch contains declarations or other text. */
+    private boolean has_text = false;
+
+    /**
+     * Number of characters in the samples completed by this buffer: their size in a textual dtrace
+     * file. Only used by the owning thread.
+     */
+    private long sample_chars = 0;
+
+    /** Use {@link #new_buffer}. */
+    private Buffer() {}
+
+    /**
+     * Starts formatting a sample. Only called by the owning thread.
+     *
+     * @param ppt_name the program point name
+     * @param nonce the nonce that matches an entry to its exit
+     */
+    void start_sample(String ppt_name, int nonce) {
+      if (binary_dtrace != null) {
+        sample = new Record(ppt_name, nonce);
+      } else {
+        sample_text.setLength(0);
+        sample_text.append(ppt_name).append(DaikonWriter.lineSep);
+        sample_text.append("this_invocation_nonce").append(DaikonWriter.lineSep);
+        sample_text.append(nonce).append(DaikonWriter.lineSep);
+      }
+    }
+
+    /**
+     * Adds a variable to the sample being formatted. Only called by the owning thread.
+     *
+     * @param name the name of the variable
+     * @param value_and_mod the value and modbit, separated by a line separator
+     */
+    @SuppressWarnings("nullness") // start_sample set sample if the dtrace file is binary
+    void add_variable(String name, String value_and_mod) {
+      if (binary_dtrace != null) {
+        sample.add_variable(name, value_and_mod);
+      } else {
+        sample_text.append(name).append(DaikonWriter.lineSep);
+        sample_text.append(value_and_mod).append(DaikonWriter.lineSep);
+      }
+    }
+
+    /**
+     * Adds a variable to the sample being formatted. In a binary dtrace file, numbers and arrays of
+     * integers are added without formatting them. Only called by the owning thread.
+     *
+     * @param name the name of the variable
+     * @param info the variable
+     * @param val the value of the variable
+     */
+    @SuppressWarnings("nullness") // start_sample set sample if the dtrace file is binary
+    void add_variable(String name, DaikonVariableInfo info, Object val) {
+      if (binary_dtrace != null) {
+        info.addBinaryValue(sample, name, val);
+      } else {
+        sample_text.append(name).append(DaikonWriter.lineSep);
+        sample_text.append(info.getDTraceValueString(val)).append(DaikonWriter.lineSep);
+      }
+    }
+
+    /**
+     * Adds an integral variable to the sample being formatted. Only called by the owning thread.
+     *
+     * @param name the name of the variable
+     * @param value the value, which is modified
+     */
+    @SuppressWarnings("nullness") // start_sample set sample if the dtrace file is binary
+    void add_variable(String name, long value) {
+      if (binary_dtrace != null) {
+        sample.add_variable(name, value);
+      } else {
+        sample_text.append(name).append(DaikonWriter.lineSep);
+        sample_text.append(value).append(DaikonWriter.lineSep);
+        sample_text.append('1').append(DaikonWriter.lineSep);
+      }
+    }
+
+    /**
+     * Adds a float variable to the sample being formatted. Only called by the owning thread.
+     *
+     * @param name the name of the variable
+     * @param value the value, which is modified
+     */
+    @SuppressWarnings("nullness") // start_sample set sample if the dtrace file is binary
+    void add_variable(String name, float value) {
+      if (binary_dtrace != null) {
+        sample.add_variable(name, value);
+      } else {
+        sample_text.append(name).append(DaikonWriter.lineSep);
+        sample_text.append(value).append(DaikonWriter.lineSep);
+        sample_text.append('1').append(DaikonWriter.lineSep);
+      }
+    }
+
+    /**
+     * Adds a double variable to the sample being formatted. Only called by the owning thread.
+     *
+     * @param name the name of the variable
+     * @param value the value, which is modified
+     */
+    @SuppressWarnings("nullness") // start_sample set sample if the dtrace file is binary
+    void add_variable(String name, double value) {
+      if (binary_dtrace != null) {
+        sample.add_variable(name, value);
+      } else {
+        sample_text.append(name).append(DaikonWriter.lineSep);
+        sample_text.append(value).append(DaikonWriter.lineSep);
+        sample_text.append('1').append(DaikonWriter.lineSep);
+      }
+    }
+
+    /**
+     * Adds a boolean variable to the sample being formatted. Only called by the owning thread.
+     *
+     * @param name the name of the variable
+     * @param value the value, which is modified
+     */
+    @SuppressWarnings("nullness") // start_sample set sample if the dtrace file is binary
+    void add_variable(String name, boolean value) {
+      if (binary_dtrace != null) {
+        sample.add_variable(name, value);
+      } else {
+        sample_text.append(name).append(DaikonWriter.lineSep);
+        sample_text.append(value).append(DaikonWriter.lineSep);
+        sample_text.append('1').append(DaikonWriter.lineSep);
+      }
+    }
+
+    /**
+     * Adds the sample being formatted to the batch, and hands the batch to the writer thread if it
+     * is full. Only called by the owning thread.
+     */
+    @SuppressWarnings("nullness") // start_sample set sample if the dtrace file is binary
+    synchronized void end_sample() {
+      if (binary_dtrace != null) {
+        sample_chars += sample.length;
+        batch_records.add(sample);
+        sample = null;
+      } else {
+        sample_text.append(DaikonWriter.lineSep);
+        sample_chars += sample_text.length();
+        batch_text.append(sample_text);
+      }
+      num_samples++;
+      if (num_samples >= BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    /**
+     * Returns the number of characters in the samples completed by this buffer, which is their
+     * size in a textual dtrace file. Only called by the owning thread.
+     *
+     * @return the number of characters in the completed samples
+     */
+    long sample_chars() {
+      return sample_chars;
+    }
+
+    /** Discards the sample being formatted. Only called by the owning thread. */
+    void discard_sample() {
+      sample = null;
+      sample_text.setLength(0);
+    }
+
+    /**
+     * Adds declarations or other text to the batch.
+     *
+     * @param text the text to add
+     */
+    synchronized void add_text(String text) {
+      if (binary_dtrace != null) {
+        batch_records.add(new Record(text));
+      } else {
+        batch_text.append(text);
+      }
+      has_text = true;
+    }
+
+    /** Hands the records in this buffer to the writer thread. */
+    synchronized void flush() {
+      if (num_samples == 0 && !has_text) {
+        return;
+      }
+      Batch batch;
+      if (binary_dtrace != null) {
+        batch = new Batch(null, batch_records, num_samples, has_text);
+        batch_records = new ArrayList<>(BATCH_SIZE);
+      } else {
+        batch = new Batch(batch_text.toString(), null, num_samples, has_text);
+        batch_text.setLength(0);
+      }
+      num_samples = 0;
+      has_text = false;
+      put(batch);
+    }
+  }
+
+  /** Records that are handed to the writer thread together. */
+  private static final class Batch {
+
+    /** The text of the records, if the dtrace file is textual. */
+    final @Nullable String text;
+
+    /** The records, if the dtrace file is binary. */
+    final @Nullable List<Record> records;
+
+    /** Number of samples in the batch. */
+    final int num_samples;
+
+    /** True if the batch contains declarations or other text, and so must not be dropped. */
+    final boolean has_text;
+
+    /**
+     * Creates a batch.
+     *
+     * @param text the text of the records, if the dtrace file is textual
+     * @param records the records, if the dtrace file is binary
+     * @param num_samples number of samples in the batch
+     * @param has_text true if the batch contains declarations or other text
+     */
+    Batch(
+        @Nullable String text, @Nullable List<Record> records, int num_samples, boolean has_text) {
+      this.text = text;
+      this.records = records;
+      this.num_samples = num_samples;
+      this.has_text = has_text;
+    }
+  }
+
+  /**
+   * One record of a binary dtrace file: either a sample or verbatim text. Numbers, booleans, and
+   * arrays of integers are kept as they are, not formatted, and are passed to the binary writer as
+   * they are.
+   */
+  static final class Record {
+
+    /** Kind of a variable: its text and modbit, separated by a line separator. */
+    private static final byte TEXT = 0;
+
+    /** Kind of a variable: a modified integer. */
+    private static final byte LONG = 1;
+
+    /** Kind of a variable: a modified double. */
+    private static final byte DOUBLE = 2;
+
+    /** Kind of a variable: a modified float. */
+    private static final byte FLOAT = 3;
+
+    /** Kind of a variable: a modified boolean. */
+    private static final byte BOOLEAN = 4;
+
+    /** Kind of a variable: a modified array of integers. */
+    private static final byte LONG_ARRAY = 5;
+
+    /** The verbatim text of this record, or null if it is a sample. */
+    private final @Nullable String text;
+
+    /** The program point name of the sample. */
+    private final String ppt_name;
+
+    /** The nonce of the sample. */
+    private final int nonce;
+
+    /** The number of variables of the sample. */
+    private int num_vars = 0;
+
+    /** The names of the variables of the sample. */
+    private String[] names;
+
+    /** For each variable, the kind of its value. */
+    private byte[] kinds;
+
+    /** For each variable, its LONG value, its BOOLEAN value as 0 or 1, or its DOUBLE bits. */
+    private long[] bits;
+
+    /** For each variable, its TEXT or LONG_ARRAY value, if any. */
+    private @Nullable Object[] objs;
+
+    /** The number of characters this sample would have in a textual dtrace file, estimated. */
+    int length;
+
+    /**
+     * Creates a record that is written as is.
+     *
+     * @param text the text of the record
+     */
+    Record(String text) {
+      this.text = text;
+      this.ppt_name = "";
+      this.nonce = 0;
+      this.names = new String[0];
+      this.kinds = new byte[0];
+      this.bits = new long[0];
+      this.objs = new Object[0];
+      this.length = text.length();
+    }
+
+    /**
+     * Creates an empty sample. Use {@link #add_variable} to fill it in.
+     *
+     * @param ppt_name the program point name
+     * @param nonce the nonce that matches an entry to its exit
+     */
+    Record(String ppt_name, int nonce) {
+      this.text = null;
+      this.ppt_name = ppt_name;
+      this.nonce = nonce;
+      this.names = new String[16];
+      this.kinds = new byte[16];
+      this.bits = new long[16];
+      this.objs = new Object[16];
+      // The program point name, the nonce, and the blank line that ends the sample.
+      this.length = ppt_name.length() + 32;
+    }
+
+    /**
+     * Adds a variable to this sample.
+     *
+     * @param name the name of the variable
+     * @param kind the kind of its value
+     * @param value_length the length of the text of its value and modbit
+     * @return the index of the variable
+     */
+    private int add(String name, byte kind, int value_length) {
+      if (num_vars == names.length) {
+        int size = num_vars * 2;
+        names = Arrays.copyOf(names, size);
+        kinds = Arrays.copyOf(kinds, size);
+        bits = Arrays.copyOf(bits, size);
+        objs = Arrays.copyOf(objs, size);
+      }
+      names[num_vars] = name;
+      kinds[num_vars] = kind;
+      objs[num_vars] = null;
+      length += name.length() + value_length + 2;
+      return num_vars++;
+    }
+
+    /**
+     * Adds a variable to this sample.
+     *
+     * @param name the name of the variable
+     * @param value_and_mod the value and modbit, separated by a line separator
+     */
+    void add_variable(String name, String value_and_mod) {
+      int i = add(name, TEXT, value_and_mod.length());
+      objs[i] = value_and_mod;
+    }
+
+    /**
+     * Adds a modified integer variable to this sample.
+     *
+     * @param name the name of the variable
+     * @param value the value
+     */
+    void add_variable(String name, long value) {
+      int i = add(name, LONG, decimal_length(value) + 2);
+      bits[i] = value;
+    }
+
+    /**
+     * Adds a modified double variable to this sample.
+     *
+     * @param name the name of the variable
+     * @param value the value
+     */
+    void add_variable(String name, double value) {
+      int i = add(name, DOUBLE, 20);
+      bits[i] = Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * Adds a modified float variable to this sample.
+     *
+     * @param name the name of the variable
+     * @param value the value
+     */
+    void add_variable(String name, float value) {
+      int i = add(name, FLOAT, 12);
+      bits[i] = Float.floatToRawIntBits(value);
+    }
+
+    /**
+     * Adds a modified boolean variable to this sample.
+     *
+     * @param name the name of the variable
+     * @param value the value
+     */
+    void add_variable(String name, boolean value) {
+      int i = add(name, BOOLEAN, value ? 6 : 7);
+      bits[i] = value ? 1 : 0;
+    }
+
+    /**
+     * Adds a modified array-of-integers variable to this sample.
+     *
+     * @param name the name of the variable
+     * @param value the elements; not copied, so it must not be changed later
+     */
+    void add_variable(String name, long[] value) {
+      int value_length = Math.max(4, 3 + value.length);
+      for (long elt : value) {
+        value_length += decimal_length(elt);
+      }
+      int i = add(name, LONG_ARRAY, value_length);
+      objs[i] = value;
+    }
+
+    /**
+     * Returns the number of characters in the decimal text of v.
+     *
+     * @param v a number
+     * @return the length of {@code Long.toString(v)}
+     */
+    private static int decimal_length(long v) {
+      int len = 1;
+      if (v < 0) {
+        len++;
+        if (v == Long.MIN_VALUE) {
+          return 20;
+        }
+        v = -v;
+      }
+      while (v >= 10) {
+        v /= 10;
+        len++;
+      }
+      return len;
+    }
+
+    /**
+     * Writes this record.
+     *
+     * @param dtrace the dtrace file, which receives verbatim text
+     * @param binary_dtrace where to write samples
+     */
+    @SuppressWarnings("nullness") // objs is non-null for a TEXT or LONG_ARRAY variable
+    void write(PrintStream dtrace, BinaryDtrace.@Nullable Writer binary_dtrace)
+        throws IOException {
+      if (text != null) {
+        dtrace.print(text);
+      } else if (binary_dtrace != null) {
+        binary_dtrace.start_sample(ppt_name, nonce);
+        for (int i = 0; i < num_vars; i++) {
+          switch (kinds[i]) {
+            case TEXT:
+              String value_and_mod = (String) objs[i];
+              int sep = value_and_mod.lastIndexOf(DaikonWriter.lineSep);
+              String value = value_and_mod.substring(0, sep);
+              int mod = value_and_mod.charAt(value_and_mod.length() - 1) - '0';
+              binary_dtrace.add_variable(names[i], value, mod);
+              break;
+            case LONG:
+              binary_dtrace.add_variable(names[i], bits[i], 1);
+              break;
+            case DOUBLE:
+              binary_dtrace.add_variable(names[i], Double.longBitsToDouble(bits[i]), 1);
+              break;
+            case FLOAT:
+              binary_dtrace.add_variable(names[i], Float.intBitsToFloat((int) bits[i]), 1);
+              break;
+            case BOOLEAN:
+              binary_dtrace.add_variable(names[i], bits[i] != 0, 1);
+              break;
+            case LONG_ARRAY:
+              binary_dtrace.add_variable(names[i], (long[]) objs[i], 1);
+              break;
+            default:
+              throw new Error("Bad kind " + kinds[i]);
+          }
+        }
+        binary_dtrace.end_sample();
+      }
+    }
+  }
+}
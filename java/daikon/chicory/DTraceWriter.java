@@ -1,7 +1,6 @@
 package daikon.chicory;
 
 import daikon.Chicory;
-import java.io.PrintStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Member;
@@ -11,8 +10,9 @@ import org.checkerframework.checker.lock.qual.GuardSatisfied;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
- * DTraceWriter writes {@code .dtrace} program points to an output stream. It uses the trees created
- * by the {@link DeclWriter}.
+ * DTraceWriter writes {@code .dtrace} program points to a {@link DTraceQueue.Buffer}. It uses the
+ * trees created by the {@link DeclWriter}, compiled into {@link AccessorProgram}s. Each thread of
+ * the target program has its own DTraceWriter.
  */
 @SuppressWarnings("nullness")
 public class DTraceWriter extends DaikonWriter {
@@ -37,8 +37,8 @@ public class DTraceWriter extends DaikonWriter {
   protected static final String classClassName = "java.lang.Class";
   protected static final String stringClassName = "java.lang.String";
 
-  /** Where to print output. */
-  private PrintStream outFile;
+  /** Where each sample is formatted and collected until it is written. */
+  private final DTraceQueue.Buffer buffer;
 
   /** debug information about daikon variables */
   private boolean debug_vars = false;
@@ -46,11 +46,11 @@ public class DTraceWriter extends DaikonWriter {
   /**
    * Initializes the DTraceWriter.
    *
-   * @param writer stream to write to
+   * @param buffer where to send each sample
    */
-  public DTraceWriter(PrintStream writer) {
+  DTraceWriter(DTraceQueue.Buffer buffer) {
     super();
-    outFile = writer;
+    this.buffer = buffer;
   }
 
   /** Prints the method entry program point in the dtrace file. */
@@ -79,13 +79,19 @@ public class DTraceWriter extends DaikonWriter {
       stack.fillInStackTrace();
       stack.printStackTrace(System.out);
     }
-    outFile.println(DaikonWriter.methodEntryName(member));
-    printNonce(nonceVal);
-    traverse(mi, root, args, obj, nonsenseValue);
-
-    outFile.println();
-
-    Runtime.incrementRecords();
+    startSample(mi.enterPptName, nonceVal);
+    if (debug_vars) {
+      traverse(mi, root, args, obj, nonsenseValue);
+    } else {
+      // A race between threads compiles the same program twice, which is harmless.
+      AccessorProgram program = mi.enterProgram;
+      if (program == null) {
+        program = AccessorProgram.compile(root);
+        mi.enterProgram = program;
+      }
+      program.run(buffer, args, obj, nonsenseValue);
+    }
+    endSample();
   }
 
   /** Prints an entry program point for a static initializer in the dtrace file. */
@@ -94,10 +100,8 @@ public class DTraceWriter extends DaikonWriter {
     if (Runtime.dtrace_closed) {
       return;
     }
-    outFile.println(pptname);
-    printNonce(nonceVal);
-    outFile.println();
-    Runtime.incrementRecords();
+    startSample(pptname, nonceVal);
+    endSample();
   }
 
   /** Prints the method exit program point in the dtrace file. */
@@ -113,8 +117,6 @@ public class DTraceWriter extends DaikonWriter {
       return;
     }
 
-    Member member = mi.member;
-
     // gets the traversal pattern root for this method exit
     RootInfo root = mi.traversalExit;
     if (root == null) {
@@ -134,13 +136,18 @@ public class DTraceWriter extends DaikonWriter {
               + "No exit locations found in exit_locations set!");
     }
 
-    outFile.println(DaikonWriter.methodExitName(member, lineNum));
-    printNonce(nonceVal);
-    traverse(mi, root, args, obj, ret_val);
-
-    outFile.println();
-
-    Runtime.incrementRecords();
+    startSample(mi.exitPptNames.get(lineNum), nonceVal);
+    if (debug_vars) {
+      traverse(mi, root, args, obj, ret_val);
+    } else {
+      AccessorProgram program = mi.exitProgram;
+      if (program == null) {
+        program = AccessorProgram.compile(root);
+        mi.exitProgram = program;
+      }
+      program.run(buffer, args, obj, ret_val);
+    }
+    endSample();
   }
 
   /** Prints an exit program point for a static initializer in the dtrace file. */
@@ -149,16 +156,29 @@ public class DTraceWriter extends DaikonWriter {
     if (Runtime.dtrace_closed) {
       return;
     }
-    outFile.println(pptname);
-    printNonce(nonceVal);
-    outFile.println();
-    Runtime.incrementRecords();
+    startSample(pptname, nonceVal);
+    endSample();
+  }
+
+  /** Starts a sample with the given program point name and nonce. */
+  private void startSample(@GuardSatisfied DTraceWriter this, String pptname, int nonceVal) {
+    buffer.start_sample(pptname, nonceVal);
   }
 
-  // prints an invocation nonce entry in the dtrace
-  private void printNonce(@GuardSatisfied DTraceWriter this, int val) {
-    outFile.println("this_invocation_nonce");
-    outFile.println(val);
+  /** Ends a sample and sends it to be written. */
+  private void endSample(@GuardSatisfied DTraceWriter this) {
+    Runtime.addRecord(buffer);
+  }
+
+  /**
+   * Prints the name, value, and modbit of a variable.
+   *
+   * @param info the variable
+   * @param val the value of the variable
+   */
+  private void printVariable(
+      @GuardSatisfied DTraceWriter this, DaikonVariableInfo info, Object val) {
+    buffer.add_variable(info.getName(), info, val);
   }
 
   /**
@@ -218,8 +238,7 @@ public class DTraceWriter extends DaikonWriter {
 
     if (curInfo.dTraceShouldPrint()) {
       if (!(curInfo instanceof StaticObjInfo)) {
-        outFile.println(curInfo.getName());
-        outFile.println(curInfo.getDTraceValueString(val));
+        printVariable(curInfo, val);
       }
 
       if (debug_vars) {
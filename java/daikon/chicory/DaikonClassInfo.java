@@ -33,6 +33,12 @@ public class DaikonClassInfo extends DaikonVariableInfo {
     return value;
   }
 
+  /** The value is a string, so it is added as text. */
+  @Override
+  void addBinaryValue(DTraceQueue.Record sample, String name, Object val) {
+    sample.add_variable(name, getDTraceValueString(val));
+  }
+
   @Override
   public String getDTraceValueString(Object val) {
     if (isArray) {
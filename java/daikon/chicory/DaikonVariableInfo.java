@@ -53,6 +53,9 @@ public abstract class DaikonVariableInfo
   /** The variable name. Sensible for all subtypes except RootInfo. */
   private final @Interned String name;
 
+  /** The name in the new decl format, or null if not yet computed. Use {@link #getName}. */
+  private @Nullable String new_format_name = null;
+
   /** The child nodes. */
   public List<DaikonVariableInfo> children;
 
@@ -172,7 +175,13 @@ public abstract class DaikonVariableInfo
     }
 
     if (Chicory.new_decl_format) {
-      return name.replaceFirst("\\[\\]", "[..]");
+      // Computed on first use; the result is the same whichever thread computes it.
+      String result = new_format_name;
+      if (result == null) {
+        result = name.replaceFirst("\\[\\]", "[..]");
+        new_format_name = result;
+      }
+      return result;
     } else {
       return name;
     }
@@ -399,6 +408,84 @@ public abstract class DaikonVariableInfo
     return buf.toString();
   }
 
+  /**
+   * Adds the value of this variable to a sample of a binary dtrace file. Numbers, hashcodes, and
+   * arrays of integers and hashcodes are added as they are; other values are added as the text
+   * that {@link #getDTraceValueString} returns.
+   *
+   * @param sample the sample being formatted
+   * @param name the name of the variable
+   * @param val the value of the variable
+   */
+  void addBinaryValue(DTraceQueue.Record sample, String name, Object val) {
+    if (isArray) {
+      if (val instanceof List<?> && !(val instanceof NonsensicalList)) {
+        List<?> values = (List<?>) val;
+        long[] elts = new long[values.size()];
+        int i = 0;
+        for (Object elt : values) {
+          if (!isIntegral(elt)) {
+            sample.add_variable(name, getDTraceValueString(val));
+            return;
+          }
+          elts[i++] = integralValue(elt);
+        }
+        sample.add_variable(name, elts);
+        return;
+      }
+    } else if (val instanceof Runtime.DoubleWrap) {
+      sample.add_variable(name, ((Runtime.DoubleWrap) val).val);
+      return;
+    } else if (val instanceof Runtime.FloatWrap) {
+      sample.add_variable(name, ((Runtime.FloatWrap) val).val);
+      return;
+    } else if (val instanceof Runtime.BooleanWrap) {
+      sample.add_variable(name, ((Runtime.BooleanWrap) val).val);
+      return;
+    } else if (isIntegral(val)) {
+      sample.add_variable(name, integralValue(val));
+      return;
+    }
+    sample.add_variable(name, getDTraceValueString(val));
+  }
+
+  /**
+   * Returns true if the text of val in a dtrace file, when val is not shown as an array, is an
+   * integer: val is a wrapped integral primitive or char, or an object shown as its hashcode.
+   *
+   * @param val a value
+   * @return true if the text of val is an integer
+   */
+  private static boolean isIntegral(@Nullable Object val) {
+    return val != null
+        && !(val instanceof NonsensicalObject)
+        && !(val instanceof Runtime.BooleanWrap)
+        && !(val instanceof Runtime.FloatWrap)
+        && !(val instanceof Runtime.DoubleWrap);
+  }
+
+  /**
+   * Returns the integer that is the text of val in a dtrace file.
+   *
+   * @param val a value for which {@link #isIntegral} is true
+   * @return the integer that is the text of val
+   */
+  private static long integralValue(Object val) {
+    if (val instanceof Runtime.IntWrap) {
+      return ((Runtime.IntWrap) val).val;
+    } else if (val instanceof Runtime.LongWrap) {
+      return ((Runtime.LongWrap) val).val;
+    } else if (val instanceof Runtime.CharWrap) {
+      return ((Runtime.CharWrap) val).val;
+    } else if (val instanceof Runtime.ShortWrap) {
+      return ((Runtime.ShortWrap) val).val;
+    } else if (val instanceof Runtime.ByteWrap) {
+      return ((Runtime.ByteWrap) val).val;
+    } else {
+      return System.identityHashCode(val);
+    }
+  }
+
   ///
   /// Building the tre
   ///
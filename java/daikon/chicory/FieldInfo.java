@@ -111,7 +111,7 @@ public class FieldInfo extends DaikonVariableInfo {
       List<Object> valAsList = (List<Object>) val;
       return DTraceWriter.getFieldValues(field, valAsList);
     } else {
-      if (Modifier.isStatic(field.getModifiers())) {
+      if (is_static) {
         return DTraceWriter.getStaticValue(field);
       } else {
         return DTraceWriter.getValue(field, val);
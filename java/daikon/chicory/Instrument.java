@@ -59,6 +59,15 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
   /** the index of this method into SharedData.methods */
   int cur_method_info_index = 0;
 
+  /**
+   * Where the index of this method is relocated to, if instrumented classes are cached; otherwise
+   * null, and the index is a constant in the code.
+   */
+  InstrumentedClassCache.@Nullable Relocations cur_relocations = null;
+
+  /** Previously instrumented classes, or null if {@code --class-cache} was not given. */
+  private final @Nullable InstrumentedClassCache cache;
+
   /** the location of the runtime support class */
   private static final String runtime_classname = "daikon.chicory.Runtime";
 
@@ -69,6 +78,24 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
     super();
     debug_transform.enabled = Chicory.debug_transform;
     debug_instrument.enabled = Chicory.debug;
+    if (Chicory.class_cache == null || Chicory.debug) {
+      // With --debug, every class is instrumented, so that it can be dumped.
+      cache = null;
+    } else {
+      cache =
+          new InstrumentedClassCache(
+              Chicory.class_cache,
+              Instrument.class,
+              String.join(
+                  " ",
+                  InstrumentedClassCache.describe(Runtime.ppt_omit_pattern),
+                  InstrumentedClassCache.describe(Runtime.ppt_select_pattern),
+                  "clinit=" + Chicory.instrument_clinit,
+                  "static_init=" + Chicory.checkStaticInit,
+                  "depth=" + Runtime.nesting_depth,
+                  InstrumentedClassCache.describe(Chicory.config_dir),
+                  InstrumentedClassCache.describe(Chicory.get_purity_file())));
+    }
   }
 
   // uses Runtime.ppt_omit_pattern and Runtime.ppt_select_pattern
@@ -188,6 +215,14 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
     debug_transform.log(
         "transforming class %s, loader %s - %s%n", className, loader, loader.getParent());
 
+    if (cache != null) {
+      InstrumentedClassCache.Entry entry = cache.lookup(className, classfileBuffer);
+      if (entry != null) {
+        debug_transform.log("using cached instrumentation of %s%n", fullClassName);
+        return load_cached(entry, fullClassName, loader);
+      }
+    }
+
     // Parse the bytes of the classfile, die on any errors
     JavaClass c;
     {
@@ -202,10 +237,12 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
     try {
       // Get the class information
       ClassGen cg = new ClassGen(c);
+      InstrumentedClassCache.Relocations relocations =
+          (cache == null) ? null : new InstrumentedClassCache.Relocations(cg.getConstantPool());
 
       // Convert reach non-void method to save its result in a local
       // before returning
-      ClassInfo c_info = instrument_all_methods(cg, fullClassName, loader);
+      ClassInfo c_info = instrument_all_methods(cg, fullClassName, loader, relocations);
 
       // get constant static fields!
       Field[] fields = cg.getFields();
@@ -259,9 +296,29 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
         // System.out.println ("About to dump class " + className +
         //                     " to " + filename);
         // njc.dump(filename);
-        return (njc.getBytes());
+        if (relocations == null) {
+          return (njc.getBytes());
+        }
+        InstrumentedClassCache.Entry entry =
+            InstrumentedClassCache.Entry.of(
+                njc.getBytes(),
+                true,
+                relocations.slots(),
+                c_info.method_infos,
+                c_info.staticMap);
+        if (entry.isComplete()) {
+          cache.store(className, classfileBuffer, entry);
+        }
+        return entry.classfile(relocations.indices());
       } else {
         debug_transform.log("not including class %s (filtered out)%n", className);
+        if (cache != null) {
+          cache.store(
+              className,
+              classfileBuffer,
+              InstrumentedClassCache.Entry.of(
+                  null, false, new int[0], new ArrayList<MethodInfo>(), c_info.staticMap));
+        }
         // No changes to the bytecodes
         return null;
       }
@@ -274,6 +331,44 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
     }
   }
 
+  /**
+   * Registers the class and methods described by a cache entry, as {@link #instrument_all_methods}
+   * does for a class that it instruments, and returns the instrumented class.
+   *
+   * @param entry the cached instrumentation of the class
+   * @param fullClassName the name of the class
+   * @param loader the class loader of the class
+   * @return the instrumented class, or null if the class is loaded unchanged
+   */
+  private byte @Nullable [] load_cached(
+      InstrumentedClassCache.Entry entry, @BinaryName String fullClassName, ClassLoader loader) {
+
+    ClassInfo class_info = new ClassInfo(fullClassName, loader);
+    List<MethodInfo> method_infos = entry.methodInfos(class_info);
+    int[] indices = new int[method_infos.size()];
+    synchronized (SharedData.methods) {
+      for (int i = 0; i < indices.length; i++) {
+        indices[i] = SharedData.methods.size();
+        SharedData.methods.add(method_infos.get(i));
+      }
+    }
+    class_info.set_method_infos(method_infos);
+    class_info.staticMap.putAll(entry.staticMap);
+    class_info.shouldInclude = entry.registered;
+
+    if (!entry.registered) {
+      debug_transform.log("not including class %s (filtered out)%n", fullClassName);
+      return null;
+    }
+    synchronized (SharedData.new_classes) {
+      SharedData.new_classes.add(class_info);
+    }
+    synchronized (SharedData.all_classes) {
+      SharedData.all_classes.add(class_info);
+    }
+    return entry.classfile(indices);
+  }
+
   // used to add a "hook" into the <clinit> static initializer
   private Method addInvokeToClinit(ClassGen cg, MethodGen mg, String fullClassName) {
 
@@ -388,8 +483,14 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
    * deficiency of not being able to query return values.
    *
    * @param fullClassName must be fully qualified: packageName.className
+   * @param relocations where to record the constants that hold method indices, or null to put the
+   *     indices in the code
    */
-  private ClassInfo instrument_all_methods(ClassGen cg, String fullClassName, ClassLoader loader) {
+  private ClassInfo instrument_all_methods(
+      ClassGen cg,
+      String fullClassName,
+      ClassLoader loader,
+      InstrumentedClassCache.@Nullable Relocations relocations) {
 
     ClassInfo class_info = new ClassInfo(cg.getClassName(), loader);
     List<MethodInfo> method_infos = new ArrayList<>();
@@ -413,6 +514,7 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
         // for each class - probably a cleaner solution.
         synchronized (this) {
           pool = cg.getConstantPool();
+          cur_relocations = relocations;
           MethodGen mg = new MethodGen(methods[i], cg.getClassName(), pool);
           MethodContext context = new MethodContext(cg, mg);
 
@@ -858,7 +960,11 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
 
     // iconst
     // Push the MethodInfo index
-    il.append(ifact.createConstant(cur_method_info_index));
+    if (cur_relocations == null) {
+      il.append(ifact.createConstant(cur_method_info_index));
+    } else {
+      il.append(cur_relocations.push(cur_method_info_index));
+    }
 
     // iconst
     // anewarray
@@ -1193,6 +1299,9 @@ class Instrument extends InstructionListUtils implements ClassFileTransformer {
     if (classname.equals("daikon/PptTopLevel$PptType")) {
       return true;
     }
+    if (classname.startsWith("daikon/BinaryDtrace")) {
+      return true;
+    }
     if (classname.startsWith("daikon/plumelib")) {
       return true;
     }
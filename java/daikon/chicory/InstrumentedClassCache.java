@@ -0,0 +1,671 @@
+package daikon.chicory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.LDC;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.signature.qual.ClassGetName;
+
+/**
+ * An on-disk cache of instrumented classes, used by Chicory and DynComp to skip BCEL altogether
+ * when a class has been instrumented before with the same options. An entry is keyed by a hash of
+ * the original class file, the options that affect instrumentation, and the version of the agent.
+ *
+ * <p>An entry holds the instrumented class file together with the {@link MethodInfo} data that the
+ * agent records while instrumenting it. The instrumented code refers to each MethodInfo by its
+ * index in a global list, which depends on the order in which classes are loaded. So each such
+ * index is pushed by an {@code ldc} of a constant pool entry of its own (see {@link
+ * Relocations}), and on a hit those entries are overwritten with the indices allocated in the
+ * current run.
+ *
+ * <p>Several JVMs may share a cache directory. Each entry is written to a temporary file and then
+ * renamed, so a reader sees either a complete entry or none.
+ */
+public final class InstrumentedClassCache {
+
+  /** Identifies the format of an entry file. */
+  private static final int MAGIC = 0x44434331;
+
+  /** The tag of a CONSTANT_Integer entry in a class file's constant pool. */
+  private static final int CONSTANT_INTEGER = 3;
+
+  /** The directory that holds the entries. */
+  private final Path dir;
+
+  /** The agent, its version, and the options that affect instrumentation. */
+  private final String options;
+
+  /**
+   * Creates a cache in the given directory, which is created if necessary.
+   *
+   * @param dir the directory that holds the entries
+   * @param agent a class of the agent, whose code source identifies the agent's version
+   * @param options the options that affect how the agent instruments a class
+   */
+  public InstrumentedClassCache(File dir, Class<?> agent, String options) {
+    this.dir = dir.toPath();
+    this.options = agent.getName() + " " + describe(agent) + " " + options;
+    try {
+      Files.createDirectories(this.dir);
+    } catch (IOException e) {
+      // Every store will fail, and every lookup will miss.
+    }
+  }
+
+  /**
+   * Returns a description of the code of the given class, for inclusion in the options of a cache:
+   * the location, size, and time of last modification of the jar file or class file it was loaded
+   * from.
+   *
+   * @param agent a class
+   * @return a description of the class's code
+   */
+  public static String describe(Class<?> agent) {
+    File code = null;
+    CodeSource source = agent.getProtectionDomain().getCodeSource();
+    try {
+      if (source != null && source.getLocation().getProtocol().equals("file")) {
+        code = new File(source.getLocation().toURI());
+        if (code.isDirectory()) {
+          URL resource = agent.getResource(agent.getSimpleName() + ".class");
+          if (resource != null && resource.getProtocol().equals("file")) {
+            code = new File(resource.toURI());
+          }
+        }
+      }
+    } catch (Exception e) {
+      code = null;
+    }
+    if (code == null) {
+      return "unknown";
+    }
+    return code + " " + code.length() + " " + code.lastModified();
+  }
+
+  /**
+   * Returns the name of the file that holds the entry for the given class.
+   *
+   * @param className the name of the class
+   * @param classfile the original class file
+   * @return the file that holds the entry for the class
+   */
+  private Path entryFile(String className, byte[] classfile) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error("SHA-256 is not supported", e);
+    }
+    digest.update(options.getBytes(UTF_8));
+    digest.update((byte) 0);
+    digest.update(className.getBytes(UTF_8));
+    digest.update((byte) 0);
+    byte[] hash = digest.digest(classfile);
+    StringBuilder name = new StringBuilder();
+    for (byte b : hash) {
+      name.append(String.format("%02x", b));
+    }
+    return dir.resolve(name.append(".cls").toString());
+  }
+
+  /**
+   * Returns the entry for the given class, or null if there is none.
+   *
+   * @param className the name of the class
+   * @param classfile the original class file
+   * @return the entry for the class, or null
+   */
+  public @Nullable Entry lookup(String className, byte[] classfile) {
+    byte[] data;
+    try {
+      data = Files.readAllBytes(entryFile(className, classfile));
+    } catch (IOException e) {
+      // Usually a NoSuchFileException: the class has not been cached.
+      return null;
+    }
+    try {
+      return Entry.read(new DataInputStream(new ByteArrayInputStream(data)));
+    } catch (IOException e) {
+      // Not written by this version of the cache; it is replaced when the class is stored.
+      return null;
+    }
+  }
+
+  /**
+   * Records the entry for the given class. Failures are ignored: the class is instrumented again
+   * the next time.
+   *
+   * @param className the name of the class
+   * @param classfile the original class file
+   * @param entry the result of instrumenting the class
+   */
+  public void store(String className, byte[] classfile, Entry entry) {
+    Path file = entryFile(className, classfile);
+    Path tmp = null;
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      entry.write(new DataOutputStream(bytes));
+      tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+      Files.write(tmp, bytes.toByteArray());
+      try {
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      tmp = null;
+    } catch (IOException e) {
+      // The class is not cached.
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          // Nothing more to do.
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of the class file in which each of the given CONSTANT_Integer entries of the
+   * constant pool holds the corresponding value.
+   *
+   * @param classfile a class file
+   * @param slots indices of CONSTANT_Integer entries in the constant pool of classfile
+   * @param values the new values of those entries
+   * @return the patched class file
+   */
+  public static byte[] patch(byte[] classfile, int[] slots, int[] values) {
+    byte[] result = classfile.clone();
+    if (slots.length == 0) {
+      return result;
+    }
+    int[] offsets = constantOffsets(classfile);
+    for (int i = 0; i < slots.length; i++) {
+      int offset = offsets[slots[i]];
+      if (classfile[offset] != CONSTANT_INTEGER) {
+        throw new Error("constant pool entry " + slots[i] + " is not an integer");
+      }
+      int value = values[i];
+      result[offset + 1] = (byte) (value >>> 24);
+      result[offset + 2] = (byte) (value >>> 16);
+      result[offset + 3] = (byte) (value >>> 8);
+      result[offset + 4] = (byte) value;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the offset in the class file of each entry of its constant pool.
+   *
+   * @param classfile a class file
+   * @return the offset of each entry of the constant pool, indexed by entry
+   */
+  private static int[] constantOffsets(byte[] classfile) {
+    int count = ((classfile[8] & 0xff) << 8) | (classfile[9] & 0xff);
+    int[] offsets = new int[count];
+    int offset = 10;
+    for (int i = 1; i < count; i++) {
+      offsets[i] = offset;
+      int tag = classfile[offset];
+      switch (tag) {
+        case 1: // Utf8
+          offset += 3 + (((classfile[offset + 1] & 0xff) << 8) | (classfile[offset + 2] & 0xff));
+          break;
+        case 3: // Integer
+        case 4: // Float
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+          offset += 5;
+          break;
+        case 5: // Long
+        case 6: // Double
+          offset += 9;
+          i++; // takes two entries
+          break;
+        case 7: // Class
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          offset += 3;
+          break;
+        case 15: // MethodHandle
+          offset += 4;
+          break;
+        default:
+          throw new Error("unknown constant pool tag " + tag + " at offset " + offset);
+      }
+    }
+    return offsets;
+  }
+
+  /**
+   * The constant pool entries of a class being instrumented that hold indices into a global list.
+   * Each index gets an entry of its own that no other instruction uses. While the class is being
+   * instrumented, each such entry holds a distinct placeholder, so that BCEL does not reuse it for
+   * an equal constant; {@link #patch} puts the real indices in the finished class file.
+   */
+  public static final class Relocations {
+
+    /** The constant pool of the class being instrumented. */
+    private final ConstantPoolGen pool;
+
+    /** Maps each index to the constant pool entry that holds it. */
+    private final Map<Integer, Integer> slots = new LinkedHashMap<>();
+
+    /** The next placeholder to try. */
+    private int next_placeholder = Integer.MIN_VALUE;
+
+    /**
+     * Creates an empty set of relocations for a class.
+     *
+     * @param pool the constant pool of the class being instrumented
+     */
+    public Relocations(ConstantPoolGen pool) {
+      this.pool = pool;
+    }
+
+    /**
+     * Returns an instruction that pushes the given index.
+     *
+     * @param index an index into a global list
+     * @return an instruction that pushes index
+     */
+    public LDC push(int index) {
+      Integer slot = slots.get(index);
+      if (slot == null) {
+        while (pool.lookupInteger(next_placeholder) != -1) {
+          next_placeholder++;
+        }
+        slot = pool.addInteger(next_placeholder++);
+        slots.put(index, slot);
+      }
+      return new LDC(slot);
+    }
+
+    /**
+     * Returns the constant pool entries, in increasing order of the indices they hold.
+     *
+     * @return the constant pool entries
+     */
+    public int[] slots() {
+      int[] indices = indices();
+      int[] result = new int[indices.length];
+      for (int i = 0; i < indices.length; i++) {
+        result[i] = slots.get(indices[i]);
+      }
+      return result;
+    }
+
+    /**
+     * Returns the indices, in increasing order.
+     *
+     * @return the indices
+     */
+    public int[] indices() {
+      int[] result = new int[slots.size()];
+      int i = 0;
+      for (int index : slots.keySet()) {
+        result[i++] = index;
+      }
+      Arrays.sort(result);
+      return result;
+    }
+  }
+
+  /** The result of instrumenting a class. */
+  public static final class Entry {
+
+    /**
+     * The instrumented class file, with placeholders in the entries of {@link #slots}; or null if
+     * the class is loaded unchanged.
+     */
+    public final byte @Nullable [] classfile;
+
+    /**
+     * Whether the agent registered the class, that is, added its {@link ClassInfo} to {@link
+     * SharedData#all_classes}.
+     */
+    public final boolean registered;
+
+    /** The constant pool entries that hold the index of each method, in the order of methods. */
+    public final int[] slots;
+
+    /** The methods that the agent recorded, in the order of their indices. */
+    private final List<MethodData> methods;
+
+    /** The constant static fields of the class; see {@link ClassInfo#staticMap}. */
+    public final Map<String, String> staticMap;
+
+    /**
+     * Creates an entry.
+     *
+     * @param classfile the instrumented class file, with placeholders, or null if unchanged
+     * @param registered whether the agent registered the class
+     * @param slots the constant pool entries that hold the index of each method
+     * @param methods the methods that the agent recorded, in the order of their indices
+     * @param staticMap the constant static fields of the class
+     */
+    private Entry(
+        byte @Nullable [] classfile,
+        boolean registered,
+        int[] slots,
+        List<MethodData> methods,
+        Map<String, String> staticMap) {
+      this.classfile = classfile;
+      this.registered = registered;
+      this.slots = slots;
+      this.methods = methods;
+      this.staticMap = staticMap;
+    }
+
+    /**
+     * Creates an entry for a class that the agent has just instrumented.
+     *
+     * @param classfile the instrumented class file, with placeholders, or null if unchanged
+     * @param registered whether the agent registered the class
+     * @param slots the constant pool entries that hold the index of each method
+     * @param methods the methods that the agent recorded, in the order of their indices
+     * @param staticMap the constant static fields of the class
+     * @return the entry
+     */
+    public static Entry of(
+        byte @Nullable [] classfile,
+        boolean registered,
+        int[] slots,
+        List<MethodInfo> methods,
+        Map<String, String> staticMap) {
+      List<MethodData> data = new ArrayList<>(methods.size());
+      for (MethodInfo mi : methods) {
+        data.add(new MethodData(mi));
+      }
+      return new Entry(classfile, registered, slots, data, staticMap);
+    }
+
+    /**
+     * Returns true if the entry may be stored: every method that the agent recorded is referred to
+     * through a relocated constant.
+     *
+     * @return true if the entry may be stored
+     */
+    public boolean isComplete() {
+      return classfile == null ? methods.isEmpty() : slots.length == methods.size();
+    }
+
+    /**
+     * Returns new MethodInfos for the methods of this entry, in the order of their indices.
+     *
+     * @param class_info the class that the methods belong to
+     * @return new MethodInfos for the methods of this entry
+     */
+    public List<MethodInfo> methodInfos(ClassInfo class_info) {
+      List<MethodInfo> result = new ArrayList<>(methods.size());
+      for (MethodData md : methods) {
+        result.add(
+            new MethodInfo(
+                class_info,
+                md.method_name,
+                md.arg_names.clone(),
+                md.arg_type_strings.clone(),
+                new ArrayList<>(md.exit_locations),
+                new ArrayList<>(md.is_included)));
+      }
+      return result;
+    }
+
+    /**
+     * Returns a copy of {@link #classfile} in which the methods have the given indices.
+     *
+     * @param indices the index of each method, in the order of methods
+     * @return the instrumented class file, ready to be loaded
+     */
+    public byte[] classfile(int[] indices) {
+      if (classfile == null) {
+        throw new Error("the class is not instrumented");
+      }
+      return patch(classfile, slots, indices);
+    }
+
+    /**
+     * Writes this entry.
+     *
+     * @param out where to write the entry
+     * @throws IOException if the entry cannot be written
+     */
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(MAGIC);
+      out.writeBoolean(registered);
+      if (classfile == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(classfile.length);
+        out.write(classfile);
+      }
+      out.writeInt(slots.length);
+      for (int slot : slots) {
+        out.writeInt(slot);
+      }
+      out.writeInt(methods.size());
+      for (MethodData md : methods) {
+        md.write(out);
+      }
+      out.writeInt(staticMap.size());
+      for (Map.Entry<String, String> field : staticMap.entrySet()) {
+        out.writeUTF(field.getKey());
+        out.writeUTF(field.getValue());
+      }
+      out.flush();
+    }
+
+    /**
+     * Reads an entry.
+     *
+     * @param in where to read the entry from
+     * @return the entry
+     * @throws IOException if the entry cannot be read or is malformed
+     */
+    static Entry read(DataInputStream in) throws IOException {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("not a cache entry");
+      }
+      boolean registered = in.readBoolean();
+      byte[] classfile = null;
+      int length = in.readInt();
+      if (length >= 0) {
+        classfile = new byte[length];
+        in.readFully(classfile);
+      }
+      int[] slots = new int[in.readInt()];
+      for (int i = 0; i < slots.length; i++) {
+        slots[i] = in.readInt();
+      }
+      int method_count = in.readInt();
+      List<MethodData> methods = new ArrayList<>(method_count);
+      for (int i = 0; i < method_count; i++) {
+        methods.add(MethodData.read(in));
+      }
+      int field_count = in.readInt();
+      Map<String, String> staticMap = new HashMap<>();
+      for (int i = 0; i < field_count; i++) {
+        staticMap.put(in.readUTF(), in.readUTF());
+      }
+      return new Entry(classfile, registered, slots, methods, staticMap);
+    }
+  }
+
+  /** The parts of a {@link MethodInfo} that the agent computes while instrumenting. */
+  private static final class MethodData {
+
+    /** See {@link MethodInfo#method_name}. */
+    final String method_name;
+
+    /** See {@link MethodInfo#arg_names}. */
+    final String[] arg_names;
+
+    /** See {@link MethodInfo#arg_type_strings}. */
+    final @ClassGetName String[] arg_type_strings;
+
+    /** See {@link MethodInfo#exit_locations}. */
+    final List<Integer> exit_locations;
+
+    /** See {@link MethodInfo#is_included}. */
+    final List<Boolean> is_included;
+
+    /**
+     * Copies the instrumentation-time parts of a MethodInfo.
+     *
+     * @param mi the MethodInfo
+     */
+    MethodData(MethodInfo mi) {
+      this(mi.method_name, mi.arg_names, mi.arg_type_strings, mi.exit_locations, mi.is_included);
+    }
+
+    /**
+     * Creates a MethodData from its parts.
+     *
+     * @param method_name the name of the method
+     * @param arg_names the names of the parameters
+     * @param arg_type_strings the types of the parameters
+     * @param exit_locations the line numbers of the included exits
+     * @param is_included whether each exit is included
+     */
+    MethodData(
+        String method_name,
+        String[] arg_names,
+        @ClassGetName String[] arg_type_strings,
+        List<Integer> exit_locations,
+        List<Boolean> is_included) {
+      this.method_name = method_name;
+      this.arg_names = arg_names;
+      this.arg_type_strings = arg_type_strings;
+      this.exit_locations = exit_locations;
+      this.is_included = is_included;
+    }
+
+    /**
+     * Writes this MethodData.
+     *
+     * @param out where to write
+     * @throws IOException if it cannot be written
+     */
+    void write(DataOutputStream out) throws IOException {
+      out.writeUTF(method_name);
+      writeStrings(out, arg_names);
+      writeStrings(out, arg_type_strings);
+      out.writeInt(exit_locations.size());
+      for (int line : exit_locations) {
+        out.writeInt(line);
+      }
+      out.writeInt(is_included.size());
+      for (boolean included : is_included) {
+        out.writeBoolean(included);
+      }
+    }
+
+    /**
+     * Reads a MethodData.
+     *
+     * @param in where to read from
+     * @return the MethodData
+     * @throws IOException if it cannot be read
+     */
+    @SuppressWarnings("signature") // the strings were written from @ClassGetName values
+    static MethodData read(DataInputStream in) throws IOException {
+      String method_name = in.readUTF();
+      String[] arg_names = readStrings(in);
+      @ClassGetName String[] arg_type_strings = readStrings(in);
+      List<Integer> exit_locations = new ArrayList<>();
+      for (int n = in.readInt(); n > 0; n--) {
+        exit_locations.add(in.readInt());
+      }
+      List<Boolean> is_included = new ArrayList<>();
+      for (int n = in.readInt(); n > 0; n--) {
+        is_included.add(in.readBoolean());
+      }
+      return new MethodData(method_name, arg_names, arg_type_strings, exit_locations, is_included);
+    }
+
+    /**
+     * Writes an array of strings.
+     *
+     * @param out where to write
+     * @param strings the strings
+     * @throws IOException if they cannot be written
+     */
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+      out.writeInt(strings.length);
+      for (String s : strings) {
+        out.writeUTF(s);
+      }
+    }
+
+    /**
+     * Reads an array of strings.
+     *
+     * @param in where to read from
+     * @return the strings
+     * @throws IOException if they cannot be read
+     */
+    private static String[] readStrings(DataInputStream in) throws IOException {
+      String[] result = new String[in.readInt()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = in.readUTF();
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Returns a description of the given patterns, for inclusion in the options of a cache.
+   *
+   * @param patterns regular expressions
+   * @return a description of the patterns
+   */
+  public static String describe(List<? extends Object> patterns) {
+    StringBuilder result = new StringBuilder("[");
+    for (Object pattern : patterns) {
+      result.append(pattern).append('\u0000');
+    }
+    return result.append(']').toString();
+  }
+
+  /**
+   * Returns a description of the given file, for inclusion in the options of a cache: its name,
+   * size, and time of last modification.
+   *
+   * @param file a file, or null
+   * @return a description of the file
+   */
+  public static String describe(@Nullable File file) {
+    if (file == null) {
+      return "null";
+    }
+    return file.getAbsolutePath() + " " + file.length() + " " + file.lastModified();
+  }
+}
@@ -6,6 +6,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.checkerframework.checker.lock.qual.GuardSatisfied;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
@@ -68,12 +69,43 @@ public class MethodInfo {
    */
   public @MonotonicNonNull RootInfo traversalExit = null;
 
+  /**
+   * The compiled traversal of {@link #traversalEnter}.
+   *
+   * <p>Set by DTraceWriter when the first entry sample is captured.
+   */
+  @MonotonicNonNull AccessorProgram enterProgram = null;
+
+  /**
+   * The compiled traversal of {@link #traversalExit}.
+   *
+   * <p>Set by DTraceWriter when the first exit sample is captured.
+   */
+  @MonotonicNonNull AccessorProgram exitProgram = null;
+
+  /**
+   * The program point name of the method entry, so that it need not be recomputed for each sample.
+   *
+   * <p>Set by Runtime, along with the traversal patterns, and read by DTraceWriter.
+   */
+  public @MonotonicNonNull String enterPptName = null;
+
+  /**
+   * The program point name of each method exit, keyed by line number.
+   *
+   * <p>Set by Runtime, along with the traversal patterns, and read by DTraceWriter.
+   */
+  public @MonotonicNonNull Map<Integer, String> exitPptNames = null;
+
   /** The number of times this method has been called. */
   public int call_cnt = 0;
 
   /** The number of times we have captured the output for this method. */
   public int capture_cnt = 0;
 
+  /** The sampling state of this method, if Chicory samples to a budget and it has been called. */
+  volatile AdaptiveSampler.@MonotonicNonNull MethodStats sample_stats = null;
+
   /**
    * Whether or not the method is pure (has no side-effects). Will only be set to true if the {@code
    * --purity-analysis} command-line option is given to Chicory, and the method returns some value.
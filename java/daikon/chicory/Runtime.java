@@ -1,5 +1,7 @@
 package daikon.chicory;
 
+import daikon.BinaryDtrace;
+import daikon.Chicory;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -17,11 +19,11 @@ import java.util.ConcurrentModificationException;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 import org.checkerframework.checker.lock.qual.GuardSatisfied;
@@ -51,13 +53,6 @@ public class Runtime {
   /** debug flag */
   public static boolean debug = false;
 
-  /**
-   * Flag indicating that a dtrace record is currently being written used to prevent a call to
-   * instrumented code that occurs as part of generating a dtrace record (eg, toArray when
-   * processing lists or pure functions) from generating a nested dtrace record.
-   */
-  public static boolean in_dtrace = false;
-
   /** True if ChicoryPremain was unable to load. */
   public static boolean chicoryLoaderInstantiationError = false;
 
@@ -92,7 +87,7 @@ public class Runtime {
   static long dtraceLimit = Long.MAX_VALUE;
 
   /** Number of records printed to date. */
-  static long printedRecords = 0;
+  static AtomicLong printedRecords = new AtomicLong();
 
   /** Terminate the program when the dtrace limit is reached. */
   static boolean dtraceLimitTerminate = false;
@@ -102,8 +97,14 @@ public class Runtime {
   // instrumentation code that cannot be type-checked by a source code checker.
   static @GuardedBy("<self>") PrintStream dtrace;
 
+  /**
+   * Binary dtrace output, if {@code --dtrace-binary} was given. Samples are written to it directly
+   * and {@link #dtrace} writes text (declarations, comments) into it.
+   */
+  static BinaryDtrace.@Nullable Writer binary_dtrace = null;
+
   /** Set to true when the dtrace stream is closed. */
-  static boolean dtrace_closed = false;
+  static volatile boolean dtrace_closed = false;
 
   /** True if no dtrace is being generated. */
   static boolean no_dtrace = false;
@@ -114,9 +115,9 @@ public class Runtime {
   // Set in ChicoryPremain.premain().
   static DeclWriter decl_writer;
 
-  /** Dtrace writer setup for writing to the trace file. */
+  /** Carries records from the threads of the target program to the trace file. */
   // Set in ChicoryPremain.premain().
-  static @GuardedBy("Runtime.class") DTraceWriter dtrace_writer;
+  static DTraceQueue dtrace_queue;
 
   /**
    * Which static initializers have been run. Each element of the Set is a fully qualified class
@@ -131,24 +132,59 @@ public class Runtime {
     /** whether or not the call was captured on enter */
     boolean captured;
 
-    @Holding("Runtime.class")
     public CallInfo(int nonce, boolean captured) {
       this.nonce = nonce;
       this.captured = captured;
     }
   }
 
-  /** Stack of active methods. */
-  private static @GuardedBy("Runtime.class") Map<Thread, Deque<CallInfo>> thread_to_callstack =
-      new LinkedHashMap<>();
+  /**
+   * The tracing state of one thread of the target program. Because each thread has its own, enter
+   * and exit need not lock anything while they format a record.
+   */
+  private static class ThreadState {
+    /**
+     * Flag indicating that a dtrace record is currently being written used to prevent a call to
+     * instrumented code that occurs as part of generating a dtrace record (eg, toArray when
+     * processing lists or pure functions) from generating a nested dtrace record.
+     */
+    boolean in_dtrace = false;
+
+    /** True while a pure method is being invoked to compute a value for the trace file. */
+    boolean invokingPure = false;
+
+    /** Stack of active methods. */
+    final Deque<CallInfo> callstack = new ArrayDeque<>();
+
+    /** This thread's records that have not yet been handed to the writer thread. */
+    final DTraceQueue.Buffer buffer = dtrace_queue.new_buffer();
+
+    /** Formats this thread's records. */
+    final DTraceWriter dtrace_writer = new DTraceWriter(buffer);
+  }
+
+  /** The tracing state of each thread. */
+  private static final ThreadLocal<ThreadState> thread_state =
+      ThreadLocal.withInitial(ThreadState::new);
+
+  /**
+   * Number of classes that process_new_classes has removed from SharedData.new_classes but not yet
+   * finished. Guarded by SharedData.new_classes.
+   */
+  private static int classes_in_process = 0;
 
   /**
    * Sample count at a call site to begin sampling. All previous calls will be recorded. Sampling
    * starts at 10% and decreases by a factor of 10 each time another sample_start samples have been
-   * recorded. If sample_start is 0, then all calls will be recorded.
+   * recorded. If sample_start is 0, then all calls will be recorded. If {@link #sampler} is set,
+   * it decides instead, and sample_start is the number of calls of each method that it always
+   * records.
    */
   public static int sample_start = 0;
 
+  /** Decides which calls are recorded, if Chicory samples to a budget; otherwise null. */
+  static @Nullable AdaptiveSampler sampler = null;
+
   // Constructor
   private Runtime() {
     throw new Error("Do not create instances of Runtime");
@@ -172,28 +208,19 @@ public class Runtime {
 
   // Whenever a method call occurs in the target program, output
   // information about that call to the trace file.  However, if the
-  // method is a pure method that is being called to create a value for
-  // the trace file, don't record it.
-  // TODO: invokingPure should be annotated with @GuardedByName("Runtime.class")
-  // once that annotation is available.  Currently all the methods that access
-  // invokingPure are annotated with @Holding("Runtime.class"), but annotating
-  // the boolean would prevent any new methods from accessing it without holding
-  // the lock.
-  private static boolean invokingPure = false;
+  // method is a pure method that is being called (by the current thread)
+  // to create a value for the trace file, don't record it.
 
-  @Holding("Runtime.class")
   public static boolean dontProcessPpts() {
-    return invokingPure;
+    return thread_state.get().invokingPure;
   }
 
-  @Holding("Runtime.class")
   public static void startPure() {
-    invokingPure = true;
+    thread_state.get().invokingPure = true;
   }
 
-  @Holding("Runtime.class")
   public static void endPure() {
-    invokingPure = false;
+    thread_state.get().invokingPure = false;
   }
 
   /**
@@ -204,8 +231,7 @@ public class Runtime {
    * @param mi_index index in methods of the MethodInfo for this method
    * @param args array of arguments to method
    */
-  public static synchronized void enter(
-      @Nullable Object obj, int nonce, int mi_index, Object[] args) {
+  public static void enter(@Nullable Object obj, int nonce, int mi_index, Object[] args) {
 
     MethodInfo mi = null;
     if (debug) {
@@ -217,7 +243,8 @@ public class Runtime {
       method_indent = method_indent.concat("  ");
     }
 
-    if (dontProcessPpts()) {
+    ThreadState ts = thread_state.get();
+    if (ts.invokingPure) {
       return;
     }
 
@@ -225,16 +252,16 @@ public class Runtime {
     // check_in_dtrace();
 
     // Ignore this call if we are already processing a dtrace record
-    if (in_dtrace) {
+    if (ts.in_dtrace) {
       return;
     }
 
     // Note that we are processing a dtrace record until we return
-    in_dtrace = true;
+    ts.in_dtrace = true;
     try {
       int num_new_classes = 0;
       synchronized (SharedData.new_classes) {
-        num_new_classes = SharedData.new_classes.size();
+        num_new_classes = SharedData.new_classes.size() + classes_in_process;
       }
       if (num_new_classes > 0) {
         process_new_classes();
@@ -243,38 +270,47 @@ public class Runtime {
       synchronized (SharedData.methods) {
         mi = SharedData.methods.get(mi_index);
       }
-      mi.call_cnt++;
+      int call_cnt;
+      synchronized (mi) {
+        call_cnt = ++mi.call_cnt;
+      }
 
       // If sampling, check to see if we are capturing this sample
       boolean capture = true;
-      if (sample_start > 0) {
-        if (mi.call_cnt <= sample_start) {
+      AdaptiveSampler sampler = Runtime.sampler;
+      if (sampler != null) {
+        capture = sampler.capture(mi, call_cnt, obj, args);
+        ts.callstack.push(new CallInfo(nonce, capture));
+      } else if (sample_start > 0) {
+        if (call_cnt <= sample_start) {
           // nothing to do
-        } else if (mi.call_cnt <= (sample_start * 10)) {
-          capture = (mi.call_cnt % 10) == 0;
-        } else if (mi.call_cnt <= (sample_start * 100)) {
-          capture = (mi.call_cnt % 100) == 0;
-        } else if (mi.call_cnt <= (sample_start * 1000)) {
-          capture = (mi.call_cnt % 1000) == 0;
+        } else if (call_cnt <= (sample_start * 10)) {
+          capture = (call_cnt % 10) == 0;
+        } else if (call_cnt <= (sample_start * 100)) {
+          capture = (call_cnt % 100) == 0;
+        } else if (call_cnt <= (sample_start * 1000)) {
+          capture = (call_cnt % 1000) == 0;
         } else {
-          capture = (mi.call_cnt % 10000) == 0;
-        }
-        Thread t = Thread.currentThread();
-        Deque<CallInfo> callstack = thread_to_callstack.get(t);
-        if (callstack == null) {
-          callstack = new ArrayDeque<CallInfo>();
-          thread_to_callstack.put(t, callstack);
+          capture = (call_cnt % 10000) == 0;
         }
-        callstack.push(new CallInfo(nonce, capture));
+        ts.callstack.push(new CallInfo(nonce, capture));
       }
 
       if (capture) {
-        mi.capture_cnt++;
+        synchronized (mi) {
+          mi.capture_cnt++;
+        }
         // long start = System.currentTimeMillis();
+        long start_nanos = (sampler == null) ? 0 : System.nanoTime();
+        long start_chars = ts.buffer.sample_chars();
         if (mi.member == null) {
-          dtrace_writer.clinitEntry(mi.class_info.class_name + ".<clinit>:::ENTER", nonce);
+          ts.dtrace_writer.clinitEntry(mi.class_info.class_name + ".<clinit>:::ENTER", nonce);
         } else {
-          dtrace_writer.methodEntry(mi, nonce, obj, args);
+          ts.dtrace_writer.methodEntry(mi, nonce, obj, args);
+        }
+        if (sampler != null) {
+          sampler.add_cost(
+              mi, System.nanoTime() - start_nanos, ts.buffer.sample_chars() - start_chars);
         }
         // long duration = System.currentTimeMillis() - start;
         // System.out.println ("Enter " + mi + " " + duration + "ms"
@@ -284,7 +320,7 @@ public class Runtime {
         //                 + " " + mi.capture_cnt + "/" + mi.call_cnt);
       }
     } finally {
-      in_dtrace = false;
+      ts.in_dtrace = false;
     }
   }
 
@@ -298,7 +334,7 @@ public class Runtime {
    * @param ret_val return value of method, or null if method is void
    * @param exitLineNum the line number at which this method exited
    */
-  public static synchronized void exit(
+  public static void exit(
       @Nullable Object obj,
       int nonce,
       int mi_index,
@@ -316,7 +352,8 @@ public class Runtime {
           "%smethod_exit  %s.%s%n", method_indent, mi.class_info.class_name, mi.method_name);
     }
 
-    if (dontProcessPpts()) {
+    ThreadState ts = thread_state.get();
+    if (ts.invokingPure) {
       return;
     }
 
@@ -324,27 +361,27 @@ public class Runtime {
     // check_in_dtrace();
 
     // Ignore this call if we are already processing a dtrace record
-    if (in_dtrace) {
+    if (ts.in_dtrace) {
       return;
     }
 
     // Note that we are processing a dtrace record until we return
-    in_dtrace = true;
+    ts.in_dtrace = true;
     try {
 
       int num_new_classes = 0;
       synchronized (SharedData.new_classes) {
-        num_new_classes = SharedData.new_classes.size();
+        num_new_classes = SharedData.new_classes.size() + classes_in_process;
       }
       if (num_new_classes > 0) {
         process_new_classes();
       }
 
       // Skip this call if it was not sampled at entry to the method
-      if (sample_start > 0) {
+      AdaptiveSampler sampler = Runtime.sampler;
+      if (sample_start > 0 || sampler != null) {
         CallInfo ci = null;
-        @SuppressWarnings("nullness") // map: key was put in map by enter()
-        @NonNull Deque<CallInfo> callstack = thread_to_callstack.get(Thread.currentThread());
+        Deque<CallInfo> callstack = ts.callstack;
         while (!callstack.isEmpty()) {
           ci = callstack.pop();
           if (ci.nonce == nonce) {
@@ -367,16 +404,22 @@ public class Runtime {
         mi = SharedData.methods.get(mi_index);
       }
       // long start = System.currentTimeMillis();
+      long start_nanos = (sampler == null) ? 0 : System.nanoTime();
+      long start_chars = ts.buffer.sample_chars();
       if (mi.member == null) {
-        dtrace_writer.clinitExit(
+        ts.dtrace_writer.clinitExit(
             mi.class_info.class_name + ".<clinit>:::EXIT" + exitLineNum, nonce);
       } else {
-        dtrace_writer.methodExit(mi, nonce, obj, args, ret_val, exitLineNum);
+        ts.dtrace_writer.methodExit(mi, nonce, obj, args, ret_val, exitLineNum);
+      }
+      if (sampler != null) {
+        sampler.add_cost(
+            mi, System.nanoTime() - start_nanos, ts.buffer.sample_chars() - start_chars);
       }
       // long duration = System.currentTimeMillis() - start;
       // System.out.println ("Exit " + mi + " " + duration + "ms");
     } finally {
-      in_dtrace = false;
+      ts.in_dtrace = false;
     }
   }
 
@@ -409,10 +452,10 @@ public class Runtime {
 
   /**
    * Writes out decl information for any new classes (those in the new_classes field) and removes
-   * them from that list.
+   * them from that list. Other threads that call this method wait until the classes are processed,
+   * so that they do not write samples for a class whose declarations are not yet written.
    */
-  @Holding("Runtime.class")
-  public static void process_new_classes() {
+  public static synchronized void process_new_classes() {
 
     // Processing of the new_classes list must be
     // very careful, as the call to get_reflection or printDeclClass
@@ -424,33 +467,68 @@ public class Runtime {
       synchronized (SharedData.new_classes) {
         if (SharedData.new_classes.size() > 0) {
           class_info = SharedData.new_classes.removeFirst();
+          classes_in_process++;
         }
       }
       if (class_info == null) {
         break;
       }
-
-      if (debug) System.out.println("processing class " + class_info.class_name);
-      if (first_class) {
-        decl_writer.printHeaderInfo(class_info.class_name);
-        first_class = false;
+      try {
+        process_new_class(class_info);
+      } finally {
+        synchronized (SharedData.new_classes) {
+          classes_in_process--;
+        }
       }
-      class_info.initViaReflection();
-      // class_info.dump (System.out);
+    }
+  }
 
-      // Create tree structure for all method entries/exits in the class
-      for (MethodInfo mi : class_info.method_infos) {
-        mi.traversalEnter = RootInfo.enter_process(mi, Runtime.nesting_depth);
-        mi.traversalExit = RootInfo.exit_process(mi, Runtime.nesting_depth);
+  /**
+   * Writes out decl information for one new class.
+   *
+   * @param class_info the class
+   */
+  @Holding("Runtime.class")
+  private static void process_new_class(ClassInfo class_info) {
+    if (debug) System.out.println("processing class " + class_info.class_name);
+    if (first_class) {
+      decl_writer.printHeaderInfo(class_info.class_name);
+      first_class = false;
+    }
+    class_info.initViaReflection();
+    // class_info.dump (System.out);
+
+    // Create tree structure for all method entries/exits in the class
+    for (MethodInfo mi : class_info.method_infos) {
+      mi.traversalEnter = RootInfo.enter_process(mi, Runtime.nesting_depth);
+      mi.traversalExit = RootInfo.exit_process(mi, Runtime.nesting_depth);
+      if (mi.member != null) {
+        mi.enterPptName = DaikonWriter.methodEntryName(mi.member);
+        Map<Integer, String> exitPptNames = new HashMap<>();
+        for (Integer exitLineNum : mi.exit_locations) {
+          exitPptNames.put(exitLineNum, DaikonWriter.methodExitName(mi.member, exitLineNum));
+        }
+        mi.exitPptNames = exitPptNames;
       }
-
-      decl_writer.printDeclClass(class_info, comp_info);
     }
+
+    decl_writer.printDeclClass(class_info, comp_info);
+    dtrace_queue.flush_text(thread_state.get().buffer);
   }
 
-  /** Increment the number of records that have been printed. */
-  public static void incrementRecords() {
-    printedRecords++;
+  /**
+   * Increment the number of records that have been printed, and send the sample that the current
+   * thread has formatted to be written unless that number exceeds the dtrace limit.
+   *
+   * @param buffer the buffer of the current thread
+   */
+  static void addRecord(DTraceQueue.Buffer buffer) {
+    long printed = printedRecords.incrementAndGet();
+    if (printed <= dtraceLimit) {
+      buffer.end_sample();
+    } else {
+      buffer.discard_sample();
+    }
 
     // This should only print a percentage if dtraceLimit is not its
     // default value.
@@ -458,7 +536,8 @@ public class Runtime {
     //     System.out.printf("printed=%d, percent printed=%f%n", printedRecords,
     //                       (float)(100.0*(float)printedRecords/(float)dtraceLimit));
 
-    if (printedRecords >= dtraceLimit) {
+    // Only the thread that writes the last record closes the file.
+    if (printed == dtraceLimit) {
       noMoreOutput();
     }
   }
@@ -469,9 +548,9 @@ public class Runtime {
    */
   @SuppressWarnings("StaticGuardedByInstance")
   public static void noMoreOutput() {
-    // The incrementRecords method (which calls this) is called inside a
-    // synchronized block, but re-synchronize just to be sure, or in case
-    // this is called from elsewhere.
+    // Write the records that are already queued, then stop the writer
+    // thread, so that the file can be finished here.
+    dtrace_queue.close();
 
     // Runtime.dtrace should be effectively final in that it refers
     // to the same value throughout the execution of the synchronized
@@ -487,6 +566,7 @@ public class Runtime {
       // The shutdown hook is synchronized on this, so close it up
       // ourselves, lest the call to System.exit cause deadlock.
       dtrace.println();
+      printDroppedSamples(dtrace);
       dtrace.println("# EOF (added by no_more_output)");
       dtrace.close();
 
@@ -508,6 +588,24 @@ public class Runtime {
     }
   }
 
+  /**
+   * If samples were dropped because the dtrace queue was full, says so in the dtrace file and on
+   * standard error.
+   *
+   * @param dtrace the dtrace file
+   */
+  private static void printDroppedSamples(PrintStream dtrace) {
+    long dropped = dtrace_queue.dropped_samples();
+    if (dropped > 0) {
+      dtrace.println("# " + dropped + " samples dropped because the dtrace queue was full");
+      System.err.println(
+          "Chicory warning: "
+              + dropped
+              + " samples were dropped because the dtrace queue was full."
+              + " Run Daikon with --config_option daikon.FileIO.ignore_missing_enter=true");
+    }
+  }
+
   @EnsuresNonNull("dtrace")
   public static void setDtraceOnlineMode(int port) {
     dtraceLimit = Long.getLong("DTRACELIMIT", Integer.MAX_VALUE).longValue();
@@ -577,7 +675,18 @@ public class Runtime {
 
       // 8192 is the buffer size in BufferedReader
       BufferedOutputStream bos = new BufferedOutputStream(os, 8192);
-      dtrace = new PrintStream(bos);
+      if (Chicory.dtrace_binary) {
+        if (append) {
+          throw new Error(
+              "DTRACEAPPEND environment variable is set, "
+                  + "Cannot append to binary dtrace file "
+                  + filename);
+        }
+        binary_dtrace = new BinaryDtrace.Writer(bos);
+        dtrace = new PrintStream(binary_dtrace.text_stream(), false, "UTF-8");
+      } else {
+        dtrace = new PrintStream(bos);
+      }
     } catch (Exception e) {
       e.printStackTrace();
       throw new Error(e);
@@ -628,12 +737,20 @@ public class Runtime {
               @SuppressWarnings("lock") // non-final field
               public void run() {
                 if (!dtrace_closed) {
+                  // Write the records that are still queued.
+                  if (dtrace_queue != null) {
+                    dtrace_queue.close();
+                  }
+
                   // When the program being instrumented exits, the buffers
                   // of the "dtrace" (PrintStream) object are not flushed,
                   // so we miss the tail of the file.
 
                   synchronized (Runtime.dtrace) {
                     dtrace.println();
+                    if (dtrace_queue != null) {
+                      printDroppedSamples(dtrace);
+                    }
                     // These are for debugging, I assume. -MDE
                     for (Pattern p : ppt_omit_pattern) {
                       dtrace.println("# ppt-omit-pattern: " + p);
@@ -655,7 +772,7 @@ public class Runtime {
                     System.out.println(
                         "Check the --ppt-select-pattern and --ppt-omit-pattern options");
                   }
-                } else if (printedRecords == 0) {
+                } else if (printedRecords.get() == 0) {
                   System.out.println("Chicory warning: no records were printed");
                 }
               }
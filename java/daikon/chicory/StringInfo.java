@@ -24,6 +24,12 @@ public class StringInfo extends DaikonVariableInfo {
     return value;
   }
 
+  /** The value is a string, so it is added as text. */
+  @Override
+  void addBinaryValue(DTraceQueue.Record sample, String name, Object val) {
+    sample.add_variable(name, getDTraceValueString(val));
+  }
+
   /** Returns a String that contains a string representation of val, used for dtrace information. */
   @Override
   @SuppressWarnings("unchecked")
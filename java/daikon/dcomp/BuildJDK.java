@@ -3,9 +3,13 @@ package daikon.dcomp;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import daikon.DynComp;
+import daikon.chicory.InstrumentedClassCache;
 import daikon.plumelib.bcelutil.BcelUtil;
+import daikon.plumelib.options.Option;
 import daikon.plumelib.options.Options;
 import daikon.plumelib.reflection.Signatures;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -18,6 +22,9 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
@@ -26,13 +33,26 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import org.apache.bcel.*;
 import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.Field;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.generic.*;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.signature.qual.BinaryName;
 
 /**
@@ -56,7 +76,24 @@ public class BuildJDK {
   private static boolean verbose = false;
 
   /** Number of class files processed; used for progress display. */
-  private int _numFilesProcessed = 0;
+  private AtomicInteger _numFilesProcessed = new AtomicInteger();
+
+  /** Number of threads that instrument classes; 0 means one per available processor. */
+  @Option("Number of threads that instrument classes (0 means one per processor)")
+  public static int threads = 0;
+
+  /**
+   * Instrument every class of the Java runtime, even those that have not changed since the
+   * destination directory was last built.
+   */
+  @Option("Instrument every class, even if unchanged since the last build")
+  public static boolean rebuild_all = false;
+
+  /**
+   * Suffix of the file, next to the destination directory, that records a hash of each class in
+   * it. Rebuilding the directory instruments only the classes whose hashes have changed.
+   */
+  private static String hashes_suffix = ".hashes";
 
   /** Name of file in output jar containing the static-fields map. */
   private static String static_field_id_filename = "dcomp_jdk_static_field_id";
@@ -99,6 +136,7 @@ public class BuildJDK {
     Options options =
         new Options(
             "daikon.BuildJDK [options] dest_dir [classfiles...]",
+            BuildJDK.class,
             DynComp.class,
             DCInstrument.class);
     String[] cl_args = options.parse(true, args);
@@ -136,7 +174,7 @@ public class BuildJDK {
       System.out.printf(
           "Restored %d entries in static map.%n", DCInstrument.static_field_id.size());
 
-      class_stream_map = new HashMap<>();
+      class_stream_map = new TreeMap<>();
       for (String classFileName : class_files) {
         try {
           class_stream_map.put(classFileName, new FileInputStream(classFileName));
@@ -146,7 +184,7 @@ public class BuildJDK {
       }
 
       // Instrument the classes identified in class_stream_map.
-      build.instrument_classes(dest_dir, class_stream_map);
+      build.instrument_classes(dest_dir, class_stream_map, null);
 
     } else {
 
@@ -159,7 +197,10 @@ public class BuildJDK {
       }
 
       // Instrument the Java runtime classes identified in class_stream_map.
-      build.instrument_classes(dest_dir, class_stream_map);
+      File abs_dest_dir = dest_dir.getAbsoluteFile();
+      File hashes_file =
+          new File(abs_dest_dir.getParentFile(), abs_dest_dir.getName() + hashes_suffix);
+      build.instrument_classes(dest_dir, class_stream_map, hashes_file);
 
       // We've finished instrumenting all the class files. Now we create some
       // abstract interface classes for use by the DynComp runtime.
@@ -232,7 +273,7 @@ public class BuildJDK {
   @SuppressWarnings("JdkObsolete") // JarEntry.entries() returns Enumeration
   Map<String, InputStream> gather_runtime_from_jar() {
 
-    Map<String, InputStream> class_stream_map = new HashMap<>();
+    Map<String, InputStream> class_stream_map = new TreeMap<>();
     String jar_name = java_home + "/lib/rt.jar";
     System.out.printf("using jar file %s%n", jar_name);
     try {
@@ -267,7 +308,7 @@ public class BuildJDK {
    */
   Map<String, InputStream> gather_runtime_from_modules() {
 
-    Map<String, InputStream> class_stream_map = new HashMap<>();
+    Map<String, InputStream> class_stream_map = new TreeMap<>();
     FileSystem fs = FileSystems.getFileSystem(URI.create("jrt:/"));
     Path modules = fs.getPath("/modules");
     // The path java_home+/lib/modules is the file in the host file system that
@@ -320,17 +361,38 @@ public class BuildJDK {
   /**
    * Instrument each of the classes indentified by the class_stream_map argument.
    *
+   * <p>The classes are read, and everything that they share is set up, sequentially and in order of
+   * their names: they are added to BCEL's repository and the ids of their static fields are
+   * allocated. Then the classes are instrumented independently of each other on {@link #threads}
+   * threads.
+   *
+   * <p>If hashes_file is non-null, it records a hash of the inputs of each class instrumented into
+   * dest_dir. A class whose hash has not changed since the previous build is not instrumented
+   * again, unless {@link #rebuild_all} is set.
+   *
    * @param dest_dir where to store the instrumented classes
    * @param class_stream_map maps from class file name to an input stream on that file
+   * @param hashes_file where to record the hashes of the classes, or null to instrument every class
    */
-  void instrument_classes(File dest_dir, Map<String, InputStream> class_stream_map) {
+  void instrument_classes(
+      File dest_dir, Map<String, InputStream> class_stream_map, @Nullable File hashes_file) {
 
-    try {
-      // Create the destination directory
-      dest_dir.mkdirs();
+    // Create the destination directory
+    dest_dir.mkdirs();
 
-      // Process each file.
-      for (String classFileName : class_stream_map.keySet()) {
+    Map<String, String> old_hashes = new HashMap<>();
+    if (hashes_file != null) {
+      old_hashes = restore_hashes(dest_dir, hashes_file);
+    }
+
+    // BCEL's repository is not thread-safe.
+    SynchronizedRepository repository = new SynchronizedRepository(Repository.getRepository());
+    Repository.setRepository(repository);
+
+    // Read each file, in order of their names.
+    Map<String, RuntimeClass> classes = new TreeMap<>();
+    try {
+      for (String classFileName : new TreeSet<>(class_stream_map.keySet())) {
         if (verbose) {
           System.out.println("instrument_classes: " + classFileName);
         }
@@ -355,30 +417,410 @@ public class BuildJDK {
           classFile.getParentFile().mkdirs();
           if (verbose) System.out.println("Copying Object.class or non-classfile: " + classFile);
           try (InputStream in = class_stream_map.get(classFileName)) {
-            Files.copy(in, classFile.toPath());
+            Files.copy(in, classFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
           }
           continue;
         }
 
         // Get the binary for this class
-        InputStream is = class_stream_map.get(classFileName);
+        byte[] bytes;
+        try (InputStream is = class_stream_map.get(classFileName)) {
+          bytes = read_all(is);
+        }
         JavaClass jc;
         try {
-          ClassParser parser = new ClassParser(is, classFileName);
-          jc = parser.parse();
+          jc = new ClassParser(new ByteArrayInputStream(bytes), classFileName).parse();
         } catch (Throwable e) {
           throw new Error("Failed to parse classfile " + classFileName, e);
         }
+        repository.storeClass(jc);
+        classes.put(classFileName, new RuntimeClass(classFileName, bytes, jc));
+      }
+    } catch (Exception e) {
+      throw new Error(e);
+    }
 
-        // Instrument the class file.
+    // Allocate the ids of the static fields.  Instrumenting a class looks them up, so that
+    // allocating them here, in order, makes them independent of the order of instrumentation.
+    for (RuntimeClass rc : classes.values()) {
+      JavaClass jc = repository.findClass(rc.class_name);
+      if (jc == null) {
+        jc = rc.parse(repository);
+      }
+      DCInstrument.allocate_jdk_static_field_ids(jc);
+      rc.set_static_ids(jc);
+    }
+
+    // Determine which classes need to be instrumented.
+    Map<String, String> new_hashes = new TreeMap<>();
+    List<RuntimeClass> todo = new ArrayList<>();
+    if (hashes_file == null) {
+      todo.addAll(classes.values());
+    } else {
+      Map<String, RuntimeClass> by_name = new HashMap<>();
+      for (RuntimeClass rc : classes.values()) {
+        by_name.put(rc.class_name, rc);
+      }
+      String config =
+          String.format(
+              "no_primitives=%b javaVersion=%d %s",
+              DynComp.no_primitives,
+              BcelUtil.javaVersion,
+              InstrumentedClassCache.describe(DCInstrument.class));
+      for (RuntimeClass rc : classes.values()) {
+        String hash = rc.hash(config, by_name);
+        new_hashes.put(rc.file_name, hash);
+        if (!hash.equals(old_hashes.get(rc.file_name))
+            || !new File(dest_dir, rc.file_name).exists()) {
+          todo.add(rc);
+        }
+      }
+      // Remove the classes that are no longer in the runtime.
+      for (String classFileName : old_hashes.keySet()) {
+        if (!classes.containsKey(classFileName)) {
+          new File(dest_dir, classFileName).delete();
+        }
+      }
+      System.out.printf(
+          "Instrumenting %d of %d classes; the others are unchanged.%n",
+          todo.size(), classes.size());
+    }
+
+    // Instrument the classes.
+    int num_threads =
+        (threads > 0) ? threads : java.lang.Runtime.getRuntime().availableProcessors();
+    ForkJoinPool pool = new ForkJoinPool(num_threads);
+    try {
+      List<Callable<List<String>>> tasks = new ArrayList<>(todo.size());
+      for (RuntimeClass rc : todo) {
+        tasks.add(
+            () -> {
+              try {
+                return instrumentClassFile(
+                    rc.parse(repository), dest_dir, rc.file_name, todo.size());
+              } catch (Throwable e) {
+                throw new Error("Couldn't instrument " + rc.file_name, e);
+              }
+            });
+      }
+      for (Future<List<String>> result : pool.invokeAll(tasks)) {
         try {
-          instrumentClassFile(jc, dest_dir, classFileName, class_stream_map.size());
-        } catch (Throwable e) {
-          throw new Error("Couldn't instrument " + classFileName, e);
+          skipped_methods.addAll(result.get());
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new Error("error while instrumenting classes", cause);
         }
       }
-    } catch (Exception e) {
-      throw new Error(e);
+    } catch (InterruptedException e) {
+      throw new Error("interrupted while instrumenting classes", e);
+    } finally {
+      pool.shutdown();
+    }
+
+    if (hashes_file != null) {
+      save_hashes(hashes_file, new_hashes);
+    }
+  }
+
+  /**
+   * Reads the hashes of the classes in an earlier build of dest_dir, and restores the static-fields
+   * map of that build, so that the classes whose hashes are unchanged need not be instrumented
+   * again. Returns an empty map, so that every class is instrumented, if {@link #rebuild_all} is
+   * set or if there is no complete earlier build. Either way, deletes hashes_file, so that it does
+   * not describe dest_dir if this build does not complete.
+   *
+   * @param dest_dir the directory of the earlier build
+   * @param hashes_file the hashes of the classes of the earlier build
+   * @return a map from class file name to the hash of the class
+   */
+  private static Map<String, String> restore_hashes(File dest_dir, File hashes_file) {
+    Map<String, String> hashes = new HashMap<>();
+    File static_field_id_file = new File(dest_dir, static_field_id_filename);
+    try {
+      if (!rebuild_all && hashes_file.exists() && static_field_id_file.exists()) {
+        for (String line : Files.readAllLines(hashes_file.toPath(), UTF_8)) {
+          String[] name_hash = line.split(" ");
+          hashes.put(name_hash[0], name_hash[1]);
+        }
+        DCInstrument.restore_static_field_id(static_field_id_file);
+      }
+      Files.deleteIfExists(hashes_file.toPath());
+    } catch (IOException e) {
+      throw new Error("Problem while reading " + hashes_file, e);
+    }
+    return hashes;
+  }
+
+  /**
+   * Writes the hashes of the classes of this build.
+   *
+   * @param hashes_file where to write the hashes
+   * @param hashes a map from class file name to the hash of the class
+   * @see #restore_hashes
+   */
+  private static void save_hashes(File hashes_file, Map<String, String> hashes) {
+    try (PrintWriter pw = new PrintWriter(hashes_file, UTF_8.name())) {
+      for (Map.Entry<String, String> entry : hashes.entrySet()) {
+        pw.println(entry.getKey() + " " + entry.getValue());
+      }
+    } catch (IOException e) {
+      throw new Error("Problem while writing " + hashes_file, e);
+    }
+  }
+
+  /**
+   * Returns the contents of a stream.
+   *
+   * @param in the stream
+   * @return the bytes read from in
+   * @throws IOException if unable to read from in
+   */
+  private static byte[] read_all(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /** A class file of the Java runtime, as read by {@link #instrument_classes}. */
+  private static final class RuntimeClass {
+
+    /** The name of the class file, such as {@code java/lang/String.class}. */
+    final String file_name;
+
+    /** The contents of the class file. */
+    final byte[] bytes;
+
+    /** The SHA-256 hash of {@link #bytes}. */
+    final byte[] digest;
+
+    /** The name of the class. */
+    final String class_name;
+
+    /** The name of the superclass of the class. */
+    final String superclass_name;
+
+    /** The names of the classes that the class refers to in its constant pool. */
+    final List<String> referenced = new ArrayList<>();
+
+    /** The ids of the static fields of the class, which are compiled into its subclasses too. */
+    String static_ids = "";
+
+    /**
+     * Creates a RuntimeClass.
+     *
+     * @param file_name the name of the class file
+     * @param bytes the contents of the class file
+     * @param jc the parsed class file
+     */
+    RuntimeClass(String file_name, byte[] bytes, JavaClass jc) {
+      this.file_name = file_name;
+      this.bytes = bytes;
+      this.digest = sha256().digest(bytes);
+      this.class_name = jc.getClassName();
+      this.superclass_name = jc.getSuperclassName();
+      ConstantPool cp = jc.getConstantPool();
+      for (Constant c : cp.getConstantPool()) {
+        if (c instanceof ConstantClass) {
+          String name = ((ConstantClass) c).getBytes(cp);
+          if (!name.startsWith("[")) {
+            referenced.add(name.replace('/', '.'));
+          }
+        }
+      }
+    }
+
+    /**
+     * Parses the class file again, since the parsed class is changed by instrumenting it.
+     *
+     * @param repository the repository in which to look up the superclasses of the class
+     * @return the parsed class file
+     */
+    JavaClass parse(org.apache.bcel.util.Repository repository) {
+      JavaClass jc;
+      try {
+        jc = new ClassParser(new ByteArrayInputStream(bytes), file_name).parse();
+      } catch (IOException e) {
+        throw new Error("Failed to parse classfile " + file_name, e);
+      }
+      jc.setRepository(repository);
+      return jc;
+    }
+
+    /**
+     * Records the ids of the primitive static fields of the class.
+     *
+     * @param jc the parsed class file
+     */
+    void set_static_ids(JavaClass jc) {
+      StringBuilder sb = new StringBuilder();
+      for (Field f : jc.getFields()) {
+        Integer id = DCInstrument.static_field_id.get(DCInstrument.full_name(jc, f));
+        if (f.isStatic() && id != null) {
+          sb.append(f.getName()).append('=').append(id).append(' ');
+        }
+      }
+      static_ids = sb.toString();
+    }
+
+    /**
+     * Returns a hash of everything that the instrumented class depends on: the configuration, the
+     * class itself, its superclasses, the classes it refers to and their superclasses, and the ids
+     * of its static fields and those of its superclasses. Classes outside the runtime are ignored.
+     *
+     * @param config a description of the options and the code of the instrumenter
+     * @param by_name a map from class name to each class of the runtime
+     * @return the hash, in hexadecimal
+     */
+    String hash(String config, Map<String, RuntimeClass> by_name) {
+      Set<String> depends = new TreeSet<>();
+      add_superclasses(class_name, by_name, depends);
+      for (String name : referenced) {
+        add_superclasses(name, by_name, depends);
+      }
+      MessageDigest md = sha256();
+      md.update(config.getBytes(UTF_8));
+      for (String name : depends) {
+        md.update((byte) 0);
+        md.update(name.getBytes(UTF_8));
+        md.update(by_name.get(name).digest);
+      }
+      for (RuntimeClass rc = this; rc != null; rc = superclass(rc, by_name)) {
+        md.update((byte) 0);
+        md.update(rc.static_ids.getBytes(UTF_8));
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : md.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    }
+
+    /**
+     * Adds the named class and its superclasses to the given set, as far as they are in the
+     * runtime.
+     *
+     * @param name the name of a class
+     * @param by_name a map from class name to each class of the runtime
+     * @param names the set to add to
+     */
+    private static void add_superclasses(
+        String name, Map<String, RuntimeClass> by_name, Set<String> names) {
+      for (RuntimeClass rc = by_name.get(name); rc != null; rc = superclass(rc, by_name)) {
+        if (!names.add(rc.class_name)) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Returns the superclass of rc, or null if rc is java.lang.Object or its superclass is not in
+     * the runtime.
+     *
+     * @param rc a class of the runtime
+     * @param by_name a map from class name to each class of the runtime
+     * @return the superclass of rc, or null
+     */
+    private static @Nullable RuntimeClass superclass(
+        RuntimeClass rc, Map<String, RuntimeClass> by_name) {
+      if (rc.class_name.equals("java.lang.Object")) {
+        return null;
+      }
+      return by_name.get(rc.superclass_name);
+    }
+
+    /**
+     * Returns a new SHA-256 message digest.
+     *
+     * @return a new SHA-256 message digest
+     */
+    private static MessageDigest sha256() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new Error("SHA-256 is not supported", e);
+      }
+    }
+  }
+
+  /**
+   * A BCEL repository that serializes access to another, since BCEL's repositories are not
+   * thread-safe. Every class stored in it or loaded by it refers back to it, so that lookups made
+   * through a class, such as {@link JavaClass#getSuperClass}, are serialized too.
+   */
+  private static final class SynchronizedRepository implements org.apache.bcel.util.Repository {
+
+    /** The repository to which access is serialized. */
+    private final org.apache.bcel.util.Repository delegate;
+
+    /**
+     * Creates a SynchronizedRepository.
+     *
+     * @param delegate the repository to which access is serialized
+     */
+    SynchronizedRepository(org.apache.bcel.util.Repository delegate) {
+      this.delegate = delegate;
+    }
+
+    /**
+     * Makes clazz refer back to this repository.
+     *
+     * @param clazz a class of the delegate, or null
+     * @return clazz
+     */
+    private @Nullable JavaClass adopt(@Nullable JavaClass clazz) {
+      if (clazz != null) {
+        clazz.setRepository(this);
+      }
+      return clazz;
+    }
+
+    @Override
+    public synchronized void storeClass(JavaClass clazz) {
+      delegate.storeClass(clazz);
+      adopt(clazz);
+    }
+
+    @Override
+    public synchronized void removeClass(JavaClass clazz) {
+      delegate.removeClass(clazz);
+    }
+
+    @Override
+    public synchronized @Nullable JavaClass findClass(String className) {
+      return adopt(delegate.findClass(className));
+    }
+
+    @Override
+    public synchronized JavaClass loadClass(String className) throws ClassNotFoundException {
+      JavaClass clazz = delegate.loadClass(className);
+      adopt(clazz);
+      return clazz;
+    }
+
+    @Override
+    public synchronized JavaClass loadClass(Class<?> clazz) throws ClassNotFoundException {
+      JavaClass jc = delegate.loadClass(clazz);
+      adopt(jc);
+      return jc;
+    }
+
+    @Override
+    public synchronized void clear() {
+      delegate.clear();
+    }
+
+    @Override
+    public org.apache.bcel.util.ClassPath getClassPath() {
+      return delegate.getClassPath();
     }
   }
 
@@ -456,9 +898,10 @@ public class BuildJDK {
    * @param outputDir output directory for instrumented class
    * @param classFileName name of class to be instrumented
    * @param classTotal total number of classes to be processed; used for progress display
+   * @return the methods that could not be instrumented
    * @throws IOException if unable to write out instrumented class
    */
-  private void instrumentClassFile(
+  private List<String> instrumentClassFile(
       JavaClass jc, File outputDir, String classFileName, int classTotal)
       throws java.io.IOException {
     if (verbose) System.out.printf("processing target %s%n", classFileName);
@@ -469,7 +912,6 @@ public class BuildJDK {
     } else {
       inst_jc = dci.instrument_jdk();
     }
-    skipped_methods.addAll(dci.get_skipped_methods());
     File classfile = new File(classFileName);
     File dir;
     if (classfile.getParent() == null) {
@@ -481,12 +923,13 @@ public class BuildJDK {
     File classpath = new File(dir, classfile.getName());
     if (verbose) System.out.printf("writing to file %s%n", classpath);
     inst_jc.dump(classpath);
-    _numFilesProcessed++;
-    if (((_numFilesProcessed % 100) == 0) && (System.console() != null)) {
+    int numFilesProcessed = _numFilesProcessed.incrementAndGet();
+    if (((numFilesProcessed % 100) == 0) && (System.console() != null)) {
       System.out.printf(
           "Processed %d/%d classes at %s%n",
-          _numFilesProcessed, classTotal, LocalDateTime.now(ZoneId.systemDefault()));
+          numFilesProcessed, classTotal, LocalDateTime.now(ZoneId.systemDefault()));
     }
+    return dci.get_skipped_methods();
   }
 
   /**
@@ -0,0 +1,346 @@
+package daikon.dcomp;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A map whose keys are compared by identity and held weakly, like {@link
+ * daikon.plumelib.util.WeakIdentityHashMap}, but which several threads may use at once. Lookups
+ * take no lock. The map is split into segments by the hash of the key, and changes lock only the
+ * segment of the key, so that threads that change different keys rarely wait for each other.
+ *
+ * <p>DCRuntime runs with the instrumented JDK, in which VarHandles, and so AtomicReferenceArray, do
+ * not work. Instead, each change of a segment ends by writing its volatile {@link Segment#count},
+ * and each lookup starts by reading it, as in the segments of the ConcurrentHashMap of JDK 5.
+ *
+ * <p>An entry is removed some time after its key is garbage collected: when its segment is next
+ * changed.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public final class ConcurrentWeakIdentityHashMap<K, V> {
+
+  /** The number of segments; a power of two. */
+  private static final int NUM_SEGMENTS = 64;
+
+  /** The initial capacity of the table of each segment; a power of two. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The segments of the map. */
+  private final Segment<K, V>[] segments;
+
+  /** Creates an empty map. */
+  @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+  public ConcurrentWeakIdentityHashMap() {
+    segments = (Segment<K, V>[]) new Segment[NUM_SEGMENTS];
+    for (int i = 0; i < NUM_SEGMENTS; i++) {
+      segments[i] = new Segment<K, V>();
+    }
+  }
+
+  /**
+   * Returns the hash of the given key. Its low bits select a bucket of a segment and its high bits
+   * select the segment.
+   *
+   * @param key a key
+   * @return the hash of key
+   */
+  private static int hash(Object key) {
+    int h = System.identityHashCode(key);
+    // Spread the bits, since identity hash codes of consecutive objects may differ only a little.
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+
+  /**
+   * Returns the segment that holds the given hash.
+   *
+   * @param hash the hash of a key
+   * @return the segment that holds the key
+   */
+  private Segment<K, V> segment(int hash) {
+    return segments[(hash >>> 26) & (NUM_SEGMENTS - 1)];
+  }
+
+  /**
+   * Returns the value for key, or null if there is none.
+   *
+   * @param key the key
+   * @return the value for key, or null
+   */
+  public @Nullable V get(K key) {
+    int hash = hash(key);
+    return segment(hash).get(key, hash);
+  }
+
+  /**
+   * Returns true if there is a value for key.
+   *
+   * @param key the key
+   * @return true if there is a value for key
+   */
+  public boolean containsKey(K key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Sets the value for key.
+   *
+   * @param key the key
+   * @param value the new value for key
+   * @return the previous value for key, or null if there was none
+   */
+  public @Nullable V put(K key, V value) {
+    int hash = hash(key);
+    return segment(hash).put(key, hash, value, false);
+  }
+
+  /**
+   * Sets the value for key, unless key already has a value.
+   *
+   * @param key the key
+   * @param value the new value for key
+   * @return the value that key already had, or null if there was none and key now maps to value
+   */
+  public @Nullable V putIfAbsent(K key, V value) {
+    int hash = hash(key);
+    return segment(hash).put(key, hash, value, true);
+  }
+
+  /**
+   * Returns the number of entries in the map. May include entries whose keys have been garbage
+   * collected.
+   *
+   * @return the number of entries in the map
+   */
+  public int size() {
+    int size = 0;
+    for (Segment<K, V> segment : segments) {
+      size += segment.count;
+    }
+    return size;
+  }
+
+  /**
+   * Returns the keys that have not been garbage collected. If the map is changed during the call,
+   * the result may or may not reflect the changes.
+   *
+   * @return the keys of the map
+   */
+  public List<K> keys() {
+    List<K> keys = new ArrayList<>();
+    for (Segment<K, V> segment : segments) {
+      if (segment.count == 0) {
+        continue;
+      }
+      @Nullable Entry<K, V>[] table = segment.table;
+      for (int i = 0; i < table.length; i++) {
+        for (Entry<K, V> e = table[i]; e != null; e = e.next) {
+          K key = e.get();
+          if (key != null) {
+            keys.add(key);
+          }
+        }
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * An entry of the map. All fields but the value are final, so that a chain of entries can be read
+   * without a lock. To remove an entry, the entries before it in its chain are copied.
+   */
+  private static final class Entry<K, V> extends WeakReference<K> {
+
+    /** The hash of the key. */
+    final int hash;
+
+    /** The next entry in the chain, or null. */
+    final @Nullable Entry<K, V> next;
+
+    /** The value. */
+    volatile V value;
+
+    /**
+     * Creates an entry.
+     *
+     * @param key the key
+     * @param hash the hash of key
+     * @param next the next entry in the chain, or null
+     * @param value the value
+     * @param queue the queue on which to put the entry when key is garbage collected
+     */
+    Entry(K key, int hash, @Nullable Entry<K, V> next, V value, ReferenceQueue<K> queue) {
+      super(key, queue);
+      this.hash = hash;
+      this.next = next;
+      this.value = value;
+    }
+  }
+
+  /** A segment of the map: a hash table with separate chaining. */
+  private static final class Segment<K, V> {
+
+    /** The buckets. Replaced, never resized, when the segment grows. */
+    volatile @Nullable Entry<K, V>[] table = new_table(INITIAL_CAPACITY);
+
+    /**
+     * The number of entries in the table. Only changed while holding the lock on this, as the last
+     * write of each change.
+     */
+    volatile int count = 0;
+
+    /** Entries whose keys have been garbage collected. */
+    final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+    /**
+     * Returns a new table.
+     *
+     * @param capacity the number of buckets
+     * @return a new table
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    private static <K, V> @Nullable Entry<K, V>[] new_table(int capacity) {
+      return (Entry<K, V>[]) new Entry[capacity];
+    }
+
+    /**
+     * Returns the value for key, or null if there is none.
+     *
+     * @param key the key
+     * @param hash the hash of key
+     * @return the value for key, or null
+     */
+    @Nullable V get(K key, int hash) {
+      if (count == 0) {
+        return null;
+      }
+      @Nullable Entry<K, V>[] tab = table;
+      for (Entry<K, V> e = tab[hash & (tab.length - 1)]; e != null; e = e.next) {
+        if (e.hash == hash && e.get() == key) {
+          return e.value;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Sets the value for key.
+     *
+     * @param key the key
+     * @param hash the hash of key
+     * @param value the new value for key
+     * @param only_if_absent if true, do not replace an existing value
+     * @return the previous value for key, or null if there was none
+     */
+    synchronized @Nullable V put(K key, int hash, V value, boolean only_if_absent) {
+      int c = expunge_stale_entries();
+      @Nullable Entry<K, V>[] tab = table;
+      int index = hash & (tab.length - 1);
+      Entry<K, V> first = tab[index];
+      for (Entry<K, V> e = first; e != null; e = e.next) {
+        if (e.hash == hash && e.get() == key) {
+          V old = e.value;
+          if (!only_if_absent) {
+            e.value = value;
+          }
+          return old;
+        }
+      }
+      c++;
+      if (c > tab.length - (tab.length >>> 2)) {
+        tab = rehash();
+        index = hash & (tab.length - 1);
+        first = tab[index];
+        c = count + 1;
+      }
+      tab[index] = new Entry<K, V>(key, hash, first, value, queue);
+      count = c;
+      return null;
+    }
+
+    /**
+     * Doubles the size of the table. Only called while holding the lock on this. The entries are
+     * copied, so that lookups may still read the old table.
+     *
+     * @return the new table
+     */
+    private @Nullable Entry<K, V>[] rehash() {
+      @Nullable Entry<K, V>[] old_table = table;
+      @Nullable Entry<K, V>[] larger = new_table(old_table.length * 2);
+      int mask = larger.length - 1;
+      int new_count = 0;
+      for (int i = 0; i < old_table.length; i++) {
+        for (Entry<K, V> e = old_table[i]; e != null; e = e.next) {
+          K key = e.get();
+          if (key != null) {
+            int index = e.hash & mask;
+            larger[index] = new Entry<K, V>(key, e.hash, larger[index], e.value, queue);
+            new_count++;
+          }
+        }
+      }
+      table = larger;
+      count = new_count;
+      return larger;
+    }
+
+    /**
+     * Removes the entries whose keys have been garbage collected. Only called while holding the
+     * lock on this.
+     *
+     * @return the number of entries left
+     */
+    @SuppressWarnings("unchecked") // the queue only holds entries
+    private int expunge_stale_entries() {
+      int c = count;
+      for (Object stale = queue.poll(); stale != null; stale = queue.poll()) {
+        c -= remove((Entry<K, V>) stale);
+      }
+      if (c != count) {
+        count = c;
+      }
+      return c;
+    }
+
+    /**
+     * Removes the given entry, if it is still in the table. (It is not if it was copied by {@link
+     * #rehash} or by an earlier removal.)
+     *
+     * @param entry the entry to remove
+     * @return the number of entries removed: the given one and any others before it in its chain
+     *     whose keys are gone too
+     */
+    private int remove(Entry<K, V> entry) {
+      @Nullable Entry<K, V>[] tab = table;
+      int index = entry.hash & (tab.length - 1);
+      Entry<K, V> first = tab[index];
+      Entry<K, V> e = first;
+      while (e != null && e != entry) {
+        e = e.next;
+      }
+      if (e == null) {
+        return 0;
+      }
+      // Copy the entries before the removed one, leaving out those whose keys are gone too.
+      Entry<K, V> new_first = entry.next;
+      int removed = 1;
+      for (Entry<K, V> p = first; p != entry; p = p.next) {
+        K key = p.get();
+        if (key == null) {
+          removed++;
+        } else {
+          new_first = new Entry<K, V>(key, p.hash, new_first, p.value, queue);
+        }
+      }
+      tab[index] = new_first;
+      return removed;
+    }
+  }
+}
@@ -3,6 +3,7 @@ package daikon.dcomp;
 import daikon.DynComp;
 import daikon.chicory.ClassInfo;
 import daikon.chicory.DaikonWriter;
+import daikon.chicory.InstrumentedClassCache;
 import daikon.chicory.MethodInfo;
 import daikon.plumelib.bcelutil.BcelUtil;
 import daikon.plumelib.bcelutil.InstructionListUtils;
@@ -18,6 +19,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -79,6 +81,24 @@ public class DCInstrument extends InstructionListUtils {
   /** Local that stores the tag frame for the current method. */
   protected LocalVariableGen tag_frame_local;
 
+  /** The ClassInfo for the current class, once instrumentation has begun. */
+  protected @Nullable ClassInfo class_info = null;
+  /** Was the current class added to SharedData.all_classes? */
+  protected boolean track_class = false;
+
+  /**
+   * Where MethodInfo indices are relocated to, if the instrumented class is to be cached;
+   * otherwise null, and the indices are constants in the code. Set by {@link
+   * #relocate_method_indices}.
+   */
+  protected InstrumentedClassCache.@Nullable Relocations relocations = null;
+  /**
+   * False if the instrumented class depends on something besides the original class and the
+   * options, such as the fields of its superclasses or the order in which static fields were
+   * seen. Such a class must not be cached.
+   */
+  protected boolean cacheable = true;
+
   // Argument descriptors
   protected static Type[] two_objects = new Type[] {Type.OBJECT, Type.OBJECT};
   protected static Type[] object_string = new Type[] {Type.OBJECT, Type.STRING};
@@ -149,8 +169,11 @@ public class DCInstrument extends InstructionListUtils {
    * superclass can be accessed through each of its subclasses. Tag accessor methods must be added
    * in each subclass and each should return the same id. We thus will lookup the same name multiple
    * times.
+   *
+   * <p>Synchronized because classes may be instrumented on several threads.
    */
-  static Map<String, Integer> static_field_id = new LinkedHashMap<>();
+  static Map<String, Integer> static_field_id =
+      Collections.synchronizedMap(new LinkedHashMap<String, Integer>());
 
   /**
    * Array of classes whose fields are not initialized from java. Since the fields are not
@@ -187,8 +210,12 @@ public class DCInstrument extends InstructionListUtils {
         // new MethodDef("newInstance", new Type[] {object_arr}),
       };
 
-  protected static InstructionList global_catch_il;
-  protected static CodeExceptionGen global_exception_handler;
+  /** Serializes calls of BCEL's verifier; see {@link #calc_stack_types}. */
+  private static final Object stack_types_lock = new Object();
+
+  // Per instance rather than static, since BuildJDK instruments classes on several threads.
+  protected InstructionList global_catch_il;
+  protected CodeExceptionGen global_exception_handler;
   private InstructionHandle insertion_placeholder;
 
   /** Class that defines a method (by its name and argument types) */
@@ -291,6 +318,16 @@ public class DCInstrument extends InstructionListUtils {
     debug_track.enabled = Premain.debug_dcinstrument;
   }
 
+  /**
+   * Makes the instrumented code refer to MethodInfo indices through constants that can be
+   * relocated, so that the class can be cached. Must be called before the class is instrumented.
+   *
+   * @see InstrumentedClassCache
+   */
+  public void relocate_method_indices() {
+    relocations = new InstrumentedClassCache.Relocations(pool);
+  }
+
   /**
    * Instruments the original class to perform dynamic comparabilty and returns the new class
    * definition.
@@ -317,8 +354,8 @@ public class DCInstrument extends InstructionListUtils {
     debug_transform.indent();
 
     // Create the ClassInfo for this class and its list of methods
-    ClassInfo class_info = new ClassInfo(classname, loader);
-    boolean track_class = false;
+    class_info = new ClassInfo(classname, loader);
+    track_class = false;
 
     if (!retransforming) {
       // Handle object methods for this class
@@ -536,8 +573,8 @@ public class DCInstrument extends InstructionListUtils {
     debug_transform.indent();
 
     // Create the ClassInfo for this class and its list of methods
-    ClassInfo class_info = new ClassInfo(classname, loader);
-    boolean track_class = false;
+    class_info = new ClassInfo(classname, loader);
+    track_class = false;
 
     if (!retransforming) {
       // Handle object methods for this class
@@ -1056,7 +1093,7 @@ public class DCInstrument extends InstructionListUtils {
     // Calculate the operand stack value(s) for revised code.
     mg.setMaxStack();
     // Calculate stack types information
-    StackTypes stack_types = bcel_calc_stack_types(mg);
+    StackTypes stack_types = calc_stack_types(mg);
     if (stack_types == null) {
       skip_method(mg);
       return;
@@ -1118,6 +1155,20 @@ public class DCInstrument extends InstructionListUtils {
     }
   }
 
+  /**
+   * Calculates the types on the operand stack at each instruction of mg. BCEL's verifier, which
+   * does the work, keeps some of its state in static fields, so only one thread may run it at a
+   * time.
+   *
+   * @param mg the method
+   * @return the types on the stack, or null if the verifier rejects the method
+   */
+  private @Nullable StackTypes calc_stack_types(MethodGen mg) {
+    synchronized (stack_types_lock) {
+      return bcel_calc_stack_types(mg);
+    }
+  }
+
   /**
    * Instrument the specified method for dynamic comparability (reference comparability only).
    *
@@ -1126,7 +1177,7 @@ public class DCInstrument extends InstructionListUtils {
   public void instrument_method_refs_only(MethodGen mg) {
 
     // Get Stack information
-    StackTypes stack_types = bcel_calc_stack_types(mg);
+    StackTypes stack_types = calc_stack_types(mg);
     if (stack_types == null) {
       skip_method(mg);
       return;
@@ -1474,7 +1525,11 @@ public class DCInstrument extends InstructionListUtils {
     if (mg.isStatic()) param_offset = 0;
 
     // Push the MethodInfo index
-    il.append(ifact.createConstant(method_info_index));
+    if (relocations == null) {
+      il.append(ifact.createConstant(method_info_index));
+    } else {
+      il.append(relocations.push(method_info_index));
+    }
 
     // Create an array of objects with elements for each parameter
     il.append(ifact.createConstant(arg_types.length));
@@ -1560,7 +1615,11 @@ public class DCInstrument extends InstructionListUtils {
     if (mg.isStatic()) param_offset = 0;
 
     // Push the MethodInfo index
-    il.append(ifact.createConstant(method_info_index));
+    if (relocations == null) {
+      il.append(ifact.createConstant(method_info_index));
+    } else {
+      il.append(relocations.push(method_info_index));
+    }
 
     // Create an array of objects with elements for each parameter
     il.append(ifact.createConstant(arg_types.length));
@@ -3637,7 +3696,7 @@ public class DCInstrument extends InstructionListUtils {
    * @return true if type is primitive
    */
   @Pure
-  boolean is_primitive(Type type) {
+  static boolean is_primitive(Type type) {
     return ((type instanceof BasicType) && (type != Type.VOID));
   }
 
@@ -4131,6 +4190,35 @@ public class DCInstrument extends InstructionListUtils {
     }
   }
 
+  /**
+   * Allocates an id for each primitive static field of jc and its superclasses that does not have
+   * one, as {@link #build_field_map} does when it instruments a class of the JDK. BuildJDK calls
+   * this for every class, in a fixed order, before it instruments the classes on several threads,
+   * so that the ids do not depend on the order in which the threads reach the classes.
+   *
+   * @param jc a class of the JDK
+   */
+  static void allocate_jdk_static_field_ids(JavaClass jc) {
+    if (jc.getClassName().equals("java.lang.Object")) {
+      return;
+    }
+    JavaClass super_jc;
+    try {
+      super_jc = jc.getSuperClass();
+    } catch (Exception e) {
+      throw new Error("can't get superclass for " + jc, e);
+    }
+    allocate_jdk_static_field_ids(super_jc);
+    for (Field f : jc.getFields()) {
+      if (f.isStatic() && is_primitive(f.getType())) {
+        String full_name = full_name(jc, f);
+        if (!static_field_id.containsKey(full_name)) {
+          static_field_id.put(full_name, static_field_id.size() + 1);
+        }
+      }
+    }
+  }
+
   /**
    * Builds a Map that relates each field in jc and each of its superclasses to a unique offset. The
    * offset can be used to index into a tag array for this class. Instance fields are placed in the
@@ -4153,6 +4241,10 @@ public class DCInstrument extends InstructionListUtils {
     } catch (Exception e) {
       throw new Error("can't get superclass for " + jc, e);
     }
+    if (!super_jc.getClassName().equals("java.lang.Object")) {
+      // The offsets depend on the fields of the superclass.
+      cacheable = false;
+    }
     Map<Field, Integer> field_map = build_field_map(super_jc);
     int offset = field_map.size();
 
@@ -4164,9 +4256,13 @@ public class DCInstrument extends InstructionListUtils {
         continue;
       }
       if (f.isStatic()) {
+        // The id depends on the statics seen before.
+        cacheable = false;
         if (!in_jdk) {
           int min_size = static_field_id.size() + DCRuntime.max_jdk_static;
-          while (DCRuntime.static_tags.size() <= min_size) DCRuntime.static_tags.add(null);
+          synchronized (DCRuntime.static_tags) {
+            while (DCRuntime.static_tags.size() <= min_size) DCRuntime.static_tags.add(null);
+          }
           static_field_id.put(full_name(jc, f), min_size);
         } else { // building jdk
           String full_name = full_name(jc, f);
@@ -4658,7 +4754,7 @@ public class DCInstrument extends InstructionListUtils {
   }
 
   /** Return the fully qualified fieldname of the specified field. */
-  protected String full_name(JavaClass jc, Field f) {
+  protected static String full_name(JavaClass jc, Field f) {
     return jc.getClassName() + "." + f.getName();
   }
 }
@@ -15,7 +15,6 @@ import daikon.chicory.StaticObjInfo;
 import daikon.chicory.StringInfo;
 import daikon.chicory.ThisObjInfo;
 import daikon.plumelib.bcelutil.SimpleLog;
-import daikon.plumelib.util.WeakIdentityHashMap;
 import java.io.PrintWriter;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
@@ -119,8 +118,8 @@ public final class DCRuntime {
       new ConcurrentHashMap<Thread, ThreadData>();
 
   /** Map from each object to the tags used for each primitive value in the object. */
-  public static WeakIdentityHashMap<Object, Object[]> field_map =
-      new WeakIdentityHashMap<Object, Object[]>();
+  public static ConcurrentWeakIdentityHashMap<Object, Object[]> field_map =
+      new ConcurrentWeakIdentityHashMap<Object, Object[]>();
 
   /** List of all classes encountered. These are the classes that will have comparability output. */
   private static List<ClassInfo> all_classes = new ArrayList<>();
@@ -131,13 +130,13 @@ public final class DCRuntime {
   /**
    * Class used as a tag for primitive constants. Only different from Object for debugging purposes.
    */
-  private static class Constant {}
+  private static class Constant extends TagEntry.Tag {}
 
   /**
    * Class used as a tag for uninitialized instance fields. Only different from Object for debugging
    * purposes.
    */
-  private static class UninitFieldTag {
+  private static class UninitFieldTag extends TagEntry.Tag {
     String descr;
     @Nullable Throwable stack_trace = null;
 
@@ -157,7 +156,7 @@ public final class DCRuntime {
    * Class used as a tag for uninitialized array elements. Only different from Object for debugging
    * purposes.
    */
-  private static class UninitArrayElem {}
+  private static class UninitArrayElem extends TagEntry.Tag {}
 
   /** Either java.lang.DCompMarker or daikon.dcomp.DCompMarker */
   private static Class<?> dcomp_marker_class;
@@ -809,8 +808,14 @@ public final class DCRuntime {
     ThreadData td = thread_to_data.get(Thread.currentThread());
     Object static_tag = static_tags.get(static_num);
     if (static_tag == null) {
-      static_tag = new Object();
-      static_tags.set(static_num, static_tag);
+      // Another thread may be creating the same tag.
+      synchronized (static_tags) {
+        static_tag = static_tags.get(static_num);
+        if (static_tag == null) {
+          static_tag = new TagEntry.Tag();
+          static_tags.set(static_num, static_tag);
+        }
+      }
     }
     td.tag_stack.push(static_tag);
     debug_primitive.log("push_static_tag[%d] %s%n", static_num, static_tag);
@@ -887,8 +892,7 @@ public final class DCRuntime {
     // If none has been allocated, allocate the space and associate it with
     // the array
     if (obj_tags == null) {
-      obj_tags = new Object[length];
-      field_map.put(arr_ref, obj_tags);
+      obj_tags = new_tag_storage(arr_ref, length);
     }
 
     // Pop the tag off of the stack and assign it into the tag storage for
@@ -2692,13 +2696,16 @@ public final class DCRuntime {
     } else {
       int fcnt = num_prim_fields(obj.getClass());
       assert field_num < fcnt : obj.getClass() + " " + field_num + " " + fcnt;
-      obj_tags = new Object[fcnt];
-      field_map.put(obj, obj_tags);
+      obj_tags = new_tag_storage(obj, fcnt);
       debug_primitive.log("push_field_tag: Created tag storage%n");
-      Throwable stack_trace = new Throwable();
-      Object tag =
-          new UninitFieldTag(obj.getClass().getName() + ":uninit-field" + field_num, stack_trace);
-      obj_tags[field_num] = tag;
+      Object tag = obj_tags[field_num];
+      if (tag == null) {
+        Throwable stack_trace = new Throwable();
+        obj_tags[field_num] =
+            tag =
+                new UninitFieldTag(
+                    obj.getClass().getName() + ":uninit-field" + field_num, stack_trace);
+      }
       td.tag_stack.push(tag);
       if (debug_primitive.enabled()) {
         debug_primitive.log("push_field_tag %s %d = %s%n", obj_str(obj), field_num, tag);
@@ -2728,8 +2735,7 @@ public final class DCRuntime {
     if (obj_tags == null) {
       int fcnt = num_prim_fields(obj.getClass());
       assert field_num < fcnt : obj.getClass() + " " + field_num + " " + fcnt;
-      obj_tags = new Object[fcnt];
-      field_map.put(obj, obj_tags);
+      obj_tags = new_tag_storage(obj, fcnt);
       debug_primitive.log("pop_field_tag: Created tag storage%n");
     }
 
@@ -2759,6 +2765,19 @@ public final class DCRuntime {
     }
   }
 
+  /**
+   * Allocates the tag storage for obj, unless another thread has just done so.
+   *
+   * @param obj an object or array without tag storage
+   * @param size the number of primitive fields or elements of obj
+   * @return the tag storage for obj
+   */
+  private static Object[] new_tag_storage(Object obj, int size) {
+    Object[] obj_tags = new Object[size];
+    Object[] other = field_map.putIfAbsent(obj, obj_tags);
+    return (other == null) ? obj_tags : other;
+  }
+
   /**
    * Handle a binary operation on the two items at the top of the tag stack. Binary operations pop
    * the two items off of the top of the stack perform an operation and push the result back on the
@@ -2952,10 +2971,9 @@ public final class DCRuntime {
       }
     } else {
       int length = Array.getLength(arr_ref);
-      obj_tags = new Object[length];
-      field_map.put(arr_ref, obj_tags);
-      Object tag = new UninitArrayElem();
-      obj_tags[index] = tag;
+      obj_tags = new_tag_storage(arr_ref, length);
+      Object tag = obj_tags[index];
+      if (tag == null) obj_tags[index] = tag = new UninitArrayElem();
       td.tag_stack.push(tag);
       if (debug_primitive.enabled()) {
         debug_primitive.log("arrayload null-ok %s[%d] = null%n", obj_str(arr_ref), index);
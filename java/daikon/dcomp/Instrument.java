@@ -1,12 +1,18 @@
 package daikon.dcomp;
 
 import daikon.DynComp;
+import daikon.chicory.ClassInfo;
+import daikon.chicory.InstrumentedClassCache;
+import daikon.chicory.MethodInfo;
 import daikon.plumelib.bcelutil.BcelUtil;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import org.apache.bcel.*;
 import org.apache.bcel.classfile.*;
 import org.apache.bcel.generic.*;
@@ -20,6 +26,9 @@ public class Instrument implements ClassFileTransformer {
   File debug_bin_dir;
   File debug_orig_dir;
 
+  /** Previously instrumented classes, or null if {@code --class-cache} was not given. */
+  private final @Nullable InstrumentedClassCache cache;
+
   public Instrument() {
     debug_dir = DynComp.debug_dir;
     debug_bin_dir = new File(debug_dir, "bin");
@@ -29,6 +38,25 @@ public class Instrument implements ClassFileTransformer {
       debug_bin_dir.mkdirs();
       debug_orig_dir.mkdirs();
     }
+
+    if (DynComp.class_cache == null || DynComp.debug) {
+      // With --debug, every class is instrumented, so that it can be dumped.
+      cache = null;
+    } else {
+      cache =
+          new InstrumentedClassCache(
+              DynComp.class_cache,
+              DCInstrument.class,
+              String.join(
+                  " ",
+                  InstrumentedClassCache.describe(DynComp.ppt_omit_pattern),
+                  InstrumentedClassCache.describe(DynComp.ppt_select_pattern),
+                  "no_primitives=" + DynComp.no_primitives,
+                  "jdk=" + DCInstrument.jdk_instrumented,
+                  "java=" + BcelUtil.javaVersion,
+                  "depth=" + DynComp.nesting_depth,
+                  InstrumentedClassCache.describe(DynComp.rt_file)));
+    }
   }
 
   @Override
@@ -115,6 +143,14 @@ public class Instrument implements ClassFileTransformer {
       System.out.format("In dcomp.Instrument(): class = %s%n", className);
     }
 
+    if (cache != null && !in_jdk) {
+      InstrumentedClassCache.Entry entry = cache.lookup(className, classfileBuffer);
+      if (entry != null) {
+        if (DynComp.verbose) System.out.printf("Using cached instrumentation of %s%n", className);
+        return load_cached(entry, className, loader);
+      }
+    }
+
     try {
       // Parse the bytes of the classfile, die on any errors
       ClassParser parser = new ClassParser(new ByteArrayInputStream(classfileBuffer), className);
@@ -126,6 +162,9 @@ public class Instrument implements ClassFileTransformer {
 
       // Transform the file
       DCInstrument dci = new DCInstrument(c, in_jdk, loader);
+      if (cache != null && !in_jdk) {
+        dci.relocate_method_indices();
+      }
       JavaClass njc;
       if (DynComp.no_primitives) {
         njc = dci.instrument_refs_only();
@@ -142,7 +181,23 @@ public class Instrument implements ClassFileTransformer {
           njc.dump(new File(debug_bin_dir, njc.getClassName() + ".class"));
           BcelUtil.dump(njc, debug_bin_dir);
         }
-        return (njc.getBytes());
+        if (dci.relocations == null) {
+          return (njc.getBytes());
+        }
+        // class_info is null if DCInstrument returned the class unchanged.
+        InstrumentedClassCache.Entry entry =
+            InstrumentedClassCache.Entry.of(
+                njc.getBytes(),
+                dci.track_class,
+                dci.relocations.slots(),
+                (dci.class_info == null)
+                    ? new ArrayList<MethodInfo>()
+                    : dci.class_info.method_infos,
+                new HashMap<String, String>());
+        if (dci.cacheable && entry.isComplete()) {
+          cache.store(className, classfileBuffer, entry);
+        }
+        return entry.classfile(dci.relocations.indices());
       }
     } catch (Throwable e) {
       System.out.printf("Unexpected Error: %s%n", e);
@@ -151,6 +206,34 @@ public class Instrument implements ClassFileTransformer {
     }
   }
 
+  /**
+   * Registers the methods described by a cache entry, as DCInstrument does for a class that it
+   * instruments, and returns the instrumented class.
+   *
+   * @param entry the cached instrumentation of the class
+   * @param className the name of the class
+   * @param loader the class loader of the class
+   * @return the instrumented class
+   */
+  private byte[] load_cached(
+      InstrumentedClassCache.Entry entry, @InternalForm String className, ClassLoader loader) {
+    @SuppressWarnings("signature") // conversion from internal form
+    ClassInfo class_info = new ClassInfo(className.replace('/', '.'), loader);
+    List<MethodInfo> method_infos = entry.methodInfos(class_info);
+    int[] indices = new int[method_infos.size()];
+    for (int i = 0; i < indices.length; i++) {
+      class_info.method_infos.add(method_infos.get(i));
+      DCRuntime.methods.add(method_infos.get(i));
+      indices[i] = DCRuntime.methods.size() - 1;
+    }
+    if (entry.registered) {
+      synchronized (daikon.chicory.SharedData.all_classes) {
+        daikon.chicory.SharedData.all_classes.add(class_info);
+      }
+    }
+    return entry.classfile(indices);
+  }
+
   /**
    * Returns whether or not the specified class is part of dcomp itself (and thus should not be
    * instrumented). Some Daikon classes that are used by DynComp are included here as well.
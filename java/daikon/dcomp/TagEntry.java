@@ -2,26 +2,57 @@ package daikon.dcomp;
 
 import daikon.DynComp;
 import daikon.chicory.DaikonVariableInfo;
-import daikon.plumelib.util.WeakIdentityHashMap;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
  * Union-Find datastructure for Objects without the ranking optimization. All references to the
  * Objects are weak so that they will be removed from the sets when no longer referenced.
+ *
+ * <p>Several threads may use the datastructure at once. A union links the root with the smaller
+ * {@link #id} below the other root, with a compare-and-set, so that concurrent unions cannot create
+ * a cycle; along every path, the ids increase towards the root.
  */
 // TODO: Make TagEntry generic.
 @SuppressWarnings("interning")
 class TagEntry extends WeakReference<Object> {
 
-  /** Maps each object to its entry in the Union-Find datastructure. */
-  public static final WeakIdentityHashMap<Object, TagEntry> object_map =
-      new WeakIdentityHashMap<Object, TagEntry>();
+  /**
+   * Maps each object to its entry in the Union-Find datastructure. A {@link Tag} holds its own
+   * entry instead.
+   */
+  public static final ConcurrentWeakIdentityHashMap<Object, TagEntry> object_map =
+      new ConcurrentWeakIdentityHashMap<Object, TagEntry>();
+
+  /** The id of the next entry created. */
+  private static final AtomicLong next_id = new AtomicLong();
+
+  /** Sets {@link #parent} atomically. */
+  private static final AtomicReferenceFieldUpdater<TagEntry, TagEntry> parent_updater =
+      AtomicReferenceFieldUpdater.newUpdater(TagEntry.class, TagEntry.class, "parent");
+
+  /** Sets {@link Tag#entry} atomically. */
+  private static final AtomicReferenceFieldUpdater<Tag, TagEntry> entry_updater =
+      AtomicReferenceFieldUpdater.newUpdater(Tag.class, TagEntry.class, "entry");
+
+  /**
+   * A tag that holds its own entry, so that finding the entry of the tag needs no lookup in {@link
+   * #object_map}. The tags that DCRuntime creates for primitive values are Tags.
+   */
+  static class Tag {
+    /** The entry of this tag, or null if the tag is in a set by itself. */
+    volatile @Nullable TagEntry entry = null;
+  }
+
+  /** Orders the entries; unique. */
+  private final long id = next_id.getAndIncrement();
 
   // private static SimpleLog debug = new SimpleLog(false);
 
@@ -29,7 +60,7 @@ class TagEntry extends WeakReference<Object> {
    * Parent in the tree that represents the set for this element. If this, this entry is the
    * representative one.
    */
-  private @Nullable TagEntry parent;
+  private volatile @Nullable TagEntry parent;
 
   /**
    * An element in the tree that this element interacted with. If A trace-points to B, then A and B
@@ -63,19 +94,6 @@ class TagEntry extends WeakReference<Object> {
     // System.out.printf("Make %s with parent %s%n", this, this.parent);
   }
 
-  /**
-   * Create an entry and add it to an existing set. Does not put {@code obj} in {@link object_map}.
-   *
-   * @param obj the object to put in a new set
-   * @param parent the parent of the new set
-   */
-  public TagEntry(Object obj, TagEntry parent) {
-    super(obj);
-    this.parent = parent;
-    this.tracer = parent;
-    // System.out.printf("Made %s with parent p%s%n", this, this.parent);
-  }
-
   /**
    * Creates a set that only contains obj. Puts {@code obj} in {@link object_map}.
    *
@@ -83,9 +101,9 @@ class TagEntry extends WeakReference<Object> {
    * @return a new set containing {@code obj}
    */
   public static TagEntry create(Object obj) {
-    assert !object_map.containsKey(obj);
     TagEntry entry = new TagEntry(obj);
-    object_map.put(obj, entry);
+    TagEntry old = object_map.putIfAbsent(obj, entry);
+    assert old == null;
     return entry;
   }
 
@@ -99,12 +117,21 @@ class TagEntry extends WeakReference<Object> {
 
     TagEntry te1 = get_entry(obj1);
     TagEntry te2 = get_entry(obj2);
-    TagEntry root1 = te1.find();
-    TagEntry root2 = te2.find();
+    while (true) {
+      TagEntry root1 = te1.find();
+      TagEntry root2 = te2.find();
+      if (root1 == root2) {
+        return;
+      }
+      // If the link fails, another thread has just linked the root below another; try again.
+      if ((root1.id < root2.id) ? root1.link(root2) : root2.link(root1)) {
+        break;
+      }
+    }
 
-    if (root1 != root2) {
-      root2.parent = root1;
-      if (DynComp.trace_file != null) {
+    if (DynComp.trace_file != null) {
+      // The tracer trees are changed under a lock.
+      synchronized (TagEntry.class) {
         te1.rootMe();
         te2.rootMe();
         te2.tracer = te1;
@@ -113,37 +140,82 @@ class TagEntry extends WeakReference<Object> {
     }
   }
 
+  /**
+   * Makes root the parent of this entry, if this entry is still a root.
+   *
+   * @param root a root with a larger id than this
+   * @return true if this entry was still a root
+   */
+  private boolean link(TagEntry root) {
+    assert id < root.id;
+    return parent_updater.compareAndSet(this, null, root);
+  }
+
   /** Find the entry associated with obj. If an entry does not currently exist, create it. */
   public static TagEntry get_entry(Object obj) {
 
     assert obj != null;
+    if (obj instanceof Tag) {
+      Tag tag = (Tag) obj;
+      TagEntry entry = tag.entry;
+      if (entry == null) {
+        TagEntry new_entry = new TagEntry(obj);
+        if (entry_updater.compareAndSet(tag, null, new_entry)) {
+          return new_entry;
+        }
+        entry = tag.entry;
+      }
+      return entry;
+    }
     TagEntry entry = object_map.get(obj);
     if (entry == null) {
-      entry = create(obj);
+      TagEntry new_entry = new TagEntry(obj);
+      entry = object_map.putIfAbsent(obj, new_entry);
+      if (entry == null) {
+        entry = new_entry;
+      }
     }
     return entry;
   }
 
+  /**
+   * Returns the entry associated with obj, or null if obj is in a set by itself.
+   *
+   * @param obj an object
+   * @return the entry of obj, or null
+   */
+  private static @Nullable TagEntry lookup(Object obj) {
+    if (obj instanceof Tag) {
+      return ((Tag) obj).entry;
+    }
+    return object_map.get(obj);
+  }
+
   /**
    * Find the TagEntry that is the representative of this set. As part of finding the
    * representative, the path from the specified entry to the representative is compressed.
    */
   public TagEntry find() {
 
-    if (parent == null) {
+    TagEntry root = parent;
+    if (root == null) {
       return this;
     }
 
     // Find the canonical representative
-    TagEntry root = this;
-    while (root.parent != null) {
-      root = root.parent;
+    for (TagEntry next = root.parent; next != null; next = root.parent) {
+      root = next;
     }
 
-    // Set everyone to point to the root
+    // Set everyone to point to the root.  Another thread may have linked the root below a new
+    // root meanwhile, and compressed part of the path past it; the ids tell the entries below
+    // the root from those above it.
     TagEntry tag = this;
-    while (tag.parent != null) {
+    while (tag.id < root.id) {
       TagEntry next = tag.parent;
+      if (next == null) {
+        break;
+      }
       tag.parent = root;
       tag = next;
     }
@@ -160,7 +232,7 @@ class TagEntry extends WeakReference<Object> {
    */
   public static Object find(Object obj) {
     assert obj != null;
-    TagEntry entry = object_map.get(obj);
+    TagEntry entry = lookup(obj);
     if (entry == null) {
       return obj;
     }
@@ -203,7 +275,7 @@ class TagEntry extends WeakReference<Object> {
    * @return the canonical member of this object's set (based on tracers), or possibly null
    */
   public static @Nullable Object tracer_find(Object obj) {
-    TagEntry entry = object_map.get(obj);
+    TagEntry entry = lookup(obj);
     if (entry == null) {
       return obj;
     }
@@ -219,7 +291,7 @@ class TagEntry extends WeakReference<Object> {
   }
 
   public static Object troot_find(Object obj) {
-    TagEntry entry = object_map.get(obj);
+    TagEntry entry = lookup(obj);
     if (entry == null) {
       return obj;
     }
@@ -328,7 +400,8 @@ class TagEntry extends WeakReference<Object> {
   ///
 
   /**
-   * Returns each of the sets with elements in each set on a separate line.
+   * Returns each of the sets with elements in each set on a separate line. Tags, which are not in
+   * {@link #object_map}, are not listed.
    *
    * @return a verbose printed representation of this
    */
@@ -338,7 +411,7 @@ class TagEntry extends WeakReference<Object> {
 
     // Fill sets from object_map by placing every object in an ArrayList
     // whose key is its root.
-    for (Object obj : object_map.keySet()) {
+    for (Object obj : object_map.keys()) {
       Object rep = find(obj);
       List<Object> set = sets.get(rep);
       if (set == null) {
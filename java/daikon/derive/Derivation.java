@@ -4,8 +4,10 @@ import daikon.Quantify;
 import daikon.ValueTuple;
 import daikon.VarInfo;
 import java.io.Serializable;
+import java.util.List;
 import java.util.logging.Logger;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.checkerframework.dataflow.qual.Pure;
 import org.checkerframework.dataflow.qual.SideEffectFree;
@@ -128,6 +130,48 @@ public abstract class Derivation implements Serializable, Cloneable {
     return missing_array_bounds;
   }
 
+  /**
+   * If set for the current thread, the derivations that go out of bounds are added to this list
+   * instead of setting their {@link #missing_array_bounds}. See {@link
+   * #defer_missing_array_bounds}.
+   */
+  private static final ThreadLocal<@Nullable List<Derivation>> deferred_missing_array_bounds =
+      new ThreadLocal<>();
+
+  /**
+   * Makes the derivations computed by the current thread add themselves to the given list when they
+   * go out of bounds, instead of setting {@link #missing_array_bounds}. The trace file reader uses
+   * this when inference workers apply the samples, so that the workers do not see the flag before
+   * they apply the sample that set it.
+   *
+   * @param deferred the list to which derivations that go out of bounds are added, or null to set
+   *     missing_array_bounds again
+   */
+  public static void defer_missing_array_bounds(@Nullable List<Derivation> deferred) {
+    deferred_missing_array_bounds.set(deferred);
+  }
+
+  /** Records that a value of this derivation was missing because an index was out of bounds. */
+  protected void set_missing_array_bounds() {
+    if (missing_array_bounds) {
+      return;
+    }
+    List<Derivation> deferred = deferred_missing_array_bounds.get();
+    if (deferred == null) {
+      missing_array_bounds = true;
+    } else if (!deferred.contains(this)) {
+      deferred.add(this);
+    }
+  }
+
+  /**
+   * Returns true if computing a value of this derivation may change {@link #missingOutOfBounds()}.
+   * Such a derivation is computed for every sample, even if no invariant uses its value.
+   */
+  public boolean mayBecomeMissingOutOfBounds() {
+    return false;
+  }
+
   /* *
    * For debugging only; returns true if the variables from which this
    * one was derived are all non-canonical (which makes this derived
@@ -65,6 +65,11 @@ public abstract class SequenceSubsequence extends BinaryDerivation {
     return vi;
   }
 
+  @Override
+  public boolean mayBecomeMissingOutOfBounds() {
+    return !missing_array_bounds;
+  }
+
   /** Returns the lower bound of the slice. */
   @Override
   public Quantify.Term get_lower_bound() {
@@ -1,5 +1,6 @@
 package daikon.diff;
 
+import daikon.BinaryInv;
 import daikon.Daikon;
 import daikon.FileIO;
 import daikon.Ppt;
@@ -23,6 +24,7 @@ import java.util.NavigableSet;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import org.checkerframework.checker.initialization.qual.UnknownInitialization;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -30,6 +32,7 @@ import org.checkerframework.checker.signature.qual.ClassGetName;
 import org.plumelib.util.CollectionsPlume;
 import org.plumelib.util.OrderedPairIterator;
 import org.plumelib.util.Pair;
+import org.plumelib.util.RegexUtil;
 import org.plumelib.util.UtilPlume;
 
 /**
@@ -86,6 +89,9 @@ public final class Diff {
   private boolean examineAllPpts;
   private boolean ignoreNumberedExits;
 
+  /** Regular expression that ppts must match to be examined, or null to examine all ppts. */
+  private @Nullable Pattern pptRegexp = null;
+
   public Diff() {
     this(false, false);
   }
@@ -164,6 +170,7 @@ public final class Diff {
     @ClassGetName String invSortComparator1Classname = null;
     @ClassGetName String invSortComparator2Classname = null;
     @ClassGetName String invPairComparatorClassname = null;
+    Pattern pptRegexp = null;
 
     boolean optionSelected = false;
 
@@ -178,6 +185,7 @@ public final class Diff {
           new LongOpt(INV_PAIR_COMPARATOR_SWITCH, LongOpt.REQUIRED_ARGUMENT, null, 0),
           new LongOpt(IGNORE_UNJUSTIFIED_SWITCH, LongOpt.NO_ARGUMENT, null, 0),
           new LongOpt(IGNORE_NUMBERED_EXITS_SWITCH, LongOpt.NO_ARGUMENT, null, 0),
+          new LongOpt(Daikon.ppt_regexp_SWITCH, LongOpt.REQUIRED_ARGUMENT, null, 0),
         };
 
     Getopt g =
@@ -230,6 +238,24 @@ public final class Diff {
           } else if (IGNORE_NUMBERED_EXITS_SWITCH.equals(optionName)) {
             ignoreNumberedExits = true;
             break;
+          } else if (Daikon.ppt_regexp_SWITCH.equals(optionName)) {
+            if (pptRegexp != null) {
+              throw new Error(
+                  "multiple --"
+                      + Daikon.ppt_regexp_SWITCH
+                      + " regular expressions supplied on command line");
+            }
+            String regexpString = Daikon.getOptarg(g);
+            if (!RegexUtil.isRegex(regexpString)) {
+              throw new Daikon.UserError(
+                  "Bad regexp "
+                      + regexpString
+                      + " for "
+                      + Daikon.ppt_regexp_SWITCH
+                      + ": "
+                      + RegexUtil.regexError(regexpString));
+            }
+            pptRegexp = Pattern.compile(RegexUtil.asRegex(regexpString));
           } else {
             throw new RuntimeException("Unknown long option received: " + optionName);
           }
@@ -333,6 +359,7 @@ public final class Diff {
             invSortComparator2Classname,
             invPairComparatorClassname,
             defaultComparator);
+    diff.pptRegexp = pptRegexp;
 
     if (!diff.invSortComparator1
             .getClass()
@@ -374,7 +401,7 @@ public final class Diff {
       int j = 0;
       for (int i = firstFileIndex; i < args.length; i++) {
         String fileName = args[i];
-        mapAr[j++] = FileIO.read_serialized_pptmap(new File(fileName), false);
+        mapAr[j++] = diff.readPptMap(new File(fileName));
       }
 
       // Cascade a lot of the different invariants into one map,
@@ -473,6 +500,9 @@ public final class Diff {
 
   /** Reads an InvMap from a file that contains a serialized InvMap or PptMap. */
   private InvMap readInvMap(File file) throws IOException, ClassNotFoundException {
+    if (BinaryInv.isBinaryFile(file)) {
+      return convertToInvMap(FileIO.read_serialized_pptmap(file, false, pptRegexp));
+    }
     Object o = UtilPlume.readObject(file);
     if (o instanceof InvMap) {
       return (InvMap) o;
@@ -482,6 +512,24 @@ public final class Diff {
     }
   }
 
+  /**
+   * Reads a PptMap from a file that contains a serialized PptMap, omitting the ppts that do not
+   * match {@code --ppt-select-pattern}.
+   */
+  private PptMap readPptMap(File file) throws IOException {
+    PptMap pptMap = FileIO.read_serialized_pptmap(file, false, pptRegexp);
+    if (pptRegexp == null) {
+      return pptMap;
+    }
+    PptMap result = new PptMap();
+    for (PptTopLevel ppt : pptMap.pptIterable()) {
+      if (pptRegexp.matcher(ppt.name()).find()) {
+        result.add(ppt);
+      }
+    }
+    return result;
+  }
+
   /**
    * Extracts the PptTopLevel and Invariants out of a pptMap, and places them into an InvMap. Maps
    * PptTopLevel to a List of Invariants. The InvMap is a cleaner representation than the PptMap,
@@ -502,6 +550,9 @@ public final class Diff {
       if (ignoreNumberedExits && ppt.ppt_name.isNumberedExitPoint()) {
         continue;
       }
+      if ((pptRegexp != null) && !pptRegexp.matcher(ppt.name()).find()) {
+        continue;
+      }
 
       // List<Invariant> invs = ppt.getInvariants();
       List<Invariant> invs = CollectionsPlume.sortList(ppt.getInvariants(), PptTopLevel.icfp);
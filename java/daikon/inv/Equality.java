@@ -4,6 +4,7 @@ import daikon.Debug;
 import daikon.Global;
 import daikon.PptSlice;
 import daikon.PptTopLevel;
+import daikon.ProglangType;
 import daikon.Quantify.QuantFlags;
 import daikon.ValueTuple;
 import daikon.VarComparability;
@@ -394,7 +395,11 @@ public final /*(at)Interned*/ class Equality extends Invariant {
   public List<VarInfo> add(ValueTuple vt, int count) {
     // Need to handle specially if leader is missing.
     VarInfo leader = leader();
-    Object leaderValue = leader.getValueOrNull(vt);
+    // If the values are NaN, treat them as different.
+    boolean leaderNaN =
+        (leader.rep_type == ProglangType.DOUBLE)
+            && leader.isScalarValue(vt)
+            && Double.isNaN(leader.getDoubleValue(vt));
     int leaderMod = leader.getModified(vt);
     boolean leaderOutOfBounds = leader.missingOutOfBounds();
     if (leader.isMissing(vt)) {
@@ -412,17 +417,15 @@ public final /*(at)Interned*/ class Equality extends Invariant {
         continue;
       }
       assert vi.comparableNWay(leader);
-      Object viValue = vi.getValueOrNull(vt);
       int viMod = vi.getModified(vt);
       // The following is possible because values are interned.  The
       // test also takes into account missing values, since they are
-      // null.
-      if ((leaderValue == viValue)
+      // null.  Integers and doubles are compared without boxing them.
+      if (leader.hasSameValue(vt, vi)
           && (leaderMod == viMod)
           && !leaderOutOfBounds
           && !vi.missingOutOfBounds()
-          // If the values are NaN, treat them as different.
-          && !((leaderValue instanceof Double) && ((Double) leaderValue).isNaN())) {
+          && !leaderNaN) {
         // The values are the same.
         continue;
       }
@@ -441,13 +444,13 @@ public final /*(at)Interned*/ class Equality extends Invariant {
             "Var "
                 + vi.name()
                 + " ["
-                + viValue
+                + vi.getValueOrNull(vt)
                 + ","
                 + viMod
                 + "] split from leader "
                 + leader.name()
                 + " ["
-                + Debug.toString(leaderValue)
+                + Debug.toString(leader.getValueOrNull(vt))
                 + ","
                 + leaderMod
                 + "]");
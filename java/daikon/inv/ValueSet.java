@@ -105,7 +105,11 @@ public abstract class ValueSet extends LimitedSizeIntSet implements Serializable
     @Override
     public void add(Object v1) {
       assert v1 != null;
-      long val = ((Long) v1).longValue();
+      add(((Long) v1).longValue());
+    }
+
+    /** Add the specified value to the set. */
+    public void add(long val) {
       if (val < min_val) {
         min_val = val;
       }
@@ -157,7 +161,11 @@ public abstract class ValueSet extends LimitedSizeIntSet implements Serializable
     @Override
     public void add(Object v1) {
       assert v1 != null;
-      double val = ((Double) v1).doubleValue();
+      add(((Double) v1).doubleValue());
+    }
+
+    /** Add the specified value to the set. */
+    public void add(double val) {
       if (val < min_val) {
         min_val = val;
       }
@@ -39,9 +39,21 @@ public abstract class SingleFloat extends UnaryInvariant {
   // just implement {@link add_modified(Object,int)}.
   @Override
   public InvariantStatus add(@Interned Object val, int mod_index, int count) {
+    return add(((Double) val).doubleValue(), mod_index, count);
+  }
+
+  /**
+   * Like {@link #add(Object,int,int)}, but takes the value as a primitive, so that it need not be
+   * unboxed. Should never be called with modified == ValueTuple.MISSING_NONSENSICAL.
+   *
+   * @param value the value of the variable
+   * @param mod_index 0 if the value is unmodified, 1 if it is modified
+   * @param count how many identical samples were observed in a row
+   * @return whether the invariant changed or was falsified
+   */
+  public InvariantStatus add(double value, int mod_index, int count) {
     assert !falsified;
     assert (mod_index >= 0) && (mod_index < 2);
-    double value = ((Double) val).doubleValue();
     if (mod_index == 0) {
       return add_unmodified(value, count);
     } else {
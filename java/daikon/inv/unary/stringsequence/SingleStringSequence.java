@@ -1,13 +1,13 @@
 package daikon.inv.unary.stringsequence;
 
 import daikon.PptSlice;
+import daikon.SyncIntern;
 import daikon.VarInfo;
 import daikon.inv.InvariantStatus;
 import daikon.inv.unary.UnaryInvariant;
 import org.checkerframework.checker.initialization.qual.UnknownInitialization;
 import org.checkerframework.checker.interning.qual.Interned;
 import org.checkerframework.checker.lock.qual.GuardSatisfied;
-import org.plumelib.util.Intern;
 import typequals.prototype.qual.Prototype;
 
 /** Abstract base class for invariants over one variable of type {@code String[]}. */
@@ -45,7 +45,7 @@ public abstract class SingleStringSequence extends UnaryInvariant {
   public InvariantStatus add(@Interned Object val, int mod_index, int count) {
     assert !falsified;
     assert (mod_index >= 0) && (mod_index < 2);
-    assert Intern.isInterned(val);
+    assert SyncIntern.isInterned(val);
     // System.out.println("SingleStringSequence.add(" + Arrays.toString(value) + ", " + modified +
     // ", " + count + ")");
     @Interned String[] value = (@Interned String[]) val;
@@ -62,7 +62,7 @@ public abstract class SingleStringSequence extends UnaryInvariant {
   public InvariantStatus check(@Interned Object val, int mod_index, int count) {
     assert !falsified;
     assert (mod_index >= 0) && (mod_index < 2);
-    assert Intern.isInterned(val);
+    assert SyncIntern.isInterned(val);
     @Interned String[] value = (@Interned String[]) val;
     if (value == null) {
       return InvariantStatus.NO_CHANGE;
@@ -10,6 +10,7 @@ import java.util.Stack;
 import java.util.TreeSet;
 import org.checkerframework.checker.initialization.qual.UnknownInitialization;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
  * A stack of Lemmas that shadows the stack of assumptions that Simplify keeps. Keeping this stack
@@ -49,10 +50,17 @@ public class LemmaStack {
   private Stack<Lemma> lemmas;
   private SessionManager session;
 
+  /**
+   * The formulas on Simplify's assumption stack, which may differ from those of {@link #lemmas}
+   * while assumptions are being minimized. Used to look up answers in the {@link ProofCache}.
+   */
+  private ArrayList<String> assumed_formulas = new ArrayList<>();
+
   /** Tell Simplify to assume a lemma, which should already be on our stack. */
   private void assume(@UnknownInitialization(LemmaStack.class) LemmaStack this, Lemma lemma)
       throws TimeoutException {
     session.request(new CmdAssume(lemma.formula));
+    assumed_formulas.add(lemma.formula);
   }
 
   /** Assume a list of lemmas. */
@@ -67,6 +75,7 @@ public class LemmaStack {
   private void unAssume() {
     try {
       session.request(CmdUndoAssume.single);
+      assumed_formulas.remove(assumed_formulas.size() - 1);
     } catch (TimeoutException e) {
       throw new Error("Unexpected timeout on (BG_POP)");
     }
@@ -90,6 +99,7 @@ public class LemmaStack {
     SessionManager session_try = SessionManager.attemptProverStartup();
     if (session_try != null) {
       session = session_try;
+      assumed_formulas = new ArrayList<>();
     } else {
       throw new SimplifyError("Couldn't start Simplify");
     }
@@ -161,6 +171,15 @@ public class LemmaStack {
   private char checkString(@UnknownInitialization(LemmaStack.class) LemmaStack this, String str)
       throws SimplifyError {
     SimpUtil.assert_well_formed(str);
+    // With synchronous_errors, checks are used to flush errors from Simplify.
+    @Nullable String key =
+        dkconfig_synchronous_errors ? null : ProofCache.key(assumed_formulas, str);
+    if (key != null) {
+      Boolean cached = ProofCache.lookup(key);
+      if (cached != null) {
+        return cached ? 'T' : 'F';
+      }
+    }
     CmdCheck cc = new CmdCheck(str);
     try {
       session.request(cc);
@@ -171,6 +190,9 @@ public class LemmaStack {
     if (cc.unknown) {
       return '?';
     }
+    if (key != null) {
+      ProofCache.store(key, cc.valid);
+    }
     return cc.valid ? 'T' : 'F';
   }
 
@@ -465,14 +487,15 @@ public class LemmaStack {
     }
   }
 
+  // Formulas may be formatted on several threads; synchronized on LemmaStack.class.
   private static NavigableSet<Long> ints_seen = new TreeSet<>();
 
   /** Keep track that we've seen this number in formulas, for the sake of pushOrdering. */
-  public static void noticeInt(long i) {
+  public static synchronized void noticeInt(long i) {
     ints_seen.add(i);
   }
 
-  public static void clearInts() {
+  public static synchronized void clearInts() {
     ints_seen = new TreeSet<Long>();
   }
 
@@ -484,8 +507,12 @@ public class LemmaStack {
 
   /** For all the integers we've seen, tell Simplify about the ordering between them. */
   public void pushOrdering() throws SimplifyError {
+    List<Long> ints;
+    synchronized (LemmaStack.class) {
+      ints = new ArrayList<>(ints_seen);
+    }
     long last_long = Long.MIN_VALUE;
-    for (Long ll : ints_seen) {
+    for (Long ll : ints) {
       long l = ll.longValue();
       if (l == Long.MIN_VALUE) {
         continue;
@@ -0,0 +1,176 @@
+package daikon.simplify;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Remembers Simplify's answers to queries, so that a query that has already been decided is not
+ * sent to Simplify again. A query is identified by the formula being checked together with the set
+ * of assumptions in effect (in any order) and the options that affect Simplify's answers. Only
+ * definite answers (valid or invalid) are remembered, not timeouts.
+ *
+ * <p>The answers are shared by all the {@link LemmaStack}s in this run. If {@link
+ * #dkconfig_file} is set, they are also read from and appended to that file, so that later runs
+ * over similar programs can reuse them.
+ */
+public final class ProofCache {
+
+  /**
+   * String. If non-null, the name of a file in which Simplify's answers are kept between runs.
+   * The file is created if it does not exist. It is safe to delete it at any time.
+   */
+  public static @Nullable String dkconfig_file = null;
+
+  /** Do not instantiate. */
+  private ProofCache() {
+    throw new Error("do not instantiate");
+  }
+
+  /** The remembered answers, indexed by {@link #key}. */
+  private static final Map<String, Boolean> answers = new ConcurrentHashMap<>();
+
+  /** The file named by {@link #dkconfig_file}, once it has been read. */
+  private static @Nullable File loaded_file = null;
+
+  /** The stream to which new answers are appended, or null if they are not saved. */
+  private static @Nullable Writer out = null;
+
+  /** The number of queries answered from the cache. */
+  private static long hits = 0;
+
+  /**
+   * Returns the key for a query.
+   *
+   * @param assumptions the formulas that Simplify is assuming, in any order
+   * @param query the formula being checked
+   * @return a key that identifies the query
+   */
+  static String key(List<String> assumptions, String query) {
+    List<String> sorted = new ArrayList<>(assumptions);
+    Collections.sort(sorted);
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error("SHA-256 is not available", e);
+    }
+    // Options that can change the answer.
+    md.update(
+        (Session.dkconfig_simplify_max_iterations
+                + " "
+                + Session.dkconfig_simplify_timeout
+                + " "
+                + daikon.inv.Invariant.dkconfig_simplify_define_predicates)
+            .getBytes(UTF_8));
+    for (String assumption : sorted) {
+      md.update((byte) '\n');
+      md.update(assumption.getBytes(UTF_8));
+    }
+    md.update((byte) 0);
+    md.update(query.getBytes(UTF_8));
+    StringBuilder result = new StringBuilder();
+    for (byte b : md.digest()) {
+      result.append(String.format("%02x", b));
+    }
+    return result.toString();
+  }
+
+  /**
+   * Returns the remembered answer to a query, or null if there is none.
+   *
+   * @param key the key of the query
+   * @return true if the query is valid, false if it is invalid, or null if it is not known
+   */
+  static @Nullable Boolean lookup(String key) {
+    load();
+    Boolean result = answers.get(key);
+    if (result != null) {
+      synchronized (ProofCache.class) {
+        hits++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Remembers the answer to a query.
+   *
+   * @param key the key of the query
+   * @param valid true if the query is valid, false if it is invalid
+   */
+  static void store(String key, boolean valid) {
+    if (answers.put(key, valid) != null) {
+      return;
+    }
+    synchronized (ProofCache.class) {
+      Writer w = out;
+      if (w != null) {
+        try {
+          w.write(key + (valid ? " T" : " F") + "\n");
+          w.flush();
+        } catch (IOException e) {
+          System.err.println("Could not write " + dkconfig_file + ": " + e);
+          out = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of queries that were answered from the cache.
+   *
+   * @return the number of queries answered from the cache
+   */
+  public static synchronized long hits() {
+    return hits;
+  }
+
+  /** Reads the answers in {@link #dkconfig_file}, if it is set and has not yet been read. */
+  private static synchronized void load() {
+    if (dkconfig_file == null) {
+      return;
+    }
+    File file = new File(dkconfig_file);
+    if (file.equals(loaded_file)) {
+      return;
+    }
+    loaded_file = file;
+    if (file.exists()) {
+      try (BufferedReader in =
+          new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          int space = line.indexOf(' ');
+          // Ignore a partly-written last line.
+          if (space > 0 && space == line.length() - 2) {
+            answers.put(line.substring(0, space), line.charAt(space + 1) == 'T');
+          }
+        }
+      } catch (IOException e) {
+        System.err.println("Could not read " + dkconfig_file + ": " + e);
+      }
+    }
+    try {
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF_8));
+    } catch (IOException e) {
+      System.err.println("Could not write " + dkconfig_file + ": " + e);
+    }
+  }
+}
@@ -142,11 +142,12 @@ public class SessionManager {
 
   // Start up simplify, and send the universal backgound.
   // Is successful exactly when return != null.
-  public static @Nullable SessionManager attemptProverStartup() {
+  // Synchronized because several threads may each start a prover.
+  public static synchronized @Nullable SessionManager attemptProverStartup() {
     SessionManager prover;
 
-    // Limit ourselves to a few tries
-    if (prover_instantiate_count > 5) {
+    // Limit ourselves to a few tries, beyond the one per thread that checks program points.
+    if (prover_instantiate_count > 5 + daikon.Daikon.dkconfig_simplify_threads) {
       return null;
     }
 
@@ -192,6 +193,10 @@ public class SessionManager {
           } catch (InterruptedException e) {
             // It's OK for a wait() to be interrupted.
           }
+          if (finished) {
+            // Woken by LemmaStack.closeSession.
+            return;
+          }
           assert mgr.pending != null
               : "@AssumeAssertion(nullness): bug? might not be true if interrupted?";
           // session != null && mgr.pending != null;
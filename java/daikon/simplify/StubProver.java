@@ -0,0 +1,241 @@
+package daikon.simplify;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A stand-in for the Simplify theorem prover, for testing the code that talks to Simplify on
+ * machines where Simplify is not installed. It speaks enough of Simplify's protocol for {@link
+ * Session}, but its reasoning is only syntactic: a formula is valid if it is {@code TRUE}, is one
+ * of the assumptions (or a conjunct of one), or is a conjunction of valid formulas, or if the
+ * assumptions contain both a formula and its negation. Everything else is invalid.
+ *
+ * <p>To use it in place of Simplify, set the {@code simplify.path} system property to a command
+ * that runs this class, such as {@code java -cp $CLASSPATH daikon.simplify.StubProver}.
+ */
+public final class StubProver {
+
+  /** The assumptions, in the order in which they were pushed. Each is an atom or a list. */
+  private final List<Object> assumptions = new ArrayList<>();
+
+  /** The number of queries answered, which numbers the answers as Simplify does. */
+  private int queries = 0;
+
+  /** Where the input comes from. */
+  private final Reader in;
+
+  /** Where the answers go. */
+  private final PrintStream out;
+
+  /**
+   * Creates a prover that reads commands from in and writes answers to out.
+   *
+   * @param in where the commands come from
+   * @param out where the answers go
+   */
+  private StubProver(Reader in, PrintStream out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * Runs the prover on standard input and output. Arguments, such as {@code -nosc}, are ignored.
+   *
+   * @param args ignored
+   * @throws IOException if standard input cannot be read
+   */
+  public static void main(String[] args) throws IOException {
+    PrintStream out = new PrintStream(System.out, false, "UTF-8");
+    new StubProver(new BufferedReader(new InputStreamReader(System.in, UTF_8)), out).run();
+  }
+
+  /**
+   * Processes commands until the input ends.
+   *
+   * @throws IOException if the input cannot be read
+   */
+  private void run() throws IOException {
+    out.print(">\t");
+    out.flush();
+    Object command;
+    while ((command = read()) != null) {
+      String head = (command instanceof List<?>) ? head(command) : "";
+      if (head.equals("BG_PUSH")) {
+        assumptions.add(((List<?>) command).get(1));
+      } else if (head.equals("BG_POP")) {
+        assumptions.remove(assumptions.size() - 1);
+      } else if (head.equals("PROMPT_OFF") || head.startsWith("DEF")) {
+        // No output.
+      } else {
+        queries++;
+        out.println(queries + ": " + (valid(command) ? "Valid." : "Invalid."));
+        out.println();
+        out.flush();
+      }
+    }
+  }
+
+  /**
+   * Returns true if formula follows syntactically from the assumptions.
+   *
+   * @param formula an atom or a list
+   * @return true if formula follows from the assumptions
+   */
+  private boolean valid(Object formula) {
+    if (formula.equals("TRUE") || contradictory()) {
+      return true;
+    }
+    if (head(formula).equals("AND")) {
+      List<?> conjuncts = (List<?>) formula;
+      for (int i = 1; i < conjuncts.size(); i++) {
+        if (!valid(conjuncts.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return facts().contains(formula);
+  }
+
+  /**
+   * Returns true if the assumptions contain a formula and its negation.
+   *
+   * @return true if the assumptions are contradictory
+   */
+  private boolean contradictory() {
+    List<Object> facts = facts();
+    for (Object fact : facts) {
+      if (fact.equals("FALSE")) {
+        return true;
+      }
+      if (head(fact).equals("NOT") && facts.contains(((List<?>) fact).get(1))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the assumptions, with conjunctions split into their conjuncts.
+   *
+   * @return the assumptions, with conjunctions split into their conjuncts
+   */
+  private List<Object> facts() {
+    List<Object> result = new ArrayList<>();
+    for (Object assumption : assumptions) {
+      addConjuncts(assumption, result);
+    }
+    return result;
+  }
+
+  /**
+   * Adds formula, or its conjuncts if it is a conjunction, to result.
+   *
+   * @param formula an atom or a list
+   * @param result where to add the conjuncts
+   */
+  private static void addConjuncts(Object formula, List<Object> result) {
+    if (head(formula).equals("AND")) {
+      List<?> conjuncts = (List<?>) formula;
+      for (int i = 1; i < conjuncts.size(); i++) {
+        addConjuncts(conjuncts.get(i), result);
+      }
+    } else {
+      result.add(formula);
+    }
+  }
+
+  /**
+   * Returns the operator of a list, or the empty string for an atom or an empty list.
+   *
+   * @param formula an atom or a list
+   * @return the operator of formula
+   */
+  private static String head(Object formula) {
+    if (formula instanceof List<?>) {
+      List<?> list = (List<?>) formula;
+      if (!list.isEmpty() && list.get(0) instanceof String) {
+        return (String) list.get(0);
+      }
+    }
+    return "";
+  }
+
+  /**
+   * Reads the next expression: a String for an atom, or a List for a parenthesized expression.
+   *
+   * @return the next expression, or null at the end of the input
+   * @throws IOException if the input cannot be read
+   */
+  private @Nullable Object read() throws IOException {
+    int c = skipSpace();
+    if (c == -1) {
+      return null;
+    }
+    return read(c);
+  }
+
+  /**
+   * Reads the expression that starts with the character c.
+   *
+   * @param c the first character of the expression
+   * @return the expression
+   * @throws IOException if the input cannot be read or ends in the middle of the expression
+   */
+  private Object read(int c) throws IOException {
+    if (c == '(') {
+      List<Object> list = new ArrayList<>();
+      while ((c = skipSpace()) != ')') {
+        if (c == -1) {
+          throw new IOException("unbalanced parentheses");
+        }
+        list.add(read(c));
+      }
+      return list;
+    }
+    StringBuilder atom = new StringBuilder();
+    boolean quoted = false;
+    while (true) {
+      if (c == '|') {
+        quoted = !quoted;
+      }
+      atom.append((char) c);
+      in.mark(1);
+      c = in.read();
+      if (c == -1 || (!quoted && (Character.isWhitespace(c) || c == '(' || c == ')'))) {
+        if (c != -1) {
+          in.reset();
+        }
+        return atom.toString();
+      }
+    }
+  }
+
+  /**
+   * Skips whitespace and comments.
+   *
+   * @return the next character, or -1 at the end of the input
+   * @throws IOException if the input cannot be read
+   */
+  private int skipSpace() throws IOException {
+    int c;
+    while ((c = in.read()) != -1) {
+      if (c == ';') {
+        while (c != -1 && c != '\n') {
+          c = in.read();
+        }
+      } else if (!Character.isWhitespace(c)) {
+        break;
+      }
+    }
+    return c;
+  }
+}
@@ -77,7 +77,9 @@ public class NIS {
   /**
    * Boolean. If true, use antecedent method for NIS processing. If false, use falsified method for
    * processing falsified invariants for NISuppressions. Note this flag is for internal use only and
-   * is controlled by NIS.dkconfig_suppression_processor.
+   * is controlled by NIS.dkconfig_suppression_processor. When the hybrid method is in use, this is
+   * only the initial value; the method chosen for each sample is kept per thread and is returned
+   * by {@link #antecedent_method()}.
    */
   public static boolean antecedent_method = true;
 
@@ -149,23 +151,69 @@ public class NIS {
   public static @MonotonicNonNull List<@Prototype Invariant> suppressor_proto_invs;
 
   /**
-   * List of invariants that are unsuppressed by the current sample. The {@link #falsified} and
-   * {@link #process_falsified_invs} methods add created invariants to this list. This list is
-   * cleared by {@link #apply_samples}.
+   * State that NIS keeps while a single sample is applied to a program point. Each thread that
+   * applies samples has its own copy, so that different program points can be processed
+   * concurrently (see {@link daikon.FileIO#dkconfig_inference_threads}).
    */
-  public static List<Invariant> new_invs = new ArrayList<>();
+  static final class SampleState {
+    /**
+     * List of invariants that are unsuppressed by the current sample. The {@link #falsified} and
+     * {@link #process_falsified_invs} methods add created invariants to this list. This list is
+     * cleared by {@link #apply_samples}.
+     */
+    final List<Invariant> new_invs = new ArrayList<>();
+
+    /**
+     * List of invariants that are unsuppressed and then falsified by the current sample. This list
+     * is cleared at the beginning of apply_samples() and falsified invariants are added as the
+     * current sample is applied to invariants in new_invs. The list is only used when the
+     * falsified method is used for processing suppressions.
+     */
+    final List<Invariant> newly_falsified = new ArrayList<>();
+
+    /**
+     * The suppression algorithm chosen for the current sample by the hybrid method. Only used if
+     * {@link #hybrid_method} is true.
+     */
+    boolean antecedent_method = NIS.antecedent_method;
+
+    /**
+     * True while falsified invariants are removed for the first time for the current sample. Only
+     * used for statistics.
+     */
+    boolean first_pass_with_sample = true;
+  }
+
+  /** The sample state of the current thread. */
+  private static final ThreadLocal<SampleState> sample_state =
+      ThreadLocal.withInitial(SampleState::new);
+
+  /**
+   * Returns true if the antecedent method is used to process the sample that the current thread is
+   * applying, false if the falsified method is used.
+   */
+  public static boolean antecedent_method() {
+    if (hybrid_method) {
+      return sample_state.get().antecedent_method;
+    }
+    return antecedent_method;
+  }
 
   /**
-   * List of invariants that are unsuppressed and then falsified by the current sample. This list is
-   * cleared at the beginning of apply_samples() and falsified invariants are added as the current
-   * sample is applied to invariants in new_invs. The list is only used when the falsified method is
-   * used for processing suppressions.
+   * Returns true if the last call to {@link #apply_samples} on the current thread falsified any of
+   * the newly created invariants. In that case, those invariants may unsuppress other invariants
+   * and the falsified invariants need to be processed again.
    */
-  public static List<Invariant> newly_falsified = new ArrayList<>();
+  public static boolean has_newly_falsified() {
+    return !sample_state.get().newly_falsified.isEmpty();
+  }
 
   // Statistics that are kept during processing.  Some of these are kept
   // and/or make sense for some approaches and not for others
 
+  // The statistics are shared by all threads, so they are only approximate
+  // when program points are processed concurrently.
+
   /** Whether or not to keep statistics. */
   public static boolean keep_stats = false;
   /** Number of falsified invariants in the program point. */
@@ -302,7 +350,7 @@ public class NIS {
   @RequiresNonNull("suppressor_map")
   public static void falsified(Invariant inv) {
 
-    if (!dkconfig_enabled || antecedent_method) {
+    if (!dkconfig_enabled || antecedent_method()) {
       return;
     }
 
@@ -329,11 +377,12 @@ public class NIS {
       return;
     }
 
+    SampleState state = sample_state.get();
     long startTime = 0;
     // Count the number of falsified invariants that are antecedents
     if (keep_stats) {
       startTime = System.nanoTime();
-      if (PptTopLevel.first_pass_with_sample && suppressor_map.containsKey(inv.getClass())) {
+      if (state.first_pass_with_sample && suppressor_map.containsKey(inv.getClass())) {
         false_invs++;
       }
     }
@@ -344,7 +393,7 @@ public class NIS {
       if (debug.isLoggable(Level.FINE)) {
         debug.fine("processing suppression set " + ss + " over falsified inv " + inv.format());
       }
-      ss.falsified(inv, new_invs);
+      ss.falsified(inv, state.new_invs);
       suppressions_processed += ss.suppression_set.length;
     }
 
@@ -362,7 +411,10 @@ public class NIS {
    * newly falsified invariant is not itself a possible NI suppressor.
    */
   public static void apply_samples(ValueTuple vt, int count) {
-    newly_falsified.clear();
+    SampleState state = sample_state.get();
+    boolean antecedent_method = antecedent_method();
+    List<Invariant> new_invs = state.new_invs;
+    state.newly_falsified.clear();
 
     if (NIS.debug.isLoggable(Level.FINE)) {
       NIS.debug.fine("Applying samples to " + new_invs.size() + " new invariants");
@@ -391,7 +443,7 @@ public class NIS {
       if (!missing) {
         InvariantStatus result = inv.add_sample(vt, count);
         if (result == InvariantStatus.FALSIFIED) {
-          if (NIS.antecedent_method) {
+          if (antecedent_method) {
             throw new Error(
                 "inv "
                     + inv.format()
@@ -401,7 +453,7 @@ public class NIS {
                     + inv.ppt);
           } else {
             inv.falsify();
-            newly_falsified.add(inv);
+            state.newly_falsified.add(inv);
           }
         }
       }
@@ -413,7 +465,7 @@ public class NIS {
       inv.ppt.addInvariant(inv);
       if (Debug.logOn()) inv.log("%s added to slice", inv.format());
 
-      if (NIS.antecedent_method) created_invs_cnt++;
+      if (antecedent_method) created_invs_cnt++;
     }
 
     // Make a second pass through the new invariants and make sure that
@@ -433,6 +485,7 @@ public class NIS {
     }
 
     new_invs.clear();
+    state.first_pass_with_sample = false;
   }
 
   /** Clears the current NIS statistics and enables the keeping of statistics. */
@@ -517,6 +570,9 @@ public class NIS {
   })
   public static void process_falsified_invs(PptTopLevel ppt, ValueTuple vt) {
 
+    SampleState state = sample_state.get();
+    state.first_pass_with_sample = true;
+
     // if using the hybrid method, need to know the number of falsified suppressor
     // invariants before deciding which method to use
     if (NIS.hybrid_method) {
@@ -556,13 +612,13 @@ public class NIS {
       }
 
       if (count > NIS.dkconfig_hybrid_threshhold) {
-        antecedent_method = true;
+        state.antecedent_method = true;
       } else {
-        antecedent_method = false;
+        state.antecedent_method = false;
       }
     }
 
-    if (!dkconfig_enabled || !antecedent_method) {
+    if (!dkconfig_enabled || !antecedent_method()) {
       return;
     }
 
@@ -710,7 +766,7 @@ public class NIS {
             throw new Error("inv " + inv.format() + " already exists in ppt " + ppt.name);
           }
         }
-        new_invs.add(inv);
+        state.new_invs.add(inv);
       }
     }
   }
@@ -87,8 +87,7 @@ public class NISuppression {
 
   /**
    * Checks this suppression. Each suppressor is checked to see if it matches inv and if not,
-   * whether or not it is valid (true). The results are saved in each suppressor. The suppressor
-   * results are used later by {@link #invalidated()}.
+   * whether or not it is valid (true). The results are saved in each suppressor for debugging.
    *
    * @param ppt program point in which to check suppression
    * @param vis variables over which to check suppression
@@ -99,12 +98,40 @@ public class NISuppression {
    *     otherwise
    */
   public NIS.SuppressState check(PptTopLevel ppt, VarInfo[] vis, @Nullable Invariant inv) {
+    return check(ppt, vis, inv, null);
+  }
+
+  /**
+   * Checks this suppression. Each suppressor is checked to see if it matches inv and if not,
+   * whether or not it is valid (true). The results are saved in each suppressor for debugging and,
+   * if {@code states} is non-null, in {@code states}. The results in {@code states} are used later
+   * by {@link #invalidated(NIS.SuppressState[])}. The suppressors are shared by all program points,
+   * so callers that need the results must use {@code states} rather than the suppressors.
+   *
+   * @param ppt program point in which to check suppression
+   * @param vis variables over which to check suppression
+   * @param inv falsified invariant (if any). Any suppressor that matches inv will be marked as
+   *     NIS.SuppressState.MATCH
+   * @param states if non-null, set to the state of each suppressor; its length must be the number
+   *     of suppressors
+   * @return NIS.SuppressState.VALID if the suppression is valid, NIS.SuppressState.NONSENSICAL if
+   *     one or more suppressors were nonsensical and the rest were valid, NIS.SuppressState.INVALID
+   *     otherwise
+   */
+  public NIS.SuppressState check(
+      PptTopLevel ppt,
+      VarInfo[] vis,
+      @Nullable Invariant inv,
+      NIS.SuppressState @Nullable [] states) {
 
     NIS.SuppressState status = NIS.SuppressState.VALID;
     boolean set = false;
     for (int i = 0; i < suppressors.length; i++) {
       NISuppressor ssor = suppressors[i];
       NIS.SuppressState st = ssor.check(ppt, vis, inv);
+      if (states != null) {
+        states[i] = st;
+      }
 
       if (!set) {
         if (st == NIS.SuppressState.NONSENSICAL) {
@@ -128,11 +155,13 @@ public class NISuppression {
 
   /**
    * Determines whether or not the falsified invariant previously passed to {@link
-   * #check(PptTopLevel,VarInfo[],Invariant)} was the first suppressor to be falsified in this
-   * suppression. If the falsified invariant is not involved in this suppression, then it can't have
-   * been invalidated.
+   * #check(PptTopLevel,VarInfo[],Invariant,NIS.SuppressState[])} was the first suppressor to be
+   * falsified in this suppression. If the falsified invariant is not involved in this suppression,
+   * then it can't have been invalidated.
+   *
+   * @param states the suppressor states set by the call to check
    */
-  public boolean invalidated() {
+  public boolean invalidated(NIS.SuppressState[] states) {
 
     // We return true when every suppressor except the falsified
     // one is valid and at least one suppressor matches the falsified
@@ -142,11 +171,11 @@ public class NISuppression {
     // have never looked at a slice with nonsensical variables.
     boolean inv_match = false;
     for (int i = 0; i < suppressors.length; i++) {
-      NISuppressor ssor = suppressors[i];
-      assert ssor.state != NIS.SuppressState.NONSENSICAL;
-      if (ssor.state == NIS.SuppressState.MATCH) {
+      NIS.SuppressState state = states[i];
+      assert state != NIS.SuppressState.NONSENSICAL;
+      if (state == NIS.SuppressState.MATCH) {
         inv_match = true;
-      } else if (ssor.state != NIS.SuppressState.VALID) {
+      } else if (state != NIS.SuppressState.VALID) {
         return false;
       }
     }
@@ -314,9 +314,11 @@ public class NISuppressionSet implements Iterable<NISuppression> {
     // If any particular suppression is still valid, just return as there
     // is nothing to be done (the suppressee is still suppressed)
 
+    NIS.SuppressState[][] states = new NIS.SuppressState[suppression_set.length][];
     for (int i = 0; i < suppression_set.length; i++) {
 
-      NIS.SuppressState status = suppression_set[i].check(ppt, vis, inv);
+      states[i] = new NIS.SuppressState[suppression_set[i].suppressors.length];
+      NIS.SuppressState status = suppression_set[i].check(ppt, vis, inv, states[i]);
       if (status == NIS.SuppressState.VALID) {
         if (NIS.debug.isLoggable(Level.FINE)) {
           NIS.debug.fine("suppression " + suppression_set[i] + " is valid");
@@ -333,7 +335,7 @@ public class NISuppressionSet implements Iterable<NISuppression> {
     // falsification removed the last valid suppression.  In that case we
     // need to instantiate the suppressee.
     for (int i = 0; i < suppression_set.length; i++) {
-      if (suppression_set[i].invalidated()) {
+      if (suppression_set[i].invalidated(states[i])) {
 
         Invariant v = suppression_set[i].suppressee.instantiate(vis, ppt);
         if (v != null) new_invs.add(v);
@@ -248,7 +248,7 @@ public class NISuppressor {
       // Check to see if inv matches this suppressor.  The invariant class
       // and variables must match for this to be true.  This check is only
       // needed for the falsified method.
-      if (!NIS.antecedent_method) {
+      if (!NIS.antecedent_method()) {
         if ((inv != null) && (inv.getClass() == inv_class) && (v1 == inv.ppt.var_infos[0])) {
           return (state = NIS.SuppressState.MATCH);
         }
@@ -321,7 +321,7 @@ public class NISuppressor {
       // Check to see if inv matches this suppressor.  The invariant class,
       // variables, and swap must match for this to be true.  This check is
       // only needed in the falsified method.
-      if (!NIS.antecedent_method) {
+      if (!NIS.antecedent_method()) {
         if ((inv != null)
             && match(inv)
             && (v1 == inv.ppt.var_infos[0])
@@ -402,7 +402,7 @@ public class NISuppressor {
    * @see #match(Invariant)
    */
   public boolean match_true(Invariant inv) {
-    if (NIS.antecedent_method) {
+    if (NIS.antecedent_method()) {
       return (match(inv) && !inv.is_false());
     } else {
       return (match(inv));
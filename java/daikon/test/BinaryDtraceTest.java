@@ -0,0 +1,250 @@
+package daikon.test;
+
+import daikon.BinaryDtrace;
+import daikon.DtraceToBinary;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.*;
+
+/**
+ * Tests the binary trace format of BinaryDtrace, by converting textual traces with DtraceToBinary
+ * and checking that Daikon infers the same invariants from both.
+ */
+public class BinaryDtraceTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(BinaryDtraceTest.class));
+  }
+
+  public BinaryDtraceTest(String name) {
+    super(name);
+  }
+
+  private File text_file;
+  private File binary_file;
+
+  @Override
+  protected void setUp() throws IOException {
+    text_file = File.createTempFile("BinaryDtraceTest", ".dtrace");
+    binary_file = File.createTempFile("BinaryDtraceTest", ".dtrace.gz");
+  }
+
+  @Override
+  protected void tearDown() {
+    text_file.delete();
+    binary_file.delete();
+  }
+
+  /** The variables of Values.f, in the old declaration format. */
+  private static final String[] F_VARS = {
+    "i", "long # isParam=true", "int",
+    "d", "double # isParam=true", "double",
+    "s", "java.lang.String # isParam=true", "java.lang.String",
+    "a", "long[] # isParam=true", "hashcode",
+    "a[]", "long[]", "int[]",
+    "b[]", "double[]", "double[]",
+  };
+
+  private static final String F = "Values.f(long, double, java.lang.String, long[], double[])";
+
+  /** Values of i, including some that are not stored as numbers. */
+  private static final String[] LONGS = {
+    "0", "-1", "17", "-9223372036854775808", "9223372036854775807", "123456789012",
+  };
+
+  /** Values of d, including some whose text is not what Java would print. */
+  private static final String[] DOUBLES = {
+    "0.0", "-0.0", "1.5", "NaN", "Infinity", "-Infinity", "1.0E-300", "0.1", "2.50", "1e3",
+  };
+
+  /** Values of s. */
+  private static final String[] STRINGS = {
+    "\"x\"", "\"\"", "\"two words\"", "null", "\"x\"", "\"\\\"quoted\\\"\"",
+  };
+
+  /** Values of a[]. */
+  private static final String[] LONG_ARRAYS = {
+    "[]", "[1 -2 3]", "null", "[9223372036854775807 -9223372036854775808]", "[1 -2 3]", "[0]",
+  };
+
+  /** Values of b[]. */
+  private static final String[] DOUBLE_ARRAYS = {
+    "[]", "[1.5 NaN]", "null", "[-0.0 0.1]", "[1.5 NaN]",
+  };
+
+  /**
+   * Writes a trace of calls of Values.f with values of every kind that the binary format
+   * distinguishes, including values that are stored as text and nonsensical values.
+   */
+  private static void write_values_trace(File file) throws IOException {
+    try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+      out.println("VarComparability");
+      out.println("none");
+      out.println();
+      write_decl(out, F + ":::ENTER", false);
+      write_decl(out, F + ":::EXIT4", true);
+      for (int n = 0; n < 300; n++) {
+        String[] values = {
+          LONGS[n % LONGS.length],
+          DOUBLES[n % DOUBLES.length],
+          STRINGS[n % STRINGS.length],
+          Integer.toString(100 + n % 3),
+          LONG_ARRAYS[n % LONG_ARRAYS.length],
+          DOUBLE_ARRAYS[n % DOUBLE_ARRAYS.length],
+        };
+        // A null array has nonsensical elements.
+        int[] mods = {1, 1, 1, 1, 1, 1};
+        if (values[4].equals("null")) {
+          values[4] = "nonsensical";
+          mods[4] = 2;
+        }
+        if (values[5].equals("null")) {
+          values[5] = "nonsensical";
+          mods[5] = 2;
+        }
+        write_sample(out, F + ":::ENTER", n, values, mods, null);
+        write_sample(out, F + ":::EXIT4", n, values, mods, Integer.toString(n % 5 - 2));
+        if (n % 50 == 0) {
+          out.println("# a comment between samples");
+          out.println();
+        }
+      }
+    }
+  }
+
+  /** Writes the declaration of a program point of Values.f. */
+  private static void write_decl(PrintWriter out, String ppt_name, boolean exit) {
+    out.println("DECLARE");
+    out.println(ppt_name);
+    for (int i = 0; i < F_VARS.length; i += 3) {
+      out.println(F_VARS[i]);
+      out.println(F_VARS[i + 1]);
+      out.println(F_VARS[i + 2]);
+      out.println("22");
+    }
+    if (exit) {
+      out.println("return");
+      out.println("int");
+      out.println("int");
+      out.println("22");
+    }
+    out.println();
+  }
+
+  /** Writes a sample of a program point of Values.f; return_value is null for the entry. */
+  private static void write_sample(
+      PrintWriter out,
+      String ppt_name,
+      int nonce,
+      String[] values,
+      int[] mods,
+      String return_value) {
+    out.println(ppt_name);
+    out.println("this_invocation_nonce");
+    out.println(nonce);
+    for (int i = 0; i < values.length; i++) {
+      out.println(F_VARS[3 * i]);
+      out.println(values[i]);
+      out.println(mods[i]);
+    }
+    if (return_value != null) {
+      out.println("return");
+      out.println(return_value);
+      out.println("1");
+    }
+    out.println();
+  }
+
+  /**
+   * Converts the textual trace text_path to binary_file, and checks that Daikon infers the same
+   * invariants from both.
+   */
+  private void assertSameInvariants(String text_path) throws IOException {
+    DtraceToBinary.main(new String[] {text_path, binary_file.getPath()});
+    assertTrue(BinaryDtrace.isBinaryFile(binary_file.getPath()));
+    assertFalse(BinaryDtrace.isBinaryFile(text_path));
+    List<String> expected = Common.describeInvariants(Common.runDaikon(text_path));
+    List<String> actual = Common.describeInvariants(Common.runDaikon(binary_file.getPath()));
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Checks that passing numbers, booleans, and arrays of integers to a BinaryDtrace.Writer as they
+   * are produces the same file as passing their text.
+   */
+  public void testTypedValues() throws IOException {
+    long[] longs = {0, -1, 17, Long.MIN_VALUE, Long.MAX_VALUE};
+    double[] doubles = {
+      0.0, -0.0, 0.1, 1.0E-300, Double.NaN, Double.longBitsToDouble(0x7ff0000000000001L),
+      Double.POSITIVE_INFINITY,
+    };
+    float[] floats = {0.0f, -0.0f, 0.1f, 1.0E10f, Float.MIN_VALUE, Float.NaN};
+    long[][] arrays = {{}, {1, -2, 3}, {Long.MAX_VALUE, Long.MIN_VALUE}};
+
+    ByteArrayOutputStream text_bytes = new ByteArrayOutputStream();
+    try (BinaryDtrace.Writer writer = new BinaryDtrace.Writer(text_bytes)) {
+      for (int n = 0; n < 3; n++) {
+        writer.start_sample(F, n);
+        for (long l : longs) {
+          writer.add_variable("l", Long.toString(l), 1);
+        }
+        for (double d : doubles) {
+          writer.add_variable("d", Double.toString(d), 1);
+        }
+        for (float f : floats) {
+          writer.add_variable("f", Float.toString(f), 1);
+        }
+        writer.add_variable("b", Boolean.toString(n % 2 == 0), 1);
+        for (long[] a : arrays) {
+          StringBuilder sb = new StringBuilder("[");
+          for (int i = 0; i < a.length; i++) {
+            sb.append(i == 0 ? "" : " ").append(a[i]);
+          }
+          writer.add_variable("a", sb.append("]").toString(), 1);
+        }
+        writer.end_sample();
+      }
+    }
+
+    ByteArrayOutputStream typed_bytes = new ByteArrayOutputStream();
+    try (BinaryDtrace.Writer writer = new BinaryDtrace.Writer(typed_bytes)) {
+      for (int n = 0; n < 3; n++) {
+        writer.start_sample(F, n);
+        for (long l : longs) {
+          writer.add_variable("l", l, 1);
+        }
+        for (double d : doubles) {
+          writer.add_variable("d", d, 1);
+        }
+        for (float f : floats) {
+          writer.add_variable("f", f, 1);
+        }
+        writer.add_variable("b", n % 2 == 0, 1);
+        for (long[] a : arrays) {
+          writer.add_variable("a", a, 1);
+        }
+        writer.end_sample();
+      }
+    }
+
+    assertTrue(Arrays.equals(text_bytes.toByteArray(), typed_bytes.toByteArray()));
+  }
+
+  public void testValues() throws IOException {
+    write_values_trace(text_file);
+    assertSameInvariants(text_file.getPath());
+  }
+
+  public void testHanoi() throws IOException {
+    assertSameInvariants(Common.dtracePath("Hanoi.dtrace.gz"));
+  }
+
+  public void testAllTypes() throws IOException {
+    assertSameInvariants(Common.dtracePath("AllTypes.dtrace.gz"));
+  }
+}
@@ -0,0 +1,104 @@
+package daikon.test;
+
+import daikon.BinaryInv;
+import daikon.FileIO;
+import daikon.PptMap;
+import daikon.PptTopLevel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.*;
+
+/**
+ * Tests the indexed .inv format of BinaryInv, by writing the invariants that Daikon infers from two
+ * small traces and reading them back.
+ */
+public class BinaryInvTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(BinaryInvTest.class));
+  }
+
+  public BinaryInvTest(String name) {
+    super(name);
+  }
+
+  private boolean saved_binary_inv;
+
+  private File inv_file;
+
+  @Override
+  protected void setUp() throws IOException {
+    saved_binary_inv = FileIO.dkconfig_binary_inv;
+    FileIO.dkconfig_binary_inv = true;
+    inv_file = File.createTempFile("BinaryInvTest", ".inv");
+  }
+
+  @Override
+  protected void tearDown() {
+    FileIO.dkconfig_binary_inv = saved_binary_inv;
+    inv_file.delete();
+  }
+
+  /** Runs Daikon on the traces of two unrelated classes and writes the result to inv_file. */
+  private PptMap infer() {
+    return Common.runDaikon(
+        "-o",
+        inv_file.getPath(),
+        Common.dtracePath("Hanoi.dtrace.gz"),
+        Common.dtracePath("AllTypes.dtrace.gz"));
+  }
+
+  public void testRoundTrip() throws IOException {
+    PptMap all_ppts = infer();
+    assertTrue(BinaryInv.isBinaryFile(inv_file));
+
+    List<String> expected = Common.describeInvariants(all_ppts);
+    PptMap deserialized = FileIO.read_serialized_pptmap(inv_file, false);
+    assertEquals(expected, Common.describeInvariants(deserialized));
+    try (BinaryInv.Reader reader = new BinaryInv.Reader(inv_file)) {
+      List<String> names = new ArrayList<>();
+      for (PptTopLevel ppt : all_ppts.pptIterable()) {
+        names.add(ppt.name());
+      }
+      List<String> stored = new ArrayList<>(reader.ppt_names());
+      Collections.sort(stored);
+      Collections.sort(names);
+      assertEquals(names, stored);
+      assertEquals(expected, Common.describeInvariants(reader.read_all()));
+    }
+  }
+
+  public void testGetReadsOneSection() throws IOException {
+    PptMap all_ppts = infer();
+    String hanoi_name = "six170.Hanoi.moveDisk(int, int):::ENTER";
+    String alltypes_name = "AllTypes.main(java.lang.String[]):::ENTER";
+    try (BinaryInv.Reader reader = new BinaryInv.Reader(inv_file)) {
+      assertFalse(reader.is_loaded(hanoi_name));
+      PptTopLevel ppt = reader.get(hanoi_name);
+      assertNotNull(ppt);
+      assertEquals(hanoi_name, ppt.name());
+      assertEquals(all_ppts.get(hanoi_name).num_samples(), ppt.num_samples());
+      assertEquals(
+          all_ppts.get(hanoi_name).getInvariants().size(), ppt.getInvariants().size());
+      // The other program points of Hanoi are in the same section; those of AllTypes are not.
+      assertTrue(reader.is_loaded("six170.Hanoi.moveTower(int, int, int):::ENTER"));
+      assertFalse(reader.is_loaded(alltypes_name));
+      assertNull(reader.get("NoSuchClass.f():::ENTER"));
+      assertSame(ppt, reader.get(hanoi_name));
+    }
+  }
+
+  public void testSerializedFormatIsDefault() throws IOException {
+    FileIO.dkconfig_binary_inv = saved_binary_inv;
+    assertFalse(FileIO.dkconfig_binary_inv);
+    PptMap all_ppts = infer();
+    assertFalse(BinaryInv.isBinaryFile(inv_file));
+    assertEquals(
+        Common.describeInvariants(all_ppts),
+        Common.describeInvariants(FileIO.read_serialized_pptmap(inv_file, false)));
+  }
+}
@@ -0,0 +1,154 @@
+package daikon.test;
+
+import daikon.FileIO;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import junit.framework.*;
+
+/**
+ * Tests that the state that Daikon saves, in a checkpoint or in a .inv file, can be read back. The
+ * trace has a string sequence that is a dynamic constant, and a procedure entry that is not matched
+ * with its exit until the next trace file, so both are saved.
+ */
+public class CheckpointTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(CheckpointTest.class));
+  }
+
+  public CheckpointTest(String name) {
+    super(name);
+  }
+
+  private File first_dtrace;
+  private File second_dtrace;
+  private File checkpoint_file;
+  private File inv_file;
+
+  @Override
+  protected void setUp() throws IOException {
+    first_dtrace = File.createTempFile("CheckpointTest", ".dtrace");
+    second_dtrace = File.createTempFile("CheckpointTest", ".dtrace");
+    checkpoint_file = File.createTempFile("CheckpointTest", ".ckpt.gz");
+    inv_file = File.createTempFile("CheckpointTest", ".inv.gz");
+    try (PrintWriter out = new PrintWriter(first_dtrace, "UTF-8")) {
+      out.println("VarComparability");
+      out.println("none");
+      out.println();
+      write_decl(out, RUN + ":::ENTER", false);
+      write_decl(out, RUN + ":::EXIT4", true);
+      for (int nonce = 0; nonce < 50; nonce++) {
+        write_sample(out, RUN + ":::ENTER", nonce, ARGS, null);
+        write_sample(out, RUN + ":::EXIT4", nonce, ARGS, Integer.toString(nonce % 3));
+      }
+      // The exit is in the second trace file. The args differ from those of the constant, so that
+      // the saved entry has an array of its own.
+      write_sample(out, RUN + ":::ENTER", 50, OTHER_ARGS, null);
+    }
+    try (PrintWriter out = new PrintWriter(second_dtrace, "UTF-8")) {
+      write_sample(out, RUN + ":::EXIT4", 50, OTHER_ARGS, "2");
+      for (int nonce = 51; nonce < 100; nonce++) {
+        write_sample(out, RUN + ":::ENTER", nonce, ARGS, null);
+        write_sample(out, RUN + ":::EXIT4", nonce, ARGS, Integer.toString(nonce % 3));
+      }
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    first_dtrace.delete();
+    second_dtrace.delete();
+    checkpoint_file.delete();
+    inv_file.delete();
+  }
+
+  private static final String RUN = "Main.run(java.lang.String[], int)";
+
+  /** The args of most calls of Main.run. */
+  private static final String ARGS = "[\"-v\" \"in.txt\"]";
+
+  /** The args of the call that is not finished when the first trace file ends. */
+  private static final String OTHER_ARGS = "[\"-q\"]";
+
+  /** Writes the declaration of a program point of Main.run. */
+  private static void write_decl(PrintWriter out, String ppt_name, boolean exit) {
+    out.println("DECLARE");
+    out.println(ppt_name);
+    out.println("args");
+    out.println("java.lang.String[] # isParam=true");
+    out.println("hashcode");
+    out.println("22");
+    out.println("args[]");
+    out.println("java.lang.String[]");
+    out.println("java.lang.String[]");
+    out.println("22");
+    out.println("n");
+    out.println("int # isParam=true");
+    out.println("int");
+    out.println("22");
+    if (exit) {
+      out.println("return");
+      out.println("int");
+      out.println("int");
+      out.println("22");
+    }
+    out.println();
+  }
+
+  /** Writes a sample of a program point of Main.run; return_value is null for the entry. */
+  private static void write_sample(
+      PrintWriter out, String ppt_name, int nonce, String args, String return_value) {
+    out.println(ppt_name);
+    out.println("this_invocation_nonce");
+    out.println(nonce);
+    out.println("args");
+    out.println("1000");
+    out.println("1");
+    out.println("args[]");
+    out.println(args);
+    out.println("1");
+    out.println("n");
+    out.println(nonce % 7);
+    out.println("1");
+    if (return_value != null) {
+      out.println("return");
+      out.println(return_value);
+      out.println("1");
+    }
+    out.println();
+  }
+
+  public void testResume() {
+    List<String> expected =
+        Common.describeInvariants(
+            Common.runDaikon(
+                "-o", inv_file.getPath(), first_dtrace.getPath(), second_dtrace.getPath()));
+    Common.runDaikon(
+        "--checkpoint",
+        checkpoint_file.getPath(),
+        "-o",
+        inv_file.getPath(),
+        first_dtrace.getPath());
+    List<String> resumed =
+        Common.describeInvariants(
+            Common.runDaikon(
+                "--resume",
+                checkpoint_file.getPath(),
+                "-o",
+                inv_file.getPath(),
+                second_dtrace.getPath()));
+    assertEquals(expected, resumed);
+  }
+
+  public void testInvFile() throws IOException {
+    List<String> expected =
+        Common.describeInvariants(
+            Common.runDaikon(
+                "-o", inv_file.getPath(), first_dtrace.getPath(), second_dtrace.getPath()));
+    assertEquals(
+        expected, Common.describeInvariants(FileIO.read_serialized_pptmap(inv_file, false)));
+  }
+}
@@ -0,0 +1,155 @@
+package daikon.test;
+
+import daikon.Daikon;
+import daikon.FileIO;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import junit.framework.*;
+
+/**
+ * Tests that Daikon infers the same invariants, with the same confidence, whether or not {@link
+ * FileIO#dkconfig_coalesce_samples} combines runs of identical samples.
+ */
+public class CoalesceSamplesTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(CoalesceSamplesTest.class));
+  }
+
+  public CoalesceSamplesTest(String name) {
+    super(name);
+  }
+
+  private boolean saved_coalesce;
+  private boolean saved_lazy;
+
+  private File dtrace_file;
+
+  @Override
+  protected void setUp() throws IOException {
+    saved_coalesce = FileIO.dkconfig_coalesce_samples;
+    saved_lazy = FileIO.dkconfig_lazy_derived_variables;
+    dtrace_file = File.createTempFile("CoalesceSamplesTest", ".dtrace");
+    write_loop_trace(dtrace_file);
+  }
+
+  @Override
+  protected void tearDown() {
+    FileIO.dkconfig_coalesce_samples = saved_coalesce;
+    FileIO.dkconfig_lazy_derived_variables = saved_lazy;
+    dtrace_file.delete();
+  }
+
+  /** The variables of Loop.step, in the old declaration format. */
+  private static final String[] STEP_VARS = {
+    "i", "int # isParam=true", "int",
+    "d", "double # isParam=true", "double",
+    "s", "java.lang.String # isParam=true", "java.lang.String",
+    "a", "int[] # isParam=true", "hashcode",
+    "a[]", "int[]", "int[]",
+  };
+
+  private static final String STEP = "Loop.step(int, double, java.lang.String, int[])";
+
+  /**
+   * Writes the trace of a loop that calls Loop.step with the same arguments many times in a row,
+   * so that most of its samples are identical to the previous one.
+   */
+  static void write_loop_trace(File file) throws IOException {
+    try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+      out.println("VarComparability");
+      out.println("none");
+      out.println();
+      write_decl(out, STEP + ":::ENTER", false);
+      write_decl(out, STEP + ":::EXIT3", true);
+      int nonce = 0;
+      for (int block = 0; block < 40; block++) {
+        int repeat = 1 + (block % 5) * 7;
+        for (int r = 0; r < repeat; r++) {
+          int i = block % 7;
+          String[] values = {
+            Integer.toString(i),
+            Double.toString(block * 0.5),
+            (block % 3 == 0) ? "\"x\"" : "\"y\"",
+            Integer.toString(1000 + block % 2),
+            "[" + (block % 2) + " " + (block % 4) + "]",
+          };
+          write_sample(out, STEP + ":::ENTER", nonce, values, null);
+          write_sample(out, STEP + ":::EXIT3", nonce, values, Integer.toString(2 * i + 1));
+          nonce++;
+        }
+      }
+    }
+  }
+
+  /** Writes the declaration of a program point of Loop.step. */
+  private static void write_decl(PrintWriter out, String ppt_name, boolean exit) {
+    out.println("DECLARE");
+    out.println(ppt_name);
+    for (int i = 0; i < STEP_VARS.length; i += 3) {
+      out.println(STEP_VARS[i]);
+      out.println(STEP_VARS[i + 1]);
+      out.println(STEP_VARS[i + 2]);
+      out.println("22");
+    }
+    if (exit) {
+      out.println("return");
+      out.println("int");
+      out.println("int");
+      out.println("22");
+    }
+    out.println();
+  }
+
+  /** Writes a sample of a program point of Loop.step; return_value is null for the entry. */
+  private static void write_sample(
+      PrintWriter out, String ppt_name, int nonce, String[] values, String return_value) {
+    out.println(ppt_name);
+    out.println("this_invocation_nonce");
+    out.println(nonce);
+    for (int i = 0; i < values.length; i++) {
+      out.println(STEP_VARS[3 * i]);
+      out.println(values[i]);
+      out.println("1");
+    }
+    if (return_value != null) {
+      out.println("return");
+      out.println(return_value);
+      out.println("1");
+    }
+    out.println();
+  }
+
+  /**
+   * Runs Daikon on the given arguments with and without coalescing, and checks that the invariants
+   * are the same.
+   */
+  private void assertSameInvariants(String... args) {
+    FileIO.dkconfig_coalesce_samples = false;
+    List<String> expected = Common.describeInvariants(Common.runDaikon(args));
+    FileIO.dkconfig_coalesce_samples = true;
+    List<String> coalesced = Common.describeInvariants(Common.runDaikon(args));
+    assertEquals(expected, coalesced);
+  }
+
+  public void testRepeatedSamples() {
+    assertSameInvariants(dtrace_file.getPath());
+  }
+
+  public void testRepeatedSamplesNoHierarchy() {
+    assertSameInvariants("--" + Daikon.no_dataflow_hierarchy_SWITCH, dtrace_file.getPath());
+  }
+
+  public void testRepeatedSamplesLazyDerivation() {
+    FileIO.dkconfig_lazy_derived_variables = true;
+    assertSameInvariants(dtrace_file.getPath());
+  }
+
+  public void testTraces() {
+    assertSameInvariants(
+        Common.dtracePath("Hanoi.dtrace.gz"), Common.dtracePath("AllTypes.dtrace.gz"));
+  }
+}
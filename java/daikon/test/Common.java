@@ -1,7 +1,13 @@
 package daikon.test;
 
 import daikon.*;
+import daikon.inv.Invariant;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /** A collection of useful helper methods that are common to many different individual tests. */
@@ -69,4 +75,67 @@ public class Common {
     PptTopLevel ppt = new PptTopLevel(pptname, vars);
     return ppt;
   }
+
+  /**
+   * Returns the path of one of the traces in daikon/test/dtracediff, such as "Hanoi.dtrace.gz".
+   */
+  public static String dtracePath(String file) {
+    String resource = "daikon/test/dtracediff/" + file;
+    URL location = ClassLoader.getSystemResource(resource);
+    if (location == null) {
+      throw new Error("Cannot find " + resource);
+    }
+    return location.getPath();
+  }
+
+  /**
+   * Runs Daikon on the given command-line arguments, without printing the invariants, and returns
+   * the program points that it inferred. Unless the arguments include -o, the .inv file is written
+   * to a temporary file, which is deleted.
+   */
+  public static PptMap runDaikon(String... args) {
+    boolean saved_quiet = Daikon.dkconfig_quiet;
+    Daikon.dkconfig_quiet = true;
+    File inv_file = null;
+    try {
+      List<String> all_args = new ArrayList<>();
+      all_args.add("--" + Daikon.no_text_output_SWITCH);
+      if (!Arrays.asList(args).contains("-o")) {
+        try {
+          inv_file = File.createTempFile("Common", ".inv.gz");
+        } catch (IOException e) {
+          throw new Error(e);
+        }
+        all_args.add("-o");
+        all_args.add(inv_file.getPath());
+      }
+      Collections.addAll(all_args, args);
+      Daikon.mainHelper(all_args.toArray(new String[0]));
+      return Daikon.all_ppts;
+    } finally {
+      Daikon.dkconfig_quiet = saved_quiet;
+      if (inv_file != null) {
+        inv_file.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns a description of every program point in all_ppts: its name and number of samples,
+   * followed by each of its invariants with their confidence, in sorted order. Two PptMaps with the
+   * same description have the same invariants.
+   */
+  public static List<String> describeInvariants(PptMap all_ppts) {
+    List<String> result = new ArrayList<>();
+    for (PptTopLevel ppt : all_ppts.ppt_all_iterable()) {
+      result.add(ppt.name() + " " + ppt.num_samples() + " samples");
+      List<String> invs = new ArrayList<>();
+      for (Invariant inv : ppt.getInvariants()) {
+        invs.add("  " + inv.repr_prob());
+      }
+      Collections.sort(invs);
+      result.addAll(invs);
+    }
+    return result;
+  }
 }
@@ -0,0 +1,77 @@
+package daikon.test;
+
+import daikon.Daikon;
+import daikon.FileIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import junit.framework.*;
+
+/**
+ * Tests that Daikon infers the same invariants, with the same confidence, whether samples are
+ * applied by the thread that reads the trace or by {@link FileIO#dkconfig_inference_threads}
+ * workers.
+ */
+public class InferenceWorkersTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(InferenceWorkersTest.class));
+  }
+
+  public InferenceWorkersTest(String name) {
+    super(name);
+  }
+
+  private int saved_threads;
+
+  private File dtrace_file;
+
+  @Override
+  protected void setUp() throws IOException {
+    saved_threads = FileIO.dkconfig_inference_threads;
+    dtrace_file = File.createTempFile("InferenceWorkersTest", ".dtrace");
+    CoalesceSamplesTest.write_loop_trace(dtrace_file);
+  }
+
+  @Override
+  protected void tearDown() {
+    FileIO.dkconfig_inference_threads = saved_threads;
+    dtrace_file.delete();
+  }
+
+  /**
+   * Runs Daikon on the given arguments without and with inference workers, and checks that the
+   * invariants are the same.
+   */
+  private void assertSameInvariants(String... args) {
+    FileIO.dkconfig_inference_threads = 0;
+    List<String> expected = Common.describeInvariants(Common.runDaikon(args));
+    for (int threads = 1; threads <= 3; threads += 2) {
+      FileIO.dkconfig_inference_threads = threads;
+      List<String> actual = Common.describeInvariants(Common.runDaikon(args));
+      assertEquals(threads + " threads", expected, actual);
+    }
+  }
+
+  public void testLoop() {
+    assertSameInvariants(dtrace_file.getPath());
+  }
+
+  // The derived variables of Loop.step go out of bounds while the workers lag behind the reader.
+  public void testLoopNoHierarchy() {
+    assertSameInvariants("--" + Daikon.no_dataflow_hierarchy_SWITCH, dtrace_file.getPath());
+  }
+
+  public void testTraces() {
+    assertSameInvariants(
+        Common.dtracePath("Hanoi.dtrace.gz"), Common.dtracePath("AllTypes.dtrace.gz"));
+  }
+
+  public void testTracesNoHierarchy() {
+    assertSameInvariants(
+        "--" + Daikon.no_dataflow_hierarchy_SWITCH,
+        Common.dtracePath("Hanoi.dtrace.gz"),
+        Common.dtracePath("AllTypes.dtrace.gz"));
+  }
+}
@@ -0,0 +1,161 @@
+package daikon.test;
+
+import daikon.FileIO;
+import daikon.FileIO.Invocation;
+import daikon.InvocationTable;
+import daikon.PptTopLevel;
+import daikon.VarInfo;
+import java.util.List;
+import org.plumelib.util.Intern;
+import junit.framework.*;
+
+/**
+ * Tests InvocationTable, with enough entries that its table grows beyond 2^16 slots, as it does for
+ * a trace with many unmatched entries.
+ */
+public class InvocationTableTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(InvocationTableTest.class));
+  }
+
+  public InvocationTableTest(String name) {
+    super(name);
+  }
+
+  /** More entries than fit in a table of 2^16 slots at its maximum load. */
+  private static final int MANY = 200000;
+
+  private PptTopLevel ppt = new PptTopLevel("A.f():::ENTER", new VarInfo[0]);
+
+  private int saved_max;
+  private boolean saved_spill;
+
+  @Override
+  protected void setUp() {
+    saved_max = FileIO.dkconfig_max_unmatched_entries;
+    saved_spill = FileIO.dkconfig_spill_unmatched_entries;
+  }
+
+  @Override
+  protected void tearDown() {
+    FileIO.dkconfig_max_unmatched_entries = saved_max;
+    FileIO.dkconfig_spill_unmatched_entries = saved_spill;
+  }
+
+  /** Returns an entry whose single value is n. */
+  private Invocation invocation(int n) {
+    return new Invocation(ppt, new Object[] {Integer.valueOf(n)}, new int[] {1});
+  }
+
+  /** Returns the single value of an entry. */
+  private static int value(Invocation invocation) {
+    return ((Integer) invocation.vals[0]).intValue();
+  }
+
+  public void testPutRemove() {
+    FileIO.dkconfig_max_unmatched_entries = 0;
+    InvocationTable table = new InvocationTable();
+    // Nonces in the order of a trace: mostly increasing, with some spread.
+    for (int n = 0; n < MANY; n++) {
+      table.put(n * 3, invocation(n));
+    }
+    assertEquals(MANY, table.size());
+    assertFalse(table.containsKey(1));
+    // Remove every other entry, then check the rest, so that deletions move probed entries.
+    for (int n = 0; n < MANY; n += 2) {
+      Invocation invocation = table.remove(n * 3);
+      assertNotNull(invocation);
+      assertEquals(n, value(invocation));
+    }
+    assertEquals(MANY / 2, table.size());
+    for (int n = 1; n < MANY; n += 2) {
+      assertTrue(table.containsKey(n * 3));
+      assertFalse(table.containsKey((n - 1) * 3));
+    }
+    List<Invocation> sorted = table.sorted_invocations();
+    assertEquals(MANY / 2, sorted.size());
+    assertEquals(1, value(sorted.get(0)));
+    assertEquals(MANY - 1, value(sorted.get(sorted.size() - 1)));
+    for (int n = 1; n < MANY; n += 2) {
+      assertEquals(n, value(table.remove(n * 3)));
+    }
+    assertTrue(table.isEmpty());
+    assertNull(table.remove(3));
+  }
+
+  public void testEviction() {
+    FileIO.dkconfig_max_unmatched_entries = MANY / 2;
+    FileIO.dkconfig_spill_unmatched_entries = false;
+    InvocationTable table = new InvocationTable();
+    for (int n = 0; n < MANY; n++) {
+      table.put(n, invocation(n));
+    }
+    assertEquals(MANY / 2, table.size());
+    assertEquals(MANY / 2, table.discarded);
+    // The oldest entries were discarded; exits for them are ignored.
+    for (int n = 0; n < MANY / 2; n++) {
+      assertNull(table.remove(n));
+      assertTrue(table.missing_entry_discarded(n));
+    }
+    assertEquals(MANY / 2, table.discarded_exits);
+    for (int n = MANY / 2; n < MANY; n++) {
+      assertEquals(n, value(table.remove(n)));
+    }
+    // An exit whose entry never existed is still an error.
+    assertFalse(table.missing_entry_discarded(MANY));
+    assertFalse(table.missing_entry_discarded(-1));
+  }
+
+  public void testForgottenDiscards() {
+    FileIO.dkconfig_max_unmatched_entries = 1;
+    FileIO.dkconfig_spill_unmatched_entries = false;
+    InvocationTable table = new InvocationTable();
+    int n = InvocationTable.MAX_DISCARDED_NONCES + 10;
+    for (int i = 0; i < n; i++) {
+      table.put(2 * i, invocation(i));
+    }
+    assertEquals(n - 1, table.discarded);
+    // Nonces in the range of the discarded ones are ignored, others are not.
+    assertTrue(table.missing_entry_discarded(0));
+    assertTrue(table.missing_entry_discarded(2 * (n - 2)));
+    assertFalse(table.missing_entry_discarded(2 * n));
+    assertFalse(table.missing_entry_discarded(-2));
+  }
+
+  public void testSpill() {
+    FileIO.dkconfig_max_unmatched_entries = 1000;
+    FileIO.dkconfig_spill_unmatched_entries = true;
+    InvocationTable table = new InvocationTable();
+    int n = 70000;
+    for (int i = 0; i < n; i++) {
+      table.put(i, invocation(i));
+    }
+    assertEquals(n, table.size());
+    assertEquals(n - 1000, table.spilled);
+    assertEquals(0, table.discarded);
+    // Read back spilled and in-memory entries, newest first.
+    for (int i = n - 1; i >= 0; i--) {
+      Invocation invocation = table.remove(i);
+      assertNotNull(invocation);
+      assertEquals(i, value(invocation));
+    }
+    assertTrue(table.isEmpty());
+    assertFalse(table.missing_entry_discarded(5));
+  }
+
+  public void testSpillStringSequence() {
+    FileIO.dkconfig_max_unmatched_entries = 1;
+    FileIO.dkconfig_spill_unmatched_entries = true;
+    InvocationTable table = new InvocationTable();
+    for (int i = 0; i < 2; i++) {
+      String[] value = Intern.internStrings(new String[] {"a", "b" + i});
+      table.put(i, new Invocation(ppt, new Object[] {Intern.intern(value)}, new int[] {1}));
+    }
+    assertEquals(1, table.spilled);
+    Invocation invocation = table.remove(0);
+    assertNotNull(invocation);
+    assertSame(Intern.intern(new String[] {"a", "b0"}), invocation.vals[0]);
+  }
+}
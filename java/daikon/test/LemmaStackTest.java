@@ -0,0 +1,124 @@
+package daikon.test;
+
+import daikon.simplify.Lemma;
+import daikon.simplify.LemmaStack;
+import daikon.simplify.ProofCache;
+import daikon.simplify.SessionManager;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.*;
+
+/**
+ * Tests LemmaStack and ProofCache, with daikon.simplify.StubProver standing in for Simplify so that
+ * Simplify need not be installed.
+ */
+public class LemmaStackTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(LemmaStackTest.class));
+  }
+
+  public LemmaStackTest(String name) {
+    super(name);
+  }
+
+  private String saved_path;
+
+  @Override
+  protected void setUp() {
+    saved_path = System.getProperty("simplify.path");
+    String java =
+        System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    System.setProperty(
+        "simplify.path",
+        java + " -cp " + System.getProperty("java.class.path") + " daikon.simplify.StubProver");
+    // Each test starts several provers; none of them fails.
+    SessionManager.prover_instantiate_count = 0;
+  }
+
+  @Override
+  protected void tearDown() {
+    if (saved_path == null) {
+      System.clearProperty("simplify.path");
+    } else {
+      System.setProperty("simplify.path", saved_path);
+    }
+  }
+
+  private static Lemma lemma(String formula) {
+    return new Lemma(formula, formula);
+  }
+
+  public void testCheck() {
+    LemmaStack stack = new LemmaStack();
+    try {
+      stack.pushLemma(lemma("(AND (EQ x y) (EQ y z))"));
+      assertEquals('T', stack.checkLemma(lemma("(EQ y z)")));
+      assertEquals('F', stack.checkLemma(lemma("(EQ x z)")));
+      assertEquals('F', stack.checkForContradiction());
+      int mark = stack.markLevel();
+      stack.pushLemma(lemma("(NOT (EQ x y))"));
+      assertEquals('T', stack.checkForContradiction());
+      stack.popToMark(mark);
+      assertEquals('F', stack.checkForContradiction());
+    } finally {
+      stack.closeSession();
+    }
+  }
+
+  public void testCache() {
+    // The assumptions are the same as in the first session, but pushed in a different order.
+    String[] formulas = {"(EQ a b)", "(EQ c d)", "(NEQ a c)"};
+    LemmaStack first = new LemmaStack();
+    try {
+      for (String formula : formulas) {
+        first.pushLemma(lemma(formula));
+      }
+      assertEquals('T', first.checkLemma(lemma("(EQ c d)")));
+    } finally {
+      first.closeSession();
+    }
+    long hits = ProofCache.hits();
+    LemmaStack second = new LemmaStack();
+    try {
+      for (int i = formulas.length - 1; i >= 0; i--) {
+        second.pushLemma(lemma(formulas[i]));
+      }
+      assertEquals('T', second.checkLemma(lemma("(EQ c d)")));
+      assertEquals(hits + 1, ProofCache.hits());
+    } finally {
+      second.closeSession();
+    }
+  }
+
+  public void testConcurrentSessions() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Character>> results = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        String var = "v" + i;
+        results.add(
+            pool.submit(
+                () -> {
+                  LemmaStack stack = new LemmaStack();
+                  try {
+                    stack.pushLemma(lemma("(EQ " + var + " 1)"));
+                    return stack.checkLemma(lemma("(EQ " + var + " 1)"));
+                  } finally {
+                    stack.closeSession();
+                  }
+                }));
+      }
+      for (Future<Character> result : results) {
+        assertEquals('T', result.get().charValue());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
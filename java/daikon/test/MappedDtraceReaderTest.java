@@ -0,0 +1,172 @@
+package daikon.test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import daikon.Daikon;
+import daikon.FileIO;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import junit.framework.*;
+
+/**
+ * Tests the reading of trace files by several threads, when {@link FileIO#dkconfig_parse_threads}
+ * is positive. The chunks are made so small that the nominal end of a chunk falls at every position
+ * within a record, and Daikon must infer the same invariants as when reading the file sequentially.
+ */
+public class MappedDtraceReaderTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(MappedDtraceReaderTest.class));
+  }
+
+  public MappedDtraceReaderTest(String name) {
+    super(name);
+  }
+
+  /** Chunk sizes to try: every record in its own chunk, chunks of a few records, one chunk. */
+  private static final int[] CHUNK_SIZES = {1, 2, 3, 5, 64, 97, 1000, 4099, 1 << 20};
+
+  private int saved_threads;
+  private int saved_chunk_size;
+
+  private File trace_file;
+
+  @Override
+  protected void setUp() throws IOException {
+    saved_threads = FileIO.dkconfig_parse_threads;
+    saved_chunk_size = FileIO.dkconfig_parse_chunk_size;
+    trace_file = File.createTempFile("MappedDtraceReaderTest", ".dtrace");
+  }
+
+  @Override
+  protected void tearDown() {
+    FileIO.dkconfig_parse_threads = saved_threads;
+    FileIO.dkconfig_parse_chunk_size = saved_chunk_size;
+    trace_file.delete();
+  }
+
+  /**
+   * Returns the lines of a compressed trace in daikon/test/dtracediff.
+   *
+   * @param file the name of the trace
+   * @return its lines
+   */
+  private static List<String> read_trace(String file) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(Paths.get(Common.dtracePath(file)))),
+                UTF_8))) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Writes lines to trace_file, which is not compressed, so that it can be memory-mapped.
+   *
+   * @param lines the lines of the trace
+   * @param line_separator the line terminator to write after each line
+   */
+  private void write_trace(List<String> lines, String line_separator) throws IOException {
+    try (PrintWriter out = new PrintWriter(trace_file, "UTF-8")) {
+      for (String line : lines) {
+        out.print(line);
+        out.print(line_separator);
+      }
+    }
+  }
+
+  /**
+   * Runs Daikon on trace_file with a single thread, then with several threads and each chunk size,
+   * and checks that the invariants are the same.
+   */
+  private void assertSameInvariants() {
+    FileIO.dkconfig_parse_threads = 0;
+    List<String> expected = Common.describeInvariants(Common.runDaikon(trace_file.getPath()));
+    FileIO.dkconfig_parse_threads = 3;
+    for (int chunk_size : CHUNK_SIZES) {
+      FileIO.dkconfig_parse_chunk_size = chunk_size;
+      List<String> actual = Common.describeInvariants(Common.runDaikon(trace_file.getPath()));
+      assertEquals("chunk size " + chunk_size, expected, actual);
+    }
+  }
+
+  /**
+   * Runs Daikon on trace_file, which contains an error, with a single thread, then with several
+   * threads and each chunk size, and checks that the error is reported at the same line.
+   */
+  private void assertSameError() {
+    FileIO.dkconfig_parse_threads = 0;
+    String expected = error_message();
+    assertNotNull(expected);
+    FileIO.dkconfig_parse_threads = 3;
+    for (int chunk_size : CHUNK_SIZES) {
+      FileIO.dkconfig_parse_chunk_size = chunk_size;
+      assertEquals("chunk size " + chunk_size, expected, error_message());
+    }
+  }
+
+  /** Runs Daikon on trace_file and returns the message of the error it reports, or null. */
+  private String error_message() {
+    try {
+      Common.runDaikon(trace_file.getPath());
+      return null;
+    } catch (Daikon.UserError e) {
+      return e.getMessage();
+    }
+  }
+
+  public void testHanoi() throws IOException {
+    write_trace(read_trace("Hanoi.dtrace.gz"), "\n");
+    assertSameInvariants();
+  }
+
+  public void testAllTypes() throws IOException {
+    write_trace(read_trace("AllTypes.dtrace.gz"), "\n");
+    assertSameInvariants();
+  }
+
+  public void testCarriageReturns() throws IOException {
+    write_trace(read_trace("Hanoi.dtrace.gz"), "\r\n");
+    assertSameInvariants();
+    write_trace(read_trace("Hanoi.dtrace.gz"), "\r");
+    assertSameInvariants();
+  }
+
+  public void testExtraBlankLines() throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (String line : read_trace("Hanoi.dtrace.gz")) {
+      lines.add(line);
+      if (line.isEmpty()) {
+        lines.add("");
+      }
+    }
+    write_trace(lines, "\n");
+    assertSameInvariants();
+  }
+
+  public void testErrorLineNumber() throws IOException {
+    List<String> lines = read_trace("Hanoi.dtrace.gz");
+    // Make the modbit of a variable in a sample in the middle of the file invalid.
+    int i = lines.size() / 2;
+    while (!lines.get(i).equals("this_invocation_nonce")) {
+      i++;
+    }
+    lines.set(i + 4, "7");
+    write_trace(lines, "\n");
+    assertSameError();
+  }
+}
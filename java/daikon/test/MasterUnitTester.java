@@ -58,6 +58,17 @@ public class MasterUnitTester extends TestCase {
               daikon.test.inv.unary.scalar.OneOfScalarTester.class,
               daikon.test.inv.unary.sequence.OneOfSequenceTester.class,
               daikon.test.LinearTernaryCoreTest.class,
+              daikon.test.BinaryDtraceTest.class,
+              daikon.test.BinaryInvTest.class,
+              daikon.test.chicory.AdaptiveSamplerTest.class,
+              daikon.test.chicory.InstrumentedClassCacheTest.class,
+              daikon.test.dcomp.ConcurrentWeakIdentityHashMapTest.class,
+              daikon.test.CheckpointTest.class,
+              daikon.test.CoalesceSamplesTest.class,
+              daikon.test.InferenceWorkersTest.class,
+              daikon.test.InvocationTableTest.class,
+              daikon.test.MappedDtraceReaderTest.class,
+              daikon.test.LemmaStackTest.class,
               daikon.test.ModBitTrackerTest.class,
               daikon.test.ProglangTypeTest.class,
               daikon.test.VarComparabilityTest.class,
@@ -55,6 +55,24 @@ public class ModBitTrackerTest extends TestCase {
 
     for (int i = 0; i < numvars; i++) {
       assertEquals(mbt.get(i), bitsets[i]);
+      assertEquals(bitsets[i].cardinality(), mbt.num_present(i));
+      if (i > 0) {
+        BitSet both = (BitSet) bitsets[i].clone();
+        both.and(bitsets[i - 1]);
+        assertEquals(both.cardinality(), mbt.num_present(i, i - 1));
+        if (i > 1) {
+          both.and(bitsets[i - 2]);
+          assertEquals(both.cardinality(), mbt.num_present(i, i - 1, i - 2));
+        }
+      }
+    }
+
+    for (int sampleno = 0; sampleno < numsamples; sampleno += mbt.run_length(sampleno)) {
+      for (int i = 0; i < numvars; i++) {
+        for (int j = 1; j < mbt.run_length(sampleno); j++) {
+          assertEquals(bitsets[i].get(sampleno), bitsets[i].get(sampleno + j));
+        }
+      }
     }
   }
 
@@ -108,6 +126,82 @@ public class ModBitTrackerTest extends TestCase {
     assertEquals(vars, mbt.num_sets());
   }
 
+  // Bits that are usually true, with occasional runs of false bits, as for
+  // a variable that is present in almost every sample.
+  BitSet[] makeMostlyPresentBitSets(int numvars, int numsamples) {
+    BitSet[] result = new BitSet[numvars];
+    for (int var = 0; var < numvars; var++) {
+      BitSet bs = new BitSet(numsamples);
+      bs.set(0, numsamples);
+      for (int i = 0; i < var; i++) {
+        int start = r.nextInt(numsamples - 100);
+        bs.clear(start, start + r.nextInt(100));
+      }
+      result[var] = bs;
+    }
+    return result;
+  }
+
+  public void testMostlyPresent() {
+    BitSet[] bitsets = makeMostlyPresentBitSets(10, 10000);
+    ModBitTracker mbt = makeModBitTracker(bitsets);
+    checkModBitTracker(mbt, bitsets);
+  }
+
+  // A variable that is missing in some early samples and then present in all the others, as for a
+  // field of an object that is not yet allocated.  Its bits are stored as runs, so they take little
+  // space however many samples there are.
+  public void testEarlyChangesStayCompact() {
+    ModBitTracker mbt = new ModBitTracker(2);
+    Object[] vals = new Object[2];
+    int[] mods = new int[2];
+    ValueTuple vt = ValueTuple.makeUninterned(vals, mods);
+    mods[0] = ValueTuple.MODIFIED;
+    for (int sampleno = 0; sampleno < 3; sampleno++) {
+      mods[1] = booleanToModBit(sampleno != 1);
+      mbt.add(vt, 1);
+    }
+    mods[1] = ValueTuple.MODIFIED;
+    for (int sampleno = 3; sampleno < 100000; sampleno++) {
+      mbt.add(vt, 1);
+    }
+    assertTrue(mbt.is_run_length_encoded(1));
+    assertFalse(mbt.get(1, 1));
+    assertTrue(mbt.get(1, 2));
+    assertEquals(99999, mbt.num_present(1));
+  }
+
+  // A variable that alternates for longer, so that its bits are stored in a BitSet for a while, and
+  // then is always present.  The bits are converted back to runs.
+  public void testAlternatingThenPresent() {
+    int alternating = 2000;
+    int numsamples = 200000;
+    BitSet[] bitsets = new BitSet[2];
+    bitsets[0] = new BitSet(numsamples);
+    bitsets[0].set(0, numsamples);
+    bitsets[1] = new BitSet(numsamples);
+    for (int sampleno = 0; sampleno < numsamples; sampleno++) {
+      bitsets[1].set(sampleno, sampleno >= alternating || sampleno % 2 == 0);
+    }
+    ModBitTracker mbt = new ModBitTracker(2);
+    Object[] vals = new Object[2];
+    int[] mods = new int[2];
+    ValueTuple vt = ValueTuple.makeUninterned(vals, mods);
+    boolean was_bitset = false;
+    for (int sampleno = 0; sampleno < numsamples; sampleno++) {
+      mods[0] = booleanToModBit(bitsets[0].get(sampleno));
+      mods[1] = booleanToModBit(bitsets[1].get(sampleno));
+      mbt.add(vt, 1);
+      if (sampleno == alternating) {
+        was_bitset = !mbt.is_run_length_encoded(1);
+      }
+    }
+    assertTrue(was_bitset);
+    assertTrue(mbt.is_run_length_encoded(1));
+    assertTrue(mbt.is_run_length_encoded(0));
+    checkModBitTracker(mbt, bitsets);
+  }
+
   public void testModBitTracker() {
     oneModBitTrackerTest(1, 2, 0.0);
     oneModBitTrackerTest(2, 2, 0.0);
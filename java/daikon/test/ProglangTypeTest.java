@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.Comparator;
 import junit.framework.*;
 import org.plumelib.util.ArraysPlume;
+import org.plumelib.util.Intern;
 
 @SuppressWarnings("nullness") // testing code
 public class ProglangTypeTest extends TestCase {
@@ -82,4 +83,53 @@ public class ProglangTypeTest extends TestCase {
     comparrEquals(
         parse_value_helper(pstringa, "[\"foo\" null \"baz\"]"), new String[] {"foo", null, "baz"});
   }
+
+  // a helper for test_parse_value_scalars
+  private Object parse_value_helper(ProglangType pt, String s, long[] scalars, int index) {
+    return pt.parse_value(s, null, "test_parse_value_helper", true, scalars, index);
+  }
+
+  public void test_parse_value_scalars() {
+    long[] scalars = new long[6];
+    Object[] vals = new Object[6];
+    vals[0] = parse_value_helper(ProglangType.INT, "-3", scalars, 0);
+    vals[1] = parse_value_helper(ProglangType.INT, "true", scalars, 1);
+    vals[2] = parse_value_helper(ProglangType.DOUBLE, "NaN", scalars, 2);
+    vals[3] = parse_value_helper(ProglangType.DOUBLE, "-0.0", scalars, 3);
+    vals[4] = parse_value_helper(ProglangType.STRING, "\"foo\"", scalars, 4);
+    vals[5] = parse_value_helper(ProglangType.INT, "nonsensical", scalars, 5);
+    assertSame(ValueTuple.Scalar.LONG, vals[0]);
+    assertEquals(-3, scalars[0]);
+    assertSame(ValueTuple.Scalar.LONG, vals[1]);
+    assertEquals(1, scalars[1]);
+    assertSame(ValueTuple.Scalar.DOUBLE, vals[2]);
+    assertSame(ValueTuple.Scalar.DOUBLE, vals[3]);
+    assertSame("foo", vals[4]);
+    assertNull(vals[5]);
+
+    // A value stored in scalars is equal to its interned box, including NaN and -0.0.
+    int[] mods = {1, 1, 1, 1, 1, ValueTuple.MISSING_NONSENSICAL};
+    ValueTuple unboxed = new ValueTuple(vals, scalars, mods);
+    ValueTuple boxed =
+        new ValueTuple(
+            new Object[] {
+              Intern.internedLong(-3),
+              Intern.internedLong(1),
+              Intern.internedDouble(Double.NaN),
+              Intern.internedDouble(0.0),
+              "foo",
+              null
+            },
+            mods);
+    assertEquals(boxed, unboxed);
+    assertEquals(unboxed, boxed);
+    assertEquals(boxed.hashCode(), unboxed.hashCode());
+
+    Object[] other_vals = vals.clone();
+    long[] other_scalars = scalars.clone();
+    other_scalars[0] = 3;
+    assertFalse(unboxed.equals(new ValueTuple(other_vals, other_scalars, mods)));
+    other_vals[0] = Intern.internedDouble(-3.0);
+    assertFalse(unboxed.equals(new ValueTuple(other_vals, scalars, mods)));
+  }
 }
@@ -279,6 +279,7 @@ public class SampleTester extends TestCase {
     VarInfo[] vis = ppt.var_infos;
     int vals_array_size = vis.length;
     Object[] vals = new Object[vals_array_size];
+    long[] scalars = new long[vals_array_size];
     int[] mods = new int[vals_array_size];
 
     // initially all variables are missing
@@ -293,11 +294,12 @@ public class SampleTester extends TestCase {
         continue;
       }
       VarInfo vi = vars[i];
-      vals[vi.value_index] = vi.rep_type.parse_value(da[i], reader, filename);
+      vals[vi.value_index] =
+          vi.rep_type.parse_value(da[i], reader, filename, true, scalars, vi.value_index);
       mods[vi.value_index] = ValueTuple.parseModified("1");
     }
 
-    ValueTuple vt = ValueTuple.makeUninterned(vals, mods);
+    ValueTuple vt = ValueTuple.makeUninterned(vals, scalars, mods);
 
     // We might want to add the following at some point.  Certainly the
     // derived variables.  The orig variables force us to deal with matching
@@ -305,11 +307,11 @@ public class SampleTester extends TestCase {
     // give them the same value at enter and exit.  Both of these calls
     // are in FileIO
 
-    // compute_orig_variables (ppt, vt.vals, vt.mods, nonce);
-    // compute_derived_variables (ppt, vt.vals, vt.mods);
+    // compute_orig_variables (ppt, vt.vals, vt.scalars, vt.mods, nonce);
+    // compute_derived_variables (ppt, vt.vals, vt.scalars, vt.mods);
 
     // Causes interning
-    vt = new ValueTuple(vt.vals, vt.mods);
+    vt = new ValueTuple(vt.vals, vt.scalars, vt.mods);
 
     ppt.add_bottom_up(vt, 1);
   }
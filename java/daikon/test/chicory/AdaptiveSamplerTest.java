@@ -0,0 +1,161 @@
+package daikon.test.chicory;
+
+import daikon.chicory.AdaptiveSampler;
+import daikon.chicory.ClassInfo;
+import daikon.chicory.MethodInfo;
+import daikon.chicory.Runtime;
+import java.util.ArrayList;
+import junit.framework.*;
+
+/**
+ * Tests AdaptiveSampler: the division of the budget among methods, and the calls that are recorded
+ * whatever the probability.
+ */
+public class AdaptiveSamplerTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(AdaptiveSamplerTest.class));
+  }
+
+  public AdaptiveSamplerTest(String name) {
+    super(name);
+  }
+
+  /** One second, the length of the periods in these tests, in nanoseconds. */
+  private static final long SECOND = 1000000000L;
+
+  /** Returns a new method, with no sampling state. */
+  private static MethodInfo method(String name) {
+    ClassInfo class_info = new ClassInfo("C", AdaptiveSamplerTest.class.getClassLoader());
+    return new MethodInfo(
+        class_info, name, new String[0], new String[0], new ArrayList<>(), new ArrayList<>());
+  }
+
+  /** Returns the arguments of a call with four int arguments of the given signs. */
+  private static Object[] args(int a, int b, int c, int d) {
+    return new Object[] {
+      new Runtime.IntWrap(a), new Runtime.IntWrap(b), new Runtime.IntWrap(c), new Runtime.IntWrap(d)
+    };
+  }
+
+  /**
+   * Records calls of m, all with the same shape, until its probability is 0: their cost is far
+   * over the character budget of the sampler.
+   */
+  private static void exhaust(AdaptiveSampler sampler, MethodInfo m) {
+    for (int i = 0; i < 10; i++) {
+      assertTrue(sampler.capture(m, 100 + i, null, args(1, 1, 1, 1)));
+    }
+    sampler.add_cost(m, 0, 1000000);
+    sampler.adjust(SECOND);
+    assertEquals(0.0, sampler.probability(m));
+  }
+
+  public void testFairShare() {
+    double inf = Double.POSITIVE_INFINITY;
+    assertEquals(inf, AdaptiveSampler.fair_share(new double[0], 0));
+    assertEquals(inf, AdaptiveSampler.fair_share(new double[] {1, 2, 3}, 6));
+    assertEquals(2.0, AdaptiveSampler.fair_share(new double[] {3, 3, 3}, 6));
+    // The small demands are met; the others share what is left.
+    assertEquals(7.0, AdaptiveSampler.fair_share(new double[] {50, 1, 2, 100}, 17));
+    assertEquals(0.5, AdaptiveSampler.fair_share(new double[] {1, 1}, 1));
+    assertEquals(0.0, AdaptiveSampler.fair_share(new double[] {1, 2}, 0));
+  }
+
+  public void testAdjust() {
+    // The budget is less than what the two methods spent, so the next period has to make up for
+    // the overspending: it gets 2 * budget - spent.
+    long budget = 6734;
+    AdaptiveSampler sampler = new AdaptiveSampler(0, budget, 0);
+    MethodInfo cheap = method("cheap");
+    MethodInfo costly = method("costly");
+    for (int i = 1; i <= 10; i++) {
+      assertTrue(sampler.capture(cheap, i, null, args(1, 1, 1, 1)));
+      sampler.add_cost(cheap, 5, 10);
+    }
+    for (int i = 1; i <= 100; i++) {
+      assertTrue(sampler.capture(costly, i, null, args(1, 1, 1, 1)));
+      sampler.add_cost(costly, 5, 100);
+    }
+    sampler.adjust(SECOND);
+    // The first call of each method has a new shape, and is paid for first. Of the rest, the
+    // demand of cheap (9 * 10) is met and costly gets what remains for its 99 * 100.
+    double spent = 10 * 10 + 100 * 100;
+    double left = 2 * budget - spent - (10 + 100) - 9 * 10;
+    assertEquals(1.0, sampler.probability(cheap));
+    assertEquals(left / (99 * 100), sampler.probability(costly), 1e-9);
+
+    // A period that spends nothing pays off the debt, and the probabilities stay, since the
+    // methods were not called.
+    sampler.adjust(SECOND);
+    assertEquals(1.0, sampler.probability(cheap));
+    assertEquals(left / (99 * 100), sampler.probability(costly), 1e-9);
+  }
+
+  public void testAdjustWithinBudget() {
+    AdaptiveSampler sampler = new AdaptiveSampler(0, 1000000, 0);
+    MethodInfo m = method("m");
+    for (int i = 1; i <= 100; i++) {
+      sampler.capture(m, i, null, args(1, 1, 1, 1));
+      sampler.add_cost(m, 5, 100);
+    }
+    sampler.adjust(SECOND);
+    assertEquals(1.0, sampler.probability(m));
+  }
+
+  public void testAlwaysRecorded() {
+    AdaptiveSampler sampler = new AdaptiveSampler(0, 1000, 2);
+    MethodInfo m = method("m");
+    exhaust(sampler, m);
+    for (int i = 0; i < 100; i++) {
+      assertFalse(sampler.capture(m, 100, null, args(1, 1, 1, 1)));
+    }
+    // The first calls of a method are recorded, whatever their shape.
+    assertTrue(sampler.capture(m, 1, null, args(1, 1, 1, 1)));
+    assertTrue(sampler.capture(m, 2, null, args(1, 1, 1, 1)));
+    assertFalse(sampler.capture(m, 3, null, args(1, 1, 1, 1)));
+    // So is the first call with a new shape, but not the next one.
+    assertTrue(sampler.capture(m, 100, null, args(-1, 1, 1, 1)));
+    assertFalse(sampler.capture(m, 101, null, args(-1, 1, 1, 1)));
+    assertTrue(sampler.capture(m, 102, null, args(0, 1, 1, 1)));
+    assertTrue(sampler.capture(m, 103, null, new Object[] {null, null, null, null}));
+    assertTrue(sampler.capture(m, 104, "receiver", args(1, 1, 1, 1)));
+    assertFalse(sampler.capture(m, 105, "other receiver", args(1, 1, 1, 1)));
+  }
+
+  public void testShapeLimit() {
+    AdaptiveSampler sampler = new AdaptiveSampler(0, 1000, 0);
+    MethodInfo m = method("m");
+    exhaust(sampler, m);
+    // 81 different shapes; one of them was seen by exhaust.
+    int recorded = 0;
+    for (int a = -1; a <= 1; a++) {
+      for (int b = -1; b <= 1; b++) {
+        for (int c = -1; c <= 1; c++) {
+          for (int d = -1; d <= 1; d++) {
+            if (sampler.capture(m, 1000, null, args(a, b, c, d))) {
+              recorded++;
+            }
+          }
+        }
+      }
+    }
+    assertEquals(AdaptiveSampler.MAX_SHAPES - 1, recorded);
+    // Once the method has had MAX_SHAPES shapes, new ones are sampled like other calls.
+    assertFalse(sampler.capture(m, 1000, null, args(1, -1, -1, -1)));
+    assertFalse(sampler.capture(m, 1000, null, new Object[] {"", "", "", ""}));
+  }
+
+  public void testShape() {
+    assertEquals(
+        AdaptiveSampler.shape(null, args(3, 0, -3, 1)),
+        AdaptiveSampler.shape(null, args(5, 0, -1, 7)));
+    assertFalse(
+        AdaptiveSampler.shape(null, args(3, 0, -3, 1))
+            == AdaptiveSampler.shape(null, args(3, 0, 3, 1)));
+    assertFalse(
+        AdaptiveSampler.shape(null, new Object[] {""})
+            == AdaptiveSampler.shape(null, new Object[] {"x"}));
+  }
+}
@@ -0,0 +1,244 @@
+package daikon.test.chicory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import daikon.chicory.ClassInfo;
+import daikon.chicory.InstrumentedClassCache;
+import daikon.chicory.MethodInfo;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.*;
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionConst;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.Type;
+
+/**
+ * Tests InstrumentedClassCache: that an entry is found only for the same class, class file, and
+ * options, that an entry that cannot be read is ignored and replaced, and that the method indices
+ * of a class that is found are patched.
+ */
+public class InstrumentedClassCacheTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(InstrumentedClassCacheTest.class));
+  }
+
+  public InstrumentedClassCacheTest(String name) {
+    super(name);
+  }
+
+  /** The name of the generated class. */
+  private static final String GEN = "CacheTestGen";
+
+  private File dir;
+
+  /** The generated class, with placeholders for the indices of its methods. */
+  private byte[] instrumented;
+
+  /** The constant pool entries of instrumented that hold the indices of its methods. */
+  private int[] slots;
+
+  /** A stand-in for the original class file, from which the key of an entry is computed. */
+  private byte[] original = "original class file".getBytes(UTF_8);
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("InstrumentedClassCacheTest").toFile();
+    generate();
+  }
+
+  @Override
+  protected void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Generates a class whose static methods a() and b() return the index of the first and second
+   * method, as an instrumented class refers to its MethodInfos.
+   */
+  private void generate() {
+    ClassGen cg = new ClassGen(GEN, "java.lang.Object", GEN + ".java", Const.ACC_PUBLIC, null);
+    ConstantPoolGen pool = cg.getConstantPool();
+    InstrumentedClassCache.Relocations relocations = new InstrumentedClassCache.Relocations(pool);
+    // Constants equal to the placeholders, which the relocations must not share.
+    pool.addInteger(Integer.MIN_VALUE);
+    pool.addInteger(7);
+    add_method(cg, "a", relocations, 7);
+    add_method(cg, "b", relocations, 3);
+    // Pushing an index again uses the same entry.
+    add_method(cg, "a2", relocations, 7);
+    instrumented = cg.getJavaClass().getBytes();
+    slots = relocations.slots();
+    assertEquals(Arrays.toString(new int[] {3, 7}), Arrays.toString(relocations.indices()));
+    assertEquals(2, slots.length);
+  }
+
+  /** Adds a static method that returns the given index, through a relocated constant. */
+  private static void add_method(
+      ClassGen cg, String name, InstrumentedClassCache.Relocations relocations, int index) {
+    InstructionList il = new InstructionList();
+    il.append(relocations.push(index));
+    il.append(InstructionConst.IRETURN);
+    MethodGen mg =
+        new MethodGen(
+            Const.ACC_PUBLIC | Const.ACC_STATIC,
+            Type.INT,
+            Type.NO_ARGS,
+            new String[0],
+            name,
+            GEN,
+            il,
+            cg.getConstantPool());
+    mg.setMaxStack();
+    mg.setMaxLocals();
+    cg.addMethod(mg.getMethod());
+    il.dispose();
+  }
+
+  /** Returns an entry for the generated class, with two methods and a static field. */
+  private InstrumentedClassCache.Entry entry() {
+    ClassInfo class_info = new ClassInfo(GEN, getClass().getClassLoader());
+    List<MethodInfo> methods = new ArrayList<>();
+    methods.add(
+        new MethodInfo(
+            class_info,
+            "b",
+            new String[] {"x"},
+            new String[] {"int"},
+            new ArrayList<>(Arrays.asList(10, 12)),
+            new ArrayList<>(Arrays.asList(true, false))));
+    methods.add(
+        new MethodInfo(
+            class_info, "a", new String[0], new String[0], new ArrayList<>(), new ArrayList<>()));
+    Map<String, String> static_map = new HashMap<>();
+    static_map.put("LIMIT", "17");
+    return InstrumentedClassCache.Entry.of(instrumented, true, slots, methods, static_map);
+  }
+
+  /** Returns a cache in dir with the given options. */
+  private InstrumentedClassCache cache(String options) {
+    return new InstrumentedClassCache(dir, InstrumentedClassCacheTest.class, options);
+  }
+
+  /** Returns the entry files in dir. */
+  private File[] entry_files() {
+    File[] files = dir.listFiles();
+    assertNotNull(files);
+    return files;
+  }
+
+  /** Loads a class file and returns the results of its methods a, a2, and b. */
+  private static List<Integer> run(byte[] classfile) throws ReflectiveOperationException {
+    class Loader extends ClassLoader {
+      Class<?> define(byte[] bytes) {
+        return defineClass(GEN, bytes, 0, bytes.length);
+      }
+    }
+    Class<?> c = new Loader().define(classfile);
+    List<Integer> result = new ArrayList<>();
+    for (String name : new String[] {"a", "a2", "b"}) {
+      result.add((Integer) c.getMethod(name).invoke(null));
+    }
+    return result;
+  }
+
+  public void testHit() throws ReflectiveOperationException {
+    InstrumentedClassCache.Entry stored = entry();
+    assertTrue(stored.isComplete());
+    cache("opts").store(GEN, original, stored);
+    assertEquals(1, entry_files().length);
+
+    // A new cache, as in another run, finds the entry.
+    InstrumentedClassCache.Entry entry = cache("opts").lookup(GEN, original);
+    assertNotNull(entry);
+    assertTrue(entry.registered);
+    assertEquals(stored.staticMap, entry.staticMap);
+    assertEquals(Arrays.toString(slots), Arrays.toString(entry.slots));
+    ClassInfo class_info = new ClassInfo(GEN, getClass().getClassLoader());
+    List<MethodInfo> methods = entry.methodInfos(class_info);
+    assertEquals(2, methods.size());
+    MethodInfo b = methods.get(0);
+    assertEquals("b", b.method_name);
+    assertSame(class_info, b.class_info);
+    assertEquals(Collections.singletonList("x"), Arrays.asList(b.arg_names));
+    assertEquals(Collections.singletonList("int"), Arrays.asList(b.arg_type_strings));
+    assertEquals(Arrays.asList(10, 12), b.exit_locations);
+    assertEquals(Arrays.asList(true, false), b.is_included);
+    assertEquals("a", methods.get(1).method_name);
+
+    // The methods get the indices of this run: index 3 is the first slot, 7 the second.
+    assertEquals(Arrays.asList(200, 200, 100), run(entry.classfile(new int[] {100, 200})));
+    assertEquals(Arrays.asList(0, 0, 41), run(entry.classfile(new int[] {41, 0})));
+  }
+
+  public void testMiss() {
+    InstrumentedClassCache cache = cache("opts");
+    assertNull(cache.lookup(GEN, original));
+    cache.store(GEN, original, entry());
+    assertNotNull(cache.lookup(GEN, original));
+    // Another class with the same class file.
+    assertNull(cache.lookup("Other", original));
+    // The same class, changed.
+    byte[] changed = original.clone();
+    changed[0]++;
+    assertNull(cache.lookup(GEN, changed));
+    // Other options, or another agent.
+    assertNull(cache("other opts").lookup(GEN, original));
+    InstrumentedClassCache other_agent =
+        new InstrumentedClassCache(dir, AdaptiveSamplerTest.class, "opts");
+    assertNull(other_agent.lookup(GEN, original));
+  }
+
+  public void testStaleEntry() throws IOException {
+    InstrumentedClassCache cache = cache("opts");
+    cache.store(GEN, original, entry());
+    File[] files = entry_files();
+    assertEquals(1, files.length);
+    File file = files[0];
+
+    // An entry that was cut short, or written by another version of the cache, is ignored.
+    byte[] data = Files.readAllBytes(file.toPath());
+    Files.write(file.toPath(), Arrays.copyOf(data, data.length / 2));
+    assertNull(cache.lookup(GEN, original));
+    data[0]++;
+    Files.write(file.toPath(), data);
+    assertNull(cache.lookup(GEN, original));
+
+    // Storing the class again replaces it, and leaves no temporary file.
+    cache.store(GEN, original, entry());
+    assertNotNull(cache.lookup(GEN, original));
+    assertEquals(1, entry_files().length);
+  }
+
+  public void testUnchangedClass() {
+    InstrumentedClassCache.Entry entry =
+        InstrumentedClassCache.Entry.of(
+            null, false, new int[0], new ArrayList<MethodInfo>(), new HashMap<String, String>());
+    assertTrue(entry.isComplete());
+    InstrumentedClassCache cache = cache("opts");
+    cache.store(GEN, original, entry);
+    InstrumentedClassCache.Entry found = cache.lookup(GEN, original);
+    assertNotNull(found);
+    assertNull(found.classfile);
+    assertFalse(found.registered);
+    assertTrue(found.methodInfos(new ClassInfo(GEN, getClass().getClassLoader())).isEmpty());
+  }
+}
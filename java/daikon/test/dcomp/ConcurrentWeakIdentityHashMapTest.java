@@ -0,0 +1,298 @@
+package daikon.test.dcomp;
+
+import daikon.dcomp.ConcurrentWeakIdentityHashMap;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.*;
+
+/**
+ * Tests ConcurrentWeakIdentityHashMap, used by several threads at once, and with keys that are
+ * garbage collected.
+ */
+public class ConcurrentWeakIdentityHashMapTest extends TestCase {
+
+  public static void main(String[] args) {
+    daikon.LogHelper.setupLogs(daikon.LogHelper.INFO);
+    junit.textui.TestRunner.run(new TestSuite(ConcurrentWeakIdentityHashMapTest.class));
+  }
+
+  public ConcurrentWeakIdentityHashMapTest(String name) {
+    super(name);
+  }
+
+  /** The number of threads in the concurrent tests. */
+  private static final int THREADS = 4;
+
+  /** The number of keys that each thread adds in the concurrent tests. */
+  private static final int KEYS_PER_THREAD = 20000;
+
+  public void testIdentity() {
+    ConcurrentWeakIdentityHashMap<String, Integer> map = new ConcurrentWeakIdentityHashMap<>();
+    String a1 = new String("a");
+    String a2 = new String("a");
+    assertNull(map.get(a1));
+    assertFalse(map.containsKey(a1));
+    assertNull(map.put(a1, 1));
+    assertEquals(Integer.valueOf(1), map.get(a1));
+    assertNull(map.get(a2));
+    assertNull(map.putIfAbsent(a2, 2));
+    assertEquals(Integer.valueOf(2), map.get(a2));
+    assertEquals(Integer.valueOf(1), map.put(a1, 3));
+    assertEquals(Integer.valueOf(3), map.putIfAbsent(a1, 4));
+    assertEquals(Integer.valueOf(3), map.get(a1));
+    assertEquals(2, map.size());
+    List<String> keys = map.keys();
+    assertEquals(2, keys.size());
+    assertTrue(keys.get(0) == a1 || keys.get(1) == a1);
+    assertTrue(keys.get(0) == a2 || keys.get(1) == a2);
+  }
+
+  public void testGrowth() {
+    ConcurrentWeakIdentityHashMap<Object, Integer> map = new ConcurrentWeakIdentityHashMap<>();
+    List<Object> keys = new ArrayList<>();
+    for (int i = 0; i < 100000; i++) {
+      Object key = new Object();
+      keys.add(key);
+      assertNull(map.put(key, i));
+    }
+    assertEquals(keys.size(), map.size());
+    for (int i = 0; i < keys.size(); i++) {
+      assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+    }
+    assertEquals(keys.size(), map.keys().size());
+  }
+
+  /**
+   * Runs body on THREADS threads that start at the same time, and rethrows the first error that
+   * any of them throws.
+   */
+  private static void run_threads(ThreadBody body) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      int thread = t;
+      threads.add(
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                  body.run(thread);
+                } catch (Throwable e) {
+                  failure.compareAndSet(null, e);
+                }
+              }));
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    Throwable e = failure.get();
+    if (e instanceof Error) {
+      throw (Error) e;
+    }
+    if (e != null) {
+      throw new Error(e);
+    }
+  }
+
+  /** What each thread of {@link #run_threads} does. */
+  private interface ThreadBody {
+    /**
+     * Runs the body on one thread.
+     *
+     * @param thread the number of the thread, from 0 to THREADS - 1
+     */
+    void run(int thread) throws Exception;
+  }
+
+  public void testConcurrentPutGet() throws InterruptedException {
+    ConcurrentWeakIdentityHashMap<Object, Integer> map = new ConcurrentWeakIdentityHashMap<>();
+    List<List<Object>> keys = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      keys.add(Collections.synchronizedList(new ArrayList<>()));
+    }
+    run_threads(
+        thread -> {
+          List<Object> mine = keys.get(thread);
+          for (int i = 0; i < KEYS_PER_THREAD; i++) {
+            Object key = new Object();
+            mine.add(key);
+            assertNull(map.put(key, i));
+            // Keys that another thread is adding are either absent or have their value.
+            List<Object> theirs = keys.get((thread + 1) % THREADS);
+            int j = theirs.size() - 1;
+            if (j >= 0) {
+              Integer value = map.get(theirs.get(j));
+              assertTrue(value == null || value == j);
+            }
+            // Keys that this thread added remain, though the table grows meanwhile.
+            int k = i / 2;
+            assertEquals(Integer.valueOf(k), map.get(mine.get(k)));
+          }
+        });
+    assertEquals(THREADS * KEYS_PER_THREAD, map.size());
+    for (List<Object> mine : keys) {
+      for (int i = 0; i < mine.size(); i++) {
+        assertEquals(Integer.valueOf(i), map.get(mine.get(i)));
+      }
+    }
+  }
+
+  public void testConcurrentPutIfAbsent() throws InterruptedException {
+    ConcurrentWeakIdentityHashMap<Object, Integer> map = new ConcurrentWeakIdentityHashMap<>();
+    Object[] shared = new Object[KEYS_PER_THREAD];
+    for (int i = 0; i < shared.length; i++) {
+      shared[i] = new Object();
+    }
+    // For each key, the value that each thread got back from putIfAbsent.
+    Integer[][] results = new Integer[THREADS][shared.length];
+    run_threads(
+        thread -> {
+          for (int i = 0; i < shared.length; i++) {
+            results[thread][i] = map.putIfAbsent(shared[i], thread);
+          }
+        });
+    assertEquals(shared.length, map.size());
+    for (int i = 0; i < shared.length; i++) {
+      Integer winner = map.get(shared[i]);
+      assertNotNull(winner);
+      // Exactly one thread added the key, and every other thread saw its value.
+      for (int t = 0; t < THREADS; t++) {
+        if (t == winner) {
+          assertNull(results[t][i]);
+        } else {
+          assertEquals(winner, results[t][i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the garbage collector until the objects referred to by refs have been collected.
+   *
+   * @param refs references to objects that are not otherwise reachable
+   */
+  private static void collect(List<WeakReference<Object>> refs) throws InterruptedException {
+    for (int i = 0; ; i++) {
+      boolean collected = true;
+      for (WeakReference<Object> ref : refs) {
+        if (ref.get() != null) {
+          collected = false;
+          break;
+        }
+      }
+      if (collected) {
+        return;
+      }
+      if (i == 100) {
+        fail("the garbage collector did not collect the unreachable keys");
+      }
+      System.gc();
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Maps 10000 new keys to their numbers, and keeps every other key reachable. In a method of its
+   * own, so that no local variable of the caller refers to an unreachable key.
+   *
+   * @param map the map
+   * @param live the keys that are kept
+   * @param dead references to the keys that become unreachable
+   */
+  private static void fill(
+      ConcurrentWeakIdentityHashMap<Object, Integer> map,
+      List<Object> live,
+      List<WeakReference<Object>> dead) {
+    for (int i = 0; i < 10000; i++) {
+      Object key = new Object();
+      map.put(key, i);
+      if (i % 2 == 0) {
+        live.add(key);
+      } else {
+        dead.add(new WeakReference<>(key));
+      }
+    }
+  }
+
+  public void testCollectedKeys() throws InterruptedException {
+    ConcurrentWeakIdentityHashMap<Object, Integer> map = new ConcurrentWeakIdentityHashMap<>();
+    List<Object> live = new ArrayList<>();
+    List<WeakReference<Object>> dead = new ArrayList<>();
+    fill(map, live, dead);
+    collect(dead);
+
+    // The collected keys are gone at once from keys().
+    Map<Object, Boolean> keys = new IdentityHashMap<>();
+    for (Object key : map.keys()) {
+      keys.put(key, true);
+    }
+    assertEquals(live.size(), keys.size());
+    for (Object key : live) {
+      assertTrue(keys.containsKey(key));
+    }
+
+    // Their entries are removed as their segments change.
+    List<Object> added = new ArrayList<>();
+    for (int round = 0; map.size() != live.size() + added.size(); round++) {
+      if (round == 100) {
+        fail("entries of collected keys were not removed: " + map.size());
+      }
+      for (int i = 0; i < 1000; i++) {
+        Object key = new Object();
+        map.put(key, -2);
+        added.add(key);
+      }
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < live.size(); i++) {
+      assertEquals(Integer.valueOf(2 * i), map.get(live.get(i)));
+    }
+  }
+
+  public void testConcurrentCollectedKeys() throws InterruptedException {
+    ConcurrentWeakIdentityHashMap<Object, Integer> map = new ConcurrentWeakIdentityHashMap<>();
+    List<List<Object>> keys = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      keys.add(new ArrayList<>());
+    }
+    run_threads(
+        thread -> {
+          List<Object> mine = keys.get(thread);
+          for (int i = 0; i < KEYS_PER_THREAD; i++) {
+            // Every other key becomes unreachable at once, so that entries are removed while
+            // other threads read and add keys in the same segments.
+            Object key = new Object();
+            map.put(key, i);
+            if (i % 2 == 0) {
+              mine.add(key);
+            } else {
+              map.putIfAbsent(new Object(), i);
+            }
+            if (thread == 0 && i % 5000 == 0) {
+              System.gc();
+            }
+            int k = i / 4;
+            assertEquals(Integer.valueOf(2 * k), map.get(mine.get(k)));
+          }
+        });
+    for (List<Object> mine : keys) {
+      for (int i = 0; i < mine.size(); i++) {
+        assertEquals(Integer.valueOf(2 * i), map.get(mine.get(i)));
+      }
+    }
+    int live = THREADS * KEYS_PER_THREAD / 2;
+    assertTrue(map.size() >= live);
+    assertTrue(map.keys().size() >= live);
+  }
+}
@@ -387,11 +387,11 @@ public class InvariantChecker {
       debug.fine("processing sample from: " + ppt.name);
 
       // Add orig and derived variables
-      FileIO.compute_orig_variables(ppt, vt.vals, vt.mods, nonce);
-      FileIO.compute_derived_variables(ppt, vt.vals, vt.mods);
+      FileIO.compute_orig_variables(ppt, vt.vals, vt.scalars, vt.mods, nonce);
+      FileIO.compute_derived_variables(ppt, vt.vals, vt.scalars, vt.mods);
 
       // Intern the sample
-      vt = new ValueTuple(vt.vals, vt.mods);
+      vt = new ValueTuple(vt.vals, vt.scalars, vt.mods);
 
       // If this is an enter point, just remember it for later
       if (ppt.ppt_name.isEnterPoint()) {
@@ -74,11 +74,11 @@ public class ReadTrace {
         PptMap all_ppts, PptTopLevel ppt, ValueTuple vt, @Nullable Integer nonce) {
 
       // Add orig and derived variables to the ValueTuple
-      FileIO.compute_orig_variables(ppt, vt.vals, vt.mods, nonce);
-      FileIO.compute_derived_variables(ppt, vt.vals, vt.mods);
+      FileIO.compute_orig_variables(ppt, vt.vals, vt.scalars, vt.mods, nonce);
+      FileIO.compute_derived_variables(ppt, vt.vals, vt.scalars, vt.mods);
 
       // Intern the sample, to save space, since we are storing them all.
-      vt = new ValueTuple(vt.vals, vt.mods);
+      vt = new ValueTuple(vt.vals, vt.scalars, vt.mods);
 
       // Add the sample to the map
       if (!samples.containsKey(ppt)) {